@@ -30,6 +30,7 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -50,13 +51,17 @@ import org.geowebcache.grid.GridSubset;
 import org.geowebcache.grid.OutsideCoverageException;
 import org.geowebcache.io.ByteArrayResource;
 import org.geowebcache.io.Resource;
+import org.geowebcache.io.Resources;
 import org.geowebcache.layer.BadTileException;
 import org.geowebcache.layer.TileLayer;
 import org.geowebcache.layer.TileLayerDispatcher;
+import org.geowebcache.layer.wms.BackendConcurrencyLimiter;
+import org.geowebcache.layer.wms.WMSSourceHelper;
 import org.geowebcache.mime.ImageMime;
 import org.geowebcache.service.HttpErrorCodeException;
 import org.geowebcache.service.OWSException;
 import org.geowebcache.service.Service;
+import org.geowebcache.stats.MissLatencyMonitor;
 import org.geowebcache.stats.RuntimeStats;
 import org.geowebcache.storage.DefaultStorageFinder;
 import org.geowebcache.storage.StorageBroker;
@@ -86,6 +91,8 @@ public class GeoWebCacheDispatcher extends AbstractController {
 
     private RuntimeStats runtimeStats;
 
+    private MissLatencyMonitor missLatencyMonitor;
+
     private Map<String, Service> services = null;
 
     private Resource blankTile = null;
@@ -123,6 +130,13 @@ public class GeoWebCacheDispatcher extends AbstractController {
         this.defaultStorageFinder = defaultStorageFinder;
     }
 
+    /**
+     * Sets the monitor told how long the requests for tiles missing from the cache take
+     */
+    public void setMissLatencyMonitor(MissLatencyMonitor missLatencyMonitor) {
+        this.missLatencyMonitor = missLatencyMonitor;
+    }
+
     /**
      * GeoServer and other solutions that embedded this dispatcher will prepend a path, this is used
      * to remove it.
@@ -360,7 +374,11 @@ public class GeoWebCacheDispatcher extends AbstractController {
 
             try {
                 // A5) Ask the layer to provide the content for the tile
+                final long start = System.currentTimeMillis();
                 convTile = layer.getTile(convTile);
+                if (missLatencyMonitor != null && convTile.getCacheResult() == CacheResult.MISS) {
+                    missLatencyMonitor.missed(System.currentTimeMillis() - start);
+                }
 
                 // A6) Write response
                 writeData(convTile);
@@ -454,11 +472,37 @@ public class GeoWebCacheDispatcher extends AbstractController {
             str.append("<h3>Runtime Statistics</h3>\n");
             str.append(runtimeStats.getHTMLStats());
         }
+        Map<String, BackendConcurrencyLimiter> limiters = WMSSourceHelper.getConcurrencyLimiters();
+        if (!limiters.isEmpty()) {
+            str.append("<h3>Backend Concurrency</h3>\n");
+            appendConcurrencyStats(str, limiters);
+        }
         str.append("</body></html>\n");
 
         writePage(response, 200, str.toString());
     }
 
+    /**
+     * Lists the adaptive concurrency limits of the WMS backends used so far
+     */
+    private void appendConcurrencyStats(StringBuilder str,
+            Map<String, BackendConcurrencyLimiter> limiters) {
+        str.append("<table border=\"0\" cellspacing=\"5\">");
+        str.append("<tr><th>Backend</th><th>Limit</th><th>In flight</th><th>Queued</th>"
+                + "<th>Seeding queued</th><th>Average latency</th></tr>\n");
+        for (BackendConcurrencyLimiter limiter : new TreeMap<String, BackendConcurrencyLimiter>(
+                limiters).values()) {
+            // no credentials on the front page
+            String backend = limiter.getBackend().replaceFirst("//[^/@]*@", "//");
+            str.append("<tr><td>" + ServletUtils.disableHTMLTags(backend) + "</td><td>"
+                    + limiter.getLimit() + " of " + limiter.getMaxLimit() + "</td><td>"
+                    + limiter.getInFlight() + "</td><td>" + limiter.getQueueDepth()
+                    + "</td><td>" + limiter.getSeedQueueDepth() + "</td><td>"
+                    + limiter.getAverageLatency() + " ms</td></tr>\n");
+        }
+        str.append("</table>\n");
+    }
+
     /**
      * Wrapper method for writing an error back to the client, and logging it at the same time.
      * 
@@ -593,7 +637,7 @@ public class GeoWebCacheDispatcher extends AbstractController {
         if (resource != null) {
             try {
                 OutputStream os = response.getOutputStream();
-                resource.transferTo(Channels.newChannel(os));
+                Resources.transferTo(resource, os);
 
                 runtimeStats.log(contentLength, cacheRes);
 
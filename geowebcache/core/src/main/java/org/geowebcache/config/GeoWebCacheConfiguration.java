@@ -61,6 +61,10 @@ public class GeoWebCacheConfiguration {
 
     private Boolean runtimeStats;
 
+    private Integer transientCacheMaxTiles;
+
+    private Integer transientCacheMaxStorageKB;
+
     private String httpUsername;
 
     private String httpPassword;
@@ -173,6 +177,37 @@ public class GeoWebCacheConfiguration {
         this.runtimeStats = runtimeStats;
     }
 
+    /**
+     * @return the maximum number of meta tile siblings kept in memory for layers not caching tiles
+     */
+    public Integer getTransientCacheMaxTiles() {
+        return transientCacheMaxTiles;
+    }
+
+    /**
+     * @param transientCacheMaxTiles
+     *            the transientCacheMaxTiles to set
+     */
+    public void setTransientCacheMaxTiles(Integer transientCacheMaxTiles) {
+        this.transientCacheMaxTiles = transientCacheMaxTiles;
+    }
+
+    /**
+     * @return the maximum size of the meta tile siblings kept in memory for layers not caching
+     *         tiles, in KB
+     */
+    public Integer getTransientCacheMaxStorageKB() {
+        return transientCacheMaxStorageKB;
+    }
+
+    /**
+     * @param transientCacheMaxStorageKB
+     *            the transientCacheMaxStorageKB to set
+     */
+    public void setTransientCacheMaxStorageKB(Integer transientCacheMaxStorageKB) {
+        this.transientCacheMaxStorageKB = transientCacheMaxStorageKB;
+    }
+
     /**
      * @return the httpUsername
      */
@@ -71,18 +71,27 @@ import org.geowebcache.filter.request.FileRasterFilter;
 import org.geowebcache.filter.request.WMSRasterFilter;
 import org.geowebcache.grid.GridSet;
 import org.geowebcache.grid.GridSetBroker;
+import org.geowebcache.io.DirectBufferPool;
+import org.geowebcache.io.Resources;
 import org.geowebcache.layer.ExpirationRule;
+import org.geowebcache.layer.MetaTileEncoderExecutor;
+import org.geowebcache.layer.MetaTileImageResource;
 import org.geowebcache.layer.TileLayer;
 import org.geowebcache.layer.meta.ContactInformation;
 import org.geowebcache.layer.meta.LayerMetaInformation;
 import org.geowebcache.layer.updatesource.GeoRSSFeedDefinition;
 import org.geowebcache.layer.wms.WMSHttpHelper;
 import org.geowebcache.layer.wms.WMSLayer;
+import org.geowebcache.layer.wms.WMSSourceHelper;
 import org.geowebcache.locks.LockProvider;
 import org.geowebcache.mime.FormatModifier;
+import org.geowebcache.seed.ReprioritizeRequest;
+import org.geowebcache.seed.ResumeRequest;
 import org.geowebcache.seed.SeedRequest;
 import org.geowebcache.storage.DefaultStorageFinder;
+import org.geowebcache.storage.TransientCache;
 import org.geowebcache.util.ApplicationContextProvider;
+import org.geowebcache.util.GWCVars;
 import org.springframework.util.Assert;
 import org.springframework.web.context.WebApplicationContext;
 import org.w3c.dom.Document;
@@ -300,6 +309,30 @@ public class XMLConfiguration implements Configuration {
         }
     }
 
+    /**
+     * @return the maximum number of tiles of the {@link TransientCache}, or the default if not
+     *         configured
+     */
+    public int getTransientCacheMaxTiles() {
+        if (gwcConfig == null || gwcConfig.getTransientCacheMaxTiles() == null) {
+            return TransientCache.DEFAULT_MAX_TILES;
+        } else {
+            return gwcConfig.getTransientCacheMaxTiles();
+        }
+    }
+
+    /**
+     * @return the maximum size of the {@link TransientCache} in KB, or the default if not
+     *         configured
+     */
+    public int getTransientCacheMaxStorageKB() {
+        if (gwcConfig == null || gwcConfig.getTransientCacheMaxStorageKB() == null) {
+            return TransientCache.DEFAULT_MAX_STORAGE_KB;
+        } else {
+            return gwcConfig.getTransientCacheMaxStorageKB();
+        }
+    }
+
     public synchronized ServiceInformation getServiceInformation() {
         return gwcConfig.getServiceInformation();
     }
@@ -328,6 +361,12 @@ public class XMLConfiguration implements Configuration {
             }
         }
 
+        if (layer.getEncoderExecutor() == null && context != null) {
+            // optional, meta tiles are encoded sequentially if not configured
+            layer.setEncoderExecutor(GeoWebCacheExtensions.bean(MetaTileEncoderExecutor.class,
+                    context));
+        }
+
         if (layer instanceof WMSLayer) {
             WMSLayer wl = (WMSLayer) layer;
 
@@ -361,8 +400,22 @@ public class XMLConfiguration implements Configuration {
                 log.debug("Not using HTTP credentials for " + wl.getName());
             }
 
+            String adaptive = GWCVars.findEnvVar(context, WMSSourceHelper.GWC_ADAPTIVE_CONCURRENCY);
+            sourceHelper.setAdaptiveConcurrency(adaptive == null
+                    || Boolean.parseBoolean(adaptive.trim()));
             wl.setSourceHelper(sourceHelper);
             wl.setLockProvider(gwcConfig.getLockProvider());
+            String coalescing = GWCVars.findEnvVar(context, WMSLayer.GWC_METATILE_COALESCING);
+            wl.setMetaTileCoalescing(coalescing == null
+                    || Boolean.parseBoolean(coalescing.trim()));
+            String lockWait = GWCVars.findEnvVar(context, WMSLayer.GWC_LOCK_WAIT_TIMEOUT);
+            if (lockWait != null) {
+                try {
+                    wl.setLockWaitTimeout(Long.valueOf(lockWait.trim()));
+                } catch (NumberFormatException e) {
+                    log.warn("Invalid " + WMSLayer.GWC_LOCK_WAIT_TIMEOUT + " value: " + lockWait);
+                }
+            }
         }
     }
 
@@ -497,6 +550,8 @@ public class XMLConfiguration implements Configuration {
         xs.alias("parameterFilters", new ArrayList<ParameterFilter>().getClass());
         xs.alias("parameterFilter", ParameterFilter.class);
         xs.alias("seedRequest", SeedRequest.class);
+        xs.alias("reprioritizeRequest", ReprioritizeRequest.class);
+        xs.alias("resumeRequest", ResumeRequest.class);
 
         xs.alias("floatParameterFilter", FloatParameterFilter.class);
         xs.alias("regexParameterFilter", RegexParameterFilter.class);
@@ -887,6 +942,8 @@ public class XMLConfiguration implements Configuration {
             this.gwcConfig = loadConfiguration();
         }
 
+        applyGlobalSettings();
+
         log.info("Initializing GridSets from " + getIdentifier());
 
         contributeGridSets(gridSetBroker);
@@ -933,6 +990,29 @@ public class XMLConfiguration implements Configuration {
         }
     }
 
+    /**
+     * Applies the GWC_* variables that are not tied to a layer
+     */
+    private void applyGlobalSettings() {
+        String streaming = GWCVars.findEnvVar(context, MetaTileImageResource.GWC_STREAMING_DECODE);
+        if (streaming != null) {
+            MetaTileImageResource.setStreamingDecode(Boolean.parseBoolean(streaming.trim()));
+        }
+        String poolSize = GWCVars.findEnvVar(context, DirectBufferPool.GWC_DIRECT_BUFFER_POOL_SIZE);
+        if (poolSize != null) {
+            try {
+                DirectBufferPool.setDefaultCapacity(Long.parseLong(poolSize.trim()) * 1024 * 1024);
+            } catch (NumberFormatException e) {
+                log.warn("Invalid " + DirectBufferPool.GWC_DIRECT_BUFFER_POOL_SIZE + " value: "
+                        + poolSize);
+            }
+        }
+        String direct = GWCVars.findEnvVar(context, Resources.GWC_DIRECT_TRANSFER);
+        if (direct != null) {
+            Resources.setDirectTransfer(Boolean.parseBoolean(direct.trim()));
+        }
+    }
+
     private void initialize(final TileLayer layer) {
         log.info("Initializing TileLayer '" + layer.getName() + "'");
         setDefaultValues(layer);
@@ -10,7 +10,7 @@ import java.nio.channels.WritableByteChannel;
 
 import org.springframework.util.Assert;
 
-public class ByteArrayResource implements Resource {
+public class ByteArrayResource implements StreamableResource {
 
     private byte[] data;
 
@@ -93,6 +93,16 @@ public class ByteArrayResource implements Resource {
         return length;
     }
 
+    /**
+     * @see org.geowebcache.io.StreamableResource#transferTo(java.io.OutputStream)
+     */
+    public long transferTo(OutputStream out) throws IOException {
+        if (length > 0) {
+            out.write(data, offset, length);
+        }
+        return length;
+    }
+
     /**
      * @see org.geowebcache.io.Resource#transferFrom(java.nio.channels.ReadableByteChannel)
      */
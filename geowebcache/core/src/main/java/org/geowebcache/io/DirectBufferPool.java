@@ -0,0 +1,209 @@
+package org.geowebcache.io;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A pool of direct {@link ByteBuffer}s, used to keep tile contents out of the java heap.
+ * <p>
+ * Buffers are handed out in power of two size classes. Classes up to the slab size are carved out
+ * of slabs of direct memory, bigger ones get a slab each. Released buffers go back to the free
+ * list of their class and are never returned to the operating system. Once the pool capacity is
+ * exhausted, or for requests bigger than the maximum buffer size, heap buffers are handed out
+ * instead, so callers always get a buffer.
+ * </p>
+ * <p>
+ * The default pool capacity is 64MB, it can be changed with the
+ * {@code GWC_DIRECT_BUFFER_POOL_SIZE} variable, in MB, set as a system property, servlet context
+ * parameter or environment variable. Setting it to 0 disables direct buffers altogether.
+ * </p>
+ * 
+ * @see PooledResource
+ */
+public class DirectBufferPool {
+
+    private static Log log = LogFactory.getLog(DirectBufferPool.class);
+
+    public static final String GWC_DIRECT_BUFFER_POOL_SIZE = "GWC_DIRECT_BUFFER_POOL_SIZE";
+
+    public static final int MIN_BUFFER_SIZE = 4 * 1024;
+
+    public static final int MAX_BUFFER_SIZE = 16 * 1024 * 1024;
+
+    private static final int SLAB_SIZE = 1024 * 1024;
+
+    private static DirectBufferPool defaultPool;
+
+    private static long defaultCapacity = 64L * 1024 * 1024;
+
+    private final long maxCapacity;
+
+    private final Queue<ByteBuffer>[] freeLists;
+
+    private final AtomicLong capacity = new AtomicLong();
+
+    private final AtomicLong used = new AtomicLong();
+
+    private final AtomicLong acquired = new AtomicLong();
+
+    private final AtomicLong heapFallbacks = new AtomicLong();
+
+    /**
+     * @param maxCapacity
+     *            the maximum amount of direct memory allocated by the pool, in bytes
+     */
+    @SuppressWarnings("unchecked")
+    public DirectBufferPool(long maxCapacity) {
+        this.maxCapacity = maxCapacity;
+        int classes = sizeClass(MAX_BUFFER_SIZE) + 1;
+        this.freeLists = new Queue[classes];
+        for (int i = 0; i < classes; i++) {
+            freeLists[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+        }
+    }
+
+    /**
+     * @return the pool shared by the whole application
+     */
+    public static synchronized DirectBufferPool getDefault() {
+        if (defaultPool == null) {
+            log.info("Pooling up to " + (defaultCapacity / 1024 / 1024) + "MB of direct buffers");
+            defaultPool = new DirectBufferPool(defaultCapacity);
+        }
+        return defaultPool;
+    }
+
+    /**
+     * Sets the capacity of the {@link #getDefault() default pool}, replacing it if already created
+     * with a different capacity. The buffers acquired from a replaced pool still go back to it.
+     * 
+     * @see #GWC_DIRECT_BUFFER_POOL_SIZE
+     */
+    public static synchronized void setDefaultCapacity(long maxCapacity) {
+        if (defaultPool != null && defaultPool.maxCapacity != maxCapacity) {
+            defaultPool = null;
+        }
+        defaultCapacity = maxCapacity;
+    }
+
+    /**
+     * Hands out a cleared buffer of at least the given capacity. It should be given back with
+     * {@link #release} once no longer used, and not be used after that.
+     */
+    public ByteBuffer acquire(int minCapacity) {
+        acquired.incrementAndGet();
+        if (minCapacity > MAX_BUFFER_SIZE) {
+            heapFallbacks.incrementAndGet();
+            return ByteBuffer.allocate(minCapacity);
+        }
+        final int sizeClass = sizeClass(minCapacity);
+        final int size = MIN_BUFFER_SIZE << sizeClass;
+        ByteBuffer buffer = freeLists[sizeClass].poll();
+        if (buffer == null) {
+            buffer = allocate(sizeClass, size);
+            if (buffer == null) {
+                heapFallbacks.incrementAndGet();
+                return ByteBuffer.allocate(size);
+            }
+        }
+        used.addAndGet(size);
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Gives a buffer obtained from {@link #acquire} back to the pool
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect()) {
+            // heap buffers are left to the garbage collector
+            return;
+        }
+        final int size = buffer.capacity();
+        final int sizeClass = sizeClass(size);
+        if ((MIN_BUFFER_SIZE << sizeClass) != size) {
+            throw new IllegalArgumentException("Not a pooled buffer: " + buffer);
+        }
+        used.addAndGet(-size);
+        freeLists[sizeClass].offer(buffer);
+    }
+
+    /**
+     * Allocates a new slab for the size class, keeping all but the first buffer carved out of it
+     * 
+     * @return the first buffer of the slab, or {@code null} if the pool is full
+     */
+    private ByteBuffer allocate(int sizeClass, int size) {
+        final int slabSize = Math.max(size, SLAB_SIZE);
+        long current;
+        do {
+            current = capacity.get();
+            if (current + slabSize > maxCapacity) {
+                return null;
+            }
+        } while (!capacity.compareAndSet(current, current + slabSize));
+
+        ByteBuffer slab = ByteBuffer.allocateDirect(slabSize);
+        ByteBuffer first = null;
+        for (int offset = 0; offset < slabSize; offset += size) {
+            slab.limit(offset + size);
+            slab.position(offset);
+            ByteBuffer buffer = slab.slice();
+            if (first == null) {
+                first = buffer;
+            } else {
+                freeLists[sizeClass].offer(buffer);
+            }
+        }
+        return first;
+    }
+
+    private static int sizeClass(int size) {
+        int sizeClass = 0;
+        while ((MIN_BUFFER_SIZE << sizeClass) < size) {
+            sizeClass++;
+        }
+        return sizeClass;
+    }
+
+    /**
+     * @return the maximum amount of direct memory the pool can allocate, in bytes
+     */
+    public long getMaxCapacity() {
+        return maxCapacity;
+    }
+
+    /**
+     * @return the amount of direct memory allocated so far, in bytes
+     */
+    public long getCapacity() {
+        return capacity.get();
+    }
+
+    /**
+     * @return the amount of direct memory currently handed out, in bytes
+     */
+    public long getUsed() {
+        return used.get();
+    }
+
+    /**
+     * @return the number of buffers handed out so far
+     */
+    public long getAcquireCount() {
+        return acquired.get();
+    }
+
+    /**
+     * @return the number of heap buffers handed out so far, because the pool was full or the
+     *         requested size too big
+     */
+    public long getHeapFallbackCount() {
+        return heapFallbacks.get();
+    }
+}
@@ -6,12 +6,27 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
 
-public class FileResource implements Resource {
+public class FileResource implements StreamableResource {
+
+    /**
+     * Size of the per thread buffer used to copy files into output streams, most tiles fit in it
+     * and get written out with a single read and a single write
+     */
+    private static final int TRANSFER_BUFFER_SIZE = 64 * 1024;
+
+    private static final ThreadLocal<byte[]> TRANSFER_BUFFER = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[TRANSFER_BUFFER_SIZE];
+        }
+    };
 
     private final File file;
 
@@ -36,22 +51,64 @@ public class FileResource implements Resource {
         return size == 0 ? -1 : size;
     }
 
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Uses {@link FileChannel#transferTo}, which does not copy the file contents through the heap
+     * when the target is a file or socket channel
+     * 
+     * @see org.geowebcache.io.Resource#transferTo(java.nio.channels.WritableByteChannel)
+     */
     public long transferTo(WritableByteChannel target) throws IOException {
-        FileChannel in = new FileInputStream(file).getChannel();
+        // RandomAccessFile has no finalizer, unlike FileInputStream
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        FileChannel in = raf.getChannel();
         // FileLock lock = in.lock();
         try {
             final long size = in.size();
             long written = 0;
-            while ((written += in.transferTo(written, size, target)) < size) {
+            while ((written += in.transferTo(written, size - written, target)) < size) {
                 ;
             }
             return size;
         } finally {
-            in.close();
+            raf.close();
             // lock.release();
         }
     }
 
+    /**
+     * Copies the file through a reusable per thread buffer, instead of allocating new buffers for
+     * each transfer
+     * 
+     * @see org.geowebcache.io.StreamableResource#transferTo(java.io.OutputStream)
+     */
+    public long transferTo(OutputStream out) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        FileChannel in = raf.getChannel();
+        try {
+            final byte[] buffer = TRANSFER_BUFFER.get();
+            final ByteBuffer bb = ByteBuffer.wrap(buffer);
+            long written = 0;
+            while (in.read(bb) != -1) {
+                if (!bb.hasRemaining()) {
+                    out.write(buffer, 0, bb.position());
+                    written += bb.position();
+                    bb.clear();
+                }
+            }
+            if (bb.position() > 0) {
+                out.write(buffer, 0, bb.position());
+                written += bb.position();
+            }
+            return written;
+        } finally {
+            raf.close();
+        }
+    }
+
     public long transferFrom(ReadableByteChannel channel) throws IOException {
         final FileChannel out = new FileOutputStream(file).getChannel();
         final FileLock lock = out.lock();
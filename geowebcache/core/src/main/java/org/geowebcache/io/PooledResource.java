@@ -0,0 +1,222 @@
+package org.geowebcache.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A growable {@link Resource} backed by a {@link ByteBuffer} from a {@link DirectBufferPool}, so
+ * that its contents do not live in the java heap.
+ * <p>
+ * The buffer is acquired on the first write and replaced by a bigger one as needed. It must be
+ * given back to the pool calling {@link #release()} once the contents are no longer needed, which
+ * leaves the resource empty but still usable. The resource is not thread safe.
+ * </p>
+ */
+public class PooledResource implements StreamableResource {
+
+    /**
+     * Scratch buffer used to copy direct buffers into output streams
+     */
+    private static final ThreadLocal<byte[]> COPY_BUFFER = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[8192];
+        }
+    };
+
+    private final DirectBufferPool pool;
+
+    private ByteBuffer buffer;
+
+    private int length;
+
+    private long lastModified = System.currentTimeMillis();
+
+    /**
+     * Creates a resource using the {@link DirectBufferPool#getDefault() default pool}
+     */
+    public PooledResource() {
+        this(DirectBufferPool.getDefault());
+    }
+
+    public PooledResource(DirectBufferPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * @see org.geowebcache.io.Resource#getSize()
+     */
+    public long getSize() {
+        return length;
+    }
+
+    /**
+     * @see org.geowebcache.io.Resource#getLastModified()
+     */
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * @return a read only view of the contents, valid until the resource is modified or released
+     */
+    public ByteBuffer getByteBuffer() {
+        if (buffer == null) {
+            return ByteBuffer.allocate(0);
+        }
+        ByteBuffer contents = buffer.asReadOnlyBuffer();
+        contents.position(0);
+        contents.limit(length);
+        return contents;
+    }
+
+    /**
+     * Discards the contents, keeping the buffer for further writes
+     */
+    public void truncate() {
+        length = 0;
+    }
+
+    /**
+     * Discards the contents and gives the buffer back to the pool
+     */
+    public void release() {
+        length = 0;
+        if (buffer != null) {
+            ByteBuffer released = buffer;
+            buffer = null;
+            pool.release(released);
+        }
+    }
+
+    /**
+     * @see org.geowebcache.io.Resource#transferTo(java.nio.channels.WritableByteChannel)
+     */
+    public long transferTo(WritableByteChannel channel) throws IOException {
+        ByteBuffer contents = getByteBuffer();
+        while (contents.hasRemaining()) {
+            channel.write(contents);
+        }
+        return length;
+    }
+
+    /**
+     * @see org.geowebcache.io.StreamableResource#transferTo(java.io.OutputStream)
+     */
+    public long transferTo(OutputStream out) throws IOException {
+        ByteBuffer contents = getByteBuffer();
+        final byte[] copy = COPY_BUFFER.get();
+        while (contents.hasRemaining()) {
+            int n = Math.min(copy.length, contents.remaining());
+            contents.get(copy, 0, n);
+            out.write(copy, 0, n);
+        }
+        return length;
+    }
+
+    /**
+     * @see org.geowebcache.io.Resource#transferFrom(java.nio.channels.ReadableByteChannel)
+     */
+    public long transferFrom(ReadableByteChannel channel) throws IOException {
+        length = 0;
+        ensureCapacity(DirectBufferPool.MIN_BUFFER_SIZE);
+        buffer.clear();
+        int read;
+        while ((read = channel.read(buffer)) != -1) {
+            length += read;
+            if (!buffer.hasRemaining()) {
+                ensureCapacity(length + 1);
+            }
+        }
+        lastModified = System.currentTimeMillis();
+        return length;
+    }
+
+    /**
+     * @see org.geowebcache.io.Resource#getInputStream()
+     */
+    public InputStream getInputStream() throws IOException {
+        final ByteBuffer contents = getByteBuffer();
+        return new InputStream() {
+
+            @Override
+            public int read() throws IOException {
+                return contents.hasRemaining() ? contents.get() & 0xFF : -1;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                if (!contents.hasRemaining()) {
+                    return -1;
+                }
+                int n = Math.min(len, contents.remaining());
+                contents.get(b, off, n);
+                return n;
+            }
+
+            @Override
+            public int available() throws IOException {
+                return contents.remaining();
+            }
+        };
+    }
+
+    /**
+     * An output stream appending to the resource contents
+     * 
+     * @see org.geowebcache.io.Resource#getOutputStream()
+     */
+    public OutputStream getOutputStream() throws IOException {
+        return new OutputStream() {
+
+            @Override
+            public void write(int b) throws IOException {
+                ensureCapacity(length + 1);
+                buffer.put(length++, (byte) b);
+                lastModified = System.currentTimeMillis();
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                ensureCapacity(length + len);
+                buffer.position(length);
+                buffer.put(b, off, len);
+                length += len;
+                lastModified = System.currentTimeMillis();
+            }
+        };
+    }
+
+    /**
+     * Makes sure the buffer can hold the given number of bytes, preserving the contents and
+     * leaving the buffer position at the end of them
+     */
+    private void ensureCapacity(int capacity) {
+        if (buffer != null && buffer.capacity() >= capacity) {
+            return;
+        }
+        // grow at least by half to amortize the copies
+        int newCapacity = capacity;
+        if (buffer != null) {
+            newCapacity = Math.max(capacity, buffer.capacity() + buffer.capacity() / 2);
+        }
+        ByteBuffer grown = pool.acquire(newCapacity);
+        if (buffer != null) {
+            ByteBuffer contents = buffer.duplicate();
+            contents.position(0);
+            contents.limit(length);
+            grown.put(contents);
+            pool.release(buffer);
+        }
+        grown.limit(grown.capacity());
+        grown.position(length);
+        buffer = grown;
+    }
+}
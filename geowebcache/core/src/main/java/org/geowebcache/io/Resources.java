@@ -0,0 +1,56 @@
+package org.geowebcache.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+
+/**
+ * Utility methods to write {@link Resource}s out, mainly to servlet responses.
+ * <p>
+ * Setting the {@code GWC_DIRECT_TRANSFER} variable to {@code true}, as a system property, servlet
+ * context parameter or environment variable, enables the direct transfer mode: resources
+ * implementing {@link StreamableResource} are written straight into the output stream, which for
+ * files means a single buffered copy through a reusable per thread buffer. Otherwise resources are
+ * written through a {@link Channels#newChannel(OutputStream) channel adapter}, as it always used
+ * to be.
+ * </p>
+ * <p>
+ * Neither mode is a zero-copy transfer: servlet responses are plain output streams, so
+ * {@link java.nio.channels.FileChannel#transferTo} can't hand the file over to the socket and
+ * copies it through a heap buffer anyway.
+ * </p>
+ */
+public class Resources {
+
+    public static final String GWC_DIRECT_TRANSFER = "GWC_DIRECT_TRANSFER";
+
+    private static volatile boolean directTransfer;
+
+    private Resources() {
+        // utility class
+    }
+
+    public static boolean isDirectTransfer() {
+        return directTransfer;
+    }
+
+    /**
+     * @see #GWC_DIRECT_TRANSFER
+     */
+    public static void setDirectTransfer(boolean directTransfer) {
+        Resources.directTransfer = directTransfer;
+    }
+
+    /**
+     * Writes the resource to an output stream, using the fastest path available if direct
+     * transfers are enabled. The stream is not closed.
+     * 
+     * @return The number of bytes written
+     */
+    public static long transferTo(Resource resource, OutputStream out) throws IOException {
+        if (directTransfer && resource instanceof StreamableResource) {
+            return ((StreamableResource) resource).transferTo(out);
+        }
+        return resource.transferTo(Channels.newChannel(out));
+    }
+}
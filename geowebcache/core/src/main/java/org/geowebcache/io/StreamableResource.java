@@ -0,0 +1,24 @@
+package org.geowebcache.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A {@link Resource} able to write its contents straight into an {@link OutputStream}, without
+ * going through a {@link java.nio.channels.Channels#newChannel(OutputStream) channel adapter} and
+ * its intermediate copy buffers.
+ * 
+ * @see Resources#transferTo(Resource, OutputStream)
+ */
+public interface StreamableResource extends Resource {
+
+    /**
+     * Writes the resource to an output stream, the stream is not closed
+     * 
+     * @param out
+     *            the stream to write to
+     * @return The number of bytes written
+     * @throws IOException
+     */
+    public long transferTo(OutputStream out) throws IOException;
+}
@@ -0,0 +1,95 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.layer;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.imageio.stream.MemoryCacheImageInputStream;
+
+/**
+ * A memory cached image input stream that discards the cached bytes once the reader is more than
+ * a given window past them.
+ * <p>
+ * {@link MemoryCacheImageInputStream} only releases its cache when the reader calls
+ * {@link #flushBefore(long)}, which the PNG reader never does, so a streamed image ends up fully
+ * cached in memory. This stream flushes on its own instead, keeping the window for the short
+ * backward seeks the PNG reader does between the header chunks and the image data, and never
+ * flushing past an outstanding {@link #mark()}. Readers seeking back further than the window,
+ * like the TIFF one, must not be used with it.
+ * </p>
+ */
+class FlushingImageInputStream extends MemoryCacheImageInputStream {
+
+    private final long window;
+
+    private int marks;
+
+    private long maxCached;
+
+    /**
+     * @param in
+     *            the encoded image
+     * @param window
+     *            the number of bytes kept behind the current position
+     */
+    FlushingImageInputStream(InputStream in, long window) {
+        super(in);
+        this.window = window;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        flushBehind();
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int read = super.read(b, off, len);
+        flushBehind();
+        return read;
+    }
+
+    @Override
+    public void mark() {
+        super.mark();
+        marks++;
+    }
+
+    @Override
+    public void reset() throws IOException {
+        super.reset();
+        if (marks > 0) {
+            marks--;
+        }
+    }
+
+    /**
+     * @return the largest number of bytes held in the cache at once
+     */
+    long getMaxCached() {
+        return maxCached;
+    }
+
+    private void flushBehind() throws IOException {
+        maxCached = Math.max(maxCached, streamPos - flushedPos);
+        long pos = streamPos - window;
+        if (marks == 0 && pos > flushedPos) {
+            flushBefore(pos);
+        }
+    }
+}
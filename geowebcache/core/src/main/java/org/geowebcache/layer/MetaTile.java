@@ -19,23 +19,23 @@ package org.geowebcache.layer;
 import java.awt.Rectangle;
 import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.Raster;
 import java.awt.image.RenderedImage;
+import java.awt.image.WritableRaster;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Vector;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
-import javax.imageio.IIOImage;
 import javax.imageio.ImageIO;
-import javax.imageio.ImageWriteParam;
-import javax.imageio.ImageWriter;
 import javax.imageio.stream.ImageInputStream;
-import javax.imageio.stream.ImageOutputStream;
-import javax.imageio.stream.MemoryCacheImageOutputStream;
 import javax.media.jai.JAI;
 import javax.media.jai.PlanarImage;
 import javax.media.jai.RenderedOp;
@@ -48,9 +48,11 @@ import org.geowebcache.grid.BoundingBox;
 import org.geowebcache.grid.GridSubset;
 import org.geowebcache.grid.SRS;
 import org.geowebcache.io.ByteArrayResource;
+import org.geowebcache.io.PooledResource;
 import org.geowebcache.io.Resource;
 import org.geowebcache.mime.FormatModifier;
 import org.geowebcache.mime.MimeType;
+import org.geowebcache.mime.TileEncoders;
 import org.springframework.util.Assert;
 
 public class MetaTile implements TileResponseReceiver {
@@ -72,7 +74,7 @@ public class MetaTile implements TileResponseReceiver {
         }
         NATIVE_JAI_AVAILABLE = nativeJAIAvailable;
         if (!NATIVE_JAI_AVAILABLE) {
-            log.warn("********* Native JAI is not installed, meta tile cropping may be slow ********");
+            log.info("Native JAI is not installed, meta tiles that are not buffered images will be cropped in pure Java");
         }
     }
 
@@ -119,6 +121,30 @@ public class MetaTile implements TileResponseReceiver {
 
     private List<RenderedImage> disposableImages;
 
+    private TileEncoders encoders = TileEncoders.getDefault();
+
+    /**
+     * Number of users of the meta tile: its owner until {@link #dispose()} is called, plus the
+     * {@link Hold holds} not released yet
+     */
+    private final AtomicInteger holders = new AtomicInteger(1);
+
+    private final AtomicBoolean disposed = new AtomicBoolean();
+
+    /**
+     * Time spent in each stage of the meta tile life, in nanoseconds
+     */
+    private volatile long fetchTime = -1;
+
+    private volatile long decodeTime = -1;
+
+    private final AtomicLong encodeTime = new AtomicLong();
+
+    /**
+     * The requests waiting for the tiles of this meta tile, if any
+     */
+    private volatile MetaTileCoalescer.Flight flight;
+
     /**
      * The the request format is the format used for the request to the backend.
      * 
@@ -256,7 +282,11 @@ public class MetaTile implements TileResponseReceiver {
 
         try {
             ImageInputStream imgStream;
-            imgStream = new ResourceImageInputStream(((ByteArrayResource) buffer).getInputStream());
+            if (buffer instanceof PooledResource) {
+                imgStream = new ByteBufferImageInputStream(((PooledResource) buffer).getByteBuffer());
+            } else {
+                imgStream = new ResourceImageInputStream(((ByteArrayResource) buffer).getInputStream());
+            }
             RenderedImage metaTiledImage = ImageIO.read(imgStream);// read closes the stream for us
             setImage(metaTiledImage);
         } catch (IOException ioe) {
@@ -315,6 +345,17 @@ public class MetaTile implements TileResponseReceiver {
     public RenderedImage createTile(final int minX, final int minY, final int tileWidth,
             final int tileHeight) {
 
+        if (metaTileImage instanceof BufferedImage) {
+            // zero copy, the tile shares the meta tile raster data
+            return ((BufferedImage) metaTileImage).getSubimage(minX, minY, tileWidth, tileHeight);
+        }
+        if (!nativeAccelAvailable()) {
+            BufferedImage tile = copyTile(minX, minY, tileWidth, tileHeight);
+            if (tile != null) {
+                return tile;
+            }
+        }
+
         // do a crop, and then turn it into a buffered image so that we can release
         // the image chain
         RenderedOp cropped = CropDescriptor.create(metaTileImage, Float.valueOf(minX),
@@ -329,6 +370,32 @@ public class MetaTile implements TileResponseReceiver {
         return tile;
     }
 
+    /**
+     * Copies the tile area of a non buffered meta tile image with a single raster copy, avoiding
+     * the JAI operation chain
+     * 
+     * @return the tile, or {@code null} if the image cannot be wrapped in a {@link BufferedImage}
+     */
+    private BufferedImage copyTile(int minX, int minY, int tileWidth, int tileHeight) {
+        ColorModel cm = metaTileImage.getColorModel();
+        if (cm == null) {
+            return null;
+        }
+        Raster data = metaTileImage.getData(new Rectangle(minX, minY, tileWidth, tileHeight));
+        WritableRaster raster;
+        if (data instanceof WritableRaster) {
+            raster = ((WritableRaster) data).createWritableTranslatedChild(0, 0);
+        } else {
+            raster = data.createCompatibleWritableRaster(tileWidth, tileHeight);
+            raster.setRect(-minX, -minY, data);
+        }
+        if (!cm.isCompatibleRaster(raster)) {
+            return null;
+        }
+        log.trace("native accel not available, copied tile raster");
+        return new BufferedImage(cm, raster, cm.isAlphaPremultiplied(), null);
+    }
+
     protected boolean nativeAccelAvailable() {
         return NATIVE_JAI_AVAILABLE;
     }
@@ -349,47 +416,87 @@ public class MetaTile implements TileResponseReceiver {
         if (tiles == null) {
             return false;
         }
-        String format = responseFormat.getInternalName();
 
         if (log.isDebugEnabled()) {
             log.debug("Thread: " + Thread.currentThread().getName() + " writing: " + tileIdx);
         }
         
-        // TODO should we recycle the writers ?
-        // GR: it'd be only a 2% perf gain according to profiler
-        Iterator<ImageWriter> it = javax.imageio.ImageIO.getImageWritersByFormatName(format);
-        ImageWriter writer = it.next();
-        ImageWriteParam param = writer.getDefaultWriteParam();
-
-        if (this.formatModifier != null) {
-            param = formatModifier.adjustImageWriteParam(param);
-        }
-
         Rectangle tileRegion = tiles[tileIdx];
         RenderedImage tile = createTile(tileRegion.x, tileRegion.y, tileRegion.width,
                 tileRegion.height);
         disposeLater(tile);
         OutputStream outputStream = target.getOutputStream();
-        ImageOutputStream imgOut = new MemoryCacheImageOutputStream(outputStream);
-        writer.setOutput(imgOut);
-        IIOImage image = new IIOImage(tile, null, null);
-        try {
-            writer.write(null, image, param);
-        } finally {
-            imgOut.close();
-            writer.dispose();
-        }
+        final long start = System.nanoTime();
+        encoders.encode(tile, responseFormat, formatModifier, outputStream);
+        outputStream.flush();
+        encodeTime.addAndGet(System.nanoTime() - start);
 
         return true;
     }
 
-    protected void disposeLater(RenderedImage tile) {
+    protected synchronized void disposeLater(RenderedImage tile) {
         if (disposableImages == null) {
             disposableImages = new ArrayList<RenderedImage>(tiles.length);
         }
         disposableImages.add(tile);
     }
 
+    /**
+     * @return the time spent getting the meta tile image from the source, not counting decoding,
+     *         in nanoseconds, or {@code -1} if unknown
+     */
+    public long getFetchTime() {
+        return fetchTime;
+    }
+
+    public void setFetchTime(long fetchTime) {
+        this.fetchTime = fetchTime;
+    }
+
+    /**
+     * @return the time spent decoding the meta tile image, in nanoseconds, or {@code -1} if
+     *         unknown
+     */
+    public long getDecodeTime() {
+        return decodeTime;
+    }
+
+    public void setDecodeTime(long decodeTime) {
+        this.decodeTime = decodeTime;
+    }
+
+    /**
+     * @return the time spent so far encoding tiles, in nanoseconds, summed over all the encoding
+     *         threads
+     */
+    public long getEncodeTime() {
+        return encodeTime.get();
+    }
+
+    void setFlight(MetaTileCoalescer.Flight flight) {
+        this.flight = flight;
+    }
+
+    /**
+     * Hands over an encoded tile to the requests waiting for it, if any
+     * 
+     * @see MetaTileCoalescer
+     */
+    void publishTile(int tileIdx, Resource tile) {
+        MetaTileCoalescer.Flight flight = this.flight;
+        if (flight != null) {
+            flight.publish(tileIdx, tile);
+        }
+    }
+
+    /**
+     * Sets the encoders used by {@link #writeTileToStream}, defaults to
+     * {@link TileEncoders#getDefault()}
+     */
+    public void setEncoders(TileEncoders encoders) {
+        this.encoders = encoders;
+    }
+
     public String debugString() {
         return " metaX: " + metaX + " metaY: " + metaY + " metaGridCov: "
                 + Arrays.toString(metaGridCov);
@@ -482,16 +589,68 @@ public class MetaTile implements TileResponseReceiver {
     }
 
     /**
-     * Should be called as soon as the meta tile is no longer needed in order to dispose any held
-     * resource
+     * A hold on the meta tile by another thread than its owner, see {@link MetaTile#retain()}
+     */
+    public final class Hold {
+
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Hold() {
+        }
+
+        /**
+         * Releases the hold, only the first call counts
+         */
+        public void release() {
+            if (released.compareAndSet(false, true)) {
+                releaseHolder();
+            }
+        }
+    }
+
+    /**
+     * Marks the meta tile as still in use by another thread, e.g. a tile encoder running in the
+     * background: held resources are released once both the owner has called {@link #dispose()}
+     * and every hold has been {@link Hold#release() released}
+     */
+    public Hold retain() {
+        holders.incrementAndGet();
+        return new Hold();
+    }
+
+    /**
+     * Should be called by the owner of the meta tile as soon as it no longer needs it in order to
+     * dispose any held resource, only the first call counts
      */
     public void dispose() {
+        if (disposed.compareAndSet(false, true)) {
+            releaseHolder();
+        }
+    }
+
+    private void releaseHolder() {
+        if (holders.decrementAndGet() > 0) {
+            return;
+        }
+        MetaTileCoalescer.Flight flight = this.flight;
+        if (flight != null) {
+            flight.finish();
+        }
+        disposeResources();
+    }
+
+    private synchronized void disposeResources() {
         if (metaTileImage == null) {
             return;
         }
         RenderedImage image = metaTileImage;
         metaTileImage = null;
 
+        if (log.isDebugEnabled()) {
+            log.debug("Meta tile" + debugString() + " fetched in " + (fetchTime / 1000000)
+                    + "ms, decoded in " + (decodeTime / 1000000) + "ms, tiles encoded in "
+                    + (encodeTime.get() / 1000000) + "ms");
+        }
         if (log.isTraceEnabled()) {
             log.trace("disposing metatile " + image);
         }
@@ -0,0 +1,241 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.layer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geowebcache.io.ByteArrayResource;
+import org.geowebcache.io.Resource;
+
+/**
+ * Coalesces concurrent requests for tiles of the same meta tile.
+ * <p>
+ * The first request missing a meta tile {@link #start starts a flight} for it and goes to the
+ * backend as usual. Requests for other tiles of the same meta tile arriving in the meantime
+ * {@link #join join the flight}: instead of queuing up on the meta tile lock and reading the tile
+ * back from the storage once they get it, they wait for the leader to encode their tile and get a
+ * copy of it straight from memory. Tiles are only copied if someone is waiting for them when
+ * they are published.
+ * </p>
+ * <p>
+ * The leader publishes the tiles through its {@link MetaTile}, and the flight ends when the meta
+ * tile is disposed, successfully or not. Followers whose tile was not published get {@code null}
+ * and are expected to go through the regular path.
+ * </p>
+ */
+public class MetaTileCoalescer {
+
+    private static Log log = LogFactory.getLog(MetaTileCoalescer.class);
+
+    private final ConcurrentMap<String, Flight> flights = new ConcurrentHashMap<String, Flight>();
+
+    private final AtomicLong started = new AtomicLong();
+
+    private final AtomicLong joined = new AtomicLong();
+
+    private final AtomicLong served = new AtomicLong();
+
+    /**
+     * Starts a flight for the meta tile, which will publish its tiles to the flight until disposed
+     * 
+     * @param key
+     *            the meta tile key, usually the one used to lock it
+     * @return {@code false} if another flight is already running for the key
+     */
+    public boolean start(String key, MetaTile metaTile) {
+        Flight flight = new Flight(key, metaTile.getTilesGridPositions().length);
+        if (flights.putIfAbsent(key, flight) != null) {
+            return false;
+        }
+        started.incrementAndGet();
+        metaTile.setFlight(flight);
+        return true;
+    }
+
+    /**
+     * Waits for the running flight to publish the tile
+     * 
+     * @param key
+     *            the meta tile key
+     * @param metaTile
+     *            a meta tile matching the one of the flight, used to locate the tile
+     * @param gridLoc
+     *            the tile requested
+     * @param timeout
+     *            the maximum time to wait, in milliseconds
+     * @return the tile contents, or {@code null} if no flight is running for the key or the tile
+     *         was not published in time
+     */
+    public Resource join(String key, MetaTile metaTile, long[] gridLoc, long timeout)
+            throws InterruptedException {
+        Flight flight = flights.get(key);
+        if (flight == null) {
+            return null;
+        }
+        final long[][] positions = metaTile.getTilesGridPositions();
+        int tileIdx = -1;
+        for (int i = 0; i < positions.length; i++) {
+            if (Arrays.equals(gridLoc, positions[i])) {
+                tileIdx = i;
+                break;
+            }
+        }
+        if (tileIdx < 0 || tileIdx >= flight.tiles.length) {
+            return null;
+        }
+        joined.incrementAndGet();
+        byte[] contents = flight.await(tileIdx, timeout);
+        if (contents == null) {
+            return null;
+        }
+        served.incrementAndGet();
+        return new ByteArrayResource(contents);
+    }
+
+    /**
+     * @return the number of flights started
+     */
+    public long getStarted() {
+        return started.get();
+    }
+
+    /**
+     * @return the number of requests that joined a flight
+     */
+    public long getJoined() {
+        return joined.get();
+    }
+
+    /**
+     * @return the number of requests served from a flight
+     */
+    public long getServed() {
+        return served.get();
+    }
+
+    /**
+     * @return the number of flights currently running
+     */
+    public int getRunning() {
+        return flights.size();
+    }
+
+    /**
+     * The tiles of a meta tile being generated
+     */
+    public class Flight {
+
+        private final String key;
+
+        private final byte[][] tiles;
+
+        /**
+         * The tiles done with, published or not, followers arriving later won't get them
+         */
+        private final boolean[] published;
+
+        /**
+         * The number of followers waiting for each tile
+         */
+        private final int[] waiters;
+
+        private boolean finished;
+
+        Flight(String key, int size) {
+            this.key = key;
+            this.tiles = new byte[size][];
+            this.published = new boolean[size];
+            this.waiters = new int[size];
+        }
+
+        /**
+         * Publishes a copy of the encoded tile to the followers waiting for it, if any
+         */
+        void publish(int tileIdx, Resource tile) {
+            synchronized (this) {
+                if (waiters[tileIdx] == 0) {
+                    published[tileIdx] = true;
+                    return;
+                }
+            }
+            byte[] contents = null;
+            try {
+                contents = toByteArray(tile);
+            } catch (IOException e) {
+                log.debug("Unable to publish tile " + tileIdx + " of " + key, e);
+            }
+            synchronized (this) {
+                tiles[tileIdx] = contents;
+                published[tileIdx] = true;
+                notifyAll();
+            }
+        }
+
+        /**
+         * Ends the flight, followers still waiting for their tile get nothing
+         */
+        void finish() {
+            flights.remove(key, this);
+            synchronized (this) {
+                finished = true;
+                notifyAll();
+            }
+        }
+
+        synchronized byte[] await(int tileIdx, long timeout) throws InterruptedException {
+            final long deadline = System.currentTimeMillis() + timeout;
+            long remaining = timeout;
+            waiters[tileIdx]++;
+            try {
+                while (!published[tileIdx] && !finished && remaining > 0) {
+                    wait(remaining);
+                    remaining = deadline - System.currentTimeMillis();
+                }
+            } finally {
+                waiters[tileIdx]--;
+            }
+            return tiles[tileIdx];
+        }
+
+        /**
+         * Copies the tile, the resource is likely to be a reused buffer
+         */
+        private byte[] toByteArray(Resource tile) throws IOException {
+            final int size = (int) tile.getSize();
+            byte[] contents = new byte[size];
+            InputStream in = tile.getInputStream();
+            try {
+                int offset = 0;
+                while (offset < size) {
+                    int read = in.read(contents, offset, size - offset);
+                    if (read < 0) {
+                        throw new IOException("Tile shorter than expected: " + offset);
+                    }
+                    offset += read;
+                }
+            } finally {
+                in.close();
+            }
+            return contents;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.layer;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+/**
+ * Bounded thread pool used to encode and store the tiles of a meta tile concurrently, see
+ * {@link TileLayer#setEncoderExecutor}.
+ * <p>
+ * The work queue is bounded too: once it is full, tiles get encoded by the thread submitting them,
+ * which slows down the producers (e.g. seeding threads) to the pace of the encoders instead of
+ * piling up decoded meta tiles in memory.
+ * </p>
+ */
+public class MetaTileEncoderExecutor extends ThreadPoolExecutor implements DisposableBean {
+
+    private static final Log log = LogFactory.getLog(MetaTileEncoderExecutor.class);
+
+    private static final ThreadFactory tf = new CustomizableThreadFactory(
+            "GWC MetaTile Encoder Thread-");
+
+    /**
+     * @param poolSize
+     *            the number of encoding threads
+     */
+    public MetaTileEncoderExecutor(int poolSize) {
+        this(poolSize, 4 * poolSize);
+    }
+
+    /**
+     * @param poolSize
+     *            the number of encoding threads
+     * @param queueSize
+     *            the maximum number of tiles waiting to be encoded
+     */
+    public MetaTileEncoderExecutor(int poolSize, int queueSize) {
+        super(poolSize, poolSize, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(
+                queueSize), tf, new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    /**
+     * Destroy method called by the application context at shutdown, lets the pending tiles be
+     * stored
+     * 
+     * @see org.springframework.beans.factory.DisposableBean#destroy()
+     */
+    public void destroy() throws Exception {
+        log.info("Shutting down meta tile encoders...");
+        this.shutdown();
+        if (!this.awaitTermination(30, TimeUnit.SECONDS)) {
+            log.warn("Meta tile encoders did not finish in time, discarding pending tiles");
+            this.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,252 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.layer;
+
+import java.awt.image.RenderedImage;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+import javax.imageio.ImageIO;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+
+import org.geowebcache.GeoWebCacheException;
+import org.geowebcache.io.PooledResource;
+import org.geowebcache.io.Resource;
+import org.geowebcache.mime.MimeType;
+
+/**
+ * The target of a meta tile request to the backend, decoding the meta tile image as the response
+ * bytes arrive.
+ * <p>
+ * When the source writes the response through {@link #transferFrom(ReadableByteChannel)}, the
+ * image is decoded straight from the channel, so decoding overlaps with the network transfer and
+ * the pooled buffer is not filled. PNG images are read through a
+ * {@link FlushingImageInputStream}, holding only a small window of the encoded bytes at a time;
+ * other formats are cached in memory by the image stream while being decoded, so for them only
+ * the overlap is gained. Sources writing to the
+ * {@link #getOutputStream() output stream} instead fill a buffer that gets decoded by
+ * {@link #decode()}, as does every source if the {@code GWC_STREAMING_DECODE} variable is set to
+ * {@code false}, as a system property, servlet context parameter or environment variable.
+ * </p>
+ * <p>
+ * The decoding time, not counting the time spent waiting for the backend, is reported to the
+ * meta tile, see {@link MetaTile#getDecodeTime()}.
+ * </p>
+ */
+public class MetaTileImageResource implements Resource {
+
+    public static final String GWC_STREAMING_DECODE = "GWC_STREAMING_DECODE";
+
+    /**
+     * Encoded bytes kept behind the PNG reader, for its short backward seeks
+     */
+    static final int PNG_WINDOW = 64 * 1024;
+
+    private static volatile boolean streamingDecode = true;
+
+    private final MetaTile metaTile;
+
+    private final PooledResource buffer;
+
+    private final boolean streaming;
+
+    private long streamedBytes;
+
+    private boolean decoded;
+
+    private IOException decodeException;
+
+    private long lastModified = System.currentTimeMillis();
+
+    /**
+     * @param metaTile
+     *            the meta tile receiving the decoded image
+     * @param buffer
+     *            the buffer used when the image cannot be decoded while being received
+     */
+    public MetaTileImageResource(MetaTile metaTile, PooledResource buffer) {
+        this(metaTile, buffer, streamingDecode);
+    }
+
+    public static boolean isStreamingDecode() {
+        return streamingDecode;
+    }
+
+    /**
+     * @see #GWC_STREAMING_DECODE
+     */
+    public static void setStreamingDecode(boolean streamingDecode) {
+        MetaTileImageResource.streamingDecode = streamingDecode;
+    }
+
+    public MetaTileImageResource(MetaTile metaTile, PooledResource buffer, boolean streaming) {
+        this.metaTile = metaTile;
+        this.buffer = buffer;
+        this.streaming = streaming;
+    }
+
+    /**
+     * Decodes the image as it is read from the channel
+     */
+    public long transferFrom(ReadableByteChannel channel) throws IOException {
+        if (!streaming || buffer.getSize() > 0) {
+            return buffer.transferFrom(channel);
+        }
+        final long start = System.nanoTime();
+        TimedInputStream in = new TimedInputStream(Channels.newInputStream(channel));
+        try {
+            // ImageIO.read closes the image stream, but not the underlying one
+            RenderedImage image = ImageIO.read(createImageStream(in));
+            if (image != null) {
+                metaTile.setImage(image);
+                decoded = true;
+            }
+        } catch (IOException e) {
+            decodeException = e;
+        } finally {
+            // consume any trailing bytes, the response length gets checked against the size
+            byte[] skip = new byte[4096];
+            try {
+                while (in.read(skip) != -1) {
+                    // keep reading
+                }
+            } finally {
+                streamedBytes = in.count;
+                lastModified = System.currentTimeMillis();
+                metaTile.setDecodeTime(System.nanoTime() - start - in.readTime);
+            }
+        }
+        return streamedBytes;
+    }
+
+    private ImageInputStream createImageStream(InputStream in) {
+        MimeType format = metaTile.getRequestFormat();
+        if (format != null && "png".equals(format.getInternalName())) {
+            return new FlushingImageInputStream(in, PNG_WINDOW);
+        }
+        return new MemoryCacheImageInputStream(in);
+    }
+
+    /**
+     * Makes sure the meta tile image has been set, decoding the buffered response if it was not
+     * decoded on the fly
+     * 
+     * @throws GeoWebCacheException
+     *             if the response could not be decoded
+     */
+    public void decode() throws GeoWebCacheException {
+        if (decoded) {
+            return;
+        }
+        if (streamedBytes > 0) {
+            throw new GeoWebCacheException("Unable to decode the meta tile image from "
+                    + streamedBytes + " bytes" + (decodeException == null ? "" : ": "
+                    + decodeException.getMessage()), decodeException);
+        }
+        final long start = System.nanoTime();
+        metaTile.setImageBytes(buffer);
+        metaTile.setDecodeTime(System.nanoTime() - start);
+        decoded = true;
+    }
+
+    /**
+     * @return {@code true} if the image has been decoded while being received
+     */
+    public boolean isStreamed() {
+        return streamedBytes > 0;
+    }
+
+    public long getSize() {
+        return streamedBytes + buffer.getSize();
+    }
+
+    public long getLastModified() {
+        return streamedBytes > 0 ? lastModified : buffer.getLastModified();
+    }
+
+    public OutputStream getOutputStream() throws IOException {
+        return buffer.getOutputStream();
+    }
+
+    public InputStream getInputStream() throws IOException {
+        checkBuffered();
+        return buffer.getInputStream();
+    }
+
+    public long transferTo(WritableByteChannel channel) throws IOException {
+        checkBuffered();
+        return buffer.transferTo(channel);
+    }
+
+    private void checkBuffered() throws IOException {
+        if (streamedBytes > 0) {
+            throw new IOException("The response has been decoded on the fly, its bytes are gone");
+        }
+    }
+
+    /**
+     * Counts the bytes read and the time spent waiting for them
+     */
+    private static class TimedInputStream extends FilterInputStream {
+
+        long count;
+
+        long readTime;
+
+        TimedInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            long start = System.nanoTime();
+            int b = super.read();
+            readTime += System.nanoTime() - start;
+            if (b != -1) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            long start = System.nanoTime();
+            int read = super.read(b, off, len);
+            readTime += System.nanoTime() - start;
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+}
@@ -25,6 +25,10 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.servlet.http.HttpServletResponse;
 
@@ -43,12 +47,14 @@ import org.geowebcache.grid.GridSubset;
 import org.geowebcache.grid.GridUtil;
 import org.geowebcache.grid.OutsideCoverageException;
 import org.geowebcache.grid.SRS;
-import org.geowebcache.io.ByteArrayResource;
+import org.geowebcache.io.PooledResource;
 import org.geowebcache.io.Resource;
 import org.geowebcache.layer.meta.LayerMetaInformation;
 import org.geowebcache.layer.updatesource.UpdateSourceDefinition;
 import org.geowebcache.mime.FormatModifier;
 import org.geowebcache.mime.MimeType;
+import org.geowebcache.storage.BlobStoreListenerList;
+import org.geowebcache.storage.StorageBroker;
 import org.geowebcache.storage.StorageException;
 import org.geowebcache.storage.TileObject;
 import org.geowebcache.util.GWCVars;
@@ -65,13 +71,19 @@ public abstract class TileLayer {
 
     private static Log log = LogFactory.getLog(org.geowebcache.layer.TileLayer.class);
 
-    protected static final ThreadLocal<ByteArrayResource> WMS_BUFFER = new ThreadLocal<ByteArrayResource>();
+    /**
+     * Per thread buffers for meta tiles and their tiles, backed by {@link PooledResource}s so that
+     * their contents are kept out of the heap
+     */
+    protected static final ThreadLocal<PooledResource> WMS_BUFFER = new ThreadLocal<PooledResource>();
 
-    protected static final ThreadLocal<ByteArrayResource> WMS_BUFFER2 = new ThreadLocal<ByteArrayResource>();
+    protected static final ThreadLocal<PooledResource> WMS_BUFFER2 = new ThreadLocal<PooledResource>();
 
     // cached default parameter filter values
     protected transient Map<String, String> defaultParameterFilterValues;
 
+    private transient ExecutorService encoderExecutor;
+
     /**
      * Registers a layer listener to be notified of layer events
      * 
@@ -565,16 +577,33 @@ public abstract class TileLayer {
 
     public abstract void addGridSubset(GridSubset gridSubset);
 
-    protected ByteArrayResource getImageBuffer(ThreadLocal<ByteArrayResource> tl) {
-        ByteArrayResource buffer = tl.get();
+    protected PooledResource getImageBuffer(ThreadLocal<PooledResource> tl) {
+        PooledResource buffer = tl.get();
         if (buffer == null) {
-            buffer = new ByteArrayResource(16 * 1024);
+            buffer = new PooledResource();
             tl.set(buffer);
         }
         buffer.truncate();
         return buffer;
     }
 
+    /**
+     * Sets the executor used to encode and store the tiles of a meta tile concurrently, or
+     * {@code null} (the default) to encode them one after the other on the requesting thread.
+     * <p>
+     * With an executor set, {@link #saveTiles} encodes the requested tile first and the other
+     * tiles of the meta tile in parallel on the executor threads, and returns once all of them
+     * are stored.
+     * </p>
+     */
+    public void setEncoderExecutor(ExecutorService encoderExecutor) {
+        this.encoderExecutor = encoderExecutor;
+    }
+
+    public ExecutorService getEncoderExecutor() {
+        return encoderExecutor;
+    }
+
     /**
      * Loops over the gridPositions, generates cache keys and saves to cache
      * 
@@ -591,57 +620,215 @@ public abstract class TileLayer {
         final int zoomLevel = (int) gridLoc[2];
         final boolean store = this.getExpireCache(zoomLevel) != GWCVars.CACHE_DISABLE_CACHE;
 
+        final ExecutorService executor = this.encoderExecutor;
+        if (store && executor != null && !executor.isShutdown() && gridPositions.length > 1) {
+            saveTilesConcurrently(executor, metaTile, tileProto, requestTime);
+            return;
+        }
+
+        final TileTarget target = store ? new TileTarget(tileProto) : null;
         Resource resource;
         boolean encode;
-        for (int i = 0; i < gridPositions.length; i++) {
-            final long[] gridPos = gridPositions[i];
-            if (Arrays.equals(gridLoc, gridPos)) {
-                // Is this the one we need to save? then don't use the buffer or it'll be overridden
-                // by the next tile
-                resource = getImageBuffer(WMS_BUFFER2);
-                tileProto.setBlob(resource);
-                encode = true;
-            } else {
-                resource = getImageBuffer(WMS_BUFFER);
-                encode = store;
+        // the listeners of the storage are told of the tiles of the meta tile at once
+        BlobStoreListenerList.beginBatch();
+        try {
+            for (int i = 0; i < gridPositions.length; i++) {
+                final long[] gridPos = gridPositions[i];
+                if (Arrays.equals(gridLoc, gridPos)) {
+                    // Is this the one we need to save? then don't use the buffer or it'll be
+                    // overridden by the next tile
+                    resource = getImageBuffer(WMS_BUFFER2);
+                    tileProto.setBlob(resource);
+                    encode = true;
+                } else {
+                    resource = getImageBuffer(WMS_BUFFER);
+                    encode = store;
+                }
+
+                if (encode) {
+                    if (!gridSubset.covers(gridPos)) {
+                        // edge tile outside coverage, do not store it
+                        continue;
+                    }
+
+                    try {
+                        boolean completed = metaTile.writeTileToStream(i, resource);
+                        if (!completed) {
+                            log.error("metaTile.writeTileToStream returned false, no tiles saved");
+                        } else {
+                            metaTile.publishTile(i, resource);
+                        }
+                        if (store) {
+                            storeTile(gridPos, target, resource, requestTime);
+                            tileProto.getStorageObject().setCreated(requestTime);
+                        }
+                    } catch (IOException ioe) {
+                        log.error("Unable to write image tile to " + "ByteArrayOutputStream: "
+                                + ioe.getMessage());
+                        ioe.printStackTrace();
+                    }
+                }
             }
+        } finally {
+            BlobStoreListenerList.endBatch();
+        }
+    }
 
-            if (encode) {
-                if (!gridSubset.covers(gridPos)) {
-                    // edge tile outside coverage, do not store it
-                    continue;
+    /**
+     * Encodes and stores the requested tile on the calling thread, and hands over the other tiles
+     * of the meta tile to the encoder executor, helping with the ones not picked up yet. Returns
+     * once all the tiles are stored, so that they are in the cache before the caller releases the
+     * meta tile lock. The tasks only get the immutable {@link TileTarget} of the tiles,
+     * {@code tileProto} is only used by the calling thread.
+     */
+    private void saveTilesConcurrently(final ExecutorService executor, final MetaTile metaTile,
+            final ConveyorTile tileProto, final long requestTime) throws GeoWebCacheException {
+
+        final long[][] gridPositions = metaTile.getTilesGridPositions();
+        final long[] gridLoc = tileProto.getTileIndex();
+        final GridSubset gridSubset = getGridSubset(tileProto.getGridSetId());
+        final TileTarget target = new TileTarget(tileProto);
+        boolean stored = false;
+
+        // the requested tile goes first, it's the one the client is waiting for
+        for (int i = 0; i < gridPositions.length; i++) {
+            if (Arrays.equals(gridLoc, gridPositions[i])) {
+                Resource resource = getImageBuffer(WMS_BUFFER2);
+                tileProto.setBlob(resource);
+                if (gridSubset.covers(gridPositions[i])) {
+                    encodeAndStore(metaTile, i, target, resource, requestTime);
+                    stored = true;
                 }
+                break;
+            }
+        }
 
-                try {
-                    boolean completed = metaTile.writeTileToStream(i, resource);
-                    if (!completed) {
-                        log.error("metaTile.writeTileToStream returned false, no tiles saved");
+        final List<Runnable> tasks = new ArrayList<Runnable>(gridPositions.length);
+        final AtomicInteger pending = new AtomicInteger();
+        for (int i = 0; i < gridPositions.length; i++) {
+            final long[] gridPos = gridPositions[i];
+            if (Arrays.equals(gridLoc, gridPos) || !gridSubset.covers(gridPos)) {
+                continue;
+            }
+            final int tileIdx = i;
+            final MetaTile.Hold hold = metaTile.retain();
+            final AtomicBoolean claimed = new AtomicBoolean();
+            pending.incrementAndGet();
+            Runnable task = new Runnable() {
+                public void run() {
+                    // run once, by an encoder thread or by the requesting one
+                    if (!claimed.compareAndSet(false, true)) {
+                        return;
                     }
-                    if (store) {
-                        long[] idx = { gridPos[0], gridPos[1], gridPos[2] };
-
-                        TileObject tile = TileObject.createCompleteTileObject(this.getName(), idx,
-                                tileProto.getGridSetId(), tileProto.getMimeType().getFormat(),
-                                tileProto.getParameters(), resource);
-                        tile.setCreated(requestTime);
-
-                        try {
-                            if (tileProto.isMetaTileCacheOnly()) {
-                                tileProto.getStorageBroker().putTransient(tile);
-                            } else {
-                                tileProto.getStorageBroker().put(tile);
+                    PooledResource resource = new PooledResource();
+                    try {
+                        encodeAndStore(metaTile, tileIdx, target, resource, requestTime);
+                    } catch (Exception e) {
+                        log.error("Unable to store tile " + Arrays.toString(gridPos) + " of layer "
+                                + getName() + ": " + e.getMessage(), e);
+                    } finally {
+                        resource.release();
+                        hold.release();
+                        synchronized (pending) {
+                            if (pending.decrementAndGet() == 0) {
+                                pending.notifyAll();
                             }
-                            tileProto.getStorageObject().setCreated(tile.getCreated());
-                        } catch (StorageException e) {
-                            throw new GeoWebCacheException(e);
                         }
                     }
-                } catch (IOException ioe) {
-                    log.error("Unable to write image tile to " + "ByteArrayOutputStream: "
-                            + ioe.getMessage());
-                    ioe.printStackTrace();
                 }
+            };
+            tasks.add(task);
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException e) {
+                // executor shut down in the meantime, the task is run below
+            }
+            stored = true;
+        }
+
+        // the tiles no encoder thread took yet, including the ones an executor shut down
+        // discarded, are stored here
+        for (Runnable task : tasks) {
+            task.run();
+        }
+        // wait for the encoder threads, the meta tile lock must be held until every tile is
+        // stored or a concurrent request would find it missing and fetch the meta tile again
+        boolean interrupted = false;
+        synchronized (pending) {
+            while (pending.get() > 0) {
+                try {
+                    pending.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (stored) {
+            tileProto.getStorageObject().setCreated(requestTime);
+        }
+    }
+
+    private void encodeAndStore(MetaTile metaTile, int tileIdx, TileTarget target,
+            Resource resource, long requestTime) throws GeoWebCacheException {
+        try {
+            boolean completed = metaTile.writeTileToStream(tileIdx, resource);
+            if (!completed) {
+                log.error("metaTile.writeTileToStream returned false, no tiles saved");
+            } else {
+                metaTile.publishTile(tileIdx, resource);
             }
+            storeTile(metaTile.getTilesGridPositions()[tileIdx], target, resource, requestTime);
+        } catch (IOException ioe) {
+            log.error("Unable to write image tile to ByteArrayOutputStream", ioe);
+        }
+    }
+
+    private void storeTile(long[] gridPos, TileTarget target, Resource resource,
+            long requestTime) throws GeoWebCacheException {
+        long[] idx = { gridPos[0], gridPos[1], gridPos[2] };
+
+        TileObject tile = TileObject.createCompleteTileObject(this.getName(), idx,
+                target.gridSetId, target.format, target.parameters, resource);
+        tile.setCreated(requestTime);
+
+        try {
+            if (target.transientOnly) {
+                target.storageBroker.putTransient(tile);
+            } else {
+                target.storageBroker.put(tile);
+            }
+        } catch (StorageException e) {
+            throw new GeoWebCacheException(e);
+        }
+    }
+
+    /**
+     * Where the tiles of a meta tile are stored, taken from the requested tile so that the tiles
+     * can be stored without sharing the request state with other threads
+     */
+    private static final class TileTarget {
+
+        final String gridSetId;
+
+        final String format;
+
+        final Map<String, String> parameters;
+
+        final StorageBroker storageBroker;
+
+        final boolean transientOnly;
+
+        TileTarget(final ConveyorTile tileProto) {
+            this.gridSetId = tileProto.getGridSetId();
+            this.format = tileProto.getMimeType().getFormat();
+            Map<String, String> params = tileProto.getParameters();
+            this.parameters = params == null ? null : Collections
+                    .unmodifiableMap(new HashMap<String, String>(params));
+            this.storageBroker = tileProto.getStorageBroker();
+            this.transientOnly = tileProto.isMetaTileCacheOnly();
         }
     }
 
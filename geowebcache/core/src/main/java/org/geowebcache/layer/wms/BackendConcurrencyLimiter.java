@@ -0,0 +1,289 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.layer.wms;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geowebcache.GeoWebCacheException;
+
+/**
+ * Adapts the number of requests in flight to a backend to its observed latency and errors.
+ * <p>
+ * The limit grows by one every {@code limit} successful requests made while the limit is used up
+ * (additive increase), shrinks by 10% when the latency keeps rising, and halves on errors
+ * (multiplicative decrease). It never exceeds the concurrency configured for the layers, nor goes
+ * below one.
+ * </p>
+ * <p>
+ * The latency of every successful request is averaged over a short window, the last few tens of
+ * requests, and a long one, the last few hundreds. The limit is lowered once the short average has
+ * stayed over the long one by half, and by at least 5ms, for {@link #RISING_SAMPLES} requests in a
+ * row. Single slow responses, as well as a steady mix of cheap and expensive meta tiles, leave the
+ * limit alone. After a decrease the short average starts over from the long one, so the limit only
+ * goes down again if the latency stays high.
+ * </p>
+ * <p>
+ * Requests for tiles missing from the cache take precedence over seeding ones: seeding requests
+ * wait while others are queued, and leave {@link #RESERVE a tenth} of the limit free.
+ * </p>
+ */
+public class BackendConcurrencyLimiter {
+
+    private static Log log = LogFactory.getLog(BackendConcurrencyLimiter.class);
+
+    /**
+     * The part of the limit seeding requests cannot use
+     */
+    static final double RESERVE = 0.1;
+
+    /**
+     * The short average latency going over the long one by this factor is taken as a sign of
+     * overload
+     */
+    static final double LATENCY_TOLERANCE = 1.5;
+
+    /**
+     * Latency increases below this many nanoseconds are taken as jitter, whatever the tolerance
+     */
+    static final long LATENCY_JITTER = 5000000;
+
+    /**
+     * Weight of each sample in the short average latency
+     */
+    static final double SHORT_SMOOTHING = 0.05;
+
+    /**
+     * Weight of each sample in the long average latency
+     */
+    static final double LONG_SMOOTHING = 0.002;
+
+    /**
+     * Consecutive samples the latency has to be rising for to lower the limit, twice the short
+     * window
+     */
+    static final int RISING_SAMPLES = (int) (2 / SHORT_SMOOTHING);
+
+    private static final ThreadLocal<Boolean> SEEDING = new ThreadLocal<Boolean>();
+
+    private final String backend;
+
+    private int maxLimit;
+
+    private double limit;
+
+    private int inFlight;
+
+    private int waiting;
+
+    private int seedWaiting;
+
+    /**
+     * Average latency of the recent successful requests, in nanoseconds
+     */
+    private double recentLatency;
+
+    /**
+     * Average latency of the successful requests, in nanoseconds
+     */
+    private double averageLatency;
+
+    private long samples;
+
+    /**
+     * Number of consecutive samples with the short average over the long one
+     */
+    private int risingSamples;
+
+    /**
+     * @param backend
+     *            the backend URL, for logging
+     * @param maxLimit
+     *            the maximum number of requests in flight
+     */
+    public BackendConcurrencyLimiter(String backend, int maxLimit) {
+        this.backend = backend;
+        this.maxLimit = Math.max(1, maxLimit);
+        this.limit = this.maxLimit;
+    }
+
+    /**
+     * Marks the requests made by the current thread as seeding ones, to be given lower priority
+     */
+    public static void setSeeding(boolean seeding) {
+        if (seeding) {
+            SEEDING.set(Boolean.TRUE);
+        } else {
+            SEEDING.remove();
+        }
+    }
+
+    public static boolean isSeeding() {
+        return SEEDING.get() != null;
+    }
+
+    /**
+     * Waits for the number of requests in flight to go below the limit, and registers a new one
+     * 
+     * @param timeout
+     *            the maximum time to wait, in milliseconds
+     * @return the request start time, to be passed to {@link #release(long, boolean)}
+     * @throws GeoWebCacheException
+     *             if the request could not be started in time
+     */
+    public long acquire(long timeout) throws GeoWebCacheException {
+        final boolean seeding = isSeeding();
+        final long deadline = System.currentTimeMillis() + timeout;
+        synchronized (this) {
+            if (seeding) {
+                seedWaiting++;
+            } else {
+                waiting++;
+            }
+            try {
+                while (!canStart(seeding)) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        throw new GeoWebCacheException("Timed out waiting for one of the "
+                                + getLimit() + " concurrent requests allowed on " + backend);
+                    }
+                    wait(remaining);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new GeoWebCacheException("Interrupted while waiting for " + backend);
+            } finally {
+                if (seeding) {
+                    seedWaiting--;
+                } else {
+                    waiting--;
+                }
+            }
+            inFlight++;
+        }
+        return System.nanoTime();
+    }
+
+    private boolean canStart(boolean seeding) {
+        final int current = getLimit();
+        if (!seeding) {
+            return inFlight < current;
+        }
+        int reserve = current > 1 ? Math.max(1, (int) (current * RESERVE)) : 0;
+        return waiting == 0 && inFlight < current - reserve;
+    }
+
+    /**
+     * Unregisters a request and adapts the limit to its outcome
+     * 
+     * @param start
+     *            the value returned by {@link #acquire(long)}
+     * @param failed
+     *            whether the request failed
+     */
+    public synchronized void release(long start, boolean failed) {
+        final long latency = System.nanoTime() - start;
+        final int before = getLimit();
+        final boolean saturated = inFlight >= before;
+        inFlight--;
+
+        if (failed) {
+            limit = Math.max(1, limit / 2);
+        } else {
+            // plain means until there are enough samples for the windows
+            samples++;
+            recentLatency += Math.max(SHORT_SMOOTHING, 1.0 / samples) * (latency - recentLatency);
+            averageLatency += Math.max(LONG_SMOOTHING, 1.0 / samples) * (latency - averageLatency);
+            if (recentLatency > LATENCY_TOLERANCE * averageLatency
+                    && recentLatency - averageLatency > LATENCY_JITTER) {
+                risingSamples++;
+            } else {
+                risingSamples = 0;
+            }
+            if (risingSamples >= RISING_SAMPLES) {
+                limit = Math.max(1, limit * 0.9);
+                // lower it again only if the latency stays high
+                recentLatency = averageLatency;
+                risingSamples = 0;
+            } else if (saturated) {
+                limit = Math.min(maxLimit, limit + 1 / limit);
+            }
+        }
+
+        final int after = getLimit();
+        if (after != before && log.isDebugEnabled()) {
+            log.debug("Concurrency limit for " + backend + " changed from " + before + " to "
+                    + after + ", average latency " + getAverageLatency() + "ms");
+        }
+        notifyAll();
+    }
+
+    /**
+     * @return the backend URL
+     */
+    public String getBackend() {
+        return backend;
+    }
+
+    /**
+     * @return the number of requests currently allowed in flight
+     */
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    public synchronized int getMaxLimit() {
+        return maxLimit;
+    }
+
+    /**
+     * Raises the maximum limit, used when several layers share the same backend
+     */
+    public synchronized void setMaxLimit(int maxLimit) {
+        this.maxLimit = Math.max(1, maxLimit);
+        this.limit = Math.min(limit, this.maxLimit);
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * @return the number of requests waiting to be sent, seeding ones included
+     */
+    public synchronized int getQueueDepth() {
+        return waiting + seedWaiting;
+    }
+
+    /**
+     * @return the number of seeding requests waiting to be sent
+     */
+    public synchronized int getSeedQueueDepth() {
+        return seedWaiting;
+    }
+
+    /**
+     * @return the average latency of the successful requests, in milliseconds
+     */
+    public synchronized long getAverageLatency() {
+        return (long) (averageLatency / 1000000);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return backend + ": limit " + getLimit() + "/" + maxLimit + ", in flight " + inFlight
+                + ", queued " + waiting + " + " + seedWaiting + " seeding, latency "
+                + getAverageLatency() + "ms";
+    }
+}
@@ -116,9 +116,26 @@ public class WMSHttpHelper extends WMSSourceHelper {
                 throw new GeoWebCacheException("Malformed URL: " + requestUrl + " "
                         + maue.getMessage());
             }
+            final BackendConcurrencyLimiter limiter = getConcurrencyLimiter(requestUrl);
             try {
-                connectAndCheckHeaders(tileRespRecv, wmsBackendUrl, wmsParams, expectedMimeType,
-                        backendTimeout, target);
+                long start = 0;
+                if (limiter != null) {
+                    start = limiter.acquire(1000L * (backendTimeout == null ? 120
+                            : backendTimeout.intValue()));
+                }
+                boolean failed = true;
+                try {
+                    failed = !connectAndCheckHeaders(tileRespRecv, wmsBackendUrl, wmsParams,
+                            expectedMimeType, backendTimeout, target);
+                } catch (ServiceException se) {
+                    // a bad request says nothing about the backend load, a server error does
+                    failed = tileRespRecv.getStatus() >= 500;
+                    throw se;
+                } finally {
+                    if (limiter != null) {
+                        limiter.release(start, failed);
+                    }
+                }
             } catch (GeoWebCacheException e) {
                 fetchException = e;
             }
@@ -149,10 +166,13 @@ public class WMSHttpHelper extends WMSSourceHelper {
      * @param wmsBackendUrl
      * @param data
      * @param wmsparams
-     * @return
+     * @return {@code false} if reading the response body failed
+     * @throws ServiceException
+     *             if the backend returned an unexpected status code
      * @throws GeoWebCacheException
+     *             if the backend could not be reached or the response was truncated
      */
-    private void connectAndCheckHeaders(TileResponseReceiver tileRespRecv, URL wmsBackendUrl,
+    private boolean connectAndCheckHeaders(TileResponseReceiver tileRespRecv, URL wmsBackendUrl,
             Map<String, String> wmsParams, String requestMime, Integer backendTimeout,
             Resource target) throws GeoWebCacheException {
 
@@ -252,8 +272,10 @@ public class WMSHttpHelper extends WMSSourceHelper {
                     tileRespRecv.setError();
                     log.error("Caught IO exception, " + wmsBackendUrl.toString() + " "
                             + ioe.getMessage());
+                    return false;
                 }
             }
+            return true;
 
         } finally {
             if (getMethod != null) {
@@ -23,6 +23,7 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -38,12 +39,16 @@ import org.geowebcache.grid.GridSubset;
 import org.geowebcache.grid.OutsideCoverageException;
 import org.geowebcache.grid.SRS;
 import org.geowebcache.io.ByteArrayResource;
+import org.geowebcache.io.PooledResource;
 import org.geowebcache.io.Resource;
 import org.geowebcache.layer.AbstractTileLayer;
 import org.geowebcache.layer.ExpirationRule;
+import org.geowebcache.layer.MetaTileCoalescer;
+import org.geowebcache.layer.MetaTileImageResource;
 import org.geowebcache.layer.meta.LayerMetaInformation;
 import org.geowebcache.locks.LockProvider;
 import org.geowebcache.locks.LockProvider.Lock;
+import org.geowebcache.locks.TimeoutLockProvider;
 import org.geowebcache.mime.FormatModifier;
 import org.geowebcache.mime.MimeType;
 import org.geowebcache.mime.XMLMime;
@@ -56,6 +61,22 @@ public class WMSLayer extends AbstractTileLayer {
 
     private static Log log = LogFactory.getLog(org.geowebcache.layer.wms.WMSLayer.class);
 
+    /**
+     * Set this variable to {@code false} to have concurrent requests for the same meta tile queue
+     * up on the meta tile lock instead of sharing the tiles of the first one
+     */
+    public static final String GWC_METATILE_COALESCING = "GWC_METATILE_COALESCING";
+
+    private static final MetaTileCoalescer COALESCER = new MetaTileCoalescer();
+
+    /**
+     * Set this variable to the maximum number of milliseconds a tile request waits for the lock of
+     * a (meta) tile being fetched by someone else, before getting its tile straight from the
+     * backend without caching it. By default requests wait until the lock is released, as they
+     * always do with lock providers not implementing {@link TimeoutLockProvider}
+     */
+    public static final String GWC_LOCK_WAIT_TIMEOUT = "GWC_LOCK_WAIT_TIMEOUT";
+
     public enum RequestType {
         MAP, FEATUREINFO
     };
@@ -108,6 +129,10 @@ public class WMSLayer extends AbstractTileLayer {
 
     private transient LockProvider lockProvider;
 
+    private transient boolean coalescingDisabled;
+
+    private transient Long lockWaitTimeout;
+
     WMSLayer() {
         //default constructor for XStream
     }
@@ -261,9 +286,9 @@ public class WMSLayer extends AbstractTileLayer {
             if (tryCacheFetch(tile)) {
                 returnTile = finalizeTile(tile);
             } else if (mime.supportsTiling()) { // Okay, so we need to go to the backend
-                returnTile = getMetatilingReponse(tile, true);
+                returnTile = getMetatilingReponse(tile, true, false);
             } else {
-                returnTile = getNonMetatilingReponse(tile, true);
+                returnTile = getNonMetatilingReponse(tile, true, false);
             }
         } finally {
             cleanUpThreadLocals();
@@ -283,9 +308,9 @@ public class WMSLayer extends AbstractTileLayer {
         if (gridSubset.shouldCacheAtZoom(tile.getTileIndex()[2])) {
             if (tile.getMimeType().supportsTiling()
                     && (metaWidthHeight[0] > 1 || metaWidthHeight[1] > 1)) {
-                getMetatilingReponse(tile, tryCache);
+                getMetatilingReponse(tile, tryCache, true);
             } else {
-                getNonMetatilingReponse(tile, tryCache);
+                getNonMetatilingReponse(tile, tryCache, true);
             }
         }
     }
@@ -297,9 +322,13 @@ public class WMSLayer extends AbstractTileLayer {
      *            the Tile with all the information
      * @param tryCache
      *            whether to try the cache, or seed
+     * @param seeding
+     *            whether the tile is being seeded, in which case the meta tile lock is waited
+     *            for no matter how long it takes and concurrent requests are not coalesced
      * @throws GeoWebCacheException
      */
-    private ConveyorTile getMetatilingReponse(ConveyorTile tile, boolean tryCache)
+    private ConveyorTile getMetatilingReponse(ConveyorTile tile, boolean tryCache,
+            boolean seeding)
             throws GeoWebCacheException {
 
         // int idx = this.getSRSIndex(tile.getSRS());
@@ -326,8 +355,16 @@ public class WMSLayer extends AbstractTileLayer {
         String metaKey = buildLockKey(tile, metaTile);
         Lock lock = null;
         try {
+            /** ****************** Join a running request ******** */
+            if (!coalescingDisabled && !seeding && joinMetaTileRequest(metaKey, tile, metaTile)) {
+                return finalizeTile(tile);
+            }
+
             /** ****************** Acquire lock ******************* */
-            lock = lockProvider.getLock(metaKey);
+            lock = acquireLock(metaKey, seeding);
+            if (lock == null) {
+                return getUncachedResponse(tile);
+            }
             /** ****************** Check cache again ************** */
             if (tryCache && tryCacheFetch(tile)) {
                 // Someone got it already, return lock and we're done
@@ -339,7 +376,7 @@ public class WMSLayer extends AbstractTileLayer {
             /*
              * This thread's byte buffer
              */
-            ByteArrayResource buffer = getImageBuffer(WMS_BUFFER);
+            PooledResource buffer = getImageBuffer(WMS_BUFFER);
 
             /** ****************** No luck, Request metatile ****** */
             // Leave a hint to save expiration, if necessary
@@ -347,7 +384,14 @@ public class WMSLayer extends AbstractTileLayer {
                 metaTile.setExpiresHeader(GWCVars.CACHE_USE_WMS_BACKEND_VALUE);
             }
             long requestTime = System.currentTimeMillis();
-            sourceHelper.makeRequest(metaTile, buffer);
+            MetaTileImageResource target = new MetaTileImageResource(metaTile, buffer);
+            final long start = System.nanoTime();
+            sourceHelper.makeRequest(metaTile, target);
+            long fetchTime = System.nanoTime() - start;
+            if (target.isStreamed()) {
+                fetchTime -= metaTile.getDecodeTime();
+            }
+            metaTile.setFetchTime(fetchTime);
 
             if (metaTile.getError()) {
                 throw new GeoWebCacheException("Empty metatile, error message: "
@@ -359,7 +403,12 @@ public class WMSLayer extends AbstractTileLayer {
                 saveExpirationInformation((int) (tile.getExpiresHeader() / 1000));
             }
 
-            metaTile.setImageBytes(buffer);
+            try {
+                target.decode();
+            } finally {
+                // the encoded meta tile is no longer needed, give its memory back to the pool
+                buffer.release();
+            }
 
             saveTiles(metaTile, tile, requestTime);
 
@@ -373,6 +422,70 @@ public class WMSLayer extends AbstractTileLayer {
         return finalizeTile(tile);
     }
 
+    /**
+     * Waits for the tile from a request already fetching the same meta tile, or registers this
+     * request as the one fetching it
+     * 
+     * @return {@code true} if the tile has been received from another request
+     */
+    private boolean joinMetaTileRequest(String metaKey, ConveyorTile tile, WMSMetaTile metaTile)
+            throws GeoWebCacheException {
+        final Integer backendTimeout = getBackendTimeout();
+        final long timeout = 1000L * (backendTimeout == null ? 120 : backendTimeout.intValue());
+        final long[] gridLoc = tile.getTileIndex();
+        try {
+            Resource blob = COALESCER.join(metaKey, metaTile, gridLoc, timeout);
+            if (blob == null && !COALESCER.start(metaKey, metaTile)) {
+                // lost the race to start the request
+                blob = COALESCER.join(metaKey, metaTile, gridLoc, timeout);
+            }
+            if (blob == null) {
+                return false;
+            }
+            tile.setCacheResult(CacheResult.MISS);
+            tile.setBlob(blob);
+            tile.getStorageObject().setCreated(blob.getLastModified());
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new GeoWebCacheException(e);
+        }
+    }
+
+    /**
+     * @return the registry of the meta tiles being fetched, shared by all the WMS layers
+     */
+    public static MetaTileCoalescer getMetaTileCoalescer() {
+        return COALESCER;
+    }
+
+    /**
+     * @return the lock, or {@code null} if waiting is not mandatory and the lock could not be
+     *         acquired within {@link #GWC_LOCK_WAIT_TIMEOUT}
+     */
+    private Lock acquireLock(String lockKey, boolean waitForLock) throws GeoWebCacheException {
+        final Long timeout = lockWaitTimeout;
+        if (waitForLock || timeout == null || !(lockProvider instanceof TimeoutLockProvider)) {
+            return lockProvider.getLock(lockKey);
+        }
+        return ((TimeoutLockProvider) lockProvider).tryLock(lockKey, timeout.longValue(),
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Gets the tile straight from the backend, for requests that cannot wait for the (meta) tile
+     * to be cached
+     */
+    private ConveyorTile getUncachedResponse(ConveyorTile tile) throws GeoWebCacheException {
+        if (log.isDebugEnabled()) {
+            log.debug("Timed out waiting for the lock of " + tile
+                    + ", getting it from the backend without caching");
+        }
+        tile.setCacheResult(CacheResult.MISS);
+        getNoncachedTile(tile);
+        return finalizeTile(tile);
+    }
+
     private String buildLockKey(ConveyorTile tile, WMSMetaTile metaTile) {
         StringBuilder metaKey = new StringBuilder();
         
@@ -406,9 +519,12 @@ public class WMSLayer extends AbstractTileLayer {
      *            the Tile with all the information
      * @param tryCache
      *            whether to try the cache, or seed
+     * @param waitForLock
+     *            whether to wait for the tile lock no matter how long it takes
      * @throws GeoWebCacheException
      */
-    private ConveyorTile getNonMetatilingReponse(ConveyorTile tile, boolean tryCache)
+    private ConveyorTile getNonMetatilingReponse(ConveyorTile tile, boolean tryCache,
+            boolean waitForLock)
             throws GeoWebCacheException {
         // String debugHeadersStr = null;
         long[] gridLoc = tile.getTileIndex();
@@ -417,7 +533,10 @@ public class WMSLayer extends AbstractTileLayer {
         Lock lock = null;
         try {
             /** ****************** Acquire lock ******************* */
-            lock = lockProvider.getLock(lockKey);
+            lock = acquireLock(lockKey, waitForLock);
+            if (lock == null) {
+                return getUncachedResponse(tile);
+            }
             
             /** ****************** Check cache again ************** */
             if (tryCache && tryCacheFetch(tile)) {
@@ -470,7 +589,7 @@ public class WMSLayer extends AbstractTileLayer {
     public ConveyorTile doNonMetatilingRequest(ConveyorTile tile) throws GeoWebCacheException {
         tile.setTileLayer(this);
 
-        ByteArrayResource buffer = getImageBuffer(WMS_BUFFER);
+        PooledResource buffer = getImageBuffer(WMS_BUFFER);
         sourceHelper.makeRequest(tile, buffer);
 
         if (tile.getError() || buffer.getSize() == 0) {
@@ -744,6 +863,12 @@ public class WMSLayer extends AbstractTileLayer {
     }
 
     public void cleanUpThreadLocals() {
+        if (WMS_BUFFER.get() != null) {
+            WMS_BUFFER.get().release();
+        }
+        if (WMS_BUFFER2.get() != null) {
+            WMS_BUFFER2.get().release();
+        }
         WMS_BUFFER.remove();
         WMS_BUFFER2.remove();
     }
@@ -760,4 +885,31 @@ public class WMSLayer extends AbstractTileLayer {
     public void setLockProvider(LockProvider lockProvider) {
         this.lockProvider = lockProvider;
     }
+
+    public boolean isMetaTileCoalescing() {
+        return !coalescingDisabled;
+    }
+
+    /**
+     * @see #GWC_METATILE_COALESCING
+     */
+    public void setMetaTileCoalescing(boolean metaTileCoalescing) {
+        this.coalescingDisabled = !metaTileCoalescing;
+    }
+
+    /**
+     * @return the lock wait timeout in milliseconds, or {@code null} to wait until the lock is
+     *         released
+     */
+    public Long getLockWaitTimeout() {
+        return lockWaitTimeout;
+    }
+
+    /**
+     * @see #GWC_LOCK_WAIT_TIMEOUT
+     */
+    public void setLockWaitTimeout(Long lockWaitTimeout) {
+        this.lockWaitTimeout = lockWaitTimeout == null || lockWaitTimeout.longValue() < 0 ? null
+                : lockWaitTimeout;
+    }
 }
@@ -17,7 +17,10 @@
  */
 package org.geowebcache.layer.wms;
 
+import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.geowebcache.GeoWebCacheException;
 import org.geowebcache.conveyor.ConveyorTile;
@@ -36,7 +39,21 @@ import org.geowebcache.util.ServletUtils;
  */
 public abstract class WMSSourceHelper {
 
+    /**
+     * Set this variable to {@code false} to always allow up to the configured concurrency of
+     * requests to each backend, instead of adapting it to the backend latency and errors
+     */
+    public static final String GWC_ADAPTIVE_CONCURRENCY = "GWC_ADAPTIVE_CONCURRENCY";
+
+    /**
+     * The limiters of each backend URL, shared by all the layers using the same backend
+     */
+    private static final ConcurrentMap<String, BackendConcurrencyLimiter> LIMITERS = 
+            new ConcurrentHashMap<String, BackendConcurrencyLimiter>();
+
     private int concurrency = 32;
+
+    private boolean adaptiveConcurrency = true;
     private int backendTimetout;
 
     abstract protected void makeRequest(TileResponseReceiver tileRespRecv, WMSLayer layer,
@@ -156,6 +173,50 @@ public abstract class WMSSourceHelper {
         this.concurrency = concurrency;
     }
 
+    public boolean isAdaptiveConcurrency() {
+        return adaptiveConcurrency;
+    }
+
+    /**
+     * Sets whether the concurrency of the requests to each backend adapts to its latency and
+     * errors, see {@link #GWC_ADAPTIVE_CONCURRENCY}
+     */
+    public void setAdaptiveConcurrency(boolean adaptiveConcurrency) {
+        this.adaptiveConcurrency = adaptiveConcurrency;
+    }
+
+    /**
+     * Returns the limiter for the requests to the given backend, creating it if needed
+     * 
+     * @param backendUrl
+     * @return the limiter, or {@code null} if adaptive concurrency is disabled
+     */
+    protected BackendConcurrencyLimiter getConcurrencyLimiter(String backendUrl) {
+        if (!adaptiveConcurrency) {
+            return null;
+        }
+        BackendConcurrencyLimiter limiter = LIMITERS.get(backendUrl);
+        if (limiter == null) {
+            BackendConcurrencyLimiter newLimiter = new BackendConcurrencyLimiter(backendUrl,
+                    concurrency);
+            limiter = LIMITERS.putIfAbsent(backendUrl, newLimiter);
+            if (limiter == null) {
+                limiter = newLimiter;
+            }
+        }
+        if (limiter.getMaxLimit() < concurrency) {
+            limiter.setMaxLimit(concurrency);
+        }
+        return limiter;
+    }
+
+    /**
+     * @return the concurrency limiters of the backends used so far, by backend URL
+     */
+    public static Map<String, BackendConcurrencyLimiter> getConcurrencyLimiters() {
+        return new HashMap<String, BackendConcurrencyLimiter>(LIMITERS);
+    }
+
     /**
      * Sets the backend timeout for HTTP calls
      * @param backendTimeout
@@ -0,0 +1,542 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.locks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geowebcache.GeoWebCacheException;
+import org.geowebcache.config.ConfigurationException;
+import org.geowebcache.storage.DefaultStorageFinder;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+/**
+ * A lock provider for clusters sharing the cache directory, based on leases recorded in a single
+ * lock table file.
+ * <p>
+ * Each record of the table holds a 64 bit hash of the lock key, the owner of the record and the
+ * expiry time of its lease. A key is hashed to a home slot, and can be leased in any of the
+ * {@link #PROBES} records starting there: a lock is held if one of them holds a live lease for the
+ * key, otherwise the first free or expired record is leased for it. Keys sharing their home slot
+ * hence don't block each other. Acquiring or releasing a lock only locks the records for the time
+ * needed to read and update them, so no file gets created or deleted per lock. Leases held by this
+ * node are renewed in the background, so a lease expires only if its node stops renewing it, e.g.
+ * because it crashed, in which case the next node needing the record takes it over. Nodes are
+ * expected to have their clocks synchronized.
+ * </p>
+ * <p>
+ * Threads of the same node wait on the lock key without polling, and are notified when it is
+ * released. Waits for a key leased by another node, or for a free record when all the records of
+ * the key are leased for other keys, back off exponentially. Locks may be released by a thread
+ * other than the one that acquired them. Wait times and contention are tracked in
+ * {@link #getStatistics()}.
+ * </p>
+ */
+public class LeaseLockProvider implements TimeoutLockProvider, DisposableBean {
+
+    private static Log log = LogFactory.getLog(LeaseLockProvider.class);
+
+    public static final int DEFAULT_SLOTS = 4096;
+
+    /**
+     * Number of records a key can be leased in, starting at its home slot
+     */
+    static final int PROBES = 16;
+
+    /**
+     * Owner node id, lease token, lease expiry, lease start, key hash
+     */
+    static final int RECORD_SIZE = 40;
+
+    /**
+     * File locks are held by the whole process, so the providers of this process must not lock
+     * overlapping regions of the table at the same time
+     */
+    private static final Object TABLE_LOCK = new Object();
+
+    private static final long MIN_BACKOFF = 1;
+
+    private static final long MAX_BACKOFF = 250;
+
+    private final File root;
+
+    private final int slots;
+
+    /**
+     * The keys held or waited for by the threads of this node, guarded by itself
+     */
+    private final Map<String, LocalKey> localKeys = new HashMap<String, LocalKey>();
+
+    private final long nodeId;
+
+    private final AtomicLong tokens = new AtomicLong();
+
+    private final LockStatistics statistics = new LockStatistics();
+
+    private final AtomicLong staleLeases = new AtomicLong();
+
+    /**
+     * The leases held by this node, by record, to be renewed
+     */
+    private final ConcurrentMap<Integer, Long> leases = new ConcurrentHashMap<Integer, Long>();
+
+    private long leaseTime = 30 * 1000;
+
+    private long timeout = 120 * 1000;
+
+    private RandomAccessFile file;
+
+    private FileChannel channel;
+
+    private ScheduledExecutorService renewer;
+
+    public LeaseLockProvider(DefaultStorageFinder storageFinder) throws ConfigurationException {
+        this(storageFinder.getDefaultPath());
+    }
+
+    public LeaseLockProvider(String root) {
+        this(root, DEFAULT_SLOTS);
+    }
+
+    /**
+     * @param root
+     *            the cache directory shared by the nodes
+     * @param slots
+     *            the number of home slots in the lock table, must be the same for all the nodes
+     */
+    public LeaseLockProvider(String root, int slots) {
+        if (slots <= 0) {
+            throw new IllegalArgumentException("The number of slots must be positive: " + slots);
+        }
+        this.root = new File(root);
+        this.slots = slots;
+        long id;
+        SecureRandom random = new SecureRandom();
+        do {
+            id = random.nextLong();
+        } while (id == 0);
+        this.nodeId = id;
+    }
+
+    /**
+     * @param leaseTime
+     *            how long, in milliseconds, a lease lasts if not renewed; this is how long it
+     *            takes for the locks of a crashed node to become available
+     */
+    public void setLeaseTime(long leaseTime) {
+        if (leaseTime < 1000) {
+            throw new IllegalArgumentException("Lease time must be at least one second: "
+                    + leaseTime);
+        }
+        this.leaseTime = leaseTime;
+    }
+
+    public long getLeaseTime() {
+        return leaseTime;
+    }
+
+    /**
+     * @param timeout
+     *            the maximum time to wait for a lock, in milliseconds
+     */
+    public void setTimeout(long timeout) {
+        this.timeout = timeout;
+    }
+
+    public long getTimeout() {
+        return timeout;
+    }
+
+    public LockStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * @return the number of expired leases taken over, likely left behind by crashed nodes
+     */
+    public long getStaleLeases() {
+        return staleLeases.get();
+    }
+
+    public LockProvider.Lock getLock(final String lockKey) throws GeoWebCacheException {
+        LockProvider.Lock lock = acquire(lockKey, timeout);
+        if (lock == null) {
+            throw new GeoWebCacheException("Failed to get a lock on key " + lockKey + " after "
+                    + timeout + "ms");
+        }
+        return lock;
+    }
+
+    public LockProvider.Lock tryLock(String lockKey, long timeout, TimeUnit unit)
+            throws GeoWebCacheException {
+        return acquire(lockKey, unit.toMillis(timeout));
+    }
+
+    /**
+     * @return the lock, or {@code null} if it could not be acquired within the timeout
+     */
+    private LockProvider.Lock acquire(final String lockKey, final long timeout)
+            throws GeoWebCacheException {
+        final FileChannel channel = getChannel();
+        final long keyHash = hash(lockKey);
+        final int home = (int) ((keyHash & Long.MAX_VALUE) % slots);
+        final long token = tokens.incrementAndGet();
+        final long start = System.nanoTime();
+        final long deadline = System.currentTimeMillis() + timeout;
+        boolean contended = false;
+        final LocalKey local = retainLocal(lockKey);
+        int leased = -1;
+
+        try {
+            // first off, get the key among the threads of this node
+            synchronized (local) {
+                while (local.held) {
+                    contended = true;
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        statistics.timedOut(lockKey);
+                        return null;
+                    }
+                    local.wait(remaining);
+                }
+                local.held = true;
+            }
+
+            // then lease it among the nodes
+            try {
+                long backoff = MIN_BACKOFF;
+                while ((leased = tryLease(channel, home, keyHash, token)) < 0) {
+                    contended = true;
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        statistics.timedOut(lockKey);
+                        return null;
+                    }
+                    Thread.sleep(Math.min(backoff, remaining));
+                    backoff = Math.min(2 * backoff, MAX_BACKOFF);
+                }
+            } finally {
+                if (leased < 0) {
+                    synchronized (local) {
+                        local.held = false;
+                        local.notify();
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new GeoWebCacheException("Interrupted while waiting for lock " + lockKey);
+        } catch (IOException e) {
+            throw new GeoWebCacheException("Failure while trying to get lock for key " + lockKey,
+                    e);
+        } finally {
+            if (leased < 0) {
+                releaseLocal(lockKey, local);
+            }
+        }
+
+        final int index = leased;
+        leases.put(index, token);
+        statistics.acquired(lockKey, System.nanoTime() - start, contended);
+        if (log.isDebugEnabled()) {
+            log.debug("Lock " + lockKey + " acquired by thread " + Thread.currentThread().getId()
+                    + " on record " + index);
+        }
+
+        return new LockProvider.Lock() {
+
+            boolean released;
+
+            public synchronized void release() throws GeoWebCacheException {
+                if (released) {
+                    return;
+                }
+                released = true;
+                leases.remove(index, token);
+                try {
+                    if (!releaseLease(channel, index, token)) {
+                        // do not crap out, locks usage in GWC is only there to prevent
+                        // duplication of work
+                        log.warn("Lease for lock " + lockKey + " expired and was taken over "
+                                + "before being released, consider raising the lease time");
+                    }
+                } catch (IOException e) {
+                    throw new GeoWebCacheException("Failure while trying to release lock for key "
+                            + lockKey, e);
+                } finally {
+                    synchronized (local) {
+                        local.held = false;
+                        local.notify();
+                    }
+                    releaseLocal(lockKey, local);
+                }
+                if (log.isDebugEnabled()) {
+                    log.debug("Lock " + lockKey + " released by thread "
+                            + Thread.currentThread().getId());
+                }
+            }
+        };
+    }
+
+    /**
+     * Gets the local state of the key, creating it if needed, and registers one more user of it
+     */
+    private LocalKey retainLocal(String lockKey) {
+        synchronized (localKeys) {
+            LocalKey local = localKeys.get(lockKey);
+            if (local == null) {
+                local = new LocalKey();
+                localKeys.put(lockKey, local);
+            }
+            local.users++;
+            return local;
+        }
+    }
+
+    private void releaseLocal(String lockKey, LocalKey local) {
+        synchronized (localKeys) {
+            if (--local.users == 0) {
+                localKeys.remove(lockKey);
+            }
+        }
+    }
+
+    /**
+     * Leases a record for the key, unless another node holds a live lease for it or all the
+     * records of the key are leased for other keys
+     * 
+     * @return the index of the record leased, or {@code -1}
+     */
+    private int tryLease(FileChannel channel, int home, long keyHash, long token)
+            throws IOException {
+        // the records of the key are locked all together, so that two nodes can't lease two
+        // different records for the same key
+        synchronized (TABLE_LOCK) {
+            final long position = (long) home * RECORD_SIZE;
+            final int size = PROBES * RECORD_SIZE;
+            FileLock recordsLock = channel.lock(position, size, false);
+            try {
+                ByteBuffer records = read(channel, position, size);
+                long now = System.currentTimeMillis();
+                int free = -1;
+                for (int i = 0; i < PROBES; i++) {
+                    int offset = i * RECORD_SIZE;
+                    long owner = records.getLong(offset);
+                    boolean live = owner != 0 && records.getLong(offset + 16) > now;
+                    if (live && records.getLong(offset + 32) == keyHash) {
+                        return -1;
+                    }
+                    if (!live && free < 0) {
+                        free = i;
+                    }
+                }
+                if (free < 0) {
+                    return -1;
+                }
+                final int offset = free * RECORD_SIZE;
+                final long owner = records.getLong(offset);
+                final int index = home + free;
+                if (owner != 0) {
+                    staleLeases.incrementAndGet();
+                    log.info("Taking over expired lease of node " + Long.toHexString(owner)
+                            + " on lock record " + index);
+                }
+                write(channel, position + offset, nodeId, token, now + leaseTime, now, keyHash);
+                return index;
+            } finally {
+                recordsLock.release();
+            }
+        }
+    }
+
+    /**
+     * Extends the lease, if still owned
+     */
+    private boolean renewLease(FileChannel channel, int index, long token) throws IOException {
+        synchronized (TABLE_LOCK) {
+            final long position = (long) index * RECORD_SIZE;
+            FileLock recordLock = channel.lock(position, RECORD_SIZE, false);
+            try {
+                ByteBuffer record = read(channel, position, RECORD_SIZE);
+                if (record.getLong(0) != nodeId || record.getLong(8) != token) {
+                    return false;
+                }
+                write(channel, position, nodeId, token,
+                        System.currentTimeMillis() + leaseTime, record.getLong(24),
+                        record.getLong(32));
+                return true;
+            } finally {
+                recordLock.release();
+            }
+        }
+    }
+
+    /**
+     * Clears the record, if still owned
+     */
+    private boolean releaseLease(FileChannel channel, int index, long token) throws IOException {
+        synchronized (TABLE_LOCK) {
+            final long position = (long) index * RECORD_SIZE;
+            FileLock recordLock = channel.lock(position, RECORD_SIZE, false);
+            try {
+                ByteBuffer record = read(channel, position, RECORD_SIZE);
+                if (record.getLong(0) != nodeId || record.getLong(8) != token) {
+                    return false;
+                }
+                write(channel, position, 0, 0, 0, 0, 0);
+                return true;
+            } finally {
+                recordLock.release();
+            }
+        }
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int size)
+            throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(size);
+        while (record.hasRemaining()) {
+            if (channel.read(record, position + record.position()) < 0) {
+                break;
+            }
+        }
+        return record;
+    }
+
+    private static void write(FileChannel channel, long position, long owner, long token,
+            long expiry, long start, long keyHash) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+        record.putLong(owner).putLong(token).putLong(expiry).putLong(start).putLong(keyHash);
+        record.flip();
+        while (record.hasRemaining()) {
+            channel.write(record, position + record.position());
+        }
+    }
+
+    private void renewLeases() {
+        final FileChannel channel;
+        synchronized (this) {
+            channel = this.channel;
+        }
+        if (channel == null) {
+            return;
+        }
+        for (Map.Entry<Integer, Long> lease : leases.entrySet()) {
+            int index = lease.getKey();
+            try {
+                if (!renewLease(channel, index, lease.getValue())) {
+                    leases.remove(index, lease.getValue());
+                }
+            } catch (IOException e) {
+                log.warn("Failed to renew lease on lock record " + index + ": "
+                        + e.getMessage());
+            }
+        }
+    }
+
+    private synchronized FileChannel getChannel() throws GeoWebCacheException {
+        if (channel == null) {
+            File locks = new File(root, "lockfiles");
+            locks.mkdirs();
+            // the slot count is part of the name, nodes configured differently won't mix up
+            File table = new File(locks, "leases_" + slots + ".tbl");
+            try {
+                file = new RandomAccessFile(table, "rw");
+                // the records of the last home slots run past the end of the slots
+                long length = (long) (slots + PROBES - 1) * RECORD_SIZE;
+                if (file.length() < length) {
+                    file.setLength(length);
+                }
+            } catch (IOException e) {
+                throw new GeoWebCacheException("Unable to open the lock table " + table, e);
+            }
+            channel = file.getChannel();
+
+            renewer = Executors.newSingleThreadScheduledExecutor(new CustomizableThreadFactory(
+                    "GWC Lease Renewer-") {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = super.newThread(runnable);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            long period = Math.max(leaseTime / 3, 100);
+            renewer.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    renewLeases();
+                }
+            }, period, period, TimeUnit.MILLISECONDS);
+        }
+        return channel;
+    }
+
+    /**
+     * 64 bit FNV-1a hash of the key, the same on all the nodes, collisions are unlikely enough
+     * for keys to be told apart by it
+     */
+    static long hash(String lockKey) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < lockKey.length(); i++) {
+            hash ^= lockKey.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * Stops renewing the leases and closes the lock table
+     * 
+     * @see org.springframework.beans.factory.DisposableBean#destroy()
+     */
+    public synchronized void destroy() throws Exception {
+        if (renewer != null) {
+            renewer.shutdownNow();
+            renewer = null;
+        }
+        if (file != null) {
+            file.close();
+            file = null;
+            channel = null;
+        }
+    }
+
+    /**
+     * Local state of a lock key, with the number of threads holding or waiting for it
+     */
+    private static class LocalKey {
+
+        boolean held;
+
+        int users;
+    }
+}
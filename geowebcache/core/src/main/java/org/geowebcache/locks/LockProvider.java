@@ -28,8 +28,7 @@ public interface LockProvider {
      * @param lockKey
      */
     public Lock getLock(String lockKey) throws GeoWebCacheException;
-    
-    
+
     public interface Lock {
         /**
          * Releases the lock on the specified key
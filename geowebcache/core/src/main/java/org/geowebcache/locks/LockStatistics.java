@@ -0,0 +1,192 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.locks;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Wait time and contention counters of a {@link LockProvider}, overall and by lock group.
+ * <p>
+ * The group of the meta tile and tile lock keys built by the layers is the layer and gridset
+ * part of the key, e.g. {@code topp:states_EPSG:4326}, other keys are accounted under
+ * {@link #OTHER}.
+ * </p>
+ */
+public class LockStatistics {
+
+    public static final String OTHER = "other";
+
+    private static final Pattern TILE_KEY = Pattern
+            .compile("^(?:meta|tile)_(.+?)_-?\\d+_-?\\d+_-?\\d+(?:_[^._]+)?\\.[^.]*$");
+
+    private final Counters total = new Counters();
+
+    private final ConcurrentMap<String, Counters> groups = new ConcurrentHashMap<String, Counters>();
+
+    private final boolean grouped;
+
+    public LockStatistics() {
+        this(true);
+    }
+
+    /**
+     * @param grouped
+     *            whether to keep counters by lock group too, which costs parsing the key on each
+     *            acquisition
+     */
+    public LockStatistics(boolean grouped) {
+        this.grouped = grouped;
+    }
+
+    /**
+     * Records a lock acquisition
+     * 
+     * @param lockKey
+     *            the key locked
+     * @param waitTime
+     *            the time spent waiting for the lock, in nanoseconds
+     * @param contended
+     *            whether the lock was held by someone else when requested
+     */
+    public void acquired(String lockKey, long waitTime, boolean contended) {
+        total.acquired(waitTime, contended);
+        if (grouped) {
+            getCounters(lockKey).acquired(waitTime, contended);
+        }
+    }
+
+    /**
+     * Records a failure to acquire a lock in time
+     */
+    public void timedOut(String lockKey) {
+        total.timeouts.incrementAndGet();
+        if (grouped) {
+            getCounters(lockKey).timeouts.incrementAndGet();
+        }
+    }
+
+    public Counters getTotal() {
+        return total;
+    }
+
+    /**
+     * @return the counters of each lock group, empty if not grouping
+     */
+    public Map<String, Counters> getGroups() {
+        return new HashMap<String, Counters>(groups);
+    }
+
+    private Counters getCounters(String lockKey) {
+        String group = groupOf(lockKey);
+        Counters counters = groups.get(group);
+        if (counters == null) {
+            Counters newCounters = new Counters();
+            counters = groups.putIfAbsent(group, newCounters);
+            if (counters == null) {
+                counters = newCounters;
+            }
+        }
+        return counters;
+    }
+
+    /**
+     * @return the layer and gridset part of tile lock keys, {@link #OTHER} for other keys
+     */
+    public static String groupOf(String lockKey) {
+        Matcher matcher = TILE_KEY.matcher(lockKey);
+        if (matcher.matches()) {
+            return matcher.group(1);
+        }
+        return OTHER;
+    }
+
+    /**
+     * Lock counters, wait times in milliseconds
+     */
+    public static class Counters {
+
+        private final AtomicLong acquired = new AtomicLong();
+
+        private final AtomicLong contended = new AtomicLong();
+
+        private final AtomicLong timeouts = new AtomicLong();
+
+        private final AtomicLong waitTime = new AtomicLong();
+
+        private final AtomicLong maxWaitTime = new AtomicLong();
+
+        void acquired(long waitTime, boolean contended) {
+            acquired.incrementAndGet();
+            if (contended) {
+                this.contended.incrementAndGet();
+            }
+            this.waitTime.addAndGet(waitTime);
+            long max;
+            while ((max = maxWaitTime.get()) < waitTime) {
+                if (maxWaitTime.compareAndSet(max, waitTime)) {
+                    break;
+                }
+            }
+        }
+
+        /**
+         * @return the number of locks acquired
+         */
+        public long getAcquired() {
+            return acquired.get();
+        }
+
+        /**
+         * @return the number of locks that were held by someone else when requested
+         */
+        public long getContended() {
+            return contended.get();
+        }
+
+        /**
+         * @return the number of lock requests that gave up waiting
+         */
+        public long getTimeouts() {
+            return timeouts.get();
+        }
+
+        /**
+         * @return the total time spent waiting for locks, in milliseconds
+         */
+        public long getWaitTime() {
+            return waitTime.get() / 1000000;
+        }
+
+        /**
+         * @return the longest wait for a lock, in milliseconds
+         */
+        public long getMaxWaitTime() {
+            return maxWaitTime.get() / 1000000;
+        }
+
+        @Override
+        public String toString() {
+            return "acquired: " + getAcquired() + ", contended: " + getContended()
+                    + ", timeouts: " + getTimeouts() + ", wait time: " + getWaitTime()
+                    + "ms, max wait: " + getMaxWaitTime() + "ms";
+        }
+    }
+}
@@ -14,54 +14,160 @@
  */
 package org.geowebcache.locks;
 
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
 
-import org.apache.commons.codec.digest.DigestUtils;
 import org.geowebcache.GeoWebCacheException;
 
 /**
- * An in memory lock provider based on a striped lock
+ * An in memory lock provider with one lock per key.
+ * <p>
+ * Locks are kept in a table only while in use: each entry counts the threads holding or waiting
+ * for it, and is removed by the last one releasing it. Unrelated keys thus never block each
+ * other, and acquiring an uncontended lock only allocates its table entry.
+ * </p>
  * 
  * @author Andrea Aime - GeoSolutions
  */
-public class MemoryLockProvider implements LockProvider {
-    
-    java.util.concurrent.locks.Lock[] locks;
-    
+public class MemoryLockProvider implements TimeoutLockProvider {
+
+    private final ConcurrentMap<String, LockEntry> locks;
+
+    private final LockStatistics statistics = new LockStatistics(false);
+
     public MemoryLockProvider() {
         this(1024);
     }
 
+    /**
+     * @param concurrency
+     *            the expected number of keys locked at the same time, used to size the lock table
+     */
     public MemoryLockProvider(int concurrency) {
-        locks = new java.util.concurrent.locks.Lock[concurrency];
-        for (int i = 0; i < locks.length; i++) {
-            locks[i] = new ReentrantLock();
-        }
+        locks = new ConcurrentHashMap<String, LockEntry>(concurrency);
     }
 
     public Lock getLock(String lockKey) {
-        final int idx = getIndex(lockKey);
-        locks[idx].lock();        
-        return new Lock() {
-            
-            boolean released = false;
-
-            public void release() throws GeoWebCacheException {
-                if(!released) {
-                    released = true;
-                    locks[idx].unlock();
+        final LockEntry entry = retain(lockKey);
+        final long start = System.nanoTime();
+        final boolean contended = !entry.tryLock();
+        if (contended) {
+            entry.lock();
+        }
+        statistics.acquired(lockKey, System.nanoTime() - start, contended);
+        return new EntryLock(lockKey, entry);
+    }
+
+    public Lock tryLock(String lockKey, long timeout, TimeUnit unit) throws GeoWebCacheException {
+        final LockEntry entry = retain(lockKey);
+        final long start = System.nanoTime();
+        final boolean contended = !entry.tryLock();
+        if (contended) {
+            boolean locked = false;
+            try {
+                locked = entry.tryLock(timeout, unit);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new GeoWebCacheException("Interrupted while waiting for lock " + lockKey);
+            } finally {
+                if (!locked) {
+                    release(lockKey, entry);
                 }
             }
-            
-        };
-        
+            if (!locked) {
+                statistics.timedOut(lockKey);
+                return null;
+            }
+        }
+        statistics.acquired(lockKey, System.nanoTime() - start, contended);
+        return new EntryLock(lockKey, entry);
     }
 
-    private int getIndex(String lockKey) {
-        // Simply hashing the lock key generated a significant number of collisions,
-        // doing the SHA1 digest of it provides a much better distribution
-        int idx = Math.abs(DigestUtils.shaHex(lockKey).hashCode() % locks.length);
-        return idx;
+    /**
+     * @return the acquisition, wait and timeout counters of this provider
+     */
+    public LockStatistics getStatistics() {
+        return statistics;
     }
 
+    /**
+     * @return the number of keys currently locked or waited for
+     */
+    public int getActiveLocks() {
+        return locks.size();
+    }
+
+    /**
+     * Gets the entry for the key, creating it if needed, and registers one more user of it
+     */
+    private LockEntry retain(String lockKey) {
+        while (true) {
+            LockEntry entry = locks.get(lockKey);
+            if (entry == null) {
+                LockEntry newEntry = new LockEntry();
+                entry = locks.putIfAbsent(lockKey, newEntry);
+                if (entry == null) {
+                    return newEntry;
+                }
+            }
+            if (entry.retain()) {
+                return entry;
+            }
+            // the last user is removing it from the table, try again
+        }
+    }
+
+    private void release(String lockKey, LockEntry entry) {
+        if (entry.users.decrementAndGet() == 0) {
+            locks.remove(lockKey, entry);
+        }
+    }
+
+    private class EntryLock implements Lock {
+
+        private final String lockKey;
+
+        private final LockEntry entry;
+
+        boolean released = false;
+
+        EntryLock(String lockKey, LockEntry entry) {
+            this.lockKey = lockKey;
+            this.entry = entry;
+        }
+
+        public void release() throws GeoWebCacheException {
+            if (!released) {
+                released = true;
+                entry.unlock();
+                MemoryLockProvider.this.release(lockKey, entry);
+            }
+        }
+    }
+
+    /**
+     * A lock table entry, with the number of threads holding or waiting for it
+     */
+    private static class LockEntry extends ReentrantLock {
+
+        private static final long serialVersionUID = 1L;
+
+        final AtomicInteger users = new AtomicInteger(1);
+
+        /**
+         * @return {@code false} if the entry has no users anymore and is being removed
+         */
+        boolean retain() {
+            int count;
+            while ((count = users.get()) > 0) {
+                if (users.compareAndSet(count, count + 1)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
 }
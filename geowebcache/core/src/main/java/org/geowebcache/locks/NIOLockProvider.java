@@ -19,6 +19,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.channels.FileLock;
 import java.nio.channels.OverlappingFileLockException;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.io.IOUtils;
@@ -33,7 +34,7 @@ import org.geowebcache.storage.DefaultStorageFinder;
  * 
  * @author Andrea Aime - GeoSolutions
  */
-public class NIOLockProvider implements LockProvider {
+public class NIOLockProvider implements TimeoutLockProvider {
     
     public static Log LOGGER = LogFactory.getLog(NIOLockProvider.class);
 
@@ -62,6 +63,35 @@ public class NIOLockProvider implements LockProvider {
         // threads in the same JVM)
         final LockProvider.Lock memoryLock = memoryProvider.getLock(lockKey);
         // then synch up between different processes
+        LockProvider.Lock lock = getFileLock(lockKey, memoryLock, maxLockAttempts);
+        if (lock == null) {
+            throw new GeoWebCacheException("Failed to get a lock on key " + lockKey + " after "
+                    + maxLockAttempts + " attempts");
+        }
+        return lock;
+    }
+
+    public LockProvider.Lock tryLock(String lockKey, long timeout, TimeUnit unit)
+            throws GeoWebCacheException {
+        final long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+        final LockProvider.Lock memoryLock = memoryProvider.tryLock(lockKey, timeout, unit);
+        if (memoryLock == null) {
+            return null;
+        }
+        long remaining = Math.max(0, deadline - System.currentTimeMillis());
+        int attempts = (int) Math.min(maxLockAttempts, 1 + remaining / waitBeforeRetry);
+        return getFileLock(lockKey, memoryLock, attempts);
+    }
+
+    /**
+     * Locks the file of the given key, releasing the memory lock if that fails
+     * 
+     * @return the lock, or {@code null} if the file could not be locked in the given number of
+     *         attempts
+     */
+    private LockProvider.Lock getFileLock(final String lockKey,
+            final LockProvider.Lock memoryLock, final int maxLockAttempts)
+            throws GeoWebCacheException {
         final File file = getFile(lockKey);
         try {
             FileOutputStream currFos = null;
@@ -78,7 +108,7 @@ public class NIOLockProvider implements LockProvider {
                     } catch(OverlappingFileLockException e) {
                         IOUtils.closeQuietly(currFos);
                         try {
-                            Thread.sleep(20);
+                            Thread.sleep(waitBeforeRetry);
                         } catch (InterruptedException ie) {
                             // ok, moving on
                         }
@@ -86,7 +116,7 @@ public class NIOLockProvider implements LockProvider {
                         // this one is also thrown with a message "avoided fs deadlock"
                         IOUtils.closeQuietly(currFos);
                         try {
-                            Thread.sleep(20);
+                            Thread.sleep(waitBeforeRetry);
                         } catch (InterruptedException ie) {
                             // ok, moving on
                         }
@@ -95,8 +125,9 @@ public class NIOLockProvider implements LockProvider {
                 }
                 
                 // verify we managed to get the FS lock
-                if(count >= maxLockAttempts) {
-                    throw new GeoWebCacheException("Failed to get a lock on key " + lockKey + " after " + count + " attempts");
+                if(currLock == null) {
+                    memoryLock.release();
+                    return null;
                 }
 
                 if(LOGGER.isDebugEnabled()) {
@@ -160,6 +191,7 @@ public class NIOLockProvider implements LockProvider {
                 file.delete();
             }
         } catch (IOException e) {
+            memoryLock.release();
             throw new GeoWebCacheException("Failure while trying to get lock for key " + lockKey, e);
         }
 
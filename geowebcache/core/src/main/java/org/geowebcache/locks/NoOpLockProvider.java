@@ -14,6 +14,8 @@
  */
 package org.geowebcache.locks;
 
+import java.util.concurrent.TimeUnit;
+
 import org.geowebcache.GeoWebCacheException;
 
 /**
@@ -23,7 +25,7 @@ import org.geowebcache.GeoWebCacheException;
  * @author Andrea Aime - GeoSolutions
  * 
  */
-public class NoOpLockProvider implements LockProvider {
+public class NoOpLockProvider implements TimeoutLockProvider {
 
     public LockProvider.Lock getLock(String lockKey) throws GeoWebCacheException {
         return new Lock() {
@@ -34,4 +36,9 @@ public class NoOpLockProvider implements LockProvider {
         };
     }
 
+    public LockProvider.Lock tryLock(String lockKey, long timeout, TimeUnit unit)
+            throws GeoWebCacheException {
+        return getLock(lockKey);
+    }
+
 }
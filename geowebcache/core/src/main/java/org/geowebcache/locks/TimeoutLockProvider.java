@@ -0,0 +1,41 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.locks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.geowebcache.GeoWebCacheException;
+
+/**
+ * A {@link LockProvider} that can give up waiting for a lock. Callers fall back to
+ * {@link #getLock(String)}, waiting for as long as needed, with providers not implementing it.
+ */
+public interface TimeoutLockProvider extends LockProvider {
+
+    /**
+     * Acquires a exclusive lock on the specified key, giving up if it cannot be acquired within
+     * the given time, so that the caller can do something else than waiting, like serving the
+     * request without the cache
+     * 
+     * @param lockKey
+     * @param timeout
+     *            the maximum time to wait for the lock
+     * @param unit
+     *            the unit of the timeout
+     * @return the lock, or {@code null} if it could not be acquired in time
+     */
+    public Lock tryLock(String lockKey, long timeout, TimeUnit unit)
+            throws GeoWebCacheException;
+}
@@ -104,17 +104,26 @@ public class FormatModifier {
 
     public synchronized ImageWriteParam adjustImageWriteParam(ImageWriteParam param) {
         if(imgWriteParam == null) {
-            if(getCompressionQuality() != null) {
-                if(getResponseFormat() == ImageMime.jpeg) {
-                    param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
-                    param.setCompressionQuality(getCompressionQuality());
-                } else {
-                    log.debug("FormatModifier only supports JPEG image parameters at this time.");
-                }
-            }
+            configureImageWriteParam(param);
             imgWriteParam = param;
         }
         
         return imgWriteParam;
     }
+
+    /**
+     * Applies the settings of this modifier to the given parameters. Unlike
+     * {@link #adjustImageWriteParam(ImageWriteParam)} the parameters are not cached, so they can
+     * be used with the writer that created them.
+     */
+    public synchronized void configureImageWriteParam(ImageWriteParam param) {
+        if(getCompressionQuality() != null) {
+            if(getResponseFormat() == ImageMime.jpeg) {
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality(getCompressionQuality());
+            } else {
+                log.debug("FormatModifier only supports JPEG image parameters at this time.");
+            }
+        }
+    }
 }
@@ -0,0 +1,183 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.mime;
+
+import java.awt.image.RenderedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Encodes tiles with the ImageIO writers for their format.
+ * <p>
+ * Writers are looked up once and then recycled, together with their write parameters: each
+ * format and {@link FormatModifier} combination gets its own pool, so the parameters are
+ * configured only when a writer is created.
+ * </p>
+ */
+public class ImageIOTileEncoder implements TileEncoder {
+
+    private static Log log = LogFactory.getLog(ImageIOTileEncoder.class);
+
+    private static final int MAX_POOLED_WRITERS = 2 * Runtime.getRuntime().availableProcessors();
+
+    private final ConcurrentMap<WriterKey, WriterPool> pools = new ConcurrentHashMap<WriterKey, WriterPool>();
+
+    public boolean encode(RenderedImage image, MimeType format, FormatModifier modifier,
+            OutputStream out) throws IOException {
+        final String formatName = format.getInternalName();
+        final WriterPool pool = getPool(formatName, modifier);
+        PooledWriter pooled = pool.acquire();
+        if (pooled == null) {
+            return false;
+        }
+        final ImageWriter writer = pooled.writer;
+        ImageOutputStream imgOut = new MemoryCacheImageOutputStream(out);
+        boolean recycle = false;
+        try {
+            writer.setOutput(imgOut);
+            writer.write(null, new IIOImage(image, null, null), pooled.param);
+            recycle = true;
+        } finally {
+            try {
+                imgOut.close();
+            } finally {
+                if (recycle) {
+                    writer.setOutput(null);
+                    pool.release(pooled);
+                } else {
+                    // the writer may be in an inconsistent state
+                    writer.dispose();
+                }
+            }
+        }
+        return true;
+    }
+
+    private WriterPool getPool(String formatName, FormatModifier modifier) {
+        WriterKey key = new WriterKey(formatName, modifier);
+        WriterPool pool = pools.get(key);
+        if (pool == null) {
+            WriterPool newPool = new WriterPool(formatName, modifier);
+            pool = pools.putIfAbsent(key, newPool);
+            if (pool == null) {
+                pool = newPool;
+            }
+        }
+        return pool;
+    }
+
+    private static class PooledWriter {
+        final ImageWriter writer;
+
+        final ImageWriteParam param;
+
+        PooledWriter(ImageWriter writer, ImageWriteParam param) {
+            this.writer = writer;
+            this.param = param;
+        }
+    }
+
+    private static class WriterPool {
+
+        private final String formatName;
+
+        private final FormatModifier modifier;
+
+        private final Queue<PooledWriter> writers = new ConcurrentLinkedQueue<PooledWriter>();
+
+        private final AtomicInteger size = new AtomicInteger();
+
+        WriterPool(String formatName, FormatModifier modifier) {
+            this.formatName = formatName;
+            this.modifier = modifier;
+        }
+
+        /**
+         * @return a pooled writer, or a new one if none is available, {@code null} if ImageIO
+         *         has no writer for the format
+         */
+        PooledWriter acquire() {
+            PooledWriter pooled = writers.poll();
+            if (pooled != null) {
+                size.decrementAndGet();
+                return pooled;
+            }
+            Iterator<ImageWriter> it = ImageIO.getImageWritersByFormatName(formatName);
+            if (!it.hasNext()) {
+                log.error("No ImageIO writer found for format " + formatName);
+                return null;
+            }
+            ImageWriter writer = it.next();
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            if (modifier != null) {
+                modifier.configureImageWriteParam(param);
+            }
+            return new PooledWriter(writer, param);
+        }
+
+        void release(PooledWriter pooled) {
+            if (size.incrementAndGet() > MAX_POOLED_WRITERS) {
+                size.decrementAndGet();
+                pooled.writer.dispose();
+            } else {
+                writers.offer(pooled);
+            }
+        }
+    }
+
+    /**
+     * Pool key, format modifiers are compared by identity as they don't implement equals
+     */
+    private static class WriterKey {
+        private final String formatName;
+
+        private final FormatModifier modifier;
+
+        WriterKey(String formatName, FormatModifier modifier) {
+            this.formatName = formatName;
+            this.modifier = modifier;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof WriterKey)) {
+                return false;
+            }
+            WriterKey other = (WriterKey) o;
+            return formatName.equals(other.formatName) && modifier == other.modifier;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * formatName.hashCode() + System.identityHashCode(modifier);
+        }
+    }
+}
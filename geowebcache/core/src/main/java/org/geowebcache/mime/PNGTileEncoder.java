@@ -0,0 +1,571 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.mime;
+
+import java.awt.Rectangle;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * A PNG encoder reading the tile pixels straight from the image raster and deflating them with a
+ * configurable compression level and row filter, without going through ImageIO.
+ * <p>
+ * Handles 8 bit gray, RGB and paletted images with or without alpha, stored as interleaved bytes
+ * or packed ints, which covers what meta tiles are decoded to. Other image layouts are declined
+ * and left to the next encoder in the chain.
+ * </p>
+ * <p>
+ * The compressor and row buffers are kept per thread, an encoder instance can be shared.
+ * </p>
+ */
+public class PNGTileEncoder implements TileEncoder {
+
+    /**
+     * PNG row filters. {@link #ADAPTIVE} picks the best one row by row, it's the slowest but
+     * usually gives the smallest files. Paletted images are never filtered.
+     */
+    public static enum Filter {
+        NONE(0), SUB(1), UP(2), AVERAGE(3), PAETH(4), ADAPTIVE(-1);
+
+        final int type;
+
+        private Filter(int type) {
+            this.type = type;
+        }
+    }
+
+    public static final int DEFAULT_COMPRESSION_LEVEL = 4;
+
+    private static final byte[] SIGNATURE = { (byte) 137, 80, 78, 71, 13, 10, 26, 10 };
+
+    private static final int IHDR = 0x49484452;
+
+    private static final int PLTE = 0x504C5445;
+
+    private static final int TRNS = 0x74524E53;
+
+    private static final int IDAT = 0x49444154;
+
+    private static final int IEND = 0x49454E44;
+
+    private static final int COLOR_GRAY = 0;
+
+    private static final int COLOR_RGB = 2;
+
+    private static final int COLOR_PALETTE = 3;
+
+    private static final int COLOR_GRAY_ALPHA = 4;
+
+    private static final int COLOR_RGBA = 6;
+
+    private static final int IDAT_SIZE = 32 * 1024;
+
+    private static final ThreadLocal<EncoderState> STATE = new ThreadLocal<EncoderState>() {
+        @Override
+        protected EncoderState initialValue() {
+            return new EncoderState();
+        }
+    };
+
+    private volatile int compressionLevel = DEFAULT_COMPRESSION_LEVEL;
+
+    private volatile Filter filter = Filter.ADAPTIVE;
+
+    /**
+     * @param compressionLevel
+     *            the zlib compression level, from 0 (no compression) to 9 (best compression)
+     */
+    public void setCompressionLevel(int compressionLevel) {
+        if (compressionLevel < 0 || compressionLevel > 9) {
+            throw new IllegalArgumentException("Compression level must be between 0 and 9: "
+                    + compressionLevel);
+        }
+        this.compressionLevel = compressionLevel;
+    }
+
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    public void setFilter(Filter filter) {
+        if (filter == null) {
+            throw new IllegalArgumentException("Filter cannot be null");
+        }
+        this.filter = filter;
+    }
+
+    public Filter getFilter() {
+        return filter;
+    }
+
+    public boolean encode(RenderedImage image, MimeType format, FormatModifier modifier,
+            OutputStream out) throws IOException {
+        if (!"png".equals(format.getInternalName())) {
+            return false;
+        }
+        final Raster raster = getRaster(image);
+        final PixelReader reader = createReader(image.getColorModel(), raster);
+        if (reader == null) {
+            return false;
+        }
+
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+        final int minX = image.getMinX();
+        final int minY = image.getMinY();
+        final int bpp = reader.channels;
+        final int rowBytes = width * bpp;
+        final Filter rowFilter = reader.colorType == COLOR_PALETTE ? Filter.NONE : this.filter;
+
+        final EncoderState state = STATE.get();
+        state.ensureCapacity(rowBytes);
+        out.write(SIGNATURE);
+
+        byte[] ihdr = state.header;
+        writeInt(ihdr, 0, width);
+        writeInt(ihdr, 4, height);
+        ihdr[8] = 8; // bit depth
+        ihdr[9] = (byte) reader.colorType;
+        ihdr[10] = 0; // deflate
+        ihdr[11] = 0; // adaptive filtering
+        ihdr[12] = 0; // no interlacing
+        writeChunk(out, IHDR, ihdr, 0, 13, state);
+
+        if (reader.colorType == COLOR_PALETTE) {
+            writePalette(out, (IndexColorModel) image.getColorModel(), state);
+        }
+
+        final Deflater deflater = state.deflater;
+        deflater.reset();
+        deflater.setLevel(compressionLevel);
+        deflater.setStrategy(rowFilter == Filter.NONE ? Deflater.DEFAULT_STRATEGY
+                : Deflater.FILTERED);
+
+        byte[] prev = state.prev;
+        byte[] cur = state.cur;
+        Arrays.fill(prev, 0, rowBytes, (byte) 0);
+        state.idatLength = 0;
+        for (int y = 0; y < height; y++) {
+            reader.readRow(minX, minY + y, width, cur);
+            byte[] filtered = filterRow(rowFilter, cur, prev, rowBytes, bpp, state);
+            deflater.setInput(filtered, 0, rowBytes + 1);
+            while (!deflater.needsInput()) {
+                deflate(out, state);
+            }
+            byte[] tmp = prev;
+            prev = cur;
+            cur = tmp;
+        }
+        deflater.finish();
+        while (!deflater.finished()) {
+            deflate(out, state);
+        }
+        if (state.idatLength > 0) {
+            writeChunk(out, IDAT, state.idat, 0, state.idatLength, state);
+        }
+        writeChunk(out, IEND, state.idat, 0, 0, state);
+        return true;
+    }
+
+    private static Raster getRaster(RenderedImage image) {
+        if (image instanceof BufferedImage) {
+            return ((BufferedImage) image).getRaster();
+        }
+        if (image.getNumXTiles() == 1 && image.getNumYTiles() == 1) {
+            return image.getTile(image.getMinTileX(), image.getMinTileY());
+        }
+        return image.getData(new Rectangle(image.getMinX(), image.getMinY(), image.getWidth(),
+                image.getHeight()));
+    }
+
+    /**
+     * @return a reader for the raster pixels, or {@code null} if the layout is not supported
+     */
+    private static PixelReader createReader(ColorModel cm, Raster raster) {
+        final SampleModel sm = raster.getSampleModel();
+        final DataBuffer db = raster.getDataBuffer();
+        if (cm == null || cm.isAlphaPremultiplied()) {
+            return null;
+        }
+
+        if (cm instanceof DirectColorModel && sm instanceof SinglePixelPackedSampleModel
+                && db instanceof DataBufferInt && db.getNumBanks() == 1) {
+            DirectColorModel dcm = (DirectColorModel) cm;
+            int[] masks = ((SinglePixelPackedSampleModel) sm).getBitMasks();
+            boolean rgb = dcm.getColorSpace().isCS_sRGB() && dcm.getRedMask() == 0xff0000
+                    && dcm.getGreenMask() == 0xff00 && dcm.getBlueMask() == 0xff
+                    && masks.length >= 3 && masks[0] == 0xff0000 && masks[1] == 0xff00
+                    && masks[2] == 0xff;
+            if (!rgb) {
+                return null;
+            }
+            if (masks.length == 4 && dcm.getAlphaMask() == 0xff000000 && masks[3] == 0xff000000) {
+                return new IntPixelReader(raster, true);
+            } else if (masks.length == 3 && !dcm.hasAlpha()) {
+                return new IntPixelReader(raster, false);
+            }
+            return null;
+        }
+
+        if (!(sm instanceof ComponentSampleModel) || !(db instanceof DataBufferByte)) {
+            return null;
+        }
+        final int bands = sm.getNumBands();
+        for (int bank : ((ComponentSampleModel) sm).getBankIndices()) {
+            if (bank != 0) {
+                return null;
+            }
+        }
+        if (cm instanceof IndexColorModel) {
+            if (bands != 1 || cm.getPixelSize() != 8) {
+                return null;
+            }
+            return new BytePixelReader(raster, COLOR_PALETTE);
+        }
+        if (!(cm instanceof ComponentColorModel) || cm.getNumComponents() != bands) {
+            return null;
+        }
+        for (int b = 0; b < bands; b++) {
+            if (cm.getComponentSize(b) != 8) {
+                return null;
+            }
+        }
+        final ColorSpace cs = cm.getColorSpace();
+        final boolean gray = cs.getType() == ColorSpace.TYPE_GRAY;
+        final boolean rgb = cs.isCS_sRGB();
+        switch (bands) {
+        case 1:
+            return gray ? new BytePixelReader(raster, COLOR_GRAY) : null;
+        case 2:
+            return gray && cm.hasAlpha() ? new BytePixelReader(raster, COLOR_GRAY_ALPHA) : null;
+        case 3:
+            return rgb && !cm.hasAlpha() ? new BytePixelReader(raster, COLOR_RGB) : null;
+        case 4:
+            return rgb && cm.hasAlpha() ? new BytePixelReader(raster, COLOR_RGBA) : null;
+        default:
+            return null;
+        }
+    }
+
+    private static void writePalette(OutputStream out, IndexColorModel icm, EncoderState state)
+            throws IOException {
+        final int size = icm.getMapSize();
+        byte[] reds = new byte[size];
+        byte[] greens = new byte[size];
+        byte[] blues = new byte[size];
+        icm.getReds(reds);
+        icm.getGreens(greens);
+        icm.getBlues(blues);
+        byte[] plte = new byte[3 * size];
+        for (int i = 0; i < size; i++) {
+            plte[3 * i] = reds[i];
+            plte[3 * i + 1] = greens[i];
+            plte[3 * i + 2] = blues[i];
+        }
+        writeChunk(out, PLTE, plte, 0, plte.length, state);
+
+        if (icm.hasAlpha()) {
+            byte[] alphas = new byte[size];
+            icm.getAlphas(alphas);
+            // trailing opaque entries can be omitted
+            int length = size;
+            while (length > 0 && alphas[length - 1] == (byte) 0xff) {
+                length--;
+            }
+            if (length > 0) {
+                writeChunk(out, TRNS, alphas, 0, length, state);
+            }
+        }
+    }
+
+    /**
+     * Filters the row into one of the state buffers, the filter type going in the first byte
+     */
+    private static byte[] filterRow(Filter filter, byte[] cur, byte[] prev, int rowBytes, int bpp,
+            EncoderState state) {
+        if (filter != Filter.ADAPTIVE) {
+            byte[] out = state.filtered[filter.type];
+            applyFilter(filter.type, cur, prev, rowBytes, bpp, out);
+            return out;
+        }
+        byte[] best = null;
+        long bestSum = Long.MAX_VALUE;
+        for (int type = 0; type < 5; type++) {
+            byte[] out = state.filtered[type];
+            applyFilter(type, cur, prev, rowBytes, bpp, out);
+            // minimum sum of absolute differences heuristic
+            long sum = 0;
+            for (int i = 1; i <= rowBytes; i++) {
+                sum += Math.abs((int) out[i]);
+            }
+            if (sum < bestSum) {
+                bestSum = sum;
+                best = out;
+            }
+        }
+        return best;
+    }
+
+    private static void applyFilter(int type, byte[] cur, byte[] prev, int rowBytes, int bpp,
+            byte[] out) {
+        out[0] = (byte) type;
+        switch (type) {
+        case 0:
+            System.arraycopy(cur, 0, out, 1, rowBytes);
+            break;
+        case 1:
+            for (int i = 0; i < bpp; i++) {
+                out[i + 1] = cur[i];
+            }
+            for (int i = bpp; i < rowBytes; i++) {
+                out[i + 1] = (byte) (cur[i] - cur[i - bpp]);
+            }
+            break;
+        case 2:
+            for (int i = 0; i < rowBytes; i++) {
+                out[i + 1] = (byte) (cur[i] - prev[i]);
+            }
+            break;
+        case 3:
+            for (int i = 0; i < bpp; i++) {
+                out[i + 1] = (byte) (cur[i] - ((prev[i] & 0xff) >>> 1));
+            }
+            for (int i = bpp; i < rowBytes; i++) {
+                out[i + 1] = (byte) (cur[i] - (((cur[i - bpp] & 0xff) + (prev[i] & 0xff)) >>> 1));
+            }
+            break;
+        case 4:
+            for (int i = 0; i < bpp; i++) {
+                // with no left pixel Paeth is the up one
+                out[i + 1] = (byte) (cur[i] - prev[i]);
+            }
+            for (int i = bpp; i < rowBytes; i++) {
+                int a = cur[i - bpp] & 0xff;
+                int b = prev[i] & 0xff;
+                int c = prev[i - bpp] & 0xff;
+                int p = a + b - c;
+                int pa = Math.abs(p - a);
+                int pb = Math.abs(p - b);
+                int pc = Math.abs(p - c);
+                int predictor = (pa <= pb && pa <= pc) ? a : (pb <= pc ? b : c);
+                out[i + 1] = (byte) (cur[i] - predictor);
+            }
+            break;
+        default:
+            throw new IllegalArgumentException("Unknown filter type " + type);
+        }
+    }
+
+    /**
+     * Runs the compressor once, writing an IDAT chunk whenever the buffer fills up
+     */
+    private static void deflate(OutputStream out, EncoderState state) throws IOException {
+        int n = state.deflater.deflate(state.idat, state.idatLength, state.idat.length
+                - state.idatLength);
+        state.idatLength += n;
+        if (state.idatLength == state.idat.length) {
+            writeChunk(out, IDAT, state.idat, 0, state.idatLength, state);
+            state.idatLength = 0;
+        }
+    }
+
+    private static void writeChunk(OutputStream out, int type, byte[] data, int offset,
+            int length, EncoderState state) throws IOException {
+        byte[] buf = state.chunkHeader;
+        writeInt(buf, 0, length);
+        writeInt(buf, 4, type);
+        out.write(buf, 0, 8);
+        CRC32 crc = state.crc;
+        crc.reset();
+        crc.update(buf, 4, 4);
+        if (length > 0) {
+            out.write(data, offset, length);
+            crc.update(data, offset, length);
+        }
+        writeInt(buf, 0, (int) crc.getValue());
+        out.write(buf, 0, 4);
+    }
+
+    private static void writeInt(byte[] buf, int offset, int value) {
+        buf[offset] = (byte) (value >>> 24);
+        buf[offset + 1] = (byte) (value >>> 16);
+        buf[offset + 2] = (byte) (value >>> 8);
+        buf[offset + 3] = (byte) value;
+    }
+
+    /**
+     * Per thread compressor and buffers
+     */
+    private static class EncoderState {
+        final Deflater deflater = new Deflater();
+
+        final CRC32 crc = new CRC32();
+
+        final byte[] header = new byte[13];
+
+        final byte[] chunkHeader = new byte[8];
+
+        final byte[] idat = new byte[IDAT_SIZE];
+
+        int idatLength;
+
+        byte[] cur = new byte[0];
+
+        byte[] prev = new byte[0];
+
+        final byte[][] filtered = new byte[5][0];
+
+        void ensureCapacity(int rowBytes) {
+            if (cur.length < rowBytes) {
+                cur = new byte[rowBytes];
+                prev = new byte[rowBytes];
+                for (int i = 0; i < filtered.length; i++) {
+                    filtered[i] = new byte[rowBytes + 1];
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads image rows as PNG samples
+     */
+    private static abstract class PixelReader {
+        final Raster raster;
+
+        final int colorType;
+
+        final int channels;
+
+        PixelReader(Raster raster, int colorType, int channels) {
+            this.raster = raster;
+            this.colorType = colorType;
+            this.channels = channels;
+        }
+
+        /**
+         * Reads {@code width} pixels starting at the given raster coordinates
+         */
+        abstract void readRow(int x, int y, int width, byte[] row);
+    }
+
+    /**
+     * Reads interleaved byte samples, in any band order
+     */
+    private static class BytePixelReader extends PixelReader {
+        private final byte[] data;
+
+        private final int offset;
+
+        private final int scanlineStride;
+
+        private final int pixelStride;
+
+        private final int[] bandOffsets;
+
+        private final boolean contiguous;
+
+        BytePixelReader(Raster raster, int colorType) {
+            super(raster, colorType, raster.getNumBands());
+            ComponentSampleModel sm = (ComponentSampleModel) raster.getSampleModel();
+            DataBufferByte db = (DataBufferByte) raster.getDataBuffer();
+            this.data = db.getData(0);
+            this.offset = db.getOffsets()[0];
+            this.scanlineStride = sm.getScanlineStride();
+            this.pixelStride = sm.getPixelStride();
+            this.bandOffsets = sm.getBandOffsets();
+            boolean contiguous = pixelStride == channels;
+            for (int b = 0; b < bandOffsets.length; b++) {
+                contiguous &= bandOffsets[b] == b;
+            }
+            this.contiguous = contiguous;
+        }
+
+        void readRow(int x, int y, int width, byte[] row) {
+            int pos = offset + (y - raster.getSampleModelTranslateY()) * scanlineStride
+                    + (x - raster.getSampleModelTranslateX()) * pixelStride;
+            if (contiguous) {
+                System.arraycopy(data, pos, row, 0, width * channels);
+                return;
+            }
+            int i = 0;
+            for (int px = 0; px < width; px++) {
+                for (int b = 0; b < channels; b++) {
+                    row[i++] = data[pos + bandOffsets[b]];
+                }
+                pos += pixelStride;
+            }
+        }
+    }
+
+    /**
+     * Reads pixels packed as (A)RGB ints
+     */
+    private static class IntPixelReader extends PixelReader {
+        private final int[] data;
+
+        private final int offset;
+
+        private final int scanlineStride;
+
+        IntPixelReader(Raster raster, boolean alpha) {
+            super(raster, alpha ? COLOR_RGBA : COLOR_RGB, alpha ? 4 : 3);
+            SinglePixelPackedSampleModel sm = (SinglePixelPackedSampleModel) raster
+                    .getSampleModel();
+            DataBufferInt db = (DataBufferInt) raster.getDataBuffer();
+            this.data = db.getData(0);
+            this.offset = db.getOffsets()[0];
+            this.scanlineStride = sm.getScanlineStride();
+        }
+
+        void readRow(int x, int y, int width, byte[] row) {
+            int pos = offset + (y - raster.getSampleModelTranslateY()) * scanlineStride
+                    + (x - raster.getSampleModelTranslateX());
+            int i = 0;
+            if (channels == 4) {
+                for (int px = 0; px < width; px++) {
+                    int argb = data[pos++];
+                    row[i++] = (byte) (argb >>> 16);
+                    row[i++] = (byte) (argb >>> 8);
+                    row[i++] = (byte) argb;
+                    row[i++] = (byte) (argb >>> 24);
+                }
+            } else {
+                for (int px = 0; px < width; px++) {
+                    int rgb = data[pos++];
+                    row[i++] = (byte) (rgb >>> 16);
+                    row[i++] = (byte) (rgb >>> 8);
+                    row[i++] = (byte) rgb;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,47 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.mime;
+
+import java.awt.image.RenderedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Encodes tile images to a given output format.
+ * <p>
+ * Implementations are shared by all the threads encoding tiles, and are chained by
+ * {@link TileEncoders}: an encoder can decline images it has no fast path for, letting the next
+ * one in the chain handle them.
+ * </p>
+ */
+public interface TileEncoder {
+
+    /**
+     * Encodes the image in the given format
+     * 
+     * @param image
+     *            the tile image
+     * @param format
+     *            the output format
+     * @param modifier
+     *            the format modifier of the layer, may be {@code null}
+     * @param out
+     *            where to write the encoded image, it is not closed
+     * @return {@code false} if this encoder does not support the format or the image layout, in
+     *         which case nothing has been written to {@code out}
+     */
+    boolean encode(RenderedImage image, MimeType format, FormatModifier modifier, OutputStream out)
+            throws IOException;
+}
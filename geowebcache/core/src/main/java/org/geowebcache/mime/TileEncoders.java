@@ -0,0 +1,82 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.mime;
+
+import java.awt.image.RenderedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The chain of {@link TileEncoder}s used to encode meta tile tiles.
+ * <p>
+ * The configured encoders are tried in order, the first one accepting the image wins. An
+ * {@link ImageIOTileEncoder} always closes the chain, so any format ImageIO can write is
+ * supported. By default the chain contains a {@link PNGTileEncoder}; the {@link #getDefault()
+ * default chain} can be customized from the application context, using {@code getDefault} as the
+ * factory method of the bean.
+ * </p>
+ */
+public class TileEncoders {
+
+    private static final TileEncoders DEFAULT = new TileEncoders();
+
+    private volatile List<TileEncoder> encoders;
+
+    private final ImageIOTileEncoder fallback = new ImageIOTileEncoder();
+
+    public TileEncoders() {
+        List<TileEncoder> encoders = new ArrayList<TileEncoder>(1);
+        encoders.add(new PNGTileEncoder());
+        this.encoders = encoders;
+    }
+
+    /**
+     * @return the chain used by meta tiles
+     */
+    public static TileEncoders getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Replaces the encoders tried before falling back to ImageIO
+     */
+    public void setEncoders(List<TileEncoder> encoders) {
+        this.encoders = new ArrayList<TileEncoder>(encoders);
+    }
+
+    public List<TileEncoder> getEncoders() {
+        return new ArrayList<TileEncoder>(encoders);
+    }
+
+    /**
+     * Encodes the image with the first encoder accepting it
+     * 
+     * @throws IOException
+     *             if the image could not be encoded, or no encoder supports the format
+     */
+    public void encode(RenderedImage image, MimeType format, FormatModifier modifier,
+            OutputStream out) throws IOException {
+        for (TileEncoder encoder : encoders) {
+            if (encoder.encode(image, format, modifier, out)) {
+                return;
+            }
+        }
+        if (!fallback.encode(image, format, modifier, out)) {
+            throw new IOException("No encoder found for " + format.getFormat());
+        }
+    }
+}
@@ -37,6 +37,26 @@ public abstract class GWCTask {
         UNSET, READY, RUNNING, DONE, DEAD
     };
 
+    /**
+     * The priority class of a job: low priority jobs pause as soon as users wait for tiles
+     * missing from the cache, normal ones slow down and pause only when the wait gets long, high
+     * priority ones are not held back
+     */
+    public static enum PRIORITY {
+        LOW(Thread.MIN_PRIORITY), NORMAL((Thread.NORM_PRIORITY + Thread.MIN_PRIORITY) / 2), HIGH(
+                Thread.NORM_PRIORITY);
+
+        private final int threadPriority;
+
+        private PRIORITY(int threadPriority) {
+            this.threadPriority = threadPriority;
+        }
+
+        public int getThreadPriority() {
+            return threadPriority;
+        }
+    };
+
     /**
      * Value shared between all the threads in the group, is incremented each time a task starts
      * working and decremented each time one task finishes (either normally or abnormally)
@@ -61,8 +81,22 @@ public abstract class GWCTask {
 
     protected long tilesTotal = -1;
 
+    protected long tilesSkipped = 0;
+
     protected boolean terminate = false;
 
+    protected volatile boolean paused = false;
+
+    /**
+     * Priority and rate limit, shared between all the threads in the group
+     */
+    private SeedThrottle throttle = new SeedThrottle(PRIORITY.NORMAL, 0, null);
+
+    /**
+     * Saves the progress of the task group, may be {@code null}
+     */
+    private SeedJobCheckpointer checkpointer;
+
     private long groupStartTime;
 
     /**
@@ -76,6 +110,9 @@ public abstract class GWCTask {
             doActionInternal();
         } finally {
             dispose();
+            if (checkpointer != null) {
+                checkpointer.finished(this);
+            }
             int membersRemaining = this.sharedThreadCount.decrementAndGet();
             if (0 == membersRemaining) {
                 double groupTotalTimeSecs = (System.currentTimeMillis() - (double) groupStartTime) / 1000;
@@ -104,6 +141,49 @@ public abstract class GWCTask {
         this.threadOffset = threadOffset;
     }
 
+    void setCheckpointer(SeedJobCheckpointer checkpointer) {
+        this.checkpointer = checkpointer;
+    }
+
+    SeedJobCheckpointer getCheckpointer() {
+        return checkpointer;
+    }
+
+    /**
+     * @return the id of the checkpoint of the task group, or {@code null} if its progress is not
+     *         saved
+     */
+    public String getJobId() {
+        return checkpointer == null ? null : checkpointer.getCheckpoint().getId();
+    }
+
+    void setThrottle(SeedThrottle throttle) {
+        this.throttle = throttle;
+    }
+
+    SeedThrottle getThrottle() {
+        return throttle;
+    }
+
+    public PRIORITY getPriority() {
+        return throttle.getPriority();
+    }
+
+    /**
+     * @return the maximum number of tiles per second for the whole task group, {@code 0} if
+     *         unlimited
+     */
+    public double getMaxTileRate() {
+        return throttle.getMaxTileRate();
+    }
+
+    /**
+     * @return whether the task is waiting for the interactive load to go down
+     */
+    public boolean isPaused() {
+        return paused;
+    }
+
     public void setTaskId(long taskId) {
         this.taskId = taskId;
     }
@@ -135,6 +215,14 @@ public abstract class GWCTask {
         return tilesDone;
     }
 
+    /**
+     * @return how many of the {@link #getTilesDone() tiles done} were found already cached and
+     *         not rendered again
+     */
+    public long getTilesSkipped() {
+        return tilesSkipped;
+    }
+
     /**
      * @return estimated remaining time in seconds, or {@code -2} if unknown
      */
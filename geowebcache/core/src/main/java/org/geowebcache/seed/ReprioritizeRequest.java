@@ -0,0 +1,78 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.seed;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geowebcache.seed.GWCTask.PRIORITY;
+
+/**
+ * A request to change the priority and rate limit of running or pending seed tasks, see
+ * {@link TileBreeder#reprioritizeGWCTask(long, PRIORITY, Double)}
+ */
+public class ReprioritizeRequest {
+    private static Log log = LogFactory.getLog(ReprioritizeRequest.class);
+
+    private Long taskId = null;
+
+    private String priority = null;
+
+    private Double maxTileRate = null;
+
+    public ReprioritizeRequest() {
+    }
+
+    /**
+     * @param taskId the task to reprioritize, {@code null} for all the tasks of the layer
+     * @param priority the new priority class, {@code null} to keep the current one
+     * @param maxTileRate the new maximum number of tiles per second, {@code 0} for no limit,
+     *        {@code null} to keep the current one
+     */
+    public ReprioritizeRequest(Long taskId, PRIORITY priority, Double maxTileRate) {
+        this.taskId = taskId;
+        this.priority = priority == null ? null : priority.name();
+        this.maxTileRate = maxTileRate;
+    }
+
+    /**
+     * @return the task to reprioritize, or {@code null} for all the tasks of the layer
+     */
+    public Long getTaskId() {
+        return taskId;
+    }
+
+    /**
+     * @return the new priority class, or {@code null} to keep the current one
+     */
+    public PRIORITY getPriority() {
+        if (priority == null) {
+            return null;
+        }
+        try {
+            return PRIORITY.valueOf(priority.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            log.warn("Unknown priority \"" + priority + "\", keeping the current one");
+            return null;
+        }
+    }
+
+    /**
+     * @return the new maximum number of tiles per second, {@code 0} for no limit, or {@code null}
+     *         to keep the current one
+     */
+    public Double getMaxTileRate() {
+        return maxTileRate;
+    }
+}
@@ -0,0 +1,52 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.seed;
+
+/**
+ * A request to resume, or discard, the jobs left unfinished at their last
+ * {@link SeedCheckpoint checkpoint}, see {@link TileBreeder#resumeJob(String)}
+ */
+public class ResumeRequest {
+
+    private String jobId = null;
+
+    private Boolean discard = null;
+
+    public ResumeRequest() {
+    }
+
+    /**
+     * @param jobId the job to resume, {@code null} for all the unfinished jobs of the layer
+     * @param discard whether to drop the checkpoints instead of resuming the jobs
+     */
+    public ResumeRequest(String jobId, boolean discard) {
+        this.jobId = jobId;
+        this.discard = discard;
+    }
+
+    /**
+     * @return the job to resume, or {@code null} for all the unfinished jobs of the layer
+     */
+    public String getJobId() {
+        return jobId;
+    }
+
+    /**
+     * @return whether to drop the checkpoints instead of resuming the jobs
+     */
+    public boolean isDiscard() {
+        return discard != null && discard.booleanValue();
+    }
+}
@@ -0,0 +1,289 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.seed;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import org.geowebcache.mime.MimeException;
+import org.geowebcache.mime.MimeType;
+import org.geowebcache.seed.GWCTask.PRIORITY;
+import org.geowebcache.seed.GWCTask.TYPE;
+import org.geowebcache.storage.TileRange;
+import org.geowebcache.storage.TileRangeIterator;
+
+/**
+ * The saved state of a seed, reseed or truncate job: what it was asked to do, and the meta tiles
+ * it still has to go through, as {@link TileRangeIterator#getPendingRanges() ranges} of the
+ * iteration order. Truncate jobs have no pending ranges, they are run again as a whole.
+ */
+public class SeedCheckpoint {
+
+    private static final String PARAMETER_PREFIX = "parameter.";
+
+    private static final String BOUNDS_PREFIX = "bounds.";
+
+    private final String id;
+
+    private final TileRange tileRange;
+
+    private final TYPE type;
+
+    private final int threadCount;
+
+    private final boolean filterUpdate;
+
+    private final PRIORITY priority;
+
+    private final double maxTileRate;
+
+    private final TileRangeIterator.Order order;
+
+    private final int[] metaTilingFactors;
+
+    private long[] pendingRanges;
+
+    private long metaTileCount;
+
+    private long saved;
+
+    public SeedCheckpoint(String id, TileRange tileRange, TYPE type, int threadCount,
+            boolean filterUpdate, PRIORITY priority, double maxTileRate,
+            TileRangeIterator.Order order, int[] metaTilingFactors) {
+        this.id = id;
+        this.tileRange = tileRange;
+        this.type = type;
+        this.threadCount = threadCount;
+        this.filterUpdate = filterUpdate;
+        this.priority = priority;
+        this.maxTileRate = maxTileRate;
+        this.order = order;
+        this.metaTilingFactors = metaTilingFactors;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getLayerName() {
+        return tileRange.getLayerName();
+    }
+
+    public TileRange getTileRange() {
+        return tileRange;
+    }
+
+    public TYPE getType() {
+        return type;
+    }
+
+    public int getThreadCount() {
+        return threadCount;
+    }
+
+    public boolean isFilterUpdate() {
+        return filterUpdate;
+    }
+
+    public PRIORITY getPriority() {
+        return priority;
+    }
+
+    public double getMaxTileRate() {
+        return maxTileRate;
+    }
+
+    public TileRangeIterator.Order getOrder() {
+        return order;
+    }
+
+    public int[] getMetaTilingFactors() {
+        return metaTilingFactors;
+    }
+
+    /**
+     * @return the meta tiles left, as start and end pairs of the iteration order, or {@code null}
+     *         if the job has to go through the whole range
+     */
+    public long[] getPendingRanges() {
+        return pendingRanges;
+    }
+
+    /**
+     * @param pendingRanges
+     *            the meta tiles left, see {@link TileRangeIterator#getPendingRanges()}
+     * @param metaTileCount
+     *            the total number of meta tiles, see {@link TileRangeIterator#getMetaTileCount()}
+     */
+    public void setPendingRanges(long[] pendingRanges, long metaTileCount) {
+        this.pendingRanges = pendingRanges;
+        this.metaTileCount = metaTileCount;
+    }
+
+    /**
+     * @return the number of meta tiles left, or {@code -1} if unknown
+     */
+    public long getPendingMetaTiles() {
+        if (pendingRanges == null) {
+            return metaTileCount > 0 ? metaTileCount : -1;
+        }
+        long pending = 0;
+        for (int i = 0; i < pendingRanges.length; i += 2) {
+            pending += pendingRanges[i + 1] - pendingRanges[i];
+        }
+        return pending;
+    }
+
+    /**
+     * @return the total number of meta tiles of the job, including the holes of a Hilbert order,
+     *         or {@code 0} if unknown
+     */
+    public long getMetaTileCount() {
+        return metaTileCount;
+    }
+
+    /**
+     * @return when the checkpoint was last saved, in milliseconds since the epoch
+     */
+    public long getSaved() {
+        return saved;
+    }
+
+    void setSaved(long saved) {
+        this.saved = saved;
+    }
+
+    Properties toProperties() {
+        Properties props = new Properties();
+        props.setProperty("id", id);
+        props.setProperty("layer", tileRange.getLayerName());
+        props.setProperty("gridSet", tileRange.getGridSetId());
+        props.setProperty("format", tileRange.getMimeType().getFormat());
+        props.setProperty("zoomStart", String.valueOf(tileRange.getZoomStart()));
+        props.setProperty("zoomStop", String.valueOf(tileRange.getZoomStop()));
+        for (int z = tileRange.getZoomStart(); z <= tileRange.getZoomStop(); z++) {
+            long[] bounds = tileRange.rangeBounds(z);
+            props.setProperty(BOUNDS_PREFIX + z, bounds[0] + "," + bounds[1] + "," + bounds[2]
+                    + "," + bounds[3]);
+        }
+        Map<String, String> parameters = tileRange.getParameters();
+        if (parameters != null) {
+            for (Map.Entry<String, String> parameter : parameters.entrySet()) {
+                props.setProperty(PARAMETER_PREFIX + parameter.getKey(), parameter.getValue());
+            }
+        }
+        props.setProperty("type", type.name());
+        props.setProperty("threadCount", String.valueOf(threadCount));
+        props.setProperty("filterUpdate", String.valueOf(filterUpdate));
+        props.setProperty("priority", priority.name());
+        props.setProperty("maxTileRate", String.valueOf(maxTileRate));
+        props.setProperty("order", order.name());
+        props.setProperty("metaTiling", metaTilingFactors[0] + "," + metaTilingFactors[1]);
+        props.setProperty("metaTileCount", String.valueOf(metaTileCount));
+        if (pendingRanges != null) {
+            props.setProperty("pending", join(pendingRanges));
+        }
+        props.setProperty("saved", String.valueOf(saved));
+        return props;
+    }
+
+    /**
+     * @throws IllegalArgumentException
+     *             if the properties do not describe a valid checkpoint
+     */
+    static SeedCheckpoint fromProperties(Properties props) throws IllegalArgumentException {
+        try {
+            final int zoomStart = Integer.parseInt(required(props, "zoomStart"));
+            final int zoomStop = Integer.parseInt(required(props, "zoomStop"));
+            long[][] rangeBounds = new long[zoomStop - zoomStart + 1][];
+            for (int z = zoomStart; z <= zoomStop; z++) {
+                long[] bounds = split(required(props, BOUNDS_PREFIX + z));
+                rangeBounds[z - zoomStart] = new long[] { bounds[0], bounds[1], bounds[2],
+                        bounds[3], z };
+            }
+            Map<String, String> parameters = new HashMap<String, String>();
+            for (Object key : props.keySet()) {
+                String name = (String) key;
+                if (name.startsWith(PARAMETER_PREFIX)) {
+                    parameters.put(name.substring(PARAMETER_PREFIX.length()),
+                            props.getProperty(name));
+                }
+            }
+            if (parameters.isEmpty()) {
+                parameters = null;
+            }
+            MimeType mimeType = MimeType.createFromFormat(required(props, "format"));
+            TileRange tileRange = new TileRange(required(props, "layer"), required(props,
+                    "gridSet"), zoomStart, zoomStop, rangeBounds, mimeType, parameters);
+
+            long[] factors = split(required(props, "metaTiling"));
+            SeedCheckpoint checkpoint = new SeedCheckpoint(required(props, "id"), tileRange,
+                    TYPE.valueOf(required(props, "type")), Integer.parseInt(required(props,
+                            "threadCount")), Boolean.parseBoolean(props
+                            .getProperty("filterUpdate")), PRIORITY.valueOf(required(props,
+                            "priority")), Double.parseDouble(required(props, "maxTileRate")),
+                    TileRangeIterator.Order.valueOf(required(props, "order")), new int[] {
+                            (int) factors[0], (int) factors[1] });
+            String pending = props.getProperty("pending");
+            checkpoint.setPendingRanges(pending == null ? null : split(pending),
+                    Long.parseLong(props.getProperty("metaTileCount", "0")));
+            checkpoint.setSaved(Long.parseLong(props.getProperty("saved", "0")));
+            return checkpoint;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(e.getMessage(), e);
+        } catch (MimeException e) {
+            throw new IllegalArgumentException(e.getMessage(), e);
+        }
+    }
+
+    private static String required(Properties props, String name) {
+        String value = props.getProperty(name);
+        if (value == null) {
+            throw new IllegalArgumentException("Missing checkpoint property " + name);
+        }
+        return value;
+    }
+
+    private static String join(long[] values) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(values[i]);
+        }
+        return sb.toString();
+    }
+
+    private static long[] split(String values) {
+        if (values.trim().length() == 0) {
+            return new long[0];
+        }
+        String[] parts = values.split(",");
+        long[] longs = new long[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            longs[i] = Long.parseLong(parts[i].trim());
+        }
+        return longs;
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder("[").append(id).append(": ").append(getLayerName()).append(", ")
+                .append(type).append(", ").append(getPendingMetaTiles())
+                .append(" meta tiles left]").toString();
+    }
+}
@@ -0,0 +1,174 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.seed;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geowebcache.config.ConfigurationException;
+import org.geowebcache.storage.DefaultStorageFinder;
+import org.geowebcache.storage.StorageException;
+
+/**
+ * Keeps the {@link SeedCheckpoint checkpoints} of the seed jobs as properties files, one per job,
+ * in the {@value #CHECKPOINT_DIR} directory of the cache.
+ */
+public class SeedCheckpointStore {
+
+    private static Log log = LogFactory.getLog(SeedCheckpointStore.class);
+
+    public static final String CHECKPOINT_DIR = "_gwc_seed_checkpoints_";
+
+    private static final String EXTENSION = ".properties";
+
+    private final File directory;
+
+    public SeedCheckpointStore(DefaultStorageFinder defStoreFinder) throws ConfigurationException {
+        this(new File(defStoreFinder.getDefaultPath(), CHECKPOINT_DIR));
+    }
+
+    /**
+     * @param directory
+     *            the directory to save the checkpoints to, created if needed
+     */
+    public SeedCheckpointStore(File directory) {
+        this.directory = directory;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Saves the checkpoint, replacing the previous one of the same job
+     */
+    public synchronized void save(SeedCheckpoint checkpoint) throws StorageException {
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new StorageException("Unable to create " + directory.getAbsolutePath());
+        }
+        checkpoint.setSaved(System.currentTimeMillis());
+        File file = file(checkpoint.getId());
+        File tmp = new File(directory, checkpoint.getId() + EXTENSION + ".tmp");
+        try {
+            OutputStream out = new FileOutputStream(tmp);
+            try {
+                checkpoint.toProperties().store(out, "Seed job checkpoint");
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            tmp.delete();
+            throw new StorageException("Unable to save checkpoint " + checkpoint.getId() + ": "
+                    + e.getMessage());
+        }
+        // renaming does not replace existing files on all platforms
+        file.delete();
+        if (!tmp.renameTo(file)) {
+            throw new StorageException("Unable to rename " + tmp.getAbsolutePath() + " to "
+                    + file.getAbsolutePath());
+        }
+    }
+
+    /**
+     * @return the checkpoint of the given job, or {@code null} if there is none
+     */
+    public synchronized SeedCheckpoint get(String id) {
+        File file = file(id);
+        if (!file.isFile()) {
+            return null;
+        }
+        return load(file);
+    }
+
+    /**
+     * @return the saved checkpoints, oldest first. Checkpoints that cannot be read are skipped.
+     */
+    public synchronized List<SeedCheckpoint> list() {
+        List<SeedCheckpoint> checkpoints = new ArrayList<SeedCheckpoint>();
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return checkpoints;
+        }
+        for (File file : files) {
+            if (file.getName().endsWith(EXTENSION)) {
+                SeedCheckpoint checkpoint = load(file);
+                if (checkpoint != null) {
+                    checkpoints.add(checkpoint);
+                }
+            }
+        }
+        Collections.sort(checkpoints, new Comparator<SeedCheckpoint>() {
+            public int compare(SeedCheckpoint o1, SeedCheckpoint o2) {
+                return o1.getSaved() < o2.getSaved() ? -1 : (o1.getSaved() == o2.getSaved() ? 0
+                        : 1);
+            }
+        });
+        return checkpoints;
+    }
+
+    /**
+     * Removes the checkpoint of the given job, once it is complete or no longer wanted
+     *
+     * @return {@code false} if there was no such checkpoint
+     */
+    public synchronized boolean remove(String id) {
+        File file = file(id);
+        if (!file.exists()) {
+            return false;
+        }
+        if (!file.delete()) {
+            log.warn("Unable to delete seed checkpoint " + file.getAbsolutePath());
+            return false;
+        }
+        return true;
+    }
+
+    private File file(String id) {
+        if (id.indexOf('/') >= 0 || id.indexOf('\\') >= 0 || id.startsWith(".")) {
+            throw new IllegalArgumentException("Invalid checkpoint id: " + id);
+        }
+        return new File(directory, id + EXTENSION);
+    }
+
+    private SeedCheckpoint load(File file) {
+        Properties props = new Properties();
+        try {
+            InputStream in = new FileInputStream(file);
+            try {
+                props.load(in);
+            } finally {
+                in.close();
+            }
+            return SeedCheckpoint.fromProperties(props);
+        } catch (IOException e) {
+            log.warn("Unable to read seed checkpoint " + file.getAbsolutePath() + ": "
+                    + e.getMessage());
+        } catch (IllegalArgumentException e) {
+            log.warn("Invalid seed checkpoint " + file.getAbsolutePath() + ": " + e.getMessage());
+        }
+        return null;
+    }
+}
@@ -0,0 +1,151 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.seed;
+
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geowebcache.storage.StorageException;
+import org.geowebcache.storage.TileRangeIterator;
+
+/**
+ * Saves the checkpoint of a job, shared by all of its tasks.
+ * <p>
+ * The checkpoint is saved when the job is dispatched, then at most once per interval while it
+ * makes progress, and as soon as one of its tasks ends without completing. It is removed once
+ * all the tasks completed or have been terminated.
+ * </p>
+ */
+class SeedJobCheckpointer {
+
+    private static Log log = LogFactory.getLog(SeedJobCheckpointer.class);
+
+    private final SeedCheckpointStore store;
+
+    private final SeedCheckpoint checkpoint;
+
+    /**
+     * One of the iterators of the job, they all share the pending meta tiles. {@code null} for
+     * truncate jobs.
+     */
+    private final TileRangeIterator iterator;
+
+    private final long interval;
+
+    /**
+     * The jobs being run, this one is removed once all its tasks are done
+     */
+    private final Set<String> activeJobs;
+
+    private final AtomicInteger tasksLeft;
+
+    private final AtomicBoolean started = new AtomicBoolean();
+
+    private final Lock saving = new ReentrantLock();
+
+    private volatile long lastSave;
+
+    private volatile boolean incomplete;
+
+    /**
+     * @param interval
+     *            the minimum time between two saves while the job makes progress, in milliseconds
+     */
+    SeedJobCheckpointer(SeedCheckpointStore store, SeedCheckpoint checkpoint,
+            TileRangeIterator iterator, long interval, int taskCount, Set<String> activeJobs) {
+        this.store = store;
+        this.checkpoint = checkpoint;
+        this.iterator = iterator;
+        this.interval = interval;
+        this.tasksLeft = new AtomicInteger(taskCount);
+        this.activeJobs = activeJobs;
+    }
+
+    public SeedCheckpoint getCheckpoint() {
+        return checkpoint;
+    }
+
+    /**
+     * Called when the job is dispatched, saves the initial checkpoint
+     */
+    public void dispatched() {
+        if (started.compareAndSet(false, true)) {
+            activeJobs.add(checkpoint.getId());
+            saving.lock();
+            try {
+                save();
+            } finally {
+                saving.unlock();
+            }
+        }
+    }
+
+    /**
+     * Called by the tasks after each meta tile, saves the checkpoint if it is time to and no
+     * other task is already doing so
+     */
+    public void progress() {
+        if (System.currentTimeMillis() - lastSave < interval || !saving.tryLock()) {
+            return;
+        }
+        try {
+            if (System.currentTimeMillis() - lastSave >= interval) {
+                save();
+            }
+        } finally {
+            saving.unlock();
+        }
+    }
+
+    /**
+     * Called by each task once done, whatever the outcome
+     */
+    public void finished(GWCTask task) {
+        saving.lock();
+        try {
+            if (task.getState() != GWCTask.STATE.DONE) {
+                // interrupted by a shutdown, or failed, keep what is left for later
+                incomplete = true;
+                save();
+            }
+            if (tasksLeft.decrementAndGet() == 0) {
+                if (!incomplete) {
+                    store.remove(checkpoint.getId());
+                }
+                activeJobs.remove(checkpoint.getId());
+            }
+        } finally {
+            saving.unlock();
+        }
+    }
+
+    private void save() {
+        if (iterator != null) {
+            checkpoint.setPendingRanges(iterator.getPendingRanges(), iterator.getMetaTileCount());
+        }
+        try {
+            store.save(checkpoint);
+        } catch (StorageException e) {
+            log.warn("Unable to save checkpoint of seed job " + checkpoint.getId() + ": "
+                    + e.getMessage());
+        }
+        lastSave = System.currentTimeMillis();
+    }
+}
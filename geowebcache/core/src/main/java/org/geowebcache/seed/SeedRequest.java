@@ -23,6 +23,7 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.geowebcache.grid.BoundingBox;
 import org.geowebcache.grid.SRS;
+import org.geowebcache.seed.GWCTask.PRIORITY;
 import org.geowebcache.seed.GWCTask.TYPE;
 
 /**
@@ -55,6 +56,10 @@ public class SeedRequest {
 
     private Boolean filterUpdate = null;
 
+    private String priority = null;
+
+    private Double maxTileRate = null;
+
     public SeedRequest() {
         // do nothing, i guess
         System.out.println("New Empty SeedRequest");
@@ -200,6 +205,40 @@ public class SeedRequest {
         return enumType;
     }
 
+    /**
+     * Method returns the priority class of the seed job, namely one of
+     * <ul>
+     * <li>low - pauses as soon as users wait for tiles missing from the cache</li>
+     * <li>normal - (default) slows down, then pauses, as users wait longer</li>
+     * <li>high - keeps seeding whatever the users wait</li>
+     * </ul>
+     * 
+     * @return the priority class
+     */
+    public PRIORITY getPriority() {
+        if (priority == null) {
+            return PRIORITY.NORMAL;
+        }
+        try {
+            return PRIORITY.valueOf(priority.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            log.warn("Unknown priority \"" + priority + "\", assuming normal");
+            return PRIORITY.NORMAL;
+        }
+    }
+
+    /**
+     * Method returns the maximum number of tiles the job should seed per second
+     * 
+     * @return the maximum rate, or {@code 0} if unlimited
+     */
+    public double getMaxTileRate() {
+        if (maxTileRate == null || maxTileRate.doubleValue() < 0) {
+            return 0;
+        }
+        return maxTileRate.doubleValue();
+    }
+
     /**
      * The settings for the modifiable parameters
      * 
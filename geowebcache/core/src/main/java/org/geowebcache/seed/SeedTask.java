@@ -26,13 +26,17 @@ import java.util.concurrent.atomic.AtomicLong;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.geowebcache.GeoWebCacheException;
+import org.geowebcache.conveyor.Conveyor.CacheResult;
 import org.geowebcache.conveyor.ConveyorTile;
 import org.geowebcache.filter.request.RequestFilter;
 import org.geowebcache.layer.TileLayer;
+import org.geowebcache.layer.wms.BackendConcurrencyLimiter;
 import org.geowebcache.layer.wms.WMSLayer;
 import org.geowebcache.storage.StorageBroker;
+import org.geowebcache.storage.StorageException;
 import org.geowebcache.storage.TileRange;
 import org.geowebcache.storage.TileRangeIterator;
+import org.geowebcache.util.GWCVars;
 
 /**
  * A GWCTask for seeding/reseeding the cache.
@@ -57,6 +61,8 @@ class SeedTask extends GWCTask {
 
     private long totalFailuresBeforeAborting;
 
+    private boolean skipExisting;
+
     private AtomicLong sharedFailureCounter;
 
     /**
@@ -79,6 +85,7 @@ class SeedTask extends GWCTask {
         tileFailureRetryWaitTime = 100;
         totalFailuresBeforeAborting = 10000;
         sharedFailureCounter = new AtomicLong();
+        skipExisting = false;
 
         if (reseed) {
             super.parsedType = GWCTask.TYPE.RESEED;
@@ -95,9 +102,11 @@ class SeedTask extends GWCTask {
     protected void doActionInternal() throws GeoWebCacheException, InterruptedException {
         super.state = GWCTask.STATE.RUNNING;
 
-        // Lower the priority of the thread
-        Thread.currentThread().setPriority(
-                (java.lang.Thread.NORM_PRIORITY + java.lang.Thread.MIN_PRIORITY) / 2);
+        // Lower the priority of the thread according to the job's one
+        PRIORITY priority = getPriority();
+        Thread.currentThread().setPriority(priority.getThreadPriority());
+        // and the one of its backend requests
+        BackendConcurrencyLimiter.setSeeding(true);
 
         checkInterrupted();
 
@@ -113,88 +122,105 @@ class SeedTask extends GWCTask {
         // TODO move to TileRange object, or distinguish between thread and task
         super.tilesTotal = tileCount(tr);
 
-        final int metaTilingFactorX = tl.getMetaTilingFactors()[0];
-        final int metaTilingFactorY = tl.getMetaTilingFactors()[1];
-
         final boolean tryCache = !reseed;
 
         checkInterrupted();
         long[] gridLoc = trIter.nextMetaGridLocation(new long[3]);
 
-        long seedCalls = 0;
         while (gridLoc != null && this.terminate == false) {
 
             checkInterrupted();
             Map<String, String> fullParameters = tr.getParameters();
 
-            ConveyorTile tile = new ConveyorTile(storageBroker, layerName, tr.getGridSetId(), gridLoc,
-                    tr.getMimeType(), fullParameters, null, null);
-
-            for (int fetchAttempt = 0; fetchAttempt <= tileFailureRetryCount; fetchAttempt++) {
-                try {
-                    checkInterrupted();
-                    tl.seedTile(tile, tryCache);
-                    break;// success, let it go
-                } catch (Exception e) {
-                    // if GWC_SEED_RETRY_COUNT was not set then none of the settings have effect, in
-                    // order to keep backwards compatibility with the old behaviour
-                    if (tileFailureRetryCount == 0) {
-                        if (e instanceof GeoWebCacheException) {
-                            throw (GeoWebCacheException) e;
+            final long[] metaTileBounds = trIter.getMetaTileBounds(gridLoc);
+            // whether the backend was asked for the meta tile, the only ones the rate limit counts
+            boolean requested = false;
+            if (tryCache && skipExisting && isCached(tr, metaTileBounds)) {
+                this.tilesSkipped += tileCount(metaTileBounds);
+                if (log.isTraceEnabled()) {
+                    log.trace(Thread.currentThread().getName() + " skipped cached "
+                            + Arrays.toString(gridLoc));
+                }
+            } else {
+                ConveyorTile tile = new ConveyorTile(storageBroker, layerName, tr.getGridSetId(),
+                        gridLoc, tr.getMimeType(), fullParameters, null, null);
+
+                for (int fetchAttempt = 0; fetchAttempt <= tileFailureRetryCount; fetchAttempt++) {
+                    try {
+                        checkInterrupted();
+                        tl.seedTile(tile, tryCache);
+                        break;// success, let it go
+                    } catch (Exception e) {
+                        // if GWC_SEED_RETRY_COUNT was not set then none of the settings have
+                        // effect, in order to keep backwards compatibility with the old behaviour
+                        if (tileFailureRetryCount == 0) {
+                            if (e instanceof GeoWebCacheException) {
+                                throw (GeoWebCacheException) e;
+                            }
+                            throw new GeoWebCacheException(e);
                         }
-                        throw new GeoWebCacheException(e);
-                    }
 
-                    long sharedFailureCount = sharedFailureCounter.incrementAndGet();
-                    if (sharedFailureCount >= totalFailuresBeforeAborting) {
-                        log.info("Aborting seed thread " + Thread.currentThread().getName()
-                                + ". Error count reached configured maximum of "
-                                + totalFailuresBeforeAborting);
-                        super.state = GWCTask.STATE.DEAD;
-                        return;
-                    }
-                    String logMsg = "Seed failed at " + tile.toString() + " after "
-                            + (fetchAttempt + 1) + " of " + (tileFailureRetryCount + 1)
-                            + " attempts.";
-                    if (fetchAttempt < tileFailureRetryCount) {
-                        log.debug(logMsg);
-                        if (tileFailureRetryWaitTime > 0) {
-                            log.trace("Waiting " + tileFailureRetryWaitTime
-                                    + " before trying again");
-                            Thread.sleep(tileFailureRetryCount);
+                        long sharedFailureCount = sharedFailureCounter.incrementAndGet();
+                        if (sharedFailureCount >= totalFailuresBeforeAborting) {
+                            log.info("Aborting seed thread " + Thread.currentThread().getName()
+                                    + ". Error count reached configured maximum of "
+                                    + totalFailuresBeforeAborting);
+                            super.state = GWCTask.STATE.DEAD;
+                            return;
+                        }
+                        String logMsg = "Seed failed at " + tile.toString() + " after "
+                                + (fetchAttempt + 1) + " of " + (tileFailureRetryCount + 1)
+                                + " attempts.";
+                        if (fetchAttempt < tileFailureRetryCount) {
+                            log.debug(logMsg);
+                            if (tileFailureRetryWaitTime > 0) {
+                                log.trace("Waiting " + tileFailureRetryWaitTime
+                                        + " before trying again");
+                                Thread.sleep(tileFailureRetryCount);
+                            }
+                        } else {
+                            log.info(logMsg
+                                    + " Skipping and continuing with next tile. Original error: "
+                                    + e.getMessage());
                         }
-                    } else {
-                        log.info(logMsg
-                                + " Skipping and continuing with next tile. Original error: "
-                                + e.getMessage());
                     }
                 }
+                // no request either if the layer found the tile cached or does not cache its level
+                requested = tile.getCacheResult() == CacheResult.MISS;
             }
 
             if (log.isTraceEnabled()) {
                 log.trace(Thread.currentThread().getName() + " seeded " + Arrays.toString(gridLoc));
             }
 
-            // final long totalTilesCompleted = trIter.getTilesProcessed();
-            // note: computing the # of tiles processed by this thread instead of by the whole group
-            // also reduces thread contention as the trIter methods are synchronized and profiler
-            // shows 16 threads block on synchronization about 40% the time
-            final long tilesCompletedByThisThread = seedCalls * metaTilingFactorX
-                    * metaTilingFactorY;
+            // the tiles processed by this thread, each thread has its own iterator so the counter
+            // is not contended
+            final long tilesCompletedByThisThread = trIter.getTilesRendered();
+            final long tilesSeeded = tilesCompletedByThisThread - Math.max(0, this.tilesDone);
 
             updateStatusInfo(tl, tilesCompletedByThisThread, START_TIME);
 
+            // the job may have been reprioritized meanwhile
+            if (priority != getPriority()) {
+                priority = getPriority();
+                Thread.currentThread().setPriority(priority.getThreadPriority());
+            }
+            throttle(requested ? tilesSeeded : 0);
+            if (getCheckpointer() != null) {
+                getCheckpointer().progress();
+            }
+
             checkInterrupted();
-            seedCalls++;
             gridLoc = trIter.nextMetaGridLocation(gridLoc);
         }
 
         if (this.terminate) {
             log.info("Job on " + Thread.currentThread().getName() + " was terminated after "
-                    + this.tilesDone + " tiles");
+                    + this.tilesDone + " tiles, " + this.tilesSkipped + " of them already cached");
         } else {
             log.info(Thread.currentThread().getName() + " completed (re)seeding layer " + layerName
-                    + " after " + this.tilesDone + " tiles and " + this.timeSpent + " seconds.");
+                    + " after " + this.tilesDone + " tiles and " + this.timeSpent + " seconds, "
+                    + this.tilesSkipped + " tiles were already cached.");
         }
 
         checkInterrupted();
@@ -205,6 +231,60 @@ class SeedTask extends GWCTask {
         super.state = GWCTask.STATE.DONE;
     }
 
+    /**
+     * Waits as long as the job's rate limit and the interactive load require
+     * 
+     * @param tilesSeeded
+     *            the number of tiles requested from the backend since the last call, cached
+     *            tiles are neither charged to the rate limit nor slowed down by the load
+     */
+    private void throttle(long tilesSeeded) throws InterruptedException {
+        final SeedThrottle throttle = getThrottle();
+        long delay = tilesSeeded > 0 ? throttle.seeded(tilesSeeded) : 0;
+        if (delay > 0) {
+            Thread.sleep(delay);
+        }
+        while (!this.terminate && throttle.isPaused()) {
+            if (!paused) {
+                paused = true;
+                log.debug(Thread.currentThread().getName()
+                        + " paused, users are waiting for tiles missing from the cache");
+            }
+            Thread.sleep(SeedThrottle.PAUSE_CHECK_INTERVAL);
+            checkInterrupted();
+        }
+        if (paused) {
+            paused = false;
+            log.debug(Thread.currentThread().getName() + " resumed");
+        }
+    }
+
+    /**
+     * Checks whether all the tiles of a meta tile are cached in a single call to the storage, so
+     * that fully cached meta tiles are skipped without locking them
+     * 
+     * @param bounds
+     *            the tiles of the meta tile, as {@code [minx, miny, maxx, maxy, z]}
+     */
+    private boolean isCached(TileRange tr, long[] bounds) {
+        final int expireCache = tl.getExpireCache((int) bounds[4]);
+        if (expireCache == GWCVars.CACHE_DISABLE_CACHE || expireCache > 0) {
+            // the age of each tile would have to be checked too, let the layer do it
+            return false;
+        }
+        try {
+            return storageBroker.exists(tr, bounds).cardinality() == tileCount(bounds);
+        } catch (StorageException e) {
+            log.debug("Unable to check the cached tiles of " + Arrays.toString(bounds) + ": "
+                    + e.getMessage());
+            return false;
+        }
+    }
+
+    private static long tileCount(long[] bounds) {
+        return (1 + bounds[2] - bounds[0]) * (1 + bounds[3] - bounds[1]);
+    }
+
     /**
      * helper for counting the number of tiles
      * 
@@ -283,6 +363,15 @@ class SeedTask extends GWCTask {
         }
     }
 
+    /**
+     * @param skipExisting
+     *            whether to skip the meta tiles whose tiles are all cached already, only applies
+     *            to seeding, not reseeding
+     */
+    public void setSkipExisting(boolean skipExisting) {
+        this.skipExisting = skipExisting;
+    }
+
     public void setFailurePolicy(int tileFailureRetryCount, long tileFailureRetryWaitTime,
             long totalFailuresBeforeAborting, AtomicLong sharedFailureCounter) {
         this.tileFailureRetryCount = tileFailureRetryCount;
@@ -293,6 +382,7 @@ class SeedTask extends GWCTask {
 
     @Override
     protected void dispose() {
+        BackendConcurrencyLimiter.setSeeding(false);
         if (tl instanceof WMSLayer) {
             ((WMSLayer) tl).cleanUpThreadLocals();
         }
@@ -0,0 +1,135 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.seed;
+
+import org.geowebcache.seed.GWCTask.PRIORITY;
+import org.geowebcache.stats.MissLatencyMonitor;
+
+/**
+ * Paces the threads of a seed job, shared by all of them.
+ * <p>
+ * The job is kept under its maximum tile rate, if any, and backs off according to its
+ * {@link PRIORITY} when the {@link MissLatencyMonitor} reports users waiting for tiles missing
+ * from the cache. Both the priority and the rate can be changed while the job runs.
+ * </p>
+ */
+class SeedThrottle {
+
+    /**
+     * How long a paused thread waits before checking the load again, in milliseconds
+     */
+    static final long PAUSE_CHECK_INTERVAL = 500;
+
+    /**
+     * The delay between meta tiles of a normal priority job at full load, in milliseconds
+     */
+    static final long MAX_LOAD_DELAY = 1000;
+
+    private final MissLatencyMonitor monitor;
+
+    private volatile PRIORITY priority;
+
+    private volatile double maxTileRate;
+
+    /**
+     * When the next tiles can be seeded without exceeding the maximum rate, in nanoseconds
+     */
+    private long nextSlot;
+
+    private boolean started;
+
+    /**
+     * @param priority
+     *            the job priority class
+     * @param maxTileRate
+     *            the maximum number of tiles seeded per second by the whole job, {@code 0} if
+     *            unlimited
+     * @param monitor
+     *            the interactive miss latency monitor, may be {@code null}
+     */
+    SeedThrottle(PRIORITY priority, double maxTileRate, MissLatencyMonitor monitor) {
+        this.priority = priority == null ? PRIORITY.NORMAL : priority;
+        this.maxTileRate = Math.max(0, maxTileRate);
+        this.monitor = monitor;
+    }
+
+    public PRIORITY getPriority() {
+        return priority;
+    }
+
+    public void setPriority(PRIORITY priority) {
+        this.priority = priority;
+    }
+
+    public double getMaxTileRate() {
+        return maxTileRate;
+    }
+
+    public void setMaxTileRate(double maxTileRate) {
+        this.maxTileRate = Math.max(0, maxTileRate);
+    }
+
+    /**
+     * @return whether the job should stop seeding until the interactive load goes down
+     */
+    public boolean isPaused() {
+        if (monitor == null) {
+            return false;
+        }
+        switch (priority) {
+        case LOW:
+            return monitor.getLoad() > 0;
+        case NORMAL:
+            return monitor.getLoad() >= 1;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Accounts for tiles just seeded
+     *
+     * @param tiles
+     *            the number of tiles seeded
+     * @return how long the calling thread should wait before seeding more, in milliseconds
+     */
+    public long seeded(long tiles) {
+        long delay = 0;
+        if (monitor != null && priority == PRIORITY.NORMAL) {
+            delay = Math.round(monitor.getLoad() * MAX_LOAD_DELAY);
+        }
+        final double rate = maxTileRate;
+        if (rate > 0 && tiles > 0) {
+            final long now = System.nanoTime();
+            final long wait;
+            synchronized (this) {
+                if (!started || nextSlot - now < 0) {
+                    // no credit is kept for the time the job was idle
+                    nextSlot = now;
+                    started = true;
+                }
+                nextSlot += (long) (tiles * 1000000000d / rate);
+                wait = nextSlot - now;
+            }
+            delay = Math.max(delay, wait / 1000000);
+        }
+        return delay;
+    }
+
+    @Override
+    public String toString() {
+        return priority + (maxTileRate > 0 ? ", " + maxTileRate + " tiles/s" : "");
+    }
+}
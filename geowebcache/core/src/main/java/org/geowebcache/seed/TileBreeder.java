@@ -29,6 +29,7 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.UUID;
 import java.util.concurrent.Future;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -46,8 +47,11 @@ import org.geowebcache.layer.TileLayer;
 import org.geowebcache.layer.TileLayerDispatcher;
 import org.geowebcache.mime.MimeException;
 import org.geowebcache.mime.MimeType;
+import org.geowebcache.seed.GWCTask.PRIORITY;
 import org.geowebcache.seed.GWCTask.STATE;
 import org.geowebcache.seed.GWCTask.TYPE;
+import org.geowebcache.stats.MissLatencyMonitor;
+import org.geowebcache.storage.DiscontinuousTileRange;
 import org.geowebcache.storage.StorageBroker;
 import org.geowebcache.storage.TileRange;
 import org.geowebcache.storage.TileRangeIterator;
@@ -56,6 +60,9 @@ import org.springframework.beans.BeansException;
 import org.springframework.beans.factory.BeanInitializationException;
 import org.springframework.context.ApplicationContext;
 import org.springframework.context.ApplicationContextAware;
+import org.springframework.context.ApplicationEvent;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.event.ContextRefreshedEvent;
 
 /**
  * Class in charge of dispatching seed/truncate tasks.
@@ -74,6 +81,20 @@ import org.springframework.context.ApplicationContextAware;
  * shared by all the threads launched as a single thread group; so if the value is {@code 10} and
  * you launch a seed task with four threads, when {@code 10} failures are reached by all or any of
  * those four threads the four threads will abort the seeding task. The default is {@code 1000}.
+ * <li>{@code GWC_SEED_ORDER}: the order meta tiles are seeded within each zoom level, either
+ * {@code ROW_MAJOR} (the default) or {@code HILBERT} to follow a space filling curve, which keeps
+ * consecutive backend requests and blob store writes close to each other. See
+ * {@link TileRangeIterator.Order}.
+ * <li>{@code GWC_SEED_CHECKPOINT_INTERVAL}: how often, in seconds, the progress of the jobs is
+ * saved to the {@link SeedCheckpointStore checkpoint store} while they run. Defaults to
+ * {@code 60}, use {@code 0} not to save checkpoints at all.
+ * <li>{@code GWC_SEED_RESUME}: whether to resume the jobs left unfinished by the previous run
+ * once the application context has been refreshed, {@code true} or {@code false}. Defaults to
+ * {@code true}. Unfinished jobs can also be resumed with {@link #resumeJob(String)}.
+ * <li>{@code GWC_SEED_SKIP_EXISTING}: whether seed jobs check all the tiles of each meta tile in
+ * one bulk {@link StorageBroker#exists(org.geowebcache.storage.TileRange, long[]) existence
+ * check}, and skip the meta tiles already fully cached without locking them, {@code true} or
+ * {@code false}. Defaults to {@code true}. Reseed jobs always render all the meta tiles.
  * </ul>
  * These environment variables can be established by any of the following ways, in order of
  * precedence:
@@ -96,16 +117,31 @@ import org.springframework.context.ApplicationContextAware;
  * {@code export GWC_SEED_ABORT_LIMIT=2000; <your usual command to run GWC here>}
  * </ol>
  * </p>
+ * <p>
+ * Seed jobs have a {@link PRIORITY priority class} and an optional maximum rate, in tiles per
+ * second, both of which can be changed while they run through
+ * {@link #reprioritizeGWCTask(long, PRIORITY, Double)}. When a {@link MissLatencyMonitor} is set,
+ * jobs slow down or pause according to their priority while users wait for tiles missing from
+ * the cache.
+ * </p>
  * 
  * @author Gabriel Roldan, based on Marius Suta's and Arne Kepp's SeedRestlet
  */
-public class TileBreeder implements ApplicationContextAware {
+public class TileBreeder implements ApplicationContextAware, ApplicationListener {
     private static final String GWC_SEED_ABORT_LIMIT = "GWC_SEED_ABORT_LIMIT";
 
     private static final String GWC_SEED_RETRY_WAIT = "GWC_SEED_RETRY_WAIT";
 
     private static final String GWC_SEED_RETRY_COUNT = "GWC_SEED_RETRY_COUNT";
 
+    private static final String GWC_SEED_ORDER = "GWC_SEED_ORDER";
+
+    private static final String GWC_SEED_CHECKPOINT_INTERVAL = "GWC_SEED_CHECKPOINT_INTERVAL";
+
+    private static final String GWC_SEED_RESUME = "GWC_SEED_RESUME";
+
+    private static final String GWC_SEED_SKIP_EXISTING = "GWC_SEED_SKIP_EXISTING";
+
     private static Log log = LogFactory.getLog(TileBreeder.class);
 
     private ThreadPoolExecutor threadPool;
@@ -130,6 +166,46 @@ public class TileBreeder implements ApplicationContextAware {
      */
     private long totalFailuresBeforeAborting = 1000;
 
+    /**
+     * The order meta tiles are seeded within each zoom level
+     */
+    private TileRangeIterator.Order seedOrder = TileRangeIterator.Order.ROW_MAJOR;
+
+    /**
+     * Tells how long users wait for tiles missing from the cache, may be {@code null}
+     */
+    private MissLatencyMonitor missLatencyMonitor;
+
+    /**
+     * Where the job checkpoints are saved, may be {@code null}
+     */
+    private SeedCheckpointStore checkpointStore;
+
+    /**
+     * How often the job checkpoints are saved, in milliseconds. 0 disables them.
+     */
+    private long checkpointInterval = 60000;
+
+    private boolean resumeOnStartup = true;
+
+    private ApplicationContext applicationContext;
+
+    /**
+     * Whether the unfinished jobs have been resumed already, a context may be refreshed more than
+     * once
+     */
+    private boolean resumed;
+
+    /**
+     * Whether seed jobs skip the meta tiles found fully cached by a bulk existence check
+     */
+    private boolean skipExisting = true;
+
+    /**
+     * The ids of the jobs with a checkpoint being run
+     */
+    private final Set<String> activeJobs = Collections.synchronizedSet(new HashSet<String>());
+
     private Map<Long, SubmittedTask> currentPool = new TreeMap<Long, SubmittedTask>();
 
     private AtomicLong currentId = new AtomicLong();
@@ -159,6 +235,7 @@ public class TileBreeder implements ApplicationContextAware {
      * @see org.springframework.context.ApplicationContextAware#setApplicationContext(org.springframework.context.ApplicationContext)
      */
     public void setApplicationContext(ApplicationContext applicationContext) throws BeansException {
+        this.applicationContext = applicationContext;
         String retryCount = GWCVars.findEnvVar(applicationContext, GWC_SEED_RETRY_COUNT);
         String retryWait = GWCVars.findEnvVar(applicationContext, GWC_SEED_RETRY_WAIT);
         String abortLimit = GWCVars.findEnvVar(applicationContext, GWC_SEED_ABORT_LIMIT);
@@ -170,6 +247,113 @@ public class TileBreeder implements ApplicationContextAware {
         checkPositive(tileFailureRetryCount, GWC_SEED_RETRY_COUNT);
         checkPositive(tileFailureRetryWaitTime, GWC_SEED_RETRY_WAIT);
         checkPositive(totalFailuresBeforeAborting, GWC_SEED_ABORT_LIMIT);
+
+        String order = GWCVars.findEnvVar(applicationContext, GWC_SEED_ORDER);
+        if (order != null) {
+            try {
+                seedOrder = TileRangeIterator.Order.valueOf(order.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                log.warn("Invalid environment parameter for " + GWC_SEED_ORDER + ": '" + order
+                        + "'. Using default value: " + seedOrder);
+            }
+        }
+
+        String interval = GWCVars.findEnvVar(applicationContext, GWC_SEED_CHECKPOINT_INTERVAL);
+        checkpointInterval = 1000 * toLong(GWC_SEED_CHECKPOINT_INTERVAL, interval, 60);
+        checkPositive(checkpointInterval, GWC_SEED_CHECKPOINT_INTERVAL);
+
+        String resume = GWCVars.findEnvVar(applicationContext, GWC_SEED_RESUME);
+        if (resume != null) {
+            resumeOnStartup = Boolean.parseBoolean(resume.trim());
+        }
+
+        String skip = GWCVars.findEnvVar(applicationContext, GWC_SEED_SKIP_EXISTING);
+        if (skip != null) {
+            skipExisting = Boolean.parseBoolean(skip.trim());
+        }
+    }
+
+    /**
+     * Resumes the jobs left unfinished by the previous run, unless disabled, once the application
+     * context is refreshed, so that all the layers are configured by then
+     * 
+     * @see org.springframework.context.ApplicationListener#onApplicationEvent
+     */
+    public void onApplicationEvent(ApplicationEvent event) {
+        if (event instanceof ContextRefreshedEvent
+                && ((ContextRefreshedEvent) event).getApplicationContext() == applicationContext
+                && !resumed) {
+            resumed = true;
+            resumeUnfinishedJobs();
+        }
+    }
+
+    /**
+     * Resumes the jobs left unfinished by the previous run, unless disabled
+     */
+    void resumeUnfinishedJobs() {
+        if (checkpointStore == null || !resumeOnStartup) {
+            return;
+        }
+        for (SeedCheckpoint checkpoint : checkpointStore.list()) {
+            try {
+                resumeJob(checkpoint.getId());
+                log.info("Resumed unfinished job " + checkpoint);
+            } catch (GeoWebCacheException e) {
+                log.warn("Unable to resume unfinished job " + checkpoint + ": " + e.getMessage());
+            }
+        }
+    }
+
+    public TileRangeIterator.Order getSeedOrder() {
+        return seedOrder;
+    }
+
+    public void setSeedOrder(TileRangeIterator.Order seedOrder) {
+        this.seedOrder = seedOrder;
+    }
+
+    public MissLatencyMonitor getMissLatencyMonitor() {
+        return missLatencyMonitor;
+    }
+
+    public void setMissLatencyMonitor(MissLatencyMonitor missLatencyMonitor) {
+        this.missLatencyMonitor = missLatencyMonitor;
+    }
+
+    public SeedCheckpointStore getCheckpointStore() {
+        return checkpointStore;
+    }
+
+    public void setCheckpointStore(SeedCheckpointStore checkpointStore) {
+        this.checkpointStore = checkpointStore;
+    }
+
+    /**
+     * @return how often the job checkpoints are saved, in milliseconds, 0 if they are not
+     */
+    public long getCheckpointInterval() {
+        return checkpointInterval;
+    }
+
+    public void setCheckpointInterval(long checkpointInterval) {
+        this.checkpointInterval = checkpointInterval;
+    }
+
+    public boolean isResumeOnStartup() {
+        return resumeOnStartup;
+    }
+
+    public void setResumeOnStartup(boolean resumeOnStartup) {
+        this.resumeOnStartup = resumeOnStartup;
+    }
+
+    public boolean isSkipExisting() {
+        return skipExisting;
+    }
+
+    public void setSkipExisting(boolean skipExisting) {
+        this.skipExisting = skipExisting;
     }
 
     @SuppressWarnings("serial")
@@ -210,7 +394,7 @@ public class TileBreeder implements ApplicationContextAware {
         TileRange tr = createTileRange(sr, tl);
 
         GWCTask[] tasks = createTasks(tr, tl, sr.getType(), sr.getThreadCount(),
-                sr.getFilterUpdate());
+                sr.getFilterUpdate(), sr.getPriority(), sr.getMaxTileRate());
 
         dispatchTasks(tasks);
     }
@@ -246,28 +430,87 @@ public class TileBreeder implements ApplicationContextAware {
      */
     public GWCTask[] createTasks(TileRange tr, TileLayer tl, GWCTask.TYPE type, int threadCount,
             boolean filterUpdate) throws GeoWebCacheException {
+        return createTasks(tr, tl, type, threadCount, filterUpdate, PRIORITY.NORMAL, 0);
+    }
+
+    /**
+     * Create tasks to manipulate the cache (Seed, truncate, etc).  They will still need to be dispatched.
+     * 
+     * @param tr The range of tiles to work on.
+     * @param tl The layer to work on.  Overrides any layer specified on tr.
+     * @param type The type of task(s) to create
+     * @param threadCount The number of threads to use, forced to 1 if type is TRUNCATE
+     * @param filterUpdate // TODO: What does this do?
+     * @param priority The priority class of the job
+     * @param maxTileRate The maximum number of tiles per second for all the tasks, 0 for no limit
+     * @return Array of tasks.  Will have length threadCount or 1.
+     * @throws GeoWebCacheException
+     */
+    public GWCTask[] createTasks(TileRange tr, TileLayer tl, GWCTask.TYPE type, int threadCount,
+            boolean filterUpdate, PRIORITY priority, double maxTileRate)
+            throws GeoWebCacheException {
 
         if (type == GWCTask.TYPE.TRUNCATE || threadCount < 1) {
             log.trace("Forcing thread count to 1");
             threadCount = 1;
         }
 
-        TileRangeIterator trIter = new TileRangeIterator(tr, tl.getMetaTilingFactors());
+        SeedCheckpoint job = new SeedCheckpoint(UUID.randomUUID().toString(), tr, type,
+                threadCount, filterUpdate, priority == null ? PRIORITY.NORMAL : priority,
+                maxTileRate, seedOrder, tl.getMetaTilingFactors());
+        return createTasks(job, tl);
+    }
+
+    /**
+     * Creates the tasks of a job, either new or resumed from its checkpoint
+     */
+    private GWCTask[] createTasks(SeedCheckpoint job, TileLayer tl) {
+        final TileRange tr = job.getTileRange();
+        final TYPE type = job.getType();
+        final int threadCount = job.getThreadCount();
+        final boolean filterUpdate = job.isFilterUpdate();
+
+        // each seeding thread walks its own part of the range, stealing from the others when done
+        TileRangeIterator[] trIters;
+        if (job.getPendingRanges() == null || type == TYPE.TRUNCATE) {
+            trIters = TileRangeIterator.partition(tr, job.getMetaTilingFactors(), threadCount,
+                    job.getOrder());
+        } else {
+            trIters = TileRangeIterator.partition(tr, job.getMetaTilingFactors(), threadCount,
+                    job.getOrder(), job.getPendingRanges());
+        }
+
+        SeedJobCheckpointer checkpointer = null;
+        if (checkpointStore != null && checkpointInterval > 0) {
+            if (tr instanceof DiscontinuousTileRange) {
+                log.debug("Not saving the progress of " + type + " job on " + tl.getName()
+                        + ", its tile range cannot be saved");
+            } else {
+                checkpointer = new SeedJobCheckpointer(checkpointStore, job,
+                        type == TYPE.TRUNCATE ? null : trIters[0], checkpointInterval,
+                        threadCount, activeJobs);
+            }
+        }
 
         GWCTask[] tasks = new GWCTask[threadCount];
 
         AtomicLong failureCounter = new AtomicLong();
         AtomicInteger sharedThreadCount = new AtomicInteger();
+        SeedThrottle throttle = new SeedThrottle(job.getPriority(), job.getMaxTileRate(),
+                missLatencyMonitor);
         for (int i = 0; i < threadCount; i++) {
             if (type == TYPE.TRUNCATE) {
-                tasks[i] = createTruncateTask(trIter, tl, filterUpdate);
+                tasks[i] = createTruncateTask(trIters[i], tl, filterUpdate);
             } else {
-                SeedTask task = (SeedTask) createSeedTask(type, trIter, tl, filterUpdate);
+                SeedTask task = (SeedTask) createSeedTask(type, trIters[i], tl, filterUpdate);
                 task.setFailurePolicy(tileFailureRetryCount, tileFailureRetryWaitTime,
                         totalFailuresBeforeAborting, failureCounter);
+                task.setSkipExisting(skipExisting);
                 tasks[i] = task;
             }
             tasks[i].setThreadInfo(sharedThreadCount, i);
+            tasks[i].setThrottle(throttle);
+            tasks[i].setCheckpointer(checkpointer);
         }
 
         return tasks;
@@ -285,6 +528,9 @@ public class TileBreeder implements ApplicationContextAware {
                 final Long taskId = this.currentId.incrementAndGet();
                 final GWCTask task = tasks[i];
                 task.setTaskId(taskId);
+                if (task.getCheckpointer() != null) {
+                    task.getCheckpointer().dispatched();
+                }
                 Future<GWCTask> future = threadPool.submit(new MTSeeder(task));
                 this.currentPool.put(taskId, new SubmittedTask(task, future));
             }
@@ -398,9 +644,11 @@ public class TileBreeder implements ApplicationContextAware {
      * Method returns List of Strings representing the status of the currently running and scheduled
      * threads
      * 
-     * @return array of {@code [[tilesDone, tilesTotal, tilesRemaining, taskID, taskStatus],...]}
+     * @return array of
+     *         {@code [[tilesDone, tilesTotal, tilesRemaining, taskID, taskStatus, tilesSkipped],...]}
      *         where {@code taskStatus} is one of:
-     *         {@code 0 = PENDING, 1 = RUNNING, 2 = DONE, -1 = ABORTED}
+     *         {@code 0 = PENDING, 1 = RUNNING, 2 = DONE, -1 = ABORTED} and {@code tilesSkipped} is
+     *         the number of tiles done that were already cached
      */
     public long[][] getStatusList() {
         return getStatusList(null);
@@ -410,9 +658,11 @@ public class TileBreeder implements ApplicationContextAware {
      * Method returns List of Strings representing the status of the currently running and scheduled
      * threads for a specific layer.
      * 
-     * @return array of {@code [[tilesDone, tilesTotal, tilesRemaining, taskID, taskStatus],...]}
+     * @return array of
+     *         {@code [[tilesDone, tilesTotal, tilesRemaining, taskID, taskStatus, tilesSkipped],...]}
      *         where {@code taskStatus} is one of:
-     *         {@code 0 = PENDING, 1 = RUNNING, 2 = DONE, -1 = ABORTED}
+     *         {@code 0 = PENDING, 1 = RUNNING, 2 = DONE, -1 = ABORTED} and {@code tilesSkipped} is
+     *         the number of tiles done that were already cached
      * @param layerName the name of the layer.  null for all layers.
      * @return
      */
@@ -428,12 +678,13 @@ public class TileBreeder implements ApplicationContextAware {
                 if (layerName != null && !layerName.equals(task.getLayerName())) {
                     continue;
                 }
-                long[] ret = new long[5];
+                long[] ret = new long[6];
                 ret[0] = task.getTilesDone();
                 ret[1] = task.getTilesTotal();
                 ret[2] = task.getTimeRemaining();
                 ret[3] = task.getTaskId();
                 ret[4] = stateCode(task.getState());
+                ret[5] = task.getTilesSkipped();
                 list.add(ret);
             }
         } finally {
@@ -580,6 +831,101 @@ public class TileBreeder implements ApplicationContextAware {
         return true;
     }
 
+    /**
+     * Changes the priority and rate limit of a running or pending task. They are shared by all
+     * the tasks of the same job, so the whole job is affected.
+     * 
+     * @param id
+     * @param priority the new priority class, or {@code null} to keep the current one
+     * @param maxTileRate the new maximum number of tiles per second, {@code 0} for no limit, or
+     *        {@code null} to keep the current one
+     * @return {@code false} if there is no such task
+     */
+    public boolean reprioritizeGWCTask(final long id, PRIORITY priority, Double maxTileRate) {
+        SubmittedTask submittedTask;
+        lock.readLock().lock();
+        try {
+            submittedTask = this.currentPool.get(Long.valueOf(id));
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (submittedTask == null) {
+            return false;
+        }
+        SeedThrottle throttle = submittedTask.task.getThrottle();
+        if (priority != null) {
+            throttle.setPriority(priority);
+        }
+        if (maxTileRate != null) {
+            throttle.setMaxTileRate(maxTileRate.doubleValue());
+        }
+        log.info("Task " + submittedTask.task + " reprioritized: " + throttle);
+        return true;
+    }
+
+    /**
+     * @return the checkpoints of the jobs being run, or left unfinished by a shutdown or failure
+     */
+    public List<SeedCheckpoint> getCheckpoints() {
+        if (checkpointStore == null) {
+            return Collections.emptyList();
+        }
+        return checkpointStore.list();
+    }
+
+    /**
+     * @return whether the job with the given checkpoint is being run
+     */
+    public boolean isJobActive(String jobId) {
+        return activeJobs.contains(jobId);
+    }
+
+    /**
+     * Dispatches the tasks of an unfinished job, to go through the meta tiles left at its last
+     * checkpoint
+     * 
+     * @param jobId
+     * @return the tasks dispatched
+     * @throws GeoWebCacheException if there is no such checkpoint, the job is being run or its
+     *         layer is unknown
+     */
+    public GWCTask[] resumeJob(String jobId) throws GeoWebCacheException {
+        if (checkpointStore == null) {
+            throw new GeoWebCacheException("Seed job checkpoints are not enabled");
+        }
+        synchronized (activeJobs) {
+            if (activeJobs.contains(jobId)) {
+                throw new GeoWebCacheException("Job " + jobId + " is already running");
+            }
+            SeedCheckpoint checkpoint = checkpointStore.get(jobId);
+            if (checkpoint == null) {
+                throw new GeoWebCacheException("No checkpoint for job " + jobId);
+            }
+            TileLayer tl = findTileLayer(checkpoint.getLayerName());
+            GWCTask[] tasks = createTasks(checkpoint, tl);
+            dispatchTasks(tasks);
+            return tasks;
+        }
+    }
+
+    /**
+     * Removes the checkpoint of an unfinished job, which will not be resumed
+     * 
+     * @param jobId
+     * @return {@code false} if there is no such checkpoint, or the job is being run
+     */
+    public boolean discardJob(String jobId) {
+        if (checkpointStore == null) {
+            return false;
+        }
+        synchronized (activeJobs) {
+            if (activeJobs.contains(jobId)) {
+                return false;
+            }
+            return checkpointStore.remove(jobId);
+        }
+    }
+
     /**
      * Get an iterator over the layers.
      * @return
@@ -18,8 +18,6 @@ package org.geowebcache.service;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.nio.channels.Channels;
-import java.nio.channels.WritableByteChannel;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -28,6 +26,7 @@ import org.geowebcache.GeoWebCacheException;
 import org.geowebcache.conveyor.Conveyor;
 import org.geowebcache.conveyor.ConveyorTile;
 import org.geowebcache.io.Resource;
+import org.geowebcache.io.Resources;
 import org.geowebcache.layer.TileLayer;
 import org.geowebcache.stats.RuntimeStats;
 import org.geowebcache.util.ServletUtils;
@@ -130,8 +129,7 @@ public abstract class Service {
 
         try {
             OutputStream os = response.getOutputStream();
-            WritableByteChannel channel = Channels.newChannel(os);
-            data.transferTo(channel);
+            Resources.transferTo(data, os);
             
             if(stats != null) {
                 stats.log(size, conv.getCacheResult());
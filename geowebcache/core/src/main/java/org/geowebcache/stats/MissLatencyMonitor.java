@@ -0,0 +1,137 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.stats;
+
+/**
+ * Tracks how long the tile requests missing the cache take, so that seeding can back off while
+ * users are kept waiting.
+ * <p>
+ * The load is {@code 0} while the average miss latency stays below {@link #getThrottleLatency()
+ * the throttle latency}, grows linearly up to {@code 1} at {@link #getPauseLatency() the pause
+ * latency}, and goes back to {@code 0} once no miss has been recorded for
+ * {@link #getWindow() a while}.
+ * </p>
+ */
+public class MissLatencyMonitor {
+
+    /**
+     * Weight of each sample in the average latency
+     */
+    static final double LATENCY_SMOOTHING = 0.2;
+
+    private long throttleLatency = 500;
+
+    private long pauseLatency = 2000;
+
+    private long window = 10000;
+
+    /**
+     * Average latency of the recent misses, in milliseconds
+     */
+    private double averageLatency;
+
+    private long lastMiss;
+
+    private long misses;
+
+    /**
+     * Records a request for a tile that was not in the cache
+     *
+     * @param latency
+     *            the time taken to answer it, in milliseconds
+     */
+    public synchronized void missed(long latency) {
+        final long now = System.currentTimeMillis();
+        if (misses == 0 || now - lastMiss > window) {
+            averageLatency = latency;
+        } else {
+            averageLatency += (latency - averageLatency) * LATENCY_SMOOTHING;
+        }
+        lastMiss = now;
+        misses++;
+    }
+
+    /**
+     * @return the average latency of the recent misses in milliseconds, {@code 0} if there were
+     *         none
+     */
+    public synchronized double getAverageLatency() {
+        if (misses == 0 || System.currentTimeMillis() - lastMiss > window) {
+            return 0;
+        }
+        return averageLatency;
+    }
+
+    /**
+     * @return how loaded the interactive requests are, from {@code 0} (not at all) to {@code 1}
+     *         (background work should stop)
+     */
+    public double getLoad() {
+        final double latency = getAverageLatency();
+        if (latency <= throttleLatency) {
+            return 0;
+        }
+        if (latency >= pauseLatency) {
+            return 1;
+        }
+        return (latency - throttleLatency) / (pauseLatency - throttleLatency);
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public long getThrottleLatency() {
+        return throttleLatency;
+    }
+
+    /**
+     * @param throttleLatency
+     *            the miss latency, in milliseconds, above which seeding is slowed down
+     */
+    public void setThrottleLatency(long throttleLatency) {
+        this.throttleLatency = throttleLatency;
+    }
+
+    public long getPauseLatency() {
+        return pauseLatency;
+    }
+
+    /**
+     * @param pauseLatency
+     *            the miss latency, in milliseconds, above which seeding is paused
+     */
+    public void setPauseLatency(long pauseLatency) {
+        this.pauseLatency = pauseLatency;
+    }
+
+    public long getWindow() {
+        return window;
+    }
+
+    /**
+     * @param window
+     *            the time in milliseconds after which the misses are forgotten
+     */
+    public void setWindow(long window) {
+        this.window = window;
+    }
+
+    @Override
+    public String toString() {
+        return "MissLatencyMonitor[averageLatency=" + getAverageLatency() + "ms, load=" + getLoad()
+                + "]";
+    }
+}
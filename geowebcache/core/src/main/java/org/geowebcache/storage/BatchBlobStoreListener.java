@@ -0,0 +1,29 @@
+package org.geowebcache.storage;
+
+/**
+ * A {@link BlobStoreListener} receiving the tile stored and deleted events in batches. Listeners
+ * not implementing it get one {@link #tileStored} or {@link #tileDeleted} call per tile of the
+ * batch instead.
+ */
+public interface BatchBlobStoreListener extends BlobStoreListener {
+
+    /**
+     * Notifies of several tiles of the same tile set and zoom level being stored, as sent while
+     * seeding instead of one {@link #tileStored} call per tile.
+     * <p>
+     * Only the first {@code count} elements of the arrays are meaningful, and the arrays may be
+     * reused by the caller once this method returns, so they shall be copied if needed later.
+     * </p>
+     */
+    void tilesStored(String layerName, String gridSetId, String blobFormat, String parametersId,
+            int z, long[] x, long[] y, long[] blobSizes, int count);
+
+    /**
+     * Notifies of several tiles of the same tile set and zoom level being deleted, as sent while
+     * truncating instead of one {@link #tileDeleted} call per tile.
+     * 
+     * @see #tilesStored
+     */
+    void tilesDeleted(String layerName, String gridSetId, String blobFormat, String parametersId,
+            int z, long[] x, long[] y, long[] blobSizes, int count);
+}
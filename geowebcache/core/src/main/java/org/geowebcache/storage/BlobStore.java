@@ -17,6 +17,7 @@
  */
 package org.geowebcache.storage;
 
+
 /**
  * Manages the persistence of the actual data contained in cacheable objects (tiles, WFS responses).
  * <p>
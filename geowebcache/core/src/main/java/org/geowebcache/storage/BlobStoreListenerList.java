@@ -1,10 +1,28 @@
 package org.geowebcache.storage;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
 
 public final class BlobStoreListenerList {
 
+    /**
+     * Maximum number of tiles of the batches gathered between {@link #beginBatch()} and
+     * {@link #endBatch()}
+     */
+    private static final int BATCH_SIZE = 256;
+
+    /**
+     * The tile stored events held back on each thread, per listener list
+     */
+    private static final ThreadLocal<Batch> batches = new ThreadLocal<Batch>();
+
+    private static class Batch {
+        int depth;
+
+        final List<TileEventBuffer> buffers = new ArrayList<TileEventBuffer>(2);
+    }
+
     private List<BlobStoreListener> listeners = new CopyOnWriteArrayList<BlobStoreListener>();
 
     public synchronized void addListener(BlobStoreListener listener) {
@@ -17,6 +35,67 @@ public final class BlobStoreListenerList {
         return listeners.remove(listener);
     }
 
+    /**
+     * @return whether there is no listener to notify, so that events need not be prepared
+     */
+    public boolean isEmpty() {
+        return listeners.isEmpty();
+    }
+
+    /**
+     * Starts holding back the tile stored events sent on the calling thread, so that they reach the
+     * listeners as {@link BlobStoreListener#tilesStored batches} once {@link #endBatch()} is
+     * called, like when storing the tiles of a meta tile. Calls can be nested, the events are sent
+     * by the outermost {@link #endBatch()}.
+     */
+    public static void beginBatch() {
+        Batch batch = batches.get();
+        if (batch == null) {
+            batch = new Batch();
+            batches.set(batch);
+        }
+        batch.depth++;
+    }
+
+    /**
+     * Sends the tile stored events held back since {@link #beginBatch()} on the calling thread
+     */
+    public static void endBatch() {
+        final Batch batch = batches.get();
+        if (batch == null || batch.depth == 0) {
+            return;
+        }
+        if (--batch.depth > 0) {
+            return;
+        }
+        try {
+            for (TileEventBuffer buffer : batch.buffers) {
+                buffer.flush();
+            }
+        } finally {
+            batch.buffers.clear();
+        }
+    }
+
+    /**
+     * @return the buffer holding back the tile stored events of this list on the calling thread,
+     *         or {@code null} if there is no batch going on
+     */
+    private TileEventBuffer batchBuffer() {
+        final Batch batch = batches.get();
+        if (batch == null || batch.depth == 0) {
+            return null;
+        }
+        for (TileEventBuffer buffer : batch.buffers) {
+            if (buffer.getListeners() == this) {
+                return buffer;
+            }
+        }
+        TileEventBuffer buffer = new TileEventBuffer(this, false, BATCH_SIZE);
+        batch.buffers.add(buffer);
+        return buffer;
+    }
+
     public void sendLayerDeleted(String layerName) {
         if (listeners.size() > 0) {
             for (int i = 0; i < listeners.size(); i++) {
@@ -52,6 +131,44 @@ public final class BlobStoreListenerList {
         }
     }
 
+    public void sendTilesStored(String layerName, String gridSetId, String blobFormat,
+            String parametersId, int z, long[] x, long[] y, long[] blobSizes, int count) {
+
+        if (listeners.size() > 0 && count > 0) {
+            for (int i = 0; i < listeners.size(); i++) {
+                BlobStoreListener listener = listeners.get(i);
+                if (listener instanceof BatchBlobStoreListener) {
+                    ((BatchBlobStoreListener) listener).tilesStored(layerName, gridSetId,
+                            blobFormat, parametersId, z, x, y, blobSizes, count);
+                } else {
+                    for (int j = 0; j < count; j++) {
+                        listener.tileStored(layerName, gridSetId, blobFormat, parametersId, x[j],
+                                y[j], z, blobSizes[j]);
+                    }
+                }
+            }
+        }
+    }
+
+    public void sendTilesDeleted(String layerName, String gridSetId, String blobFormat,
+            String parametersId, int z, long[] x, long[] y, long[] blobSizes, int count) {
+
+        if (listeners.size() > 0 && count > 0) {
+            for (int i = 0; i < listeners.size(); i++) {
+                BlobStoreListener listener = listeners.get(i);
+                if (listener instanceof BatchBlobStoreListener) {
+                    ((BatchBlobStoreListener) listener).tilesDeleted(layerName, gridSetId,
+                            blobFormat, parametersId, z, x, y, blobSizes, count);
+                } else {
+                    for (int j = 0; j < count; j++) {
+                        listener.tileDeleted(layerName, gridSetId, blobFormat, parametersId, x[j],
+                                y[j], z, blobSizes[j]);
+                    }
+                }
+            }
+        }
+    }
+
     public void sendTileDeleted(final TileObject stObj) {
         if (listeners.size() > 0) {
 
@@ -77,6 +194,12 @@ public final class BlobStoreListenerList {
             final String paramsId = stObj.getParametersId();
             final int blobSize = stObj.getBlobSize();
 
+            final TileEventBuffer buffer = batchBuffer();
+            if (buffer != null) {
+                buffer.add(layerName, gridSetId, blobFormat, paramsId, xyz[0], xyz[1],
+                        (int) xyz[2], blobSize);
+                return;
+            }
             for (int i = 0; i < listeners.size(); i++) {
                 listeners.get(i).tileStored(layerName, gridSetId, blobFormat, paramsId, xyz[0],
                         xyz[1], (int) xyz[2], blobSize);
@@ -0,0 +1,58 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Arne Kepp, OpenGeo, Copyright 2009
+ *  
+ */
+package org.geowebcache.storage;
+
+import java.util.BitSet;
+
+/**
+ * Utility methods working with any {@link BlobStore}
+ */
+public class BlobStores {
+
+    private BlobStores() {
+        // utility class
+    }
+
+    /**
+     * Tells which tiles of a rectangular area of a single zoom level are stored. Stores not
+     * implementing {@link ExistenceCheckingBlobStore} are asked for each tile of the area in
+     * turn, which reads them, so the area should be kept small, like the tiles of a meta tile.
+     * 
+     * @see ExistenceCheckingBlobStore#exists(TileRange, long[])
+     */
+    public static BitSet exists(BlobStore store, TileRange tileRange, long[] bounds)
+            throws StorageException {
+        if (store instanceof ExistenceCheckingBlobStore) {
+            return ((ExistenceCheckingBlobStore) store).exists(tileRange, bounds);
+        }
+        final long width = bounds[2] - bounds[0] + 1;
+        final BitSet found = new BitSet();
+        for (long y = bounds[1]; y <= bounds[3]; y++) {
+            for (long x = bounds[0]; x <= bounds[2]; x++) {
+                TileObject tile = TileObject.createQueryTileObject(tileRange.getLayerName(),
+                        new long[] { x, y, bounds[4] }, tileRange.getGridSetId(), tileRange
+                                .getMimeType().getFormat(), tileRange.getParameters());
+                tile.setParametersId(tileRange.getParametersId());
+                if (store.get(tile)) {
+                    found.set((int) ((y - bounds[1]) * width + (x - bounds[0])));
+                }
+            }
+        }
+        return found;
+    }
+}
@@ -17,8 +17,11 @@
  */
 package org.geowebcache.storage;
 
+import java.util.BitSet;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.geowebcache.config.XMLConfiguration;
 import org.geowebcache.io.Resource;
 
 /**
@@ -30,13 +33,40 @@ public class DefaultStorageBroker implements StorageBroker {
 
     private BlobStore blobStore;
 
-    private TransientCache transientCache;
+    private XMLConfiguration configuration;
+
+    private volatile TransientCache transientCache;
     
     public DefaultStorageBroker(BlobStore blobStore) {
         this.blobStore = blobStore;
+    }
+
+    /**
+     * Sets the configuration to read the transient cache limits from. The cache is created on
+     * first use, as the configuration is not loaded yet when the broker is created.
+     */
+    public void setConfiguration(XMLConfiguration configuration) {
+        this.configuration = configuration;
+    }
 
-        // @todo are these settings reasonable? should they be configurable?
-        transientCache = new TransientCache(100,1000);
+    private TransientCache getTransientCache() {
+        TransientCache cache = transientCache;
+        if (cache == null) {
+            synchronized (this) {
+                cache = transientCache;
+                if (cache == null) {
+                    if (configuration == null) {
+                        cache = new TransientCache(TransientCache.DEFAULT_MAX_TILES,
+                                TransientCache.DEFAULT_MAX_STORAGE_KB);
+                    } else {
+                        cache = new TransientCache(configuration.getTransientCacheMaxTiles(),
+                                configuration.getTransientCacheMaxStorageKB());
+                    }
+                    transientCache = cache;
+                }
+            }
+        }
+        return cache;
     }
 
     public void addBlobStoreListener(BlobStoreListener listener){
@@ -68,6 +98,10 @@ public class DefaultStorageBroker implements StorageBroker {
         return blobStore.get(tileObj);
     }
 
+    public BitSet exists(TileRange tileRange, long[] bounds) throws StorageException {
+        return BlobStores.exists(blobStore, tileRange, bounds);
+    }
+
     public boolean put(TileObject tileObj) throws StorageException {
         blobStore.put(tileObj);
         return true;
@@ -86,19 +120,14 @@ public class DefaultStorageBroker implements StorageBroker {
     }
 
     public boolean getTransient(TileObject tile) {
-        String key = TransientCache.computeTransientKey(tile);
-        Resource resource;
-        synchronized (transientCache) {
-            resource = transientCache.get(key);
-        }
+        TileKey key = TransientCache.computeTransientKey(tile);
+        Resource resource = getTransientCache().get(key);
         tile.setBlob(resource); 
         return resource != null;
     }
 
     public void putTransient(TileObject tile) {
-        String key = TransientCache.computeTransientKey(tile);
-        synchronized (transientCache) {
-            transientCache.put(key, tile.getBlob());
-        }
+        TileKey key = TransientCache.computeTransientKey(tile);
+        getTransientCache().put(key, tile.getBlob());
     }
 }
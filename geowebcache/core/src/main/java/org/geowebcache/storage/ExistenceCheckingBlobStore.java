@@ -0,0 +1,42 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Arne Kepp, OpenGeo, Copyright 2009
+ *  
+ */
+package org.geowebcache.storage;
+
+import java.util.BitSet;
+
+/**
+ * A {@link BlobStore} able to tell which tiles of an area are stored without reading them. Use
+ * {@link BlobStores#exists} to check any blob store, falling back to reading the tiles one by one
+ * for the stores not implementing it.
+ */
+public interface ExistenceCheckingBlobStore extends BlobStore {
+
+    /**
+     * Tells which tiles of a rectangular area of a single zoom level are stored, without reading
+     * them and more efficiently than calling {@link #get(TileObject)} for each of them
+     * 
+     * @param tileRange
+     *            the layer, gridset, format and parameters of the tiles, its bounds are not used
+     * @param bounds
+     *            the area to check, as {@code [minx, miny, maxx, maxy, z]}
+     * @return the stored tiles, the bit of tile {@code (x, y)} being at index
+     *         {@code (y - miny) * (maxx - minx + 1) + (x - minx)}
+     * @throws StorageException
+     */
+    public BitSet exists(TileRange tileRange, long[] bounds) throws StorageException;
+}
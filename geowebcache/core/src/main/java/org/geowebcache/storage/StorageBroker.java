@@ -1,5 +1,7 @@
 package org.geowebcache.storage;
 
+import java.util.BitSet;
+
 /**
  * Abstracts and manages the storing of cachable objects and their metadata.
  */
@@ -39,6 +41,13 @@ public interface StorageBroker {
      */
     public abstract boolean get(TileObject tileObj) throws StorageException;
 
+    /**
+     * Tells which tiles of a rectangular area of a single zoom level are stored
+     * 
+     * @see BlobStore#exists(TileRange, long[])
+     */
+    public abstract BitSet exists(TileRange tileRange, long[] bounds) throws StorageException;
+
     /**
      * Puts the given TileObject into storage
      * @param tileObj
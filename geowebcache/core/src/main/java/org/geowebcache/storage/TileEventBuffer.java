@@ -0,0 +1,112 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.storage;
+
+/**
+ * Gathers tile stored or deleted events and sends them to a {@link BlobStoreListenerList} as
+ * {@link BatchBlobStoreListener#tilesStored batches}.
+ * <p>
+ * Consecutive tiles of the same tile set and zoom level go to the same batch. A batch is sent
+ * when it is full, when a tile of another tile set or zoom level is added, and on
+ * {@link #flush()}. Instances are not thread safe.
+ * </p>
+ */
+public final class TileEventBuffer {
+
+    private final BlobStoreListenerList listeners;
+
+    private final boolean deleted;
+
+    private final long[] x;
+
+    private final long[] y;
+
+    private final long[] sizes;
+
+    private int count;
+
+    private String layerName;
+
+    private String gridSetId;
+
+    private String blobFormat;
+
+    private String parametersId;
+
+    private int z;
+
+    /**
+     * @param deleted
+     *            {@code true} to send {@link BatchBlobStoreListener#tilesDeleted}, {@code false} to
+     *            send {@link BatchBlobStoreListener#tilesStored}
+     * @param capacity
+     *            the maximum number of tiles of a batch
+     */
+    public TileEventBuffer(BlobStoreListenerList listeners, boolean deleted, int capacity) {
+        this.listeners = listeners;
+        this.deleted = deleted;
+        this.x = new long[capacity];
+        this.y = new long[capacity];
+        this.sizes = new long[capacity];
+    }
+
+    BlobStoreListenerList getListeners() {
+        return listeners;
+    }
+
+    public void add(String layerName, String gridSetId, String blobFormat, String parametersId,
+            long x, long y, int z, long blobSize) {
+        if (count > 0
+                && (count == this.x.length || z != this.z || !same(layerName, this.layerName)
+                        || !same(gridSetId, this.gridSetId)
+                        || !same(blobFormat, this.blobFormat) || !same(parametersId,
+                            this.parametersId))) {
+            flush();
+        }
+        if (count == 0) {
+            this.layerName = layerName;
+            this.gridSetId = gridSetId;
+            this.blobFormat = blobFormat;
+            this.parametersId = parametersId;
+            this.z = z;
+        }
+        this.x[count] = x;
+        this.y[count] = y;
+        this.sizes[count] = blobSize;
+        count++;
+    }
+
+    /**
+     * Sends the pending tiles, if any
+     */
+    public void flush() {
+        if (count == 0) {
+            return;
+        }
+        final int n = count;
+        count = 0;
+        if (deleted) {
+            listeners.sendTilesDeleted(layerName, gridSetId, blobFormat, parametersId, z, x, y,
+                    sizes, n);
+        } else {
+            listeners.sendTilesStored(layerName, gridSetId, blobFormat, parametersId, z, x, y,
+                    sizes, n);
+        }
+    }
+
+    private static boolean same(String s1, String s2) {
+        return s1 == null ? s2 == null : s1 == s2 || s1.equals(s2);
+    }
+}
@@ -0,0 +1,142 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.storage;
+
+import java.util.Map;
+
+import org.geowebcache.storage.blobstore.file.FilePathGenerator;
+
+/**
+ * Immutable identifier of a tile, suitable as an in memory map key.
+ * <p>
+ * Unlike the paths built by {@link FilePathGenerator} it does not involve any string building:
+ * it just references the layer, gridset, format and parameters id strings of the tile and
+ * precomputes its hash code.
+ * </p>
+ */
+public final class TileKey {
+
+    private final String layerName;
+
+    private final String gridSetId;
+
+    private final String format;
+
+    private final String parametersId;
+
+    private final long x;
+
+    private final long y;
+
+    private final int z;
+
+    private final int hashCode;
+
+    public TileKey(String layerName, String gridSetId, String format, String parametersId,
+            long x, long y, int z) {
+        this.layerName = layerName;
+        this.gridSetId = gridSetId;
+        this.format = format;
+        this.parametersId = parametersId;
+        this.x = x;
+        this.y = y;
+        this.z = z;
+
+        int hash = 17;
+        hash = 31 * hash + (int) (x ^ (x >>> 32));
+        hash = 31 * hash + (int) (y ^ (y >>> 32));
+        hash = 31 * hash + z;
+        hash = 31 * hash + layerName.hashCode();
+        hash = 31 * hash + gridSetId.hashCode();
+        hash = 31 * hash + format.hashCode();
+        hash = 31 * hash + (parametersId == null ? 0 : parametersId.hashCode());
+        this.hashCode = hash;
+    }
+
+    /**
+     * Creates the key of a tile, computing and setting its parameters id if needed
+     */
+    public static TileKey create(TileObject tile) {
+        String parametersId = tile.getParametersId();
+        Map<String, String> parameters = tile.getParameters();
+        if (parametersId == null && parameters != null && !parameters.isEmpty()) {
+            parametersId = FilePathGenerator.getParametersId(parameters);
+            tile.setParametersId(parametersId);
+        }
+        long[] xyz = tile.getXYZ();
+        return new TileKey(tile.getLayerName(), tile.getGridSetId(), tile.getBlobFormat(),
+                parametersId, xyz[0], xyz[1], (int) xyz[2]);
+    }
+
+    public String getLayerName() {
+        return layerName;
+    }
+
+    public String getGridSetId() {
+        return gridSetId;
+    }
+
+    public String getFormat() {
+        return format;
+    }
+
+    public String getParametersId() {
+        return parametersId;
+    }
+
+    public long getX() {
+        return x;
+    }
+
+    public long getY() {
+        return y;
+    }
+
+    public int getZ() {
+        return z;
+    }
+
+    @Override
+    public int hashCode() {
+        return hashCode;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof TileKey)) {
+            return false;
+        }
+        TileKey k = (TileKey) o;
+        return hashCode == k.hashCode && x == k.x && y == k.y && z == k.z
+                && layerName.equals(k.layerName) && gridSetId.equals(k.gridSetId)
+                && format.equals(k.format)
+                && (parametersId == null ? k.parametersId == null : parametersId
+                        .equals(k.parametersId));
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(layerName).append('/').append(gridSetId);
+        sb.append('/').append(format);
+        if (parametersId != null) {
+            sb.append('/').append(parametersId);
+        }
+        return sb.append(" [").append(x).append(',').append(y).append(',').append(z).append(']')
+                .toString();
+    }
+}
@@ -17,10 +17,52 @@
 
 package org.geowebcache.storage;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+/**
+ * Iterates over the meta tiles of a {@link TileRange}, level by level and, depending on the
+ * {@link Order}, row by row or along a Hilbert curve.
+ * <p>
+ * The meta tiles are numbered in iteration order and handed out from spans of that numbering.
+ * A plain iterator has a single span, that can be safely shared among threads. For seeding,
+ * {@link #partition(TileRange, int[], int)} splits the range in spans with the same number of
+ * meta tiles, that is, in bands of rows of the zoom levels, and returns one iterator per span.
+ * Each thread then walks its own span without contending with the others, and once done it
+ * steals the second half of the largest span left. Iterators never block, spans are updated by
+ * compare and set.
+ * </p>
+ * <p>
+ * The meta tiles not returned yet, plus the ones returned but not yet followed by another call
+ * to {@link #nextMetaGridLocation(long[])}, can be saved with {@link #getPendingRanges()} and
+ * walked again later with {@link #partition(TileRange, int[], int, Order, long[])}.
+ * </p>
+ */
 public class TileRangeIterator {
 
+    /**
+     * The order meta tiles are visited within each zoom level
+     */
+    public enum Order {
+        /**
+         * Row by row, from the bottom left corner
+         */
+        ROW_MAJOR,
+        /**
+         * Along a Hilbert curve, so that consecutive meta tiles are next to each other and any
+         * run of them covers a compact area. Backend data caches and the blob store directories
+         * get a better chance of being reused. Wide levels are covered by a row of square
+         * blocks, each one visited along its own curve.
+         */
+        HILBERT
+    }
+
     final private TileRange tr;
 
     final private DiscontinuousTileRange dtr;
@@ -29,11 +71,55 @@ public class TileRangeIterator {
 
     final private int metaY;
 
-    private AtomicLong tilesSkippedCount = new AtomicLong();
+    final private Order order;
+
+    /**
+     * The bounds of each zoom level, starting from the range start zoom level
+     */
+    final private long[][] levelBounds;
+
+    /**
+     * The number of meta tile columns of each zoom level
+     */
+    final private long[] metaColumns;
+
+    /**
+     * The number of meta tile rows of each zoom level
+     */
+    final private long[] metaRows;
 
-    private AtomicLong tilesRenderedCount = new AtomicLong();
+    /**
+     * The side of the blocks walked along a Hilbert curve, in meta tiles, for each zoom level
+     */
+    final private long[] blockSide;
 
-    private volatile long[] lastGridLoc;
+    /**
+     * The number of block columns of each zoom level
+     */
+    final private long[] blockColumns;
+
+    /**
+     * The number of the first meta tile of each zoom level, plus the total number of meta tiles.
+     * With a Hilbert order the numbering has gaps, for the blocks parts outside of the level
+     * bounds
+     */
+    final private long[] levelStart;
+
+    /**
+     * The spans shared by all the iterators of the same partition
+     */
+    final private Span[] spans;
+
+    /**
+     * The span of this iterator
+     */
+    final private Span span;
+
+    /**
+     * Steals update two spans, they hold the read lock so that {@link #getPendingRanges()} can
+     * exclude them by taking the write lock
+     */
+    final private ReadWriteLock stealLock;
 
     /**
      * Note that the bounds of the tile range must already be expanded to the meta tile factors for
@@ -43,15 +129,226 @@ public class TileRangeIterator {
      * @param metaTilingFactors
      */
     public TileRangeIterator(TileRange tr, int[] metaTilingFactors) {
+        this(tr, metaTilingFactors, Order.ROW_MAJOR);
+    }
+
+    /**
+     * Note that the bounds of the tile range must already be expanded to the meta tile factors for
+     * this to work.
+     * 
+     * @param tr
+     * @param metaTilingFactors
+     * @param order
+     *            the order to visit the meta tiles of each zoom level
+     */
+    public TileRangeIterator(TileRange tr, int[] metaTilingFactors, Order order) {
         this.tr = tr;
         this.metaX = metaTilingFactors[0];
         this.metaY = metaTilingFactors[1];
+        this.order = order;
 
         if (tr instanceof DiscontinuousTileRange) {
             dtr = (DiscontinuousTileRange) tr;
         } else {
             dtr = null;
         }
+
+        final int levels = Math.max(0, 1 + tr.getZoomStop() - tr.getZoomStart());
+        this.levelBounds = new long[levels][];
+        this.metaColumns = new long[levels];
+        this.metaRows = new long[levels];
+        this.blockSide = new long[levels];
+        this.blockColumns = new long[levels];
+        this.levelStart = new long[levels + 1];
+        for (int i = 0; i < levels; i++) {
+            long[] bounds = tr.rangeBounds(tr.getZoomStart() + i);
+            long columns = ceilDiv(1 + bounds[2] - bounds[0], metaX);
+            long rows = ceilDiv(1 + bounds[3] - bounds[1], metaY);
+            levelBounds[i] = bounds;
+            metaColumns[i] = columns;
+            metaRows[i] = rows;
+            if (order == Order.HILBERT && columns > 0 && rows > 0) {
+                // the largest power of two fitting the shortest side, so that at most three
+                // quarters of the edge blocks fall outside of the level
+                long side = Long.highestOneBit(Math.min(columns, rows));
+                long blockRows = ceilDiv(rows, side);
+                blockSide[i] = side;
+                blockColumns[i] = ceilDiv(columns, side);
+                levelStart[i + 1] = levelStart[i] + blockColumns[i] * blockRows * side * side;
+            } else {
+                levelStart[i + 1] = levelStart[i] + columns * rows;
+            }
+        }
+
+        this.span = new Span(0, levelStart[levels]);
+        this.spans = new Span[] { span };
+        this.stealLock = new ReentrantReadWriteLock();
+    }
+
+    private TileRangeIterator(TileRangeIterator parent, Span[] spans, Span span,
+            ReadWriteLock stealLock) {
+        this.tr = parent.tr;
+        this.dtr = parent.dtr;
+        this.metaX = parent.metaX;
+        this.metaY = parent.metaY;
+        this.order = parent.order;
+        this.levelBounds = parent.levelBounds;
+        this.metaColumns = parent.metaColumns;
+        this.metaRows = parent.metaRows;
+        this.blockSide = parent.blockSide;
+        this.blockColumns = parent.blockColumns;
+        this.levelStart = parent.levelStart;
+        this.spans = spans;
+        this.span = span;
+        this.stealLock = stealLock;
+    }
+
+    /**
+     * Splits the tile range among the given number of iterators, each meant to be used by a
+     * single thread. Iterators that are done steal work from the others.
+     * 
+     * @param tr
+     * @param metaTilingFactors
+     * @param count
+     *            the number of iterators
+     * @return the iterators, which together return each meta tile of the range once
+     */
+    public static TileRangeIterator[] partition(TileRange tr, int[] metaTilingFactors, int count) {
+        return partition(tr, metaTilingFactors, count, Order.ROW_MAJOR);
+    }
+
+    /**
+     * Splits the tile range among the given number of iterators, each meant to be used by a
+     * single thread. Iterators that are done steal work from the others.
+     * 
+     * @param tr
+     * @param metaTilingFactors
+     * @param count
+     *            the number of iterators
+     * @param order
+     *            the order to visit the meta tiles of each zoom level
+     * @return the iterators, which together return each meta tile of the range once
+     */
+    public static TileRangeIterator[] partition(TileRange tr, int[] metaTilingFactors,
+            int count, Order order) {
+        if (count < 1) {
+            throw new IllegalArgumentException("At least one partition is needed: " + count);
+        }
+        final TileRangeIterator whole = new TileRangeIterator(tr, metaTilingFactors, order);
+        final long total = whole.levelStart[whole.levelStart.length - 1];
+        final long size = total / count;
+        final long remainder = total % count;
+
+        Span[] spans = new Span[count];
+        long start = 0;
+        for (int i = 0; i < count; i++) {
+            long end = start + size + (i < remainder ? 1 : 0);
+            spans[i] = new Span(start, end);
+            start = end;
+        }
+        TileRangeIterator[] iterators = new TileRangeIterator[count];
+        ReadWriteLock stealLock = new ReentrantReadWriteLock();
+        for (int i = 0; i < count; i++) {
+            iterators[i] = new TileRangeIterator(whole, spans, spans[i], stealLock);
+        }
+        return iterators;
+    }
+
+    /**
+     * Splits the meta tiles left by a previous partition of the same range among the given number
+     * of iterators
+     * 
+     * @param tr
+     * @param metaTilingFactors
+     *            the meta tiling factors of the previous partition
+     * @param count
+     *            the number of iterators
+     * @param order
+     *            the order of the previous partition
+     * @param pendingRanges
+     *            the meta tiles to walk, as returned by {@link #getPendingRanges()}
+     * @return the iterators, which together return each pending meta tile once
+     */
+    public static TileRangeIterator[] partition(TileRange tr, int[] metaTilingFactors,
+            int count, Order order, long[] pendingRanges) {
+        if (count < 1) {
+            throw new IllegalArgumentException("At least one partition is needed: " + count);
+        }
+        final TileRangeIterator whole = new TileRangeIterator(tr, metaTilingFactors, order);
+        final long total = whole.levelStart[whole.levelStart.length - 1];
+        final int ranges = pendingRanges.length / 2;
+
+        // one span per range, the iterators without one start by stealing and the ranges
+        // without an iterator get stolen
+        Span[] spans = new Span[Math.max(count, ranges)];
+        for (int i = 0; i < spans.length; i++) {
+            if (i < ranges) {
+                long start = Math.max(0, pendingRanges[2 * i]);
+                long end = Math.min(total, pendingRanges[2 * i + 1]);
+                spans[i] = new Span(start, Math.max(start, end));
+            } else {
+                spans[i] = new Span(0, 0);
+            }
+        }
+        TileRangeIterator[] iterators = new TileRangeIterator[count];
+        ReadWriteLock stealLock = new ReentrantReadWriteLock();
+        for (int i = 0; i < count; i++) {
+            iterators[i] = new TileRangeIterator(whole, spans, spans[i], stealLock);
+        }
+        return iterators;
+    }
+
+    /**
+     * Returns the meta tiles that have not been walked yet by any of the iterators of the same
+     * partition, including the ones last returned by each iterator, as their processing may
+     * not be complete. This only holds if each iterator is used by a single thread.
+     * 
+     * @return the start (inclusive) and end (exclusive) of each range of meta tiles, in
+     *         ascending order
+     */
+    public long[] getPendingRanges() {
+        List<long[]> ranges = new ArrayList<long[]>();
+        stealLock.writeLock().lock();
+        try {
+            for (Span candidate : spans) {
+                Range range = candidate.range.get();
+                if (range.claimed >= 0) {
+                    ranges.add(new long[] { range.claimed, range.claimed + 1 });
+                }
+                if (range.remaining() > 0) {
+                    ranges.add(new long[] { range.next, range.end });
+                }
+            }
+        } finally {
+            stealLock.writeLock().unlock();
+        }
+        Collections.sort(ranges, new Comparator<long[]>() {
+            public int compare(long[] o1, long[] o2) {
+                return o1[0] < o2[0] ? -1 : (o1[0] == o2[0] ? 0 : 1);
+            }
+        });
+        List<long[]> merged = new ArrayList<long[]>();
+        for (long[] range : ranges) {
+            long[] last = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+            if (last != null && range[0] <= last[1]) {
+                last[1] = Math.max(last[1], range[1]);
+            } else {
+                merged.add(range);
+            }
+        }
+        long[] pending = new long[2 * merged.size()];
+        for (int i = 0; i < merged.size(); i++) {
+            pending[2 * i] = merged.get(i)[0];
+            pending[2 * i + 1] = merged.get(i)[1];
+        }
+        return pending;
+    }
+
+    /**
+     * @return the number of meta tiles of the range, including the holes of a Hilbert order
+     */
+    public long getMetaTileCount() {
+        return levelStart[levelStart.length - 1];
     }
 
     /**
@@ -63,6 +360,37 @@ public class TileRangeIterator {
         return tr;
     }
 
+    public Order getOrder() {
+        return order;
+    }
+
+    /**
+     * @return the number of tiles in the meta tiles returned so far by this iterator
+     */
+    public long getTilesRendered() {
+        return span.tilesRendered.get();
+    }
+
+    /**
+     * @return the number of tiles in the meta tiles skipped so far by this iterator, because not
+     *         part of a {@link DiscontinuousTileRange}
+     */
+    public long getTilesSkipped() {
+        return span.tilesSkipped.get();
+    }
+
+    /**
+     * @param gridLoc
+     *            a grid location returned by {@link #nextMetaGridLocation(long[])}
+     * @return the tiles of the range covered by the meta tile at that location, as
+     *         {@code [minx, miny, maxx, maxy, z]}
+     */
+    public long[] getMetaTileBounds(final long[] gridLoc) {
+        final long[] bounds = levelBounds[(int) gridLoc[2] - tr.getZoomStart()];
+        return new long[] { gridLoc[0], gridLoc[1], Math.min(bounds[2], gridLoc[0] + metaX - 1),
+                Math.min(bounds[3], gridLoc[1] + metaY - 1), gridLoc[2] };
+    }
+
     /**
      * This loops over all the possible metatile locations and returns a tile location within each
      * metatile.
@@ -77,59 +405,158 @@ public class TileRangeIterator {
      * @return {@code null} if there're no more tiles to return, the next grid location in the
      *         iterator otherwise. The array has three elements: {x,y,z}
      */
-    public synchronized long[] nextMetaGridLocation(final long[] gridLoc) {
-        long[] levelBounds;
-        long x;
-        long y;
-        int z;
+    public long[] nextMetaGridLocation(final long[] gridLoc) {
+        long index;
+        while ((index = claim()) >= 0) {
+            final int level = locate(index, gridLoc);
+            if (level < 0) {
+                // a hole in the numbering, not a meta tile
+                continue;
+            }
 
-        // Figure out the starting point
-        if (lastGridLoc == null) {
-            z = tr.getZoomStart();
-            levelBounds = tr.rangeBounds(z);
-            x = levelBounds[0];
-            y = levelBounds[1];
+            int tileCount = tilesForLocation(gridLoc, levelBounds[level]);
 
-        } else {
-            z = (int) lastGridLoc[2];
-            levelBounds = tr.rangeBounds(z);
-            x = lastGridLoc[0] + metaX;
-            y = lastGridLoc[1];
-        }
+            if (checkGridLocation(gridLoc)) {
+                span.tilesRendered.addAndGet(tileCount);
+                return gridLoc;
+            }
 
-        // Loop over any remaining zoom levels
-        for (; z <= tr.getZoomStop(); z++) {
-            for (; y <= levelBounds[3]; y += metaY) {
-                for (; x <= levelBounds[2]; x += metaX) {
+            span.tilesSkipped.addAndGet(tileCount);
+        }
 
-                    gridLoc[0] = x;
-                    gridLoc[1] = y;
-                    gridLoc[2] = z;
+        return null;
+    }
 
-                    int tileCount = tilesForLocation(gridLoc, levelBounds);
+    /**
+     * @return the number of the next meta tile, from the span of this iterator or stolen from
+     *         another one, or -1 if there are no meta tiles left
+     */
+    private long claim() {
+        long index;
+        while ((index = span.claim()) < 0) {
+            if (!steal()) {
+                return -1;
+            }
+        }
+        return index;
+    }
 
-                    if (checkGridLocation(gridLoc)) {
-                        tilesRenderedCount.addAndGet(tileCount);
-                        lastGridLoc = gridLoc.clone();
-                        return gridLoc;
-                    }
+    /**
+     * Moves the second half of the largest span left to the span of this iterator, which must be
+     * exhausted
+     * 
+     * @return {@code false} if there is nothing left to steal
+     */
+    private boolean steal() {
+        stealLock.readLock().lock();
+        try {
+            return stealInternal();
+        } finally {
+            stealLock.readLock().unlock();
+        }
+    }
 
-                    tilesSkippedCount.addAndGet(tileCount);
+    private boolean stealInternal() {
+        while (true) {
+            Span victim = null;
+            Range victimRange = null;
+            for (Span candidate : spans) {
+                Range range = candidate.range.get();
+                if (candidate != span && range.remaining() > 0
+                        && (victimRange == null || range.remaining() > victimRange.remaining())) {
+                    victim = candidate;
+                    victimRange = range;
                 }
-                x = levelBounds[0];
             }
+            if (victim == null) {
+                return false;
+            }
+            final long split = victimRange.next + victimRange.remaining() / 2;
+            if (victim.range.compareAndSet(victimRange, new Range(victimRange.next, split,
+                    victimRange.claimed))) {
+                // nobody else updates an exhausted span
+                span.range.set(new Range(split, victimRange.end, -1));
+                return true;
+            }
+            // the victim moved on meanwhile, look again
+        }
+    }
 
-            // Get ready for the next level
-            if (z < tr.getZoomStop()) {// but be careful not to go out of index
-                levelBounds = tr.rangeBounds(z + 1);
-                x = levelBounds[0];
-                y = levelBounds[1];
+    /**
+     * Sets the grid location of the given meta tile
+     * 
+     * @return the index of the zoom level of the meta tile, or -1 if the index falls in a part of
+     *         a Hilbert block outside of the level bounds
+     */
+    private int locate(long index, long[] gridLoc) {
+        int level = 0;
+        while (index >= levelStart[level + 1]) {
+            level++;
+        }
+        final long offset = index - levelStart[level];
+        long column;
+        long row;
+        if (order == Order.HILBERT) {
+            final long side = blockSide[level];
+            final long block = offset / (side * side);
+            hilbertLocation(side, offset % (side * side), gridLoc);
+            column = (block % blockColumns[level]) * side + gridLoc[0];
+            row = (block / blockColumns[level]) * side + gridLoc[1];
+            if (column >= metaColumns[level] || row >= metaRows[level]) {
+                return -1;
             }
+        } else {
+            column = offset % metaColumns[level];
+            row = offset / metaColumns[level];
         }
+        final long[] bounds = levelBounds[level];
+        gridLoc[0] = bounds[0] + column * metaX;
+        gridLoc[1] = bounds[1] + row * metaY;
+        gridLoc[2] = tr.getZoomStart() + level;
+        return level;
+    }
 
-        return null;
+    /**
+     * Converts a distance along the Hilbert curve filling a square into the position on the
+     * square, starting from the bottom left corner and ending at the bottom right one
+     * 
+     * @param side
+     *            the side of the square, a power of two
+     * @param distance
+     *            the distance along the curve
+     * @param position
+     *            receives the column and row
+     */
+    static void hilbertLocation(long side, long distance, long[] position) {
+        long x = 0;
+        long y = 0;
+        long t = distance;
+        for (long s = 1; s < side; s *= 2) {
+            long rx = 1 & (t / 2);
+            long ry = 1 & (t ^ rx);
+            if (ry == 0) {
+                if (rx == 1) {
+                    x = s - 1 - x;
+                    y = s - 1 - y;
+                }
+                long swap = x;
+                x = y;
+                y = swap;
+            }
+            x += s * rx;
+            y += s * ry;
+            t /= 4;
+        }
+        position[0] = x;
+        position[1] = y;
     }
 
+    private static long ceilDiv(long value, long divisor) {
+        if (value <= 0) {
+            return 0;
+        }
+        return (value + divisor - 1) / divisor;
+    }
     /**
      * Calculates the number of tiles covered by the meta tile for this grid location.
      * 
@@ -174,4 +601,67 @@ public class TileRangeIterator {
 
         return false;
     }
+
+    /**
+     * The meta tiles not yet returned of a span, immutable so that it can be updated atomically
+     */
+    private static final class Range {
+
+        final long next;
+
+        final long end;
+
+        /**
+         * The meta tile last returned by the iterator owning the span, or -1
+         */
+        final long claimed;
+
+        Range(long next, long end, long claimed) {
+            this.next = next;
+            this.end = end;
+            this.claimed = claimed;
+        }
+
+        long remaining() {
+            return end - next;
+        }
+    }
+
+    /**
+     * A span of meta tiles, along with the counters of the iterator owning it
+     */
+    private static final class Span {
+
+        final AtomicReference<Range> range;
+
+        final AtomicLong tilesRendered = new AtomicLong();
+
+        final AtomicLong tilesSkipped = new AtomicLong();
+
+        Span(long start, long end) {
+            range = new AtomicReference<Range>(new Range(start, end, -1));
+        }
+
+        /**
+         * @return the next meta tile of the span, or -1 if exhausted
+         */
+        long claim() {
+            while (true) {
+                Range current = range.get();
+                if (current.next >= current.end) {
+                    // the last meta tile returned is done with
+                    if (current.claimed < 0
+                            || range.compareAndSet(current, new Range(current.next, current.end,
+                                    -1))) {
+                        return -1;
+                    }
+                    continue;
+                }
+                if (range.compareAndSet(current, new Range(current.next + 1, current.end,
+                        current.next))) {
+                    return current.next;
+                }
+            }
+        }
+    }
 }
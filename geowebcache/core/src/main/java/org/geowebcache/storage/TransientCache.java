@@ -15,115 +15,162 @@
 package org.geowebcache.storage;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
-import java.util.Map;
-import java.util.Map.Entry;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.geowebcache.io.ByteArrayResource;
 import org.geowebcache.io.Resource;
-import org.geowebcache.mime.MimeType;
-import org.geowebcache.storage.blobstore.file.FilePathGenerator;
 
 /**
- * Non-thread safe Resource cache. Currently in-memory only.
+ * Thread safe, in memory only cache of the tiles of a meta tile that were not requested, so that
+ * they can be served once without storing them when the layer is configured not to cache tiles.
+ * Entries are removed once read.
+ * <p>
+ * The cache is split in stripes, each one guarded by its own lock and holding an equal share of
+ * the tile count and storage limits, evicting its oldest tiles when going over them.
+ * </p>
  * 
  * @author Ian Schneider <ischneider@opengeo.org>
  */
 public class TransientCache {
 
-    private final int maxTiles;
+    public static final int DEFAULT_MAX_TILES = 100;
 
-    private final int maxStorage;
-
-    private long currentStorage;
+    public static final int DEFAULT_MAX_STORAGE_KB = 1000;
 
     /**
-     * A path generator that uses the key set as its key to build keys suitable for usage in the in
-     * memory transient cache
+     * Maximum number of stripes, small caches use fewer so that each stripe can still hold a
+     * meaningful number of tiles
      */
-    private static FilePathGenerator keyGenerator = new FilePathGenerator("");
+    private static final int MAX_STRIPES = 16;
 
-    private Map<String, Resource> cache = new LinkedHashMap<String, Resource>() {
+    private static final class Stripe extends ReentrantLock {
 
-        @Override
-        protected boolean removeEldestEntry(Entry<String, Resource> eldest) {
-            return removeEntries(eldest);
-        }
+        private static final long serialVersionUID = 1L;
+
+        final LinkedHashMap<TileKey, Resource> tiles = new LinkedHashMap<TileKey, Resource>();
+
+        long storage;
+    }
+
+    private final Stripe[] stripes;
 
-    };
+    private final int stripeMaxTiles;
+
+    private final long stripeMaxStorage;
 
     public TransientCache(int maxTiles, int maxStorageKB) {
-        this.maxTiles = maxTiles;
-        this.maxStorage = maxStorageKB * 1024;
+        int nstripes = 1;
+        while (nstripes < MAX_STRIPES && nstripes * 2 * 16 <= maxTiles) {
+            nstripes *= 2;
+        }
+        this.stripes = new Stripe[nstripes];
+        for (int i = 0; i < nstripes; i++) {
+            stripes[i] = new Stripe();
+        }
+        this.stripeMaxTiles = Math.max(1, maxTiles / nstripes);
+        this.stripeMaxStorage = Math.max(1, maxStorageKB * 1024L / nstripes);
     }
 
     public int size() {
-        return cache.size();
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            stripe.lock();
+            try {
+                size += stripe.tiles.size();
+            } finally {
+                stripe.unlock();
+            }
+        }
+        return size;
     }
 
     public long storageSize() {
-        return currentStorage;
+        long storage = 0;
+        for (Stripe stripe : stripes) {
+            stripe.lock();
+            try {
+                storage += stripe.storage;
+            } finally {
+                stripe.unlock();
+            }
+        }
+        return storage;
     }
 
-    public void put(String key, Resource r) {
-        byte[] buf = new byte[(int) r.getSize()];
+    /**
+     * Caches a copy of the resource, the resource itself can be reused afterwards
+     */
+    public void put(TileKey key, Resource r) {
+        final byte[] buf = new byte[(int) r.getSize()];
         try {
-            r.getInputStream().read(buf);
+            InputStream in = r.getInputStream();
+            try {
+                int read = 0;
+                int n;
+                while (read < buf.length && (n = in.read(buf, read, buf.length - read)) != -1) {
+                    read += n;
+                }
+            } finally {
+                in.close();
+            }
         } catch (IOException ex) {
             throw new RuntimeException(ex);
         }
-        ByteArrayResource blob = new ByteArrayResource(buf);
-        currentStorage += r.getSize();
-        cache.put(key, blob);
-    }
+        if (buf.length > stripeMaxStorage) {
+            return;
+        }
+        final ByteArrayResource blob = new ByteArrayResource(buf);
 
-    public Resource get(String key) {
-        Resource cached = cache.get(key);
-        if (cached != null) {
-            cache.remove(key);
-            currentStorage -= cached.getSize();
+        final Stripe stripe = stripeFor(key);
+        stripe.lock();
+        try {
+            Resource old = stripe.tiles.put(key, blob);
+            if (old != null) {
+                stripe.storage -= old.getSize();
+            }
+            stripe.storage += buf.length;
+
+            // iterator returns items in order added so oldest items are first
+            Iterator<Resource> items = stripe.tiles.values().iterator();
+            while (stripe.storage > stripeMaxStorage || stripe.tiles.size() > stripeMaxTiles) {
+                stripe.storage -= items.next().getSize();
+                items.remove();
+            }
+        } finally {
+            stripe.unlock();
         }
-        return cached;
     }
 
     /**
-     * Loop through elements, removing and recompute currentStorage size
+     * @return the cached resource, removing it from the cache, or {@code null} if not found
      */
-    private void clean() {
-        // iterator returns items in order added so oldest items are first
-        Iterator<Resource> items = cache.values().iterator();
-        long storage = currentStorage;
-        while (items.hasNext()) {
-            Resource r = items.next();
-            storage -= r.getSize();
-            if (storage < maxStorage) {
-                break;
-            } else {
-                items.remove();
+    public Resource get(TileKey key) {
+        final Stripe stripe = stripeFor(key);
+        stripe.lock();
+        try {
+            Resource cached = stripe.tiles.remove(key);
+            if (cached != null) {
+                stripe.storage -= cached.getSize();
             }
+            return cached;
+        } finally {
+            stripe.unlock();
         }
-        currentStorage = storage;
     }
 
-    private boolean removeEntries(Entry<String, Resource> eldest) {
-        boolean remove = false;
-        // not sure if we can do both at the same time?
-        if (currentStorage > maxStorage) {
-            clean();
-        } else if (cache.size() > maxTiles) {
-            remove = true;
-        }
-        return remove;
+    private Stripe stripeFor(TileKey key) {
+        int hash = key.hashCode();
+        // spread the hash bits, the stripe is picked from the low ones
+        hash ^= (hash >>> 20) ^ (hash >>> 12);
+        hash ^= (hash >>> 7) ^ (hash >>> 4);
+        return stripes[hash & (stripes.length - 1)];
     }
 
-    public static String computeTransientKey(TileObject tile) {
-        try {
-            MimeType mime = MimeType.createFromFormat(tile.getBlobFormat());
-            return keyGenerator.tilePath(tile, mime).getAbsolutePath();
-        } catch (Exception ex) {
-            throw new RuntimeException(ex);
-        }
+    public static TileKey computeTransientKey(TileObject tile) {
+        return TileKey.create(tile);
     }
 
 }
@@ -0,0 +1,615 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.storage.blobstore.bundle;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.UUID;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geowebcache.io.ByteArrayResource;
+import org.geowebcache.io.Resource;
+import org.geowebcache.storage.TileObject;
+
+/**
+ * A single tile bundle file, holding up to {@code size x size} tiles of the same layer, gridset,
+ * zoom level, parameters and format.
+ * <p>
+ * File layout:
+ * <ul>
+ * <li>a {@link #HEADER_SIZE} bytes header: magic, version, tiles per side, live tile count and
+ * number of wasted bytes</li>
+ * <li>the offset index, one {@code [long offset, int length]} entry per tile in row major order.
+ * An offset of {@code 0} means the tile is not in the bundle</li>
+ * <li>the tile records, each one made of the tile creation time as a {@code long} followed by the
+ * tile contents</li>
+ * </ul>
+ * </p>
+ * <p>
+ * Records are only ever appended. Overwriting or deleting a tile updates its index entry and
+ * accounts the old record as wasted space, which is reclaimed by rewriting the bundle once it
+ * grows past {@link #COMPACT_MIN_WASTE} and half of the bundle data. A compacted (or emptied)
+ * bundle gets its magic replaced by {@link #RETIRED} once replaced (or before being deleted), so
+ * that writers in other processes waiting on the file lock of the old file know they have to
+ * reopen it. A retired file still found after {@link #MAX_REOPEN_ATTEMPTS} reopens, as left by a
+ * failed delete, is reset to an empty bundle.
+ * </p>
+ * <p>
+ * This class does not handle in-process concurrency, callers are expected to serialize writes to
+ * the same bundle (reads can run concurrently with writes, records are never modified in place).
+ * Writes also take an exclusive file lock to protect the bundle against other processes sharing
+ * the same cache directory.
+ * </p>
+ */
+public class Bundle {
+
+    private static Log log = LogFactory.getLog(Bundle.class);
+
+    /**
+     * "GWCB"
+     */
+    static final int MAGIC = 0x47574342;
+
+    /**
+     * "GWCR", marks a bundle that has been compacted or emptied and must be reopened
+     */
+    static final int RETIRED = 0x47574352;
+
+    static final int VERSION = 1;
+
+    // magic, version, size, tile count, wasted bytes, reserved
+    static final int HEADER_SIZE = 4 + 4 + 4 + 4 + 8 + 8;
+
+    static final int ENTRY_SIZE = 8 + 4;
+
+    static final int RECORD_HEADER_SIZE = 8;
+
+    private static final int TILE_COUNT_POSITION = 12;
+
+    private static final int WASTED_POSITION = 16;
+
+    /**
+     * Minimum amount of wasted bytes before a bundle is considered for compaction
+     */
+    static final long COMPACT_MIN_WASTE = 1024 * 1024;
+
+    /**
+     * Number of times a bundle found retired is reopened before resetting it
+     */
+    static final int MAX_REOPEN_ATTEMPTS = 3;
+
+    /**
+     * Receives the tiles found in a bundle
+     */
+    public static interface TileVisitor {
+        /**
+         * @param index
+         *            the tile index inside the bundle, see {@link Bundle#column(int)} and
+         *            {@link Bundle#row(int)}
+         * @param length
+         *            the tile size in bytes
+         */
+        void visit(int index, int length);
+    }
+
+    /**
+     * Selects tiles inside a bundle
+     */
+    public static interface TileFilter {
+        boolean accept(int index);
+    }
+
+    private final File file;
+
+    private final int size;
+
+    /**
+     * @param file
+     *            the bundle file, it does not need to exist
+     * @param size
+     *            the number of tiles per bundle side
+     */
+    public Bundle(File file, int size) {
+        this.file = file;
+        this.size = size;
+    }
+
+    /**
+     * Opens an existing bundle, taking the number of tiles per side from its header
+     *
+     * @return the bundle, or {@code null} if the file does not exist
+     */
+    public static Bundle open(File file) throws IOException {
+        RandomAccessFile raf;
+        try {
+            raf = new RandomAccessFile(file, "r");
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+        try {
+            if (raf.length() < HEADER_SIZE) {
+                throw new IOException(file.getAbsolutePath() + " is not a tile bundle");
+            }
+            // skip magic and version, checked when reading
+            raf.seek(8);
+            return new Bundle(file, raf.readInt());
+        } finally {
+            raf.close();
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * @return the index of the tile in the bundle, given its grid coordinates
+     */
+    public int indexOf(long x, long y) {
+        int column = (int) (x % size);
+        int row = (int) (y % size);
+        return row * size + column;
+    }
+
+    /**
+     * @return the tile column inside the bundle for the given tile index
+     */
+    public int column(int index) {
+        return index % size;
+    }
+
+    /**
+     * @return the tile row inside the bundle for the given tile index
+     */
+    public int row(int index) {
+        return index / size;
+    }
+
+    private long dataStart() {
+        return HEADER_SIZE + (long) size * size * ENTRY_SIZE;
+    }
+
+    private long entryPosition(int index) {
+        return HEADER_SIZE + (long) index * ENTRY_SIZE;
+    }
+
+    /**
+     * Reads a tile from the bundle, setting its blob, size and creation time
+     *
+     * @return {@code true} if the tile was found, {@code false} otherwise
+     */
+    public boolean read(final int index, final TileObject tile) throws IOException {
+        if (file.length() < dataStart()) {
+            // avoid a call to exists(), length() returns 0 for missing files
+            return false;
+        }
+        RandomAccessFile raf;
+        try {
+            raf = new RandomAccessFile(file, "r");
+        } catch (IOException e) {
+            // deleted in the meantime
+            return false;
+        }
+        try {
+            FileChannel channel = raf.getChannel();
+            checkHeader(channel);
+
+            ByteBuffer entry = readFully(channel, entryPosition(index), ENTRY_SIZE);
+            final long offset = entry.getLong();
+            final int length = entry.getInt();
+            if (offset == 0) {
+                return false;
+            }
+
+            // read the record in one go and expose the tile contents without copying them
+            byte[] record = new byte[RECORD_HEADER_SIZE + length];
+            ByteBuffer buffer = ByteBuffer.wrap(record);
+            readFully(channel, offset, buffer);
+            final long created = buffer.getLong(0);
+
+            // an empty tile has no contents to point to past the header
+            Resource blob = length == 0 ? new ByteArrayResource(new byte[0])
+                    : new ByteArrayResource(record, RECORD_HEADER_SIZE, length);
+            tile.setBlob(blob);
+            tile.setCreated(created);
+            return true;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Calls the visitor for each tile stored in the bundle, reading the index in a single
+     * operation
+     */
+    public void visit(final TileVisitor visitor) throws IOException {
+        if (file.length() < dataStart()) {
+            return;
+        }
+        RandomAccessFile raf;
+        try {
+            raf = new RandomAccessFile(file, "r");
+        } catch (IOException e) {
+            return;
+        }
+        try {
+            FileChannel channel = raf.getChannel();
+            checkHeader(channel);
+            ByteBuffer index = readIndex(channel);
+            final int entries = size * size;
+            for (int i = 0; i < entries; i++) {
+                long offset = index.getLong();
+                int length = index.getInt();
+                if (offset != 0) {
+                    visitor.visit(i, length);
+                }
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Stores a tile in the bundle, creating the bundle if necessary
+     *
+     * @return the size of the tile being replaced, or {@code -1} if the tile was not in the bundle
+     */
+    public long write(final int index, final Resource blob, final long created)
+            throws IOException {
+        return write(new int[] { index }, new Resource[] { blob }, new long[] { created })[0];
+    }
+
+    /**
+     * Stores a number of tiles in the bundle with a single open/lock cycle, creating the bundle if
+     * necessary
+     *
+     * @return the sizes of the tiles being replaced, {@code -1} for those that were not in the
+     *         bundle
+     */
+    public long[] write(final int[] indexes, final Resource[] blobs, final long[] created)
+            throws IOException {
+        final long[] oldLengths = new long[indexes.length];
+        for (int attempt = 1;; attempt++) {
+            RandomAccessFile raf = openForWrite(attempt);
+            if (raf == null) {
+                // retired by another process while we were waiting for the lock
+                continue;
+            }
+            try {
+                FileChannel channel = raf.getChannel();
+                ByteBuffer header = readFully(channel, 0, HEADER_SIZE);
+                int tileCount = header.getInt(TILE_COUNT_POSITION);
+                long wasted = header.getLong(WASTED_POSITION);
+
+                ByteBuffer recordHeader = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+                ByteBuffer entry = ByteBuffer.allocate(ENTRY_SIZE);
+                for (int i = 0; i < indexes.length; i++) {
+                    final long entryPosition = entryPosition(indexes[i]);
+                    ByteBuffer old = readFully(channel, entryPosition, ENTRY_SIZE);
+                    final long oldOffset = old.getLong();
+                    final int oldLength = old.getInt();
+                    if (oldOffset == 0) {
+                        oldLengths[i] = -1;
+                        tileCount++;
+                    } else {
+                        oldLengths[i] = oldLength;
+                        wasted += RECORD_HEADER_SIZE + oldLength;
+                    }
+
+                    // append the record
+                    final long offset = channel.size();
+                    recordHeader.clear();
+                    recordHeader.putLong(created[i]).flip();
+                    writeFully(channel, offset, recordHeader);
+                    channel.position(offset + RECORD_HEADER_SIZE);
+                    final long length = blobs[i].transferTo(channel);
+
+                    // and point the index to it
+                    entry.clear();
+                    entry.putLong(offset).putInt((int) length).flip();
+                    writeFully(channel, entryPosition, entry);
+                }
+                writeCounters(channel, tileCount, wasted);
+
+                if (shouldCompact(channel.size(), wasted)) {
+                    compact(channel);
+                }
+                return oldLengths;
+            } finally {
+                raf.close();
+            }
+        }
+    }
+
+    /**
+     * Removes a tile from the bundle, deleting the bundle file if it was the last one
+     *
+     * @return the size of the removed tile, or {@code -1} if the tile was not in the bundle
+     */
+    public long remove(final int index) throws IOException {
+        final long[] removed = { -1 };
+        delete(new TileFilter() {
+            public boolean accept(int i) {
+                return i == index;
+            }
+        }, new TileVisitor() {
+            public void visit(int i, int length) {
+                removed[0] = length;
+            }
+        });
+        return removed[0];
+    }
+
+    /**
+     * Removes all the tiles accepted by the filter with a single pass over the index, calling the
+     * visitor for each removed tile. The bundle file is deleted if no tiles are left.
+     *
+     * @return the number of tiles removed
+     */
+    public int delete(final TileFilter filter, final TileVisitor removed) throws IOException {
+        if (file.length() < dataStart()) {
+            return 0;
+        }
+        for (int attempt = 1;; attempt++) {
+            RandomAccessFile raf = openForWrite(attempt);
+            if (raf == null) {
+                continue;
+            }
+            try {
+                FileChannel channel = raf.getChannel();
+                ByteBuffer header = readFully(channel, 0, HEADER_SIZE);
+                int tileCount = header.getInt(TILE_COUNT_POSITION);
+                long wasted = header.getLong(WASTED_POSITION);
+
+                ByteBuffer index = readIndex(channel);
+                final int entries = size * size;
+                int count = 0;
+                for (int i = 0; i < entries; i++) {
+                    long offset = index.getLong(i * ENTRY_SIZE);
+                    int length = index.getInt(i * ENTRY_SIZE + 8);
+                    if (offset != 0 && filter.accept(i)) {
+                        index.putLong(i * ENTRY_SIZE, 0L);
+                        index.putInt(i * ENTRY_SIZE + 8, 0);
+                        tileCount--;
+                        wasted += RECORD_HEADER_SIZE + length;
+                        count++;
+                        if (removed != null) {
+                            removed.visit(i, length);
+                        }
+                    }
+                }
+                if (count == 0) {
+                    return 0;
+                }
+                index.rewind();
+                writeFully(channel, HEADER_SIZE, index);
+                writeCounters(channel, tileCount, wasted);
+                if (tileCount <= 0) {
+                    // the index is up to date in case the file can't be deleted
+                    writeMagic(channel, RETIRED);
+                    raf.close();
+                    if (!file.delete()) {
+                        log.warn("Unable to delete empty bundle " + file.getAbsolutePath());
+                    }
+                    return count;
+                }
+                if (shouldCompact(channel.size(), wasted)) {
+                    compact(channel);
+                }
+                return count;
+            } finally {
+                raf.close();
+            }
+        }
+    }
+
+    /**
+     * Opens the bundle for writing and acquires its exclusive file lock (released by closing the
+     * file), creating and initializing it if necessary.
+     *
+     * @param attempt
+     *            the number of times the bundle has been opened so far, including this one. A
+     *            retired bundle is reset to an empty one at the {@link #MAX_REOPEN_ATTEMPTS}th
+     *            attempt, as it is no longer being replaced
+     * @return the locked file, or {@code null} if the bundle was retired while waiting for the
+     *         lock and needs to be opened again
+     */
+    private RandomAccessFile openForWrite(final int attempt) throws IOException {
+        File parent = file.getParentFile();
+        if (!parent.exists() && !parent.mkdirs() && !parent.exists()) {
+            throw new IOException("Unable to create directory " + parent.getAbsolutePath());
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        boolean ok = false;
+        try {
+            FileChannel channel = raf.getChannel();
+            FileLock lock = channel.lock();
+            if (channel.size() > 0 && attempt >= MAX_REOPEN_ATTEMPTS
+                    && readFully(channel, 0, 4).getInt() == RETIRED) {
+                log.warn("Resetting retired bundle " + file.getAbsolutePath());
+                raf.setLength(0);
+            }
+            if (channel.size() == 0) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(MAGIC).putInt(VERSION).putInt(size).putInt(0).putLong(0)
+                        .putLong(0).flip();
+                writeFully(channel, 0, header);
+                // the index is all zeros, just extend the file (sparse where supported)
+                raf.setLength(dataStart());
+            } else {
+                int magic = readFully(channel, 0, 4).getInt();
+                if (magic == RETIRED) {
+                    lock.release();
+                    return null;
+                }
+                checkHeader(channel);
+            }
+            ok = true;
+            return raf;
+        } finally {
+            if (!ok) {
+                raf.close();
+            }
+        }
+    }
+
+    private void checkHeader(FileChannel channel) throws IOException {
+        ByteBuffer header = readFully(channel, 0, 12);
+        int magic = header.getInt();
+        int version = header.getInt();
+        int bundleSize = header.getInt();
+        if (magic != MAGIC && magic != RETIRED) {
+            throw new IOException(file.getAbsolutePath() + " is not a tile bundle");
+        }
+        if (version != VERSION) {
+            throw new IOException("Unsupported bundle version " + version + " in "
+                    + file.getAbsolutePath());
+        }
+        if (bundleSize != size) {
+            throw new IOException("Bundle " + file.getAbsolutePath() + " holds " + bundleSize
+                    + "x" + bundleSize + " tiles, expected " + size + "x" + size
+                    + ". The bundle size of an existing cache cannot be changed");
+        }
+    }
+
+    private void writeCounters(FileChannel channel, int tileCount, long wasted)
+            throws IOException {
+        ByteBuffer counters = ByteBuffer.allocate(12);
+        counters.putInt(tileCount).putLong(wasted).flip();
+        writeFully(channel, TILE_COUNT_POSITION, counters);
+    }
+
+    private void writeMagic(FileChannel channel, int magic) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4);
+        buffer.putInt(magic).flip();
+        writeFully(channel, 0, buffer);
+    }
+
+    private boolean shouldCompact(long fileSize, long wasted) {
+        long data = fileSize - dataStart();
+        return wasted >= COMPACT_MIN_WASTE && wasted * 2 > data;
+    }
+
+    /**
+     * Rewrites the bundle without the wasted records. Must be called holding the file lock of the
+     * bundle, which is left as is if it can't be replaced.
+     */
+    private void compact(FileChannel channel) throws IOException {
+        File compacted = new File(file.getParentFile(), file.getName() + "."
+                + UUID.randomUUID().toString());
+        RandomAccessFile target = new RandomAccessFile(compacted, "rw");
+        boolean keep = false;
+        try {
+            FileChannel out = target.getChannel();
+            ByteBuffer index = readIndex(channel);
+            final int entries = size * size;
+            int tileCount = 0;
+            long position = dataStart();
+            // the records go after the header and index, written last
+            out.position(position);
+            for (int i = 0; i < entries; i++) {
+                long offset = index.getLong(i * ENTRY_SIZE);
+                int length = index.getInt(i * ENTRY_SIZE + 8);
+                if (offset == 0) {
+                    continue;
+                }
+                long recordSize = RECORD_HEADER_SIZE + length;
+                long copied = 0;
+                while (copied < recordSize) {
+                    copied += channel.transferTo(offset + copied, recordSize - copied, out);
+                }
+                index.putLong(i * ENTRY_SIZE, position);
+                position += recordSize;
+                tileCount++;
+            }
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putInt(size).putInt(tileCount).putLong(0)
+                    .putLong(0).flip();
+            writeFully(out, 0, header);
+            index.rewind();
+            writeFully(out, HEADER_SIZE, index);
+            target.close();
+
+            if (compacted.renameTo(file)) {
+                // this is the old file now, let the writers waiting on its lock know
+                writeMagic(channel, RETIRED);
+            } else {
+                // windows won't rename over an existing file, retire it before deleting it
+                writeMagic(channel, RETIRED);
+                if (!file.delete()) {
+                    writeMagic(channel, MAGIC);
+                    log.warn("Unable to replace " + file.getAbsolutePath()
+                            + " with its compacted version");
+                    return;
+                }
+                if (!compacted.renameTo(file)) {
+                    // the tiles are only left in the compacted copy
+                    keep = true;
+                    throw new IOException("Unable to rename " + compacted.getAbsolutePath()
+                            + " to " + file.getAbsolutePath());
+                }
+            }
+            keep = true;
+            if (log.isDebugEnabled()) {
+                log.debug("Compacted bundle " + file.getAbsolutePath());
+            }
+        } finally {
+            if (!keep) {
+                target.close();
+                compacted.delete();
+            }
+        }
+    }
+
+    private ByteBuffer readIndex(FileChannel channel) throws IOException {
+        return readFully(channel, HEADER_SIZE, size * size * ENTRY_SIZE);
+    }
+
+    private ByteBuffer readFully(FileChannel channel, long position, int length)
+            throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        readFully(channel, position, buffer);
+        return buffer;
+    }
+
+    private void readFully(FileChannel channel, long position, ByteBuffer buffer)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                throw new IOException("Unexpected end of bundle " + file.getAbsolutePath());
+            }
+        }
+        buffer.flip();
+    }
+
+    private static void writeFully(FileChannel channel, long position, ByteBuffer buffer)
+            throws IOException {
+        long written = 0;
+        while (buffer.hasRemaining()) {
+            written += channel.write(buffer, position + written);
+        }
+    }
+}
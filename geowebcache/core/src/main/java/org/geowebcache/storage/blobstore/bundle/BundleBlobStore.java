@@ -0,0 +1,373 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.storage.blobstore.bundle;
+
+import static org.geowebcache.storage.blobstore.file.FilePathUtils.filteredGridSetId;
+import static org.geowebcache.storage.blobstore.file.FilePathUtils.findZoomLevel;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geowebcache.config.ConfigurationException;
+import org.geowebcache.mime.MimeException;
+import org.geowebcache.mime.MimeType;
+import org.geowebcache.storage.BatchBlobStoreListener;
+import org.geowebcache.storage.DefaultStorageFinder;
+import org.geowebcache.storage.StorageException;
+import org.geowebcache.storage.StorageObject.Status;
+import org.geowebcache.storage.TileEventBuffer;
+import org.geowebcache.storage.TileObject;
+import org.geowebcache.storage.TileRange;
+import org.geowebcache.storage.blobstore.file.FileBlobStore;
+import org.geowebcache.storage.blobstore.file.FilePathFilter;
+
+/**
+ * A blob store packing blocks of {@code bundleSize x bundleSize} tiles into a single
+ * {@link Bundle} file, instead of using one file per tile.
+ * <p>
+ * Layer, gridset and zoom level directories follow the {@link FileBlobStore} layout, so layer
+ * deletes, renames and metadata are handled by the superclass; see {@link BundlePathGenerator}
+ * for the layout below the zoom level directories. The bundle size cannot be changed once a
+ * cache has been created, use a {@link FileBlobStoreConverter} to migrate an existing file
+ * based cache.
+ * </p>
+ */
+public class BundleBlobStore extends FileBlobStore {
+
+    private static Log log = LogFactory.getLog(BundleBlobStore.class);
+
+    public static final int DEFAULT_BUNDLE_SIZE = 128;
+
+    private static final int LOCK_STRIPES = 256;
+
+    /**
+     * Maximum number of tiles per {@link BatchBlobStoreListener#tilesDeleted} event when truncating
+     */
+    private static final int EVENT_BATCH_SIZE = 1024;
+
+    private final BundlePathGenerator pathGenerator;
+
+    private final ReadWriteLock[] locks;
+
+    public BundleBlobStore(DefaultStorageFinder defStoreFinder) throws StorageException,
+            ConfigurationException {
+        this(defStoreFinder.getDefaultPath());
+    }
+
+    public BundleBlobStore(String rootPath) throws StorageException {
+        this(rootPath, DEFAULT_BUNDLE_SIZE);
+    }
+
+    /**
+     * @param rootPath
+     *            the cache root directory
+     * @param bundleSize
+     *            the number of tiles per bundle side
+     */
+    public BundleBlobStore(String rootPath, int bundleSize) throws StorageException {
+        super(rootPath);
+        if (bundleSize <= 0) {
+            throw new IllegalArgumentException("Bundle size must be positive: " + bundleSize);
+        }
+        this.pathGenerator = new BundlePathGenerator(rootPath, bundleSize);
+        this.locks = new ReadWriteLock[LOCK_STRIPES];
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new ReentrantReadWriteLock();
+        }
+    }
+
+    public int getBundleSize() {
+        return pathGenerator.getBundleSize();
+    }
+
+    /**
+     * Loads the tile from its bundle
+     */
+    @Override
+    public boolean get(TileObject stObj) throws StorageException {
+        final Bundle bundle = getBundle(stObj);
+        final long[] xyz = stObj.getXYZ();
+        final ReadWriteLock lock = getLock(bundle.getFile());
+        boolean found;
+        lock.readLock().lock();
+        try {
+            found = bundle.read(bundle.indexOf(xyz[0], xyz[1]), stObj);
+        } catch (IOException e) {
+            throw new StorageException(e.getMessage() + " for " + stObj);
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (!found) {
+            stObj.setStatus(Status.MISS);
+        }
+        return found;
+    }
+
+    /**
+     * Reads the index of each bundle the area overlaps once, under a single read lock
+     */
+    @Override
+    public BitSet exists(final TileRange tileRange, final long[] bounds) throws StorageException {
+        final long minX = bounds[0];
+        final long minY = bounds[1];
+        final long maxX = bounds[2];
+        final long maxY = bounds[3];
+        final long width = 1 + maxX - minX;
+        final int bundleSize = getBundleSize();
+
+        final BitSet stored = new BitSet();
+        for (long bundleY = minY / bundleSize; bundleY <= maxY / bundleSize; bundleY++) {
+            for (long bundleX = minX / bundleSize; bundleX <= maxX / bundleSize; bundleX++) {
+                final long originX = bundleX * bundleSize;
+                final long originY = bundleY * bundleSize;
+                TileObject corner = TileObject.createQueryTileObject(tileRange.getLayerName(),
+                        new long[] { Math.max(minX, originX), Math.max(minY, originY), bounds[4] },
+                        tileRange.getGridSetId(), tileRange.getMimeType().getFormat(),
+                        tileRange.getParameters());
+                corner.setParametersId(tileRange.getParametersId());
+                final Bundle bundle = getBundle(corner);
+                Bundle.TileVisitor marker = new Bundle.TileVisitor() {
+                    public void visit(int index, int length) {
+                        long x = originX + bundle.column(index);
+                        long y = originY + bundle.row(index);
+                        if (x >= minX && x <= maxX && y >= minY && y <= maxY) {
+                            stored.set((int) ((y - minY) * width + (x - minX)));
+                        }
+                    }
+                };
+                final ReadWriteLock lock = getLock(bundle.getFile());
+                lock.readLock().lock();
+                try {
+                    bundle.visit(marker);
+                } catch (IOException e) {
+                    throw new StorageException(e.getMessage() + " for "
+                            + bundle.getFile().getAbsolutePath());
+                } finally {
+                    lock.readLock().unlock();
+                }
+            }
+        }
+        return stored;
+    }
+
+    /**
+     * Stores the tile in its bundle
+     */
+    @Override
+    public void put(TileObject stObj) throws StorageException {
+        final Bundle bundle = getBundle(stObj);
+        final long[] xyz = stObj.getXYZ();
+        final long created = stObj.getCreated() > 0 ? stObj.getCreated() : System
+                .currentTimeMillis();
+        final ReadWriteLock lock = getLock(bundle.getFile());
+        long oldSize;
+        lock.writeLock().lock();
+        try {
+            oldSize = bundle.write(bundle.indexOf(xyz[0], xyz[1]), stObj.getBlob(), created);
+        } catch (IOException e) {
+            throw new StorageException(e.getMessage() + " for " + stObj);
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        /*
+         * This is important because listeners may be tracking tile existence
+         */
+        if (oldSize >= 0) {
+            listeners.sendTileUpdated(stObj, oldSize);
+        } else {
+            listeners.sendTileStored(stObj);
+        }
+    }
+
+    /**
+     * Removes the tile from its bundle
+     */
+    @Override
+    public boolean delete(TileObject stObj) throws StorageException {
+        final Bundle bundle = getBundle(stObj);
+        final long[] xyz = stObj.getXYZ();
+        final ReadWriteLock lock = getLock(bundle.getFile());
+        long length;
+        lock.writeLock().lock();
+        try {
+            length = bundle.remove(bundle.indexOf(xyz[0], xyz[1]));
+        } catch (IOException e) {
+            throw new StorageException(e.getMessage() + " for " + stObj);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (length < 0) {
+            log.trace("delete unexistant tile " + stObj);
+            return false;
+        }
+        stObj.setBlobSize((int) length);
+        listeners.sendTileDeleted(stObj);
+        return true;
+    }
+
+    /**
+     * Delete tiles within a range, bundle by bundle. Each affected bundle is scanned once, and
+     * deleted altogether if no tiles are left in it.
+     */
+    @Override
+    public boolean delete(final TileRange trObj) throws StorageException {
+        final File layerPath = getLayerPath(trObj.getLayerName());
+
+        // If it wasn't there to be deleted,
+        if (!layerPath.exists()) {
+            return true;
+        }
+        if (!layerPath.isDirectory() || !layerPath.canWrite()) {
+            throw new StorageException(layerPath + " does is not a directory or is not writable.");
+        }
+
+        final String layerName = trObj.getLayerName();
+        final String gridSetId = trObj.getGridSetId();
+        final String blobFormat = trObj.getMimeType().getFormat();
+        final String parametersId = trObj.getParametersId();
+        final String extension = trObj.getMimeType().getFileExtension();
+        final String gridsetPrefix = filteredGridSetId(gridSetId);
+        final int bundleSize = getBundleSize();
+        final long bucketSpan = (long) bundleSize * BundlePathGenerator.BUCKET_SIZE;
+
+        final FilePathFilter zoomLevelFinder = new FilePathFilter(trObj);
+        File[] zoomLevelDirs = layerPath.listFiles(new FileFilter() {
+            public boolean accept(File pathname) {
+                return pathname.isDirectory()
+                        && zoomLevelFinder.accept(layerPath, pathname.getName());
+            }
+        });
+
+        // the deleted tiles of each bundle are sent at once
+        final TileEventBuffer events = new TileEventBuffer(listeners, true, EVENT_BATCH_SIZE);
+        long count = 0;
+        for (File zoomLevelDir : zoomLevelDirs) {
+            final int zoomLevel = findZoomLevel(gridsetPrefix, zoomLevelDir.getName());
+            final long[] bounds = rangeBounds(trObj, zoomLevel);
+
+            File[] buckets = zoomLevelDir.listFiles();
+            for (File bucket : buckets) {
+                long[] bucketIndex = BundlePathGenerator.parseBucketName(bucket.getName());
+                if (bucketIndex == null || !bucket.isDirectory()) {
+                    continue;
+                }
+                if (!intersects(bounds, bucketIndex[0] * bucketSpan, bucketIndex[1] * bucketSpan,
+                        bucketSpan)) {
+                    continue;
+                }
+                File[] bundleFiles = bucket.listFiles();
+                for (File bundleFile : bundleFiles) {
+                    long[] bundleIndex = BundlePathGenerator.parseBundleName(bundleFile.getName(),
+                            extension);
+                    if (bundleIndex == null) {
+                        continue;
+                    }
+                    final long minX = bundleIndex[0] * bundleSize;
+                    final long minY = bundleIndex[1] * bundleSize;
+                    if (!intersects(bounds, minX, minY, bundleSize)) {
+                        continue;
+                    }
+                    final Bundle bundle = new Bundle(bundleFile, bundleSize);
+                    Bundle.TileFilter filter = new Bundle.TileFilter() {
+                        public boolean accept(int index) {
+                            long x = minX + bundle.column(index);
+                            long y = minY + bundle.row(index);
+                            if (bounds == null) {
+                                return trObj.contains(x, y, zoomLevel);
+                            }
+                            return bounds[0] <= x && bounds[2] >= x && bounds[1] <= y
+                                    && bounds[3] >= y;
+                        }
+                    };
+                    Bundle.TileVisitor notifier = new Bundle.TileVisitor() {
+                        public void visit(int index, int length) {
+                            events.add(layerName, gridSetId, blobFormat, parametersId, minX
+                                    + bundle.column(index), minY + bundle.row(index), zoomLevel,
+                                    length);
+                        }
+                    };
+                    ReadWriteLock lock = getLock(bundleFile);
+                    lock.writeLock().lock();
+                    try {
+                        count += bundle.delete(filter, notifier);
+                    } catch (IOException e) {
+                        throw new StorageException(e.getMessage() + " for "
+                                + bundleFile.getAbsolutePath());
+                    } finally {
+                        lock.writeLock().unlock();
+                        events.flush();
+                    }
+                }
+                // Try deleting the directory (will be done only if the directory is empty)
+                bucket.delete();
+            }
+            // Try deleting the zoom directory (will be done only if the directory is empty)
+            zoomLevelDir.delete();
+        }
+
+        log.info("Truncated " + count + " tiles");
+
+        return true;
+    }
+
+    /**
+     * @return the range bounds at the given zoom level, or {@code null} if they are not available
+     *         and bundles cannot be pruned by extent
+     */
+    private static long[] rangeBounds(TileRange trObj, int zoomLevel) {
+        try {
+            return trObj.rangeBounds(zoomLevel);
+        } catch (RuntimeException e) {
+            // no range bounds at all, or not for this zoom level
+            return null;
+        }
+    }
+
+    private static boolean intersects(long[] bounds, long minX, long minY, long span) {
+        if (bounds == null) {
+            return true;
+        }
+        long maxX = minX + span - 1;
+        long maxY = minY + span - 1;
+        return bounds[0] <= maxX && bounds[2] >= minX && bounds[1] <= maxY && bounds[3] >= minY;
+    }
+
+    private Bundle getBundle(TileObject stObj) {
+        final MimeType mimeType;
+        try {
+            mimeType = MimeType.createFromFormat(stObj.getBlobFormat());
+        } catch (MimeException me) {
+            log.error(me.getMessage());
+            throw new RuntimeException(me);
+        }
+        File bundleFile = pathGenerator.bundlePath(stObj, mimeType);
+        return new Bundle(bundleFile, getBundleSize());
+    }
+
+    private ReadWriteLock getLock(File bundleFile) {
+        int hash = bundleFile.getPath().hashCode();
+        // spread the hash bits, the low bits of similar paths are not that random
+        hash ^= (hash >>> 20) ^ (hash >>> 12);
+        hash ^= (hash >>> 7) ^ (hash >>> 4);
+        return locks[(hash & 0x7fffffff) % LOCK_STRIPES];
+    }
+}
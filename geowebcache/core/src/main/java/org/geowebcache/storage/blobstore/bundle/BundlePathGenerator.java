@@ -0,0 +1,159 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.storage.blobstore.bundle;
+
+import static org.geowebcache.storage.blobstore.file.FilePathUtils.appendFiltered;
+import static org.geowebcache.storage.blobstore.file.FilePathUtils.appendGridsetZoomLevelDir;
+
+import java.io.File;
+import java.util.Map;
+
+import org.geowebcache.mime.MimeType;
+import org.geowebcache.storage.TileObject;
+import org.geowebcache.storage.blobstore.file.FilePathGenerator;
+
+/**
+ * Builds the location of tile bundles.
+ * <p>
+ * The layout follows the one of {@link FilePathGenerator} down to the zoom level directory, then
+ * groups bundles in directories of {@link #BUCKET_SIZE}x{@link #BUCKET_SIZE} bundles:
+ * {@code <layer>/<gridset>_<zoom>[_<parametersId>]/<bucketX>_<bucketY>/<bundleX>_<bundleY>.<ext>.bundle}
+ * </p>
+ */
+public class BundlePathGenerator {
+
+    public static final String BUNDLE_EXTENSION = "bundle";
+
+    /**
+     * Number of bundles per side in each intermediate directory
+     */
+    public static final int BUCKET_SIZE = 64;
+
+    private final String cacheRoot;
+
+    private final int bundleSize;
+
+    public BundlePathGenerator(String cacheRoot, int bundleSize) {
+        this.cacheRoot = cacheRoot;
+        this.bundleSize = bundleSize;
+    }
+
+    public int getBundleSize() {
+        return bundleSize;
+    }
+
+    /**
+     * Builds the bundle file containing the given tile
+     */
+    public File bundlePath(TileObject tile, MimeType mimeType) {
+        final long[] tileIndex = tile.getXYZ();
+        long z = tileIndex[2];
+
+        StringBuilder path = new StringBuilder(256);
+        path.append(cacheRoot);
+        path.append(File.separatorChar);
+        appendFiltered(tile.getLayerName(), path);
+        path.append(File.separatorChar);
+        appendGridsetZoomLevelDir(tile.getGridSetId(), z, path);
+        String parametersId = tile.getParametersId();
+        Map<String, String> parameters = tile.getParameters();
+        if (parametersId == null && parameters != null && !parameters.isEmpty()) {
+            parametersId = FilePathGenerator.getParametersId(parameters);
+            tile.setParametersId(parametersId);
+        }
+        if (parametersId != null) {
+            path.append('_');
+            path.append(parametersId);
+        }
+        path.append(File.separatorChar);
+        appendBundlePath(tileIndex[0], tileIndex[1], mimeType.getFileExtension(), path);
+
+        return new File(path.toString());
+    }
+
+    /**
+     * Builds the bundle file containing the given tile, relative to its zoom level directory
+     */
+    public File bundlePath(File zoomLevelDir, long x, long y, String fileExtension) {
+        StringBuilder path = new StringBuilder(64);
+        appendBundlePath(x, y, fileExtension, path);
+        return new File(zoomLevelDir, path.toString());
+    }
+
+    private void appendBundlePath(long x, long y, String fileExtension, StringBuilder path) {
+        final long bundleX = x / bundleSize;
+        final long bundleY = y / bundleSize;
+        path.append(bundleX / BUCKET_SIZE);
+        path.append('_');
+        path.append(bundleY / BUCKET_SIZE);
+        path.append(File.separatorChar);
+        appendBundleName(bundleX, bundleY, fileExtension, path);
+    }
+
+    static void appendBundleName(long bundleX, long bundleY, String fileExtension,
+            StringBuilder name) {
+        name.append(bundleX);
+        name.append('_');
+        name.append(bundleY);
+        name.append('.');
+        name.append(fileExtension);
+        name.append('.');
+        name.append(BUNDLE_EXTENSION);
+    }
+
+    /**
+     * Parses a bundle file name
+     *
+     * @return {@code [bundleX, bundleY]}, or {@code null} if the name is not the one of a bundle
+     *         for the given file extension
+     */
+    public static long[] parseBundleName(String fileName, String fileExtension) {
+        final String suffix = "." + fileExtension + "." + BUNDLE_EXTENSION;
+        if (!fileName.endsWith(suffix)) {
+            return null;
+        }
+        final int separator = fileName.indexOf('_');
+        final int end = fileName.length() - suffix.length();
+        if (separator <= 0 || separator >= end) {
+            return null;
+        }
+        try {
+            long bundleX = Long.parseLong(fileName.substring(0, separator));
+            long bundleY = Long.parseLong(fileName.substring(separator + 1, end));
+            return new long[] { bundleX, bundleY };
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Parses a bucket directory name
+     *
+     * @return {@code [bucketX, bucketY]}, or {@code null} if the name is not the one of a bucket
+     */
+    public static long[] parseBucketName(String dirName) {
+        final int separator = dirName.indexOf('_');
+        if (separator <= 0 || separator == dirName.length() - 1) {
+            return null;
+        }
+        try {
+            long bucketX = Long.parseLong(dirName.substring(0, separator));
+            long bucketY = Long.parseLong(dirName.substring(separator + 1));
+            return new long[] { bucketX, bucketY };
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,241 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.storage.blobstore.bundle;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geowebcache.io.FileResource;
+import org.geowebcache.io.Resource;
+import org.geowebcache.seed.SeedCheckpointStore;
+import org.geowebcache.storage.StorageException;
+import org.geowebcache.storage.blobstore.file.FileBlobStore;
+
+/**
+ * Migrates a {@link FileBlobStore} cache directory into the {@link BundleBlobStore} layout.
+ * <p>
+ * The conversion works at the directory level, so it does not need to know the layers and
+ * gridsets configured: each {@code <layer>/<gridset>_<zoom>[_<parametersId>]} directory of the
+ * source is mapped to the same directory in the target, and the tiles in its intermediate
+ * directories are appended to their bundles, one bundle at a time. Target and source can be the
+ * same directory, in which case the tile files are removed once converted.
+ * </p>
+ * <p>
+ * No blob store events are fired, tile sizes do not change so any disk quota information already
+ * gathered stays valid, and a disk quota scan of the converted cache reads the tiles from the
+ * bundle indexes. The conversion is meant to be run while the cache is not in use, e.g. from a
+ * Spring bean with {@code init-method="convert"} the blob store bean depends on.
+ * </p>
+ */
+public class FileBlobStoreConverter {
+
+    private static Log log = LogFactory.getLog(FileBlobStoreConverter.class);
+
+    /**
+     * Directories in the cache root that do not contain tiles: the temporary files and delete
+     * staging areas of {@link FileBlobStore}, and the seed job checkpoints
+     */
+    private static final Set<String> SKIPPED_DIRS = new HashSet<String>(Arrays.asList("tmp",
+            "_gwc_in_progress_deletes_", SeedCheckpointStore.CHECKPOINT_DIR));
+
+    private final File sourceRoot;
+
+    private final File targetRoot;
+
+    private final BundlePathGenerator pathGenerator;
+
+    private boolean deleteSource;
+
+    /**
+     * @param sourceRoot
+     *            the root of the {@link FileBlobStore} cache
+     * @param targetRoot
+     *            the root of the {@link BundleBlobStore} cache, may be the same as
+     *            {@code sourceRoot}
+     * @param bundleSize
+     *            the number of tiles per bundle side, must match the one of the target store
+     */
+    public FileBlobStoreConverter(String sourceRoot, String targetRoot, int bundleSize) {
+        this.sourceRoot = new File(sourceRoot);
+        this.targetRoot = new File(targetRoot);
+        this.pathGenerator = new BundlePathGenerator(targetRoot, bundleSize);
+        this.deleteSource = this.sourceRoot.getAbsoluteFile().equals(
+                this.targetRoot.getAbsoluteFile());
+    }
+
+    /**
+     * Whether to remove the tile files once converted, always {@code true} for in place
+     * conversions
+     */
+    public void setDeleteSource(boolean deleteSource) {
+        this.deleteSource = deleteSource;
+    }
+
+    public boolean isDeleteSource() {
+        return deleteSource;
+    }
+
+    /**
+     * Converts all the layers found in the source cache directory
+     *
+     * @return the number of tiles converted
+     */
+    public long convert() throws StorageException {
+        if (!sourceRoot.isDirectory()) {
+            log.info("No file cache to convert in " + sourceRoot.getAbsolutePath());
+            return 0;
+        }
+        long count = 0;
+        File[] layerDirs = sourceRoot.listFiles();
+        for (File layerDir : layerDirs) {
+            if (layerDir.isDirectory() && !SKIPPED_DIRS.contains(layerDir.getName())) {
+                count += convertLayer(layerDir);
+            }
+        }
+        log.info("Converted " + count + " tiles from " + sourceRoot.getAbsolutePath()
+                + " into bundles");
+        return count;
+    }
+
+    private long convertLayer(final File layerDir) throws StorageException {
+        final File targetLayerDir = new File(targetRoot, layerDir.getName());
+        long count = 0;
+        File[] zoomLevelDirs = layerDir.listFiles();
+        for (File zoomLevelDir : zoomLevelDirs) {
+            if (zoomLevelDir.isDirectory()) {
+                count += convertZoomLevel(zoomLevelDir,
+                        new File(targetLayerDir, zoomLevelDir.getName()));
+            } else if (zoomLevelDir.getName().equals("metadata.properties")
+                    && !targetLayerDir.equals(layerDir)) {
+                try {
+                    FileUtils.copyFileToDirectory(zoomLevelDir, targetLayerDir);
+                } catch (IOException e) {
+                    throw new StorageException("Unable to copy layer metadata "
+                            + zoomLevelDir.getAbsolutePath() + ": " + e.getMessage());
+                }
+            }
+        }
+        if (count > 0) {
+            log.info("Converted " + count + " tiles of " + layerDir.getName());
+        }
+        return count;
+    }
+
+    private long convertZoomLevel(File zoomLevelDir, File targetZoomLevelDir)
+            throws StorageException {
+        long count = 0;
+        File[] intermediates = zoomLevelDir.listFiles();
+        for (File intermediate : intermediates) {
+            if (intermediate.isDirectory()) {
+                count += convertIntermediate(intermediate, targetZoomLevelDir);
+            }
+        }
+        if (deleteSource && count > 0) {
+            // will be done only if the directory is empty
+            zoomLevelDir.delete();
+        }
+        return count;
+    }
+
+    /**
+     * Groups the tiles of a {@link FileBlobStore} intermediate directory by bundle and writes each
+     * group with a single bundle update
+     */
+    private long convertIntermediate(File intermediate, File targetZoomLevelDir)
+            throws StorageException {
+        Map<File, List<File>> tilesByBundle = new TreeMap<File, List<File>>();
+        Map<File, List<long[]>> coordsByBundle = new TreeMap<File, List<long[]>>();
+
+        File[] tiles = intermediate.listFiles();
+        for (File tile : tiles) {
+            final String name = tile.getName();
+            final int dot = name.lastIndexOf('.');
+            final int separator = name.indexOf('_');
+            if (dot <= 0 || separator <= 0 || separator > dot || !tile.isFile()) {
+                continue;
+            }
+            long x, y;
+            try {
+                x = Long.parseLong(name.substring(0, separator));
+                y = Long.parseLong(name.substring(separator + 1, dot));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            final String extension = name.substring(dot + 1);
+            if (BundlePathGenerator.BUNDLE_EXTENSION.equals(extension)) {
+                continue;
+            }
+            File bundleFile = pathGenerator.bundlePath(targetZoomLevelDir, x, y, extension);
+            List<File> bundleTiles = tilesByBundle.get(bundleFile);
+            if (bundleTiles == null) {
+                bundleTiles = new ArrayList<File>();
+                tilesByBundle.put(bundleFile, bundleTiles);
+                coordsByBundle.put(bundleFile, new ArrayList<long[]>());
+            }
+            bundleTiles.add(tile);
+            coordsByBundle.get(bundleFile).add(new long[] { x, y });
+        }
+
+        long count = 0;
+        final int bundleSize = pathGenerator.getBundleSize();
+        for (Map.Entry<File, List<File>> entry : tilesByBundle.entrySet()) {
+            final File bundleFile = entry.getKey();
+            final List<File> bundleTiles = entry.getValue();
+            final List<long[]> coords = coordsByBundle.get(bundleFile);
+            final Bundle bundle = new Bundle(bundleFile, bundleSize);
+
+            final int n = bundleTiles.size();
+            int[] indexes = new int[n];
+            Resource[] blobs = new Resource[n];
+            long[] created = new long[n];
+            for (int i = 0; i < n; i++) {
+                long[] xy = coords.get(i);
+                File tile = bundleTiles.get(i);
+                indexes[i] = bundle.indexOf(xy[0], xy[1]);
+                blobs[i] = new FileResource(tile);
+                created[i] = tile.lastModified();
+            }
+            try {
+                bundle.write(indexes, blobs, created);
+            } catch (IOException e) {
+                throw new StorageException("Unable to write bundle " + bundleFile.getAbsolutePath()
+                        + ": " + e.getMessage());
+            }
+            if (deleteSource) {
+                for (File tile : bundleTiles) {
+                    if (!tile.delete()) {
+                        log.warn("Unable to delete converted tile " + tile.getAbsolutePath());
+                    }
+                }
+            }
+            count += n;
+        }
+        if (deleteSource) {
+            // will be done only if the directory is empty
+            intermediate.delete();
+        }
+        return count;
+    }
+}
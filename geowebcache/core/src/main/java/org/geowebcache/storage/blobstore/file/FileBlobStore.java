@@ -30,10 +30,15 @@ import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
 import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
 import java.util.Properties;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.logging.Log;
@@ -47,6 +52,7 @@ import org.geowebcache.storage.BlobStore;
 import org.geowebcache.storage.BlobStoreListener;
 import org.geowebcache.storage.BlobStoreListenerList;
 import org.geowebcache.storage.DefaultStorageFinder;
+import org.geowebcache.storage.ExistenceCheckingBlobStore;
 import org.geowebcache.storage.StorageException;
 import org.geowebcache.storage.StorageObject.Status;
 import org.geowebcache.storage.TileObject;
@@ -57,7 +63,7 @@ import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
  * See BlobStore interface description for details
  * 
  */
-public class FileBlobStore implements BlobStore {
+public class FileBlobStore implements ExistenceCheckingBlobStore {
     private static Log log = LogFactory
             .getLog(org.geowebcache.storage.blobstore.file.FileBlobStore.class);
 
@@ -67,7 +73,7 @@ public class FileBlobStore implements BlobStore {
 
     private final String path;
 
-    private final BlobStoreListenerList listeners = new BlobStoreListenerList();
+    protected final BlobStoreListenerList listeners = new BlobStoreListenerList();
 
     private FilePathGenerator pathGenerator;
 
@@ -75,6 +81,21 @@ public class FileBlobStore implements BlobStore {
 
     private static ExecutorService deleteExecutorService;
 
+    /**
+     * A tile directory is listed when the tiles checked in it make up at least one in this many of
+     * the tiles it can hold, deeper zoom levels have very large directories
+     */
+    private static final int LIST_RATIO = 8;
+
+    public static final int DEFAULT_TRUNCATE_THREADS = 4;
+
+    private int truncateThreads = DEFAULT_TRUNCATE_THREADS;
+
+    /**
+     * The threads deleting tiles, shared by all the truncations, created on the first one
+     */
+    private ThreadPoolExecutor truncateExecutor;
+
     public FileBlobStore(DefaultStorageFinder defStoreFinder) throws StorageException, ConfigurationException {
         this(defStoreFinder.getDefaultPath());
     }
@@ -136,6 +157,13 @@ public class FileBlobStore implements BlobStore {
      */
     public void destroy() {
         deleteExecutorService.shutdownNow();
+        synchronized (this) {
+            if (truncateExecutor != null) {
+                // let running truncations finish the directories they queued
+                truncateExecutor.shutdown();
+                truncateExecutor = null;
+            }
+        }
     }
 
     private static class DefferredDirectoryDeleteTask implements Runnable {
@@ -208,22 +236,37 @@ public class FileBlobStore implements BlobStore {
             return false;
         }
 
+        if (!moveToStagingArea(source, targetName)) {
+            throw new IllegalStateException("Can't move " + source.getAbsolutePath()
+                    + " to the staging area for deletion");
+        }
+        return true;
+    }
+
+    /**
+     * Moves a directory to the staging area, from where it is deleted in the background
+     * 
+     * @return {@code false} if the directory could not be renamed
+     */
+    boolean moveToStagingArea(final File source, final String targetName)
+            throws StorageException {
         if (!stagingArea.exists() && !stagingArea.mkdirs()) {
             throw new StorageException("Can't create staging directory for deletes: "
                     + stagingArea.getAbsolutePath());
         }
 
-        File tmpFolder = new File(stagingArea, targetName);
-        int tries = 0;
-        while (tmpFolder.exists()) {
-            ++tries;
-            String dirName = filteredLayerName(targetName + "." + tries);
-            tmpFolder = new File(stagingArea, dirName);
-        }
-        boolean renamed = source.renameTo(tmpFolder);
-        if (!renamed) {
-            throw new IllegalStateException("Can't rename " + source.getAbsolutePath() + " to "
-                    + tmpFolder.getAbsolutePath() + " for deletion");
+        File tmpFolder;
+        synchronized (stagingArea) {
+            tmpFolder = new File(stagingArea, targetName);
+            int tries = 0;
+            while (tmpFolder.exists()) {
+                ++tries;
+                String dirName = filteredLayerName(targetName + "." + tries);
+                tmpFolder = new File(stagingArea, dirName);
+            }
+            if (!source.renameTo(tmpFolder)) {
+                return false;
+            }
         }
         deletePending(tmpFolder);
         return true;
@@ -301,7 +344,7 @@ public class FileBlobStore implements BlobStore {
         return renamed;
     }
 
-    private File getLayerPath(String layerName) {
+    protected File getLayerPath(String layerName) {
         String prefix = path + File.separator + filteredLayerName(layerName);
 
         File layerPath = new File(prefix);
@@ -340,11 +383,10 @@ public class FileBlobStore implements BlobStore {
     }
 
     /**
-     * Delete tiles within a range.
+     * Delete tiles within a range, using {@link #getTruncateThreads()} threads. Tile directories
+     * fully inside the range are moved to the delete staging area as a whole.
      */
     public boolean delete(TileRange trObj) throws StorageException {
-        int count = 0;
-
         String prefix = path + File.separator
                 + filteredLayerName(trObj.getLayerName());
 
@@ -359,49 +401,15 @@ public class FileBlobStore implements BlobStore {
         if (!layerPath.isDirectory() || !layerPath.canWrite()) {
             throw new StorageException(prefix + " does is not a directory or is not writable.");
         }
-        
-        final FilePathFilter tileFinder = new FilePathFilter(trObj);
-
-        final String layerName = trObj.getLayerName();
-        final String gridSetId = trObj.getGridSetId();
-        final String blobFormat = trObj.getMimeType().getFormat();
-        final String parametersId = trObj.getParametersId();
-
-        File[] srsZoomDirs = layerPath.listFiles(tileFinder);
-
-        final String gridsetPrefix = filteredGridSetId(gridSetId);
-        for (File srsZoomParamId : srsZoomDirs) {
-            int zoomLevel = findZoomLevel(gridsetPrefix, srsZoomParamId.getName());
-            File[] intermediates = srsZoomParamId.listFiles(tileFinder);
-
-            for (File imd : intermediates) {
-                File[] tiles = imd.listFiles(tileFinder);
-                long length;
-
-                for (File tile : tiles) {
-                    length = tile.length();
-                    boolean deleted = tile.delete();
-                    if (deleted) {
-                        String[] coords = tile.getName().split("\\.")[0].split("_");
-                        long x = Long.parseLong(coords[0]);
-                        long y = Long.parseLong(coords[1]);
-                        listeners.sendTileDeleted(layerName, gridSetId, blobFormat, parametersId,
-                                x, y, zoomLevel, length);
-                        count++;
-                    }
-                }
-
-                // Try deleting the directory (will be done only if the directory is empty)
-                if (imd.delete()) {
-                    // listeners.sendDirectoryDeleted(layerName);
-                }
-            }
 
-            // Try deleting the zoom directory (will be done only if the directory is empty)
-            if (srsZoomParamId.delete()) {
-                count++;
-                // listeners.sendDirectoryDeleted(layerName);
-            }
+        long count;
+        try {
+            count = new TileRangeDeleter(this, listeners, trObj).delete(layerPath,
+                    getTruncateExecutor());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.info("Truncation of " + trObj.getLayerName() + " interrupted");
+            return false;
         }
 
         log.info("Truncated " + count + " tiles");
@@ -409,6 +417,31 @@ public class FileBlobStore implements BlobStore {
         return true;
     }
 
+    private synchronized ThreadPoolExecutor getTruncateExecutor() {
+        if (truncateExecutor == null) {
+            truncateExecutor = TileRangeDeleter.newExecutor(truncateThreads);
+        }
+        return truncateExecutor;
+    }
+
+    /**
+     * @return the number of threads deleting tiles when truncating a tile range
+     */
+    public int getTruncateThreads() {
+        return truncateThreads;
+    }
+
+    public synchronized void setTruncateThreads(int truncateThreads) {
+        if (truncateThreads < 1) {
+            throw new IllegalArgumentException("At least one truncate thread is needed");
+        }
+        if (truncateExecutor != null && truncateThreads != this.truncateThreads) {
+            truncateExecutor.shutdown();
+            truncateExecutor = null;
+        }
+        this.truncateThreads = truncateThreads;
+    }
+
     /**
      * Set the blob property of a TileObject.
      * @param stObj the tile to load.  Its setBlob() method will be called.
@@ -428,6 +461,58 @@ public class FileBlobStore implements BlobStore {
         }
     }
 
+    /**
+     * Checks the tiles directory by directory. A missing directory means none of its tiles are
+     * stored, and a directory holding a good share of the tiles to check is listed once rather
+     * than looking up each tile file.
+     */
+    public BitSet exists(final TileRange tileRange, final long[] bounds) throws StorageException {
+        final long minX = bounds[0];
+        final long minY = bounds[1];
+        final long maxX = bounds[2];
+        final long maxY = bounds[3];
+        final int z = (int) bounds[4];
+        final long width = 1 + maxX - minX;
+        final String extension = tileRange.getMimeType().getFileExtension();
+        final long bucketSize = FilePathGenerator.bucketSize(z);
+
+        BitSet stored = new BitSet();
+        for (long bucketY = minY / bucketSize; bucketY <= maxY / bucketSize; bucketY++) {
+            final long y0 = Math.max(minY, bucketY * bucketSize);
+            final long y1 = Math.min(maxY, (bucketY + 1) * bucketSize - 1);
+            for (long bucketX = minX / bucketSize; bucketX <= maxX / bucketSize; bucketX++) {
+                final long x0 = Math.max(minX, bucketX * bucketSize);
+                final long x1 = Math.min(maxX, (bucketX + 1) * bucketSize - 1);
+                final File directory = pathGenerator.tileDirectory(tileRange.getLayerName(),
+                        tileRange.getGridSetId(), tileRange.getParametersId(), x0, y0, z);
+
+                Set<String> names = null;
+                final long tiles = (1 + x1 - x0) * (1 + y1 - y0);
+                if (tiles * LIST_RATIO >= bucketSize * bucketSize) {
+                    String[] list = directory.list();
+                    if (list == null) {
+                        continue;
+                    }
+                    names = new HashSet<String>(Arrays.asList(list));
+                } else if (!directory.isDirectory()) {
+                    continue;
+                }
+
+                for (long y = y0; y <= y1; y++) {
+                    for (long x = x0; x <= x1; x++) {
+                        String name = FilePathGenerator.tileFileName(x, y, z, extension);
+                        boolean found = names == null ? new File(directory, name).exists()
+                                : names.contains(name);
+                        if (found) {
+                            stored.set((int) ((y - minY) * width + (x - minX)));
+                        }
+                    }
+                }
+            }
+        }
+        return stored;
+    }
+
     /**
      * Store a tile.
      */
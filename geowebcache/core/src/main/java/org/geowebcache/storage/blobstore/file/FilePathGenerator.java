@@ -63,30 +63,72 @@ public class FilePathGenerator {
         long y = tileIndex[1];
         long z = tileIndex[2];
 
+        String parametersId = tile.getParametersId();
+        Map<String, String> parameters = tile.getParameters();
+        if (parametersId == null && parameters != null && !parameters.isEmpty()) {
+            parametersId = getParametersId(parameters);
+            tile.setParametersId(parametersId);
+        }
+
+        StringBuilder path = new StringBuilder(256);
+        appendTileDirectory(tile.getLayerName(), tile.getGridSetId(), parametersId, x, y, z, path);
+        path.append(File.separatorChar);
+        appendTileName(x, y, z, mimeType.getFileExtension(), path);
+
+        File tileFile = new File(path.toString());
+        return tileFile;
+    }
+
+    /**
+     * Builds the path of the directory holding the given tile, along with the other tiles of the
+     * same {@link #bucketSize(long) bucket}
+     */
+    public File tileDirectory(String layerName, String gridSetId, String parametersId, long x,
+            long y, long z) {
         StringBuilder path = new StringBuilder(256);
+        appendTileDirectory(layerName, gridSetId, parametersId, x, y, z, path);
+        return new File(path.toString());
+    }
 
+    /**
+     * @return the name of the tile file inside its directory
+     */
+    public static String tileFileName(long x, long y, long z, String fileExtension) {
+        StringBuilder name = new StringBuilder(32);
+        appendTileName(x, y, z, fileExtension, name);
+        return name.toString();
+    }
+
+    /**
+     * @return the number of tiles per side of the directories the tiles of the given zoom level
+     *         are spread into
+     */
+    public static long bucketSize(long z) {
         long shift = z / 2;
-        long half = 2 << shift;
+        return 2 << shift;
+    }
+
+    private static int digits(long z) {
+        long half = bucketSize(z);
         int digits = 1;
         if (half > 10) {
             digits = (int) (Math.log10(half)) + 1;
         }
+        return digits;
+    }
+
+    private void appendTileDirectory(String layerName, String gridSetId, String parametersId,
+            long x, long y, long z, StringBuilder path) {
+        long half = bucketSize(z);
+        int digits = digits(z);
         long halfx = x / half;
         long halfy = y / half;
 
-        String fileExtension = mimeType.getFileExtension();
-
         path.append(cacheRoot);
         path.append(File.separatorChar);
-        appendFiltered(tile.getLayerName(), path);
+        appendFiltered(layerName, path);
         path.append(File.separatorChar);
-        appendGridsetZoomLevelDir(tile.getGridSetId(), z, path);
-        String parametersId = tile.getParametersId();
-        Map<String, String> parameters = tile.getParameters();
-        if (parametersId == null && parameters != null && !parameters.isEmpty()) {
-            parametersId = getParametersId(parameters);
-            tile.setParametersId(parametersId);
-        }
+        appendGridsetZoomLevelDir(gridSetId, z, path);
         if(parametersId != null) {
             path.append('_');
             path.append(parametersId);
@@ -95,16 +137,16 @@ public class FilePathGenerator {
         zeroPadder(halfx, digits, path);
         path.append('_');
         zeroPadder(halfy, digits, path);
-        path.append(File.separatorChar);
+    }
 
+    private static void appendTileName(long x, long y, long z, String fileExtension,
+            StringBuilder path) {
+        int digits = digits(z);
         zeroPadder(x, 2 * digits, path);
         path.append('_');
         zeroPadder(y, 2 * digits, path);
         path.append('.');
         path.append(fileExtension);
-
-        File tileFile = new File(path.toString());
-        return tileFile;
     }
 
     protected static String buildKey(String parametersKvp) {
@@ -0,0 +1,343 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.storage.blobstore.file;
+
+import static org.geowebcache.storage.blobstore.file.FilePathUtils.filteredGridSetId;
+import static org.geowebcache.storage.blobstore.file.FilePathUtils.filteredLayerName;
+import static org.geowebcache.storage.blobstore.file.FilePathUtils.findZoomLevel;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geowebcache.storage.BatchBlobStoreListener;
+import org.geowebcache.storage.BlobStoreListenerList;
+import org.geowebcache.storage.DiscontinuousTileRange;
+import org.geowebcache.storage.StorageException;
+import org.geowebcache.storage.TileEventBuffer;
+import org.geowebcache.storage.TileRange;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+/**
+ * Deletes the tiles of a {@link TileRange} from the directory of a layer in a
+ * {@link FileBlobStore}.
+ * <p>
+ * The tile directories of all the zoom levels are handed to the pool of threads of the store as
+ * soon as their zoom level directory is read. Directories are read as plain lists of names, and
+ * the tile coordinates are parsed out of the names without creating intermediate strings. A tile
+ * directory whose tiles all fall in the range is moved to the delete staging area as a whole and
+ * removed in the background; only the sizes of its tiles are read, and only if there are
+ * listeners to tell. Listeners are told of the deleted tiles of each directory at once, see
+ * {@link BatchBlobStoreListener#tilesDeleted}.
+ * </p>
+ */
+class TileRangeDeleter {
+
+    private static Log log = LogFactory.getLog(TileRangeDeleter.class);
+
+    /**
+     * Tile directories waiting for a thread, per thread. Once the queue is full the calling
+     * threads delete tiles too.
+     */
+    private static final int QUEUE_SIZE_PER_THREAD = 16;
+
+    /**
+     * Maximum number of tiles per {@link BatchBlobStoreListener#tilesDeleted} event
+     */
+    private static final int EVENT_BATCH_SIZE = 1024;
+
+    private final FileBlobStore store;
+
+    private final BlobStoreListenerList listeners;
+
+    private final TileRange tr;
+
+    private final String layerName;
+
+    private final String gridSetId;
+
+    private final String blobFormat;
+
+    private final String parametersId;
+
+    private final String extension;
+
+    private final String gridsetPrefix;
+
+    /**
+     * Whether whole tile directories can be moved away, they cannot when the range has holes
+     */
+    private final boolean prune;
+
+    private final AtomicLong deleted = new AtomicLong();
+
+    private volatile boolean cancelled;
+
+    /**
+     * The first error of the deleting threads
+     */
+    private final AtomicReference<RuntimeException> failure =
+            new AtomicReference<RuntimeException>();
+
+    TileRangeDeleter(FileBlobStore store, BlobStoreListenerList listeners, TileRange tr) {
+        this.store = store;
+        this.listeners = listeners;
+        this.tr = tr;
+        this.layerName = tr.getLayerName();
+        this.gridSetId = tr.getGridSetId();
+        this.blobFormat = tr.getMimeType().getFormat();
+        this.parametersId = tr.getParametersId();
+        this.extension = tr.getMimeType().getFileExtension();
+        this.gridsetPrefix = filteredGridSetId(gridSetId);
+        this.prune = !(tr instanceof DiscontinuousTileRange);
+    }
+
+    /**
+     * Creates the pool of threads shared by the deletions of a store. Tasks the pool has no room
+     * for, or submitted once it is shut down, run in the calling thread.
+     * 
+     * @param threads
+     *            the number of threads deleting tiles, besides the calling ones
+     */
+    static ThreadPoolExecutor newExecutor(int threads) {
+        CustomizableThreadFactory tf = new CustomizableThreadFactory(
+                "GWC FileStore truncate thread-");
+        tf.setDaemon(true);
+        return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(threads * QUEUE_SIZE_PER_THREAD), tf,
+                new RejectedExecutionHandler() {
+                    public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+                        task.run();
+                    }
+                });
+    }
+
+    /**
+     * @param layerPath
+     *            the directory of the layer
+     * @param executor
+     *            the threads deleting tiles, see {@link #newExecutor(int)}
+     * @return the number of tiles deleted
+     */
+    long delete(final File layerPath, final Executor executor) throws StorageException,
+            InterruptedException {
+        final FilePathFilter zoomLevelFilter = new FilePathFilter(tr);
+        final String[] zoomLevelNames = layerPath.list();
+        if (zoomLevelNames == null) {
+            return 0;
+        }
+
+        // released by each tile directory once done
+        final Semaphore done = new Semaphore(0);
+        int submitted = 0;
+        List<File> zoomLevelDirs = new ArrayList<File>();
+        try {
+            for (String zoomLevelName : zoomLevelNames) {
+                if (!zoomLevelName.startsWith(gridsetPrefix + "_")
+                        || !zoomLevelFilter.accept(layerPath, zoomLevelName)) {
+                    continue;
+                }
+                final File zoomLevelDir = new File(layerPath, zoomLevelName);
+                final String[] bucketNames = zoomLevelDir.list();
+                if (bucketNames == null) {
+                    continue;
+                }
+                zoomLevelDirs.add(zoomLevelDir);
+                final int zoomLevel = findZoomLevel(gridsetPrefix, zoomLevelName);
+                for (final String bucketName : bucketNames) {
+                    if (Thread.interrupted()) {
+                        throw new InterruptedException();
+                    }
+                    submitted++;
+                    executor.execute(new Runnable() {
+                        public void run() {
+                            try {
+                                if (!cancelled) {
+                                    deleteBucket(zoomLevelDir, bucketName, zoomLevel);
+                                }
+                            } catch (RuntimeException e) {
+                                failure.compareAndSet(null, e);
+                            } finally {
+                                done.release();
+                            }
+                        }
+                    });
+                }
+            }
+            done.acquire(submitted);
+        } catch (InterruptedException e) {
+            // the directories still queued are skipped
+            cancelled = true;
+            throw e;
+        }
+
+        if (failure.get() != null) {
+            throw new StorageException("Truncation of " + layerName + " failed: "
+                    + failure.get().getMessage());
+        }
+        for (File zoomLevelDir : zoomLevelDirs) {
+            // Try deleting the zoom directory (will be done only if the directory is empty)
+            zoomLevelDir.delete();
+        }
+        return deleted.get();
+    }
+
+    private void deleteBucket(final File zoomLevelDir, final String bucketName,
+            final int zoomLevel) {
+        final long[] bucket = new long[2];
+        if (!parseCoordinates(bucketName, null, bucket)) {
+            return;
+        }
+        final File bucketDir = new File(zoomLevelDir, bucketName);
+        final String[] names = bucketDir.list();
+        if (names == null) {
+            return;
+        }
+
+        final long[] xy = new long[2];
+        final long bucketSize = FilePathGenerator.bucketSize(zoomLevel);
+        if (prune && covers(zoomLevel, bucket[0] * bucketSize, bucket[1] * bucketSize, bucketSize)
+                && pruneBucket(zoomLevelDir, bucketDir, names, zoomLevel)) {
+            return;
+        }
+
+        final boolean notify = !listeners.isEmpty();
+        final TileEventBuffer events = notify ? new TileEventBuffer(listeners, true, Math.min(
+                names.length, EVENT_BATCH_SIZE)) : null;
+        for (String name : names) {
+            if (!parseCoordinates(name, extension, xy) || !tr.contains(xy[0], xy[1], zoomLevel)) {
+                continue;
+            }
+            File tile = new File(bucketDir, name);
+            long length = notify ? tile.length() : 0;
+            if (tile.delete()) {
+                deleted.incrementAndGet();
+                if (notify) {
+                    events.add(layerName, gridSetId, blobFormat, parametersId, xy[0], xy[1],
+                            zoomLevel, length);
+                }
+            }
+        }
+        if (notify) {
+            events.flush();
+        }
+
+        // Try deleting the directory (will be done only if the directory is empty)
+        bucketDir.delete();
+    }
+
+    /**
+     * Moves a tile directory fully inside the range to the staging area
+     *
+     * @return {@code false} if the directory holds other files than tiles of the range format, or
+     *         could not be moved
+     */
+    private boolean pruneBucket(final File zoomLevelDir, final File bucketDir,
+            final String[] names, final int zoomLevel) {
+        final long[] x = new long[names.length];
+        final long[] y = new long[names.length];
+        final long[] xy = new long[2];
+        for (int i = 0; i < names.length; i++) {
+            if (!parseCoordinates(names[i], extension, xy)) {
+                return false;
+            }
+            x[i] = xy[0];
+            y[i] = xy[1];
+        }
+
+        final boolean notify = !listeners.isEmpty();
+        final long[] lengths = new long[names.length];
+        if (notify) {
+            for (int i = 0; i < names.length; i++) {
+                lengths[i] = new File(bucketDir, names[i]).length();
+            }
+        }
+
+        final String targetName = filteredLayerName(layerName) + "_" + zoomLevelDir.getName()
+                + "_" + bucketDir.getName();
+        try {
+            if (!store.moveToStagingArea(bucketDir, targetName)) {
+                return false;
+            }
+        } catch (StorageException e) {
+            log.debug(e.getMessage());
+            return false;
+        }
+
+        deleted.addAndGet(names.length);
+        if (notify) {
+            listeners.sendTilesDeleted(layerName, gridSetId, blobFormat, parametersId, zoomLevel,
+                    x, y, lengths, names.length);
+        }
+        return true;
+    }
+
+    /**
+     * @return whether the range, which has no holes, contains all the tiles of the given square
+     */
+    private boolean covers(int zoomLevel, long minX, long minY, long size) {
+        return tr.contains(minX, minY, zoomLevel)
+                && tr.contains(minX + size - 1, minY + size - 1, zoomLevel);
+    }
+
+    /**
+     * Parses names like {@code 0012_0034.png}, or {@code 3_4} if no extension is given
+     *
+     * @param xy
+     *            receives the two numbers
+     * @return {@code false} if the name does not match
+     */
+    static boolean parseCoordinates(String name, String extension, long[] xy) {
+        final int length = name.length();
+        int i = 0;
+        for (int c = 0; c < 2; c++) {
+            final int start = i;
+            long value = 0;
+            while (i < length) {
+                char ch = name.charAt(i);
+                if (ch < '0' || ch > '9') {
+                    break;
+                }
+                value = value * 10 + (ch - '0');
+                i++;
+            }
+            if (i == start || i - start > 18) {
+                return false;
+            }
+            xy[c] = value;
+            if (c == 0) {
+                if (i == length || name.charAt(i) != '_') {
+                    return false;
+                }
+                i++;
+            }
+        }
+        if (extension == null) {
+            return i == length;
+        }
+        return i < length && name.charAt(i) == '.' && length - i - 1 == extension.length()
+                && name.regionMatches(true, i + 1, extension, 0, extension.length());
+    }
+}
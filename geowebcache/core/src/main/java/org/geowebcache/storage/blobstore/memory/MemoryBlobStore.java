@@ -0,0 +1,283 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.storage.blobstore.memory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.BitSet;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geowebcache.io.ByteArrayResource;
+import org.geowebcache.io.DirectBufferPool;
+import org.geowebcache.io.Resource;
+import org.geowebcache.io.Resources;
+import org.geowebcache.storage.BatchBlobStoreListener;
+import org.geowebcache.storage.BlobStore;
+import org.geowebcache.storage.BlobStoreListener;
+import org.geowebcache.storage.BlobStores;
+import org.geowebcache.storage.ExistenceCheckingBlobStore;
+import org.geowebcache.storage.StorageException;
+import org.geowebcache.storage.TileKey;
+import org.geowebcache.storage.TileObject;
+import org.geowebcache.storage.TileRange;
+
+/**
+ * A {@link BlobStore} keeping the most recently used tiles of another blob store in a
+ * {@link TileCache}, so that popular tiles are served without going to the backing store.
+ * <p>
+ * All the operations are delegated to the backing store, and the cache is kept consistent by
+ * listening to its events: tiles are removed from the cache when updated or deleted, and
+ * invalidated altogether when their layer or gridset is deleted or renamed. Tiles get cached when
+ * read, not when stored, to avoid seeding pushing the popular tiles out of the cache.
+ * </p>
+ */
+public class MemoryBlobStore implements ExistenceCheckingBlobStore {
+
+    private static Log log = LogFactory.getLog(MemoryBlobStore.class);
+
+    public static final long DEFAULT_CACHE_SIZE = 64 * 1024 * 1024;
+
+    public static final int DEFAULT_CONCURRENCY_LEVEL = 16;
+
+    private final BlobStore store;
+
+    private final TileCache cache;
+
+    private final BlobStoreListener invalidator = new BatchBlobStoreListener() {
+
+        public void tileStored(String layerName, String gridSetId, String blobFormat,
+                String parametersId, long x, long y, int z, long blobSize) {
+            cache.invalidate(new TileKey(layerName, gridSetId, blobFormat, parametersId, x, y, z));
+        }
+
+        public void tileDeleted(String layerName, String gridSetId, String blobFormat,
+                String parametersId, long x, long y, int z, long blobSize) {
+            cache.invalidate(new TileKey(layerName, gridSetId, blobFormat, parametersId, x, y, z));
+        }
+
+        public void tileUpdated(String layerName, String gridSetId, String blobFormat,
+                String parametersId, long x, long y, int z, long blobSize, long oldSize) {
+            cache.invalidate(new TileKey(layerName, gridSetId, blobFormat, parametersId, x, y, z));
+        }
+
+        public void tilesStored(String layerName, String gridSetId, String blobFormat,
+                String parametersId, int z, long[] x, long[] y, long[] blobSizes, int count) {
+            for (int i = 0; i < count; i++) {
+                cache.invalidate(new TileKey(layerName, gridSetId, blobFormat, parametersId, x[i],
+                        y[i], z));
+            }
+        }
+
+        public void tilesDeleted(String layerName, String gridSetId, String blobFormat,
+                String parametersId, int z, long[] x, long[] y, long[] blobSizes, int count) {
+            for (int i = 0; i < count; i++) {
+                cache.invalidate(new TileKey(layerName, gridSetId, blobFormat, parametersId, x[i],
+                        y[i], z));
+            }
+        }
+
+        public void layerDeleted(String layerName) {
+            cache.invalidateLayer(layerName);
+        }
+
+        public void layerRenamed(String oldLayerName, String newLayerName) {
+            cache.invalidateLayer(oldLayerName);
+            cache.invalidateLayer(newLayerName);
+        }
+
+        public void gridSubsetDeleted(String layerName, String gridSetId) {
+            cache.invalidateGridSet(layerName, gridSetId);
+        }
+    };
+
+    public MemoryBlobStore(BlobStore store) {
+        this(store, DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * @param store
+     *            the backing blob store
+     * @param cacheSize
+     *            the maximum size of the cached tiles, in bytes
+     */
+    public MemoryBlobStore(BlobStore store, long cacheSize) {
+        this(store, cacheSize, DEFAULT_CONCURRENCY_LEVEL);
+    }
+
+    /**
+     * @param store
+     *            the backing blob store
+     * @param cacheSize
+     *            the maximum size of the cached tiles, in bytes
+     * @param concurrencyLevel
+     *            the number of independently locked cache segments
+     */
+    public MemoryBlobStore(BlobStore store, long cacheSize, int concurrencyLevel) {
+        this(store, cacheSize, concurrencyLevel, false);
+    }
+
+    /**
+     * @param store
+     *            the backing blob store
+     * @param cacheSize
+     *            the maximum size of the cached tiles, in bytes
+     * @param concurrencyLevel
+     *            the number of independently locked cache segments
+     * @param offHeap
+     *            whether to keep the cached tiles in the {@link DirectBufferPool#getDefault()
+     *            default direct buffer pool} instead of the heap
+     */
+    public MemoryBlobStore(BlobStore store, long cacheSize, int concurrencyLevel,
+            boolean offHeap) {
+        this.store = store;
+        this.cache = new TileCache(cacheSize, concurrencyLevel,
+                offHeap ? DirectBufferPool.getDefault() : null);
+        store.addListener(invalidator);
+        log.info("Caching up to " + (cacheSize / 1024) + "KB of tiles in memory");
+    }
+
+    public TileCache getCache() {
+        return cache;
+    }
+
+    public BlobStore getStore() {
+        return store;
+    }
+
+    /**
+     * Serves the tile from the cache, or loads it from the backing store and caches it. Off heap
+     * hits are served straight from the cache buffers, which go back to the pool once evicted and
+     * the tile garbage collected.
+     */
+    public boolean get(TileObject obj) throws StorageException {
+        final TileKey key = TileKey.create(obj);
+        TileCache.CachedTile cached = cache.get(key);
+        if (cached != null) {
+            obj.setBlob(cached.getResource());
+            obj.setBlobSize(cached.getSize());
+            obj.setCreated(cached.getCreated());
+            return true;
+        }
+
+        final long stamp = cache.stamp(key);
+        if (!store.get(obj)) {
+            return false;
+        }
+        final byte[] contents;
+        try {
+            contents = readContents(obj.getBlob());
+        } catch (IOException e) {
+            throw new StorageException("Unable to read " + obj + ": " + e.getMessage());
+        }
+        obj.setBlob(new ByteArrayResource(contents));
+        cache.put(key, contents, obj.getCreated(), stamp);
+        return true;
+    }
+
+    private byte[] readContents(Resource blob) throws IOException {
+        if (blob instanceof ByteArrayResource) {
+            byte[] contents = ((ByteArrayResource) blob).getContents();
+            return contents == null ? new byte[0] : contents;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.max(blob.getSize(), 0));
+        Resources.transferTo(blob, out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Checks the backing store, which holds all the cached tiles
+     */
+    public BitSet exists(TileRange tileRange, long[] bounds) throws StorageException {
+        return BlobStores.exists(store, tileRange, bounds);
+    }
+
+    public void put(TileObject obj) throws StorageException {
+        store.put(obj);
+        // in case the backing store did not send any event
+        cache.invalidate(TileKey.create(obj));
+    }
+
+    public boolean delete(TileObject obj) throws StorageException {
+        boolean deleted = store.delete(obj);
+        cache.invalidate(TileKey.create(obj));
+        return deleted;
+    }
+
+    /**
+     * The cached tiles in the range are invalidated by the tile deletion events of the backing
+     * store
+     */
+    public boolean delete(TileRange obj) throws StorageException {
+        return store.delete(obj);
+    }
+
+    public boolean delete(String layerName) throws StorageException {
+        try {
+            return store.delete(layerName);
+        } finally {
+            cache.invalidateLayer(layerName);
+        }
+    }
+
+    public boolean deleteByGridsetId(String layerName, String gridSetId) throws StorageException {
+        try {
+            return store.deleteByGridsetId(layerName, gridSetId);
+        } finally {
+            cache.invalidateGridSet(layerName, gridSetId);
+        }
+    }
+
+    public boolean rename(String oldLayerName, String newLayerName) throws StorageException {
+        try {
+            return store.rename(oldLayerName, newLayerName);
+        } finally {
+            cache.invalidateLayer(oldLayerName);
+            cache.invalidateLayer(newLayerName);
+        }
+    }
+
+    public void clear() throws StorageException {
+        try {
+            store.clear();
+        } finally {
+            cache.clear();
+        }
+    }
+
+    public void destroy() {
+        log.info("Destroying memory cache, hits: " + cache.getHitCount() + ", misses: "
+                + cache.getMissCount() + ", evictions: " + cache.getEvictionCount());
+        cache.clear();
+        store.removeListener(invalidator);
+        store.destroy();
+    }
+
+    public void addListener(BlobStoreListener listener) {
+        store.addListener(listener);
+    }
+
+    public boolean removeListener(BlobStoreListener listener) {
+        return store.removeListener(listener);
+    }
+
+    public String getLayerMetadata(String layerName, String key) {
+        return store.getLayerMetadata(layerName, key);
+    }
+
+    public void putLayerMetadata(String layerName, String key, String value) {
+        store.putLayerMetadata(layerName, key, value);
+    }
+}
@@ -0,0 +1,613 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.storage.blobstore.memory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.geowebcache.io.ByteArrayResource;
+import org.geowebcache.io.DirectBufferPool;
+import org.geowebcache.io.PooledResource;
+import org.geowebcache.io.Resource;
+import org.geowebcache.io.StreamableResource;
+import org.geowebcache.storage.TileKey;
+
+/**
+ * A bounded, thread safe, in memory cache of tile contents.
+ * <p>
+ * The cache is split in segments, each one guarded by its own lock and holding an access ordered
+ * map of the tiles whose keys hash to it. Each segment gets an equal share of the total size
+ * limit, which is expressed in bytes of tile contents, and evicts its least recently used tiles
+ * when going over it. Tiles too big for a segment are not cached at all.
+ * </p>
+ * <p>
+ * Each segment also counts the invalidations it went through, {@link #put} takes the count
+ * {@link #stamp} returned before the tile was read from the backing store and discards the tile
+ * if it changed meanwhile, so that a tile read concurrently with its update or deletion is not
+ * cached with stale contents.
+ * </p>
+ * <p>
+ * When given a {@link DirectBufferPool} the tile contents are kept in pooled direct buffers rather
+ * than in the heap, and hits read them in place through a read only view, nothing is copied. Each
+ * buffer counts the hits still reading it and only goes back to the pool once evicted and no
+ * longer read. Hits should be {@link CachedTile#release() released} when done, the ones that are
+ * not, like the tiles handed over to the servlet responses, release their buffer once garbage
+ * collected.
+ * </p>
+ */
+public class TileCache {
+
+    /**
+     * Scratch buffer used to copy direct buffers into output streams
+     */
+    private static final ThreadLocal<byte[]> COPY_BUFFER = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[8192];
+        }
+    };
+
+    /**
+     * A cache hit. Heap contents are shared among all the readers and must not be modified, off
+     * heap ones are read through a view that stays valid until the hit is released.
+     */
+    public static final class CachedTile {
+
+        private final Entry entry;
+
+        private final ByteBuffer view;
+
+        private final Hold hold;
+
+        /**
+         * Written after each use of the view, so that the hit stays reachable, and its buffer
+         * out of the pool, while being read
+         */
+        private volatile int reads;
+
+        private CachedTile(Entry entry) {
+            this.entry = entry;
+            this.view = null;
+            this.hold = null;
+        }
+
+        private CachedTile(Entry entry, TileCache cache) {
+            this.entry = entry;
+            this.view = entry.view.duplicate();
+            this.hold = new Hold(this, entry, cache);
+        }
+
+        /**
+         * @return the heap contents, or {@code null} if the tile is kept off heap
+         */
+        public byte[] getContents() {
+            return entry.contents;
+        }
+
+        /**
+         * @return the tile contents as a read only resource, off heap ones are valid until the hit
+         *         is released
+         */
+        public Resource getResource() {
+            if (view == null) {
+                return new ByteArrayResource(entry.contents);
+            }
+            return new OffHeapResource(this);
+        }
+
+        public int getSize() {
+            return entry.size;
+        }
+
+        public long getCreated() {
+            return entry.created;
+        }
+
+        /**
+         * Stops reading an off heap tile, letting its buffer go back to the pool once evicted. Does
+         * nothing for heap tiles or if already released.
+         */
+        public void release() {
+            if (hold != null) {
+                hold.release();
+            }
+        }
+
+        ByteBuffer view() {
+            return view.duplicate();
+        }
+
+        void touch() {
+            reads++;
+        }
+    }
+
+    /**
+     * A cached tile, referenced by the cache until evicted and by each of its hits until released
+     */
+    private static final class Entry {
+
+        final byte[] contents;
+
+        final PooledResource offHeap;
+
+        final ByteBuffer view;
+
+        final int size;
+
+        final long created;
+
+        final CachedTile shared;
+
+        final AtomicInteger references = new AtomicInteger(1);
+
+        Entry(byte[] contents, long created) {
+            this.contents = contents;
+            this.offHeap = null;
+            this.view = null;
+            this.size = contents.length;
+            this.created = created;
+            this.shared = new CachedTile(this);
+        }
+
+        Entry(PooledResource offHeap, long created) {
+            this.contents = null;
+            this.offHeap = offHeap;
+            this.view = offHeap.getByteBuffer();
+            this.size = (int) offHeap.getSize();
+            this.created = created;
+            this.shared = null;
+        }
+
+        void unref() {
+            if (offHeap != null && references.decrementAndGet() == 0) {
+                offHeap.release();
+            }
+        }
+    }
+
+    /**
+     * Tracks an off heap hit, releasing it if garbage collected before being released
+     */
+    private static final class Hold extends PhantomReference<CachedTile> {
+
+        final Entry entry;
+
+        final TileCache cache;
+
+        Hold(CachedTile tile, Entry entry, TileCache cache) {
+            super(tile, cache.collected);
+            this.entry = entry;
+            this.cache = cache;
+            cache.holds.put(this, Boolean.TRUE);
+        }
+
+        void release() {
+            if (cache.holds.remove(this) != null) {
+                clear();
+                entry.unref();
+            }
+        }
+    }
+
+    /**
+     * The read only contents of an off heap hit
+     */
+    private static final class OffHeapResource implements StreamableResource {
+
+        private final CachedTile tile;
+
+        OffHeapResource(CachedTile tile) {
+            this.tile = tile;
+        }
+
+        public long getSize() {
+            return tile.getSize();
+        }
+
+        public long getLastModified() {
+            return tile.getCreated();
+        }
+
+        public long transferTo(WritableByteChannel channel) throws IOException {
+            ByteBuffer contents = tile.view();
+            while (contents.hasRemaining()) {
+                channel.write(contents);
+            }
+            tile.touch();
+            return getSize();
+        }
+
+        public long transferTo(OutputStream out) throws IOException {
+            ByteBuffer contents = tile.view();
+            final byte[] copy = COPY_BUFFER.get();
+            while (contents.hasRemaining()) {
+                int n = Math.min(copy.length, contents.remaining());
+                contents.get(copy, 0, n);
+                out.write(copy, 0, n);
+            }
+            tile.touch();
+            return getSize();
+        }
+
+        public InputStream getInputStream() throws IOException {
+            final ByteBuffer contents = tile.view();
+            return new InputStream() {
+
+                @Override
+                public int read() throws IOException {
+                    int b = contents.hasRemaining() ? contents.get() & 0xFF : -1;
+                    tile.touch();
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    if (len == 0) {
+                        return 0;
+                    }
+                    if (!contents.hasRemaining()) {
+                        return -1;
+                    }
+                    int n = Math.min(len, contents.remaining());
+                    contents.get(b, off, n);
+                    tile.touch();
+                    return n;
+                }
+
+                @Override
+                public int available() throws IOException {
+                    return contents.remaining();
+                }
+            };
+        }
+
+        public long transferFrom(ReadableByteChannel channel) throws IOException {
+            throw new IOException("Cached tile contents are read only");
+        }
+
+        public OutputStream getOutputStream() throws IOException {
+            throw new IOException("Cached tile contents are read only");
+        }
+    }
+
+    /**
+     * Filter used to invalidate groups of tiles
+     */
+    static interface KeyFilter {
+        boolean accept(TileKey key);
+    }
+
+    private static final class Segment extends ReentrantLock {
+
+        private static final long serialVersionUID = 1L;
+
+        final LinkedHashMap<TileKey, Entry> tiles = new LinkedHashMap<TileKey, Entry>(16,
+                0.75f, true);
+
+        long size;
+
+        long invalidations;
+    }
+
+    private final Segment[] segments;
+
+    private final long segmentMaxSize;
+
+    private final DirectBufferPool pool;
+
+    /**
+     * The off heap hits not released yet
+     */
+    private final Map<Hold, Boolean> holds = new ConcurrentHashMap<Hold, Boolean>();
+
+    private final ReferenceQueue<CachedTile> collected = new ReferenceQueue<CachedTile>();
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param maxSize
+     *            the maximum amount of tile contents held by the cache, in bytes
+     * @param concurrencyLevel
+     *            the number of independently locked segments, rounded up to a power of two
+     */
+    public TileCache(long maxSize, int concurrencyLevel) {
+        this(maxSize, concurrencyLevel, null);
+    }
+
+    /**
+     * @param maxSize
+     *            the maximum amount of tile contents held by the cache, in bytes
+     * @param concurrencyLevel
+     *            the number of independently locked segments, rounded up to a power of two
+     * @param pool
+     *            the pool to keep the tile contents in, or {@code null} to keep them in the heap
+     */
+    public TileCache(long maxSize, int concurrencyLevel, DirectBufferPool pool) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("Cache size must be positive: " + maxSize);
+        }
+        int nsegments = 1;
+        while (nsegments < concurrencyLevel) {
+            nsegments <<= 1;
+        }
+        this.segments = new Segment[nsegments];
+        for (int i = 0; i < nsegments; i++) {
+            segments[i] = new Segment();
+        }
+        this.segmentMaxSize = Math.max(1, maxSize / nsegments);
+        this.pool = pool;
+    }
+
+    /**
+     * @return the cached tile, or {@code null} if not cached. Off heap tiles should be
+     *         {@link CachedTile#release() released} once read.
+     */
+    public CachedTile get(TileKey key) {
+        releaseCollected();
+        final Segment segment = segmentFor(key);
+        Entry entry;
+        segment.lock();
+        try {
+            entry = segment.tiles.get(key);
+            if (entry != null && entry.offHeap != null) {
+                entry.references.incrementAndGet();
+            }
+        } finally {
+            segment.unlock();
+        }
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry.offHeap == null ? entry.shared : new CachedTile(entry, this);
+    }
+
+    /**
+     * @return the invalidation stamp to pass to {@link #put} for a tile about to be read from the
+     *         backing store
+     */
+    public long stamp(TileKey key) {
+        final Segment segment = segmentFor(key);
+        segment.lock();
+        try {
+            return segment.invalidations;
+        } finally {
+            segment.unlock();
+        }
+    }
+
+    /**
+     * Caches a tile, evicting the least recently used ones as needed
+     * 
+     * @param stamp
+     *            the value returned by {@link #stamp} before reading the tile contents
+     * @return {@code true} if the tile was cached, {@code false} if it is too big or has been
+     *         invalidated since {@code stamp} was taken
+     */
+    public boolean put(TileKey key, byte[] contents, long created, long stamp) {
+        if (contents.length > segmentMaxSize) {
+            return false;
+        }
+        releaseCollected();
+        final Segment segment = segmentFor(key);
+        segment.lock();
+        try {
+            if (segment.invalidations != stamp) {
+                return false;
+            }
+            Entry tile;
+            if (pool == null) {
+                tile = new Entry(contents, created);
+            } else {
+                PooledResource offHeap = new PooledResource(pool);
+                try {
+                    offHeap.getOutputStream().write(contents);
+                } catch (IOException e) {
+                    // can't happen writing to memory
+                    throw new IllegalStateException(e);
+                }
+                tile = new Entry(offHeap, created);
+            }
+            Entry old = segment.tiles.put(key, tile);
+            if (old != null) {
+                segment.size -= old.size;
+                old.unref();
+            }
+            segment.size += tile.size;
+
+            Iterator<Entry> lru = segment.tiles.values().iterator();
+            while (segment.size > segmentMaxSize) {
+                Entry evicted = lru.next();
+                lru.remove();
+                segment.size -= evicted.size;
+                evicted.unref();
+                evictions.incrementAndGet();
+            }
+            return true;
+        } finally {
+            segment.unlock();
+        }
+    }
+
+    /**
+     * Removes a tile from the cache
+     */
+    public void invalidate(TileKey key) {
+        final Segment segment = segmentFor(key);
+        segment.lock();
+        try {
+            segment.invalidations++;
+            Entry old = segment.tiles.remove(key);
+            if (old != null) {
+                segment.size -= old.size;
+                old.unref();
+            }
+        } finally {
+            segment.unlock();
+        }
+    }
+
+    /**
+     * Removes all the tiles accepted by the filter
+     */
+    void invalidate(KeyFilter filter) {
+        for (Segment segment : segments) {
+            segment.lock();
+            try {
+                segment.invalidations++;
+                Iterator<Map.Entry<TileKey, Entry>> entries = segment.tiles.entrySet()
+                        .iterator();
+                while (entries.hasNext()) {
+                    Map.Entry<TileKey, Entry> entry = entries.next();
+                    if (filter.accept(entry.getKey())) {
+                        segment.size -= entry.getValue().size;
+                        entry.getValue().unref();
+                        entries.remove();
+                    }
+                }
+            } finally {
+                segment.unlock();
+            }
+        }
+    }
+
+    /**
+     * Removes all the tiles of a layer
+     */
+    public void invalidateLayer(final String layerName) {
+        invalidate(new KeyFilter() {
+            public boolean accept(TileKey key) {
+                return key.getLayerName().equals(layerName);
+            }
+        });
+    }
+
+    /**
+     * Removes all the tiles of a layer in the given gridset
+     */
+    public void invalidateGridSet(final String layerName, final String gridSetId) {
+        invalidate(new KeyFilter() {
+            public boolean accept(TileKey key) {
+                return key.getLayerName().equals(layerName)
+                        && key.getGridSetId().equals(gridSetId);
+            }
+        });
+    }
+
+    /**
+     * Removes all the tiles
+     */
+    public void clear() {
+        invalidate(new KeyFilter() {
+            public boolean accept(TileKey key) {
+                return true;
+            }
+        });
+    }
+
+    /**
+     * @return the number of tiles cached
+     */
+    public int getCount() {
+        int count = 0;
+        for (Segment segment : segments) {
+            segment.lock();
+            try {
+                count += segment.tiles.size();
+            } finally {
+                segment.unlock();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return the size of the cached tiles contents, in bytes
+     */
+    public long getSize() {
+        long size = 0;
+        for (Segment segment : segments) {
+            segment.lock();
+            try {
+                size += segment.size;
+            } finally {
+                segment.unlock();
+            }
+        }
+        return size;
+    }
+
+    public long getMaxSize() {
+        return segmentMaxSize * segments.length;
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    /**
+     * @return the number of off heap hits not released yet
+     */
+    public int getHeldCount() {
+        releaseCollected();
+        return holds.size();
+    }
+
+    /**
+     * Releases the off heap hits garbage collected without being released
+     */
+    private void releaseCollected() {
+        Reference<? extends CachedTile> ref;
+        while ((ref = collected.poll()) != null) {
+            ((Hold) ref).release();
+        }
+    }
+
+    private Segment segmentFor(TileKey key) {
+        int hash = key.hashCode();
+        // spread the hash bits, the segment is picked from the low ones
+        hash ^= (hash >>> 20) ^ (hash >>> 12);
+        hash ^= (hash >>> 7) ^ (hash >>> 4);
+        return segments[hash & (segments.length - 1)];
+    }
+}
@@ -0,0 +1,279 @@
+package org.geowebcache.blobstore.bundle;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.geowebcache.io.ByteArrayResource;
+import org.geowebcache.io.Resource;
+import org.geowebcache.mime.ImageMime;
+import org.geowebcache.mime.MimeType;
+import org.geowebcache.storage.BatchBlobStoreListener;
+import org.geowebcache.storage.TileObject;
+import org.geowebcache.storage.TileRange;
+import org.geowebcache.storage.blobstore.bundle.Bundle;
+import org.geowebcache.storage.blobstore.bundle.BundleBlobStore;
+import org.geowebcache.storage.blobstore.bundle.FileBlobStoreConverter;
+import org.geowebcache.storage.blobstore.file.FileBlobStore;
+import org.geowebcache.storage.blobstore.file.FilePathGenerator;
+
+public class BundleBlobStoreTest extends TestCase {
+
+    private static final String LAYER = "test:bundles";
+
+    private static final String GRIDSET = "EPSG:4326";
+
+    File testRoot;
+
+    BundleBlobStore store;
+
+    CountingListener listener;
+
+    Map<String, String> parameters;
+
+    @Override
+    protected void setUp() throws Exception {
+        testRoot = new File("./target/bundleBlobStoreTests");
+        if (testRoot.exists()) {
+            FileUtils.deleteDirectory(testRoot);
+        }
+        testRoot.mkdirs();
+        store = new BundleBlobStore(new File(testRoot, "bundles").getPath(), 4);
+        listener = new CountingListener();
+        store.addListener(listener);
+        parameters = new HashMap<String, String>();
+        parameters.put("a", "x");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        store.destroy();
+    }
+
+    public void testPutGet() throws Exception {
+        Resource bytes = new ByteArrayResource("1 2 3 4 5 6 test".getBytes());
+        store.put(tile(5, 6, 3, bytes));
+        store.put(tile(6, 6, 3, new ByteArrayResource("other".getBytes())));
+
+        TileObject query = query(5, 6, 3);
+        assertTrue(store.get(query));
+        assertContents(bytes, query.getBlob());
+        assertEquals(bytes.getSize(), query.getBlobSize());
+        assertTrue(query.getCreated() > 0);
+
+        assertFalse(store.get(query(7, 6, 3)));
+        assertFalse(store.get(query(5, 6, 4)));
+        assertEquals(2, listener.stored);
+
+        // both tiles went to the same bundle
+        File zoomDir = new File(testRoot, "bundles/test_bundles/EPSG_4326_03_"
+                + FilePathGenerator.getParametersId(parameters));
+        assertEquals(1, new File(zoomDir, "0_0").list().length);
+    }
+
+    public void testEmptyTile() throws Exception {
+        store.put(tile(1, 2, 3, new ByteArrayResource(new byte[0])));
+
+        TileObject query = query(1, 2, 3);
+        assertTrue(store.get(query));
+        assertEquals(0, query.getBlob().getSize());
+        assertEquals(0, query.getBlobSize());
+    }
+
+    public void testOverwrite() throws Exception {
+        store.put(tile(1, 2, 3, new ByteArrayResource("first".getBytes())));
+        Resource second = new ByteArrayResource("second version".getBytes());
+        store.put(tile(1, 2, 3, second));
+
+        assertEquals(1, listener.stored);
+        assertEquals(1, listener.updated);
+        assertEquals("first".length(), listener.oldSize);
+
+        TileObject query = query(1, 2, 3);
+        assertTrue(store.get(query));
+        assertContents(second, query.getBlob());
+    }
+
+    public void testDeleteTile() throws Exception {
+        store.put(tile(1, 2, 3, new ByteArrayResource("tile".getBytes())));
+        assertTrue(store.delete(query(1, 2, 3)));
+        assertEquals(1, listener.deleted);
+        assertEquals("tile".length(), listener.deletedSize);
+        assertFalse(store.get(query(1, 2, 3)));
+        assertFalse(store.delete(query(1, 2, 3)));
+        assertEquals(1, listener.deleted);
+    }
+
+    public void testDeleteRange() throws Exception {
+        Resource bytes = new ByteArrayResource("1 2 3 4 5 6 test".getBytes());
+        // spans three bundles of 4x4 tiles
+        for (int x = 0; x < 12; x++) {
+            store.put(tile(x, 1, 5, bytes));
+        }
+
+        long[][] rangeBounds = new long[6][];
+        rangeBounds[5] = new long[] { 2, 0, 8, 5, 5 };
+        MimeType mime = ImageMime.png;
+        TileRange range = new TileRange(LAYER, GRIDSET, 5, 5, rangeBounds, mime, parameters);
+        store.delete(range);
+
+        assertEquals(7, listener.deleted);
+        // one event per bundle
+        assertEquals(3, listener.deleteEvents);
+        for (int x = 0; x < 12; x++) {
+            assertEquals("tile " + x, x < 2 || x > 8, store.get(query(x, 1, 5)));
+        }
+
+        // the fully emptied middle bundle is gone
+        File bucket = new File(testRoot, "bundles/test_bundles/EPSG_4326_05_"
+                + FilePathGenerator.getParametersId(parameters) + "/0_0");
+        assertEquals(2, bucket.list().length);
+    }
+
+    public void testCompact() throws Exception {
+        File dir = new File(testRoot, "compact");
+        Bundle bundle = new Bundle(new File(dir, "compact.bundle"), 4);
+        Resource small = new ByteArrayResource("small".getBytes());
+        bundle.write(1, small, 1L);
+        // overwrite a tile until the old versions are worth compacting
+        byte[] big = new byte[600 * 1024];
+        for (int i = 0; i < 3; i++) {
+            big[0] = (byte) i;
+            assertEquals(i == 0 ? -1 : big.length, bundle.write(0,
+                    new ByteArrayResource(big.clone()), 2L + i));
+        }
+
+        assertTrue(bundle.getFile().length() < 2 * big.length);
+        // no leftover copy
+        assertEquals(1, dir.list().length);
+        TileObject tile = query(0, 0, 0);
+        assertTrue(bundle.read(0, tile));
+        assertEquals(big.length, tile.getBlobSize());
+        assertEquals(4L, tile.getCreated());
+        assertTrue(bundle.read(1, tile));
+        assertContents(small, tile.getBlob());
+        assertEquals(1L, tile.getCreated());
+
+        // and it can still be written to
+        assertEquals(small.getSize(), bundle.write(1, new ByteArrayResource(big), 5L));
+        assertTrue(bundle.read(1, tile));
+        assertEquals(2, tile.getBlob().getInputStream().read());
+    }
+
+    public void testResetRetiredBundle() throws Exception {
+        Bundle bundle = new Bundle(new File(testRoot, "retired.bundle"), 4);
+        bundle.write(0, new ByteArrayResource("old".getBytes()), 1L);
+        // as left behind by an emptied bundle that could not be deleted
+        RandomAccessFile raf = new RandomAccessFile(bundle.getFile(), "rw");
+        try {
+            raf.write("GWCR".getBytes());
+        } finally {
+            raf.close();
+        }
+
+        assertEquals(-1, bundle.write(1, new ByteArrayResource("new".getBytes()), 2L));
+        TileObject tile = query(0, 0, 0);
+        assertFalse(bundle.read(0, tile));
+        assertTrue(bundle.read(1, tile));
+        assertEquals(1, bundle.delete(new Bundle.TileFilter() {
+            public boolean accept(int index) {
+                return true;
+            }
+        }, null));
+        assertFalse(bundle.getFile().exists());
+    }
+
+    public void testConvertFileBlobStore() throws Exception {
+        File fileRoot = new File(testRoot, "files");
+        FileBlobStore fileStore = new FileBlobStore(fileRoot.getPath());
+        Resource bytes = new ByteArrayResource("1 2 3 4 5 6 test".getBytes());
+        for (int x = 0; x < 10; x++) {
+            fileStore.put(tile(x, x, 6, bytes));
+        }
+        fileStore.putLayerMetadata(LAYER, "key", "value");
+        fileStore.destroy();
+
+        FileBlobStoreConverter converter = new FileBlobStoreConverter(fileRoot.getPath(),
+                new File(testRoot, "bundles").getPath(), 4);
+        assertEquals(10, converter.convert());
+
+        for (int x = 0; x < 10; x++) {
+            TileObject query = query(x, x, 6);
+            assertTrue(store.get(query));
+            assertContents(bytes, query.getBlob());
+        }
+        assertEquals("value", store.getLayerMetadata(LAYER, "key"));
+    }
+
+    private TileObject tile(long x, long y, long z, Resource blob) {
+        return TileObject.createCompleteTileObject(LAYER, new long[] { x, y, z }, GRIDSET,
+                "image/png", parameters, blob);
+    }
+
+    private TileObject query(long x, long y, long z) {
+        return TileObject.createQueryTileObject(LAYER, new long[] { x, y, z }, GRIDSET,
+                "image/png", parameters);
+    }
+
+    private void assertContents(Resource expected, Resource actual) throws Exception {
+        InputStream is = expected.getInputStream();
+        InputStream is2 = actual.getInputStream();
+        try {
+            assertTrue(IOUtils.contentEquals(is, is2));
+        } finally {
+            is.close();
+            is2.close();
+        }
+    }
+
+    private static class CountingListener implements BatchBlobStoreListener {
+        int stored, updated, deleted, deleteEvents;
+
+        long oldSize, deletedSize;
+
+        public void tileStored(String layerName, String gridSetId, String blobFormat,
+                String parametersId, long x, long y, int z, long blobSize) {
+            stored++;
+        }
+
+        public void tileDeleted(String layerName, String gridSetId, String blobFormat,
+                String parametersId, long x, long y, int z, long blobSize) {
+            deleted++;
+            deleteEvents++;
+            deletedSize = blobSize;
+        }
+
+        public void tilesStored(String layerName, String gridSetId, String blobFormat,
+                String parametersId, int z, long[] x, long[] y, long[] blobSizes, int count) {
+            stored += count;
+        }
+
+        public void tilesDeleted(String layerName, String gridSetId, String blobFormat,
+                String parametersId, int z, long[] x, long[] y, long[] blobSizes, int count) {
+            deleted += count;
+            deleteEvents++;
+            deletedSize = blobSizes[count - 1];
+        }
+
+        public void tileUpdated(String layerName, String gridSetId, String blobFormat,
+                String parametersId, long x, long y, int z, long blobSize, long oldSize) {
+            updated++;
+            this.oldSize = oldSize;
+        }
+
+        public void layerDeleted(String layerName) {
+        }
+
+        public void layerRenamed(String oldLayerName, String newLayerName) {
+        }
+
+        public void gridSubsetDeleted(String layerName, String gridSetId) {
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package org.geowebcache.blobstore.memory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.geowebcache.io.ByteArrayResource;
+import org.geowebcache.io.DirectBufferPool;
+import org.geowebcache.io.Resource;
+import org.geowebcache.io.StreamableResource;
+import org.geowebcache.storage.TileKey;
+import org.geowebcache.storage.TileObject;
+import org.geowebcache.storage.blobstore.file.FileBlobStore;
+import org.geowebcache.storage.blobstore.memory.MemoryBlobStore;
+import org.geowebcache.storage.blobstore.memory.TileCache;
+
+public class MemoryBlobStoreTest extends TestCase {
+
+    private static final String LAYER = "test:memory";
+
+    private static final String GRIDSET = "EPSG:4326";
+
+    File testRoot;
+
+    FileBlobStore fileStore;
+
+    MemoryBlobStore store;
+
+    @Override
+    protected void setUp() throws Exception {
+        testRoot = new File("./target/memoryBlobStoreTests");
+        if (testRoot.exists()) {
+            FileUtils.deleteDirectory(testRoot);
+        }
+        testRoot.mkdirs();
+        fileStore = new FileBlobStore(testRoot.getPath());
+        store = new MemoryBlobStore(fileStore, 1024, 1);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        store.destroy();
+    }
+
+    public void testCachedOnRead() throws Exception {
+        store.put(tile(1, 2, 3, "tile".getBytes()));
+        assertEquals(0, store.getCache().getCount());
+
+        assertContents("tile", 1, 2, 3);
+        assertEquals(1, store.getCache().getMissCount());
+        assertEquals(1, store.getCache().getCount());
+
+        assertContents("tile", 1, 2, 3);
+        assertEquals(1, store.getCache().getHitCount());
+        assertFalse(store.get(query(2, 2, 3)));
+    }
+
+    public void testInvalidatedOnUpdate() throws Exception {
+        store.put(tile(1, 2, 3, "first".getBytes()));
+        assertContents("first", 1, 2, 3);
+        // bypass the memory store, the events should be enough to invalidate the cache
+        fileStore.put(tile(1, 2, 3, "second".getBytes()));
+        assertEquals(0, store.getCache().getCount());
+        assertContents("second", 1, 2, 3);
+    }
+
+    public void testInvalidatedOnDelete() throws Exception {
+        store.put(tile(1, 2, 3, "tile".getBytes()));
+        assertContents("tile", 1, 2, 3);
+        assertTrue(store.delete(query(1, 2, 3)));
+        assertFalse(store.get(query(1, 2, 3)));
+
+        store.put(tile(1, 2, 3, "tile".getBytes()));
+        assertContents("tile", 1, 2, 3);
+        store.delete(LAYER);
+        assertEquals(0, store.getCache().getCount());
+        assertFalse(store.get(query(1, 2, 3)));
+    }
+
+    public void testEviction() throws Exception {
+        byte[] contents = new byte[300];
+        for (int x = 0; x < 4; x++) {
+            store.put(tile(x, 0, 3, contents));
+            assertTrue(store.get(query(x, 0, 3)));
+        }
+        // only three fit in 1KB
+        assertEquals(3, store.getCache().getCount());
+        assertEquals(900, store.getCache().getSize());
+        assertEquals(1, store.getCache().getEvictionCount());
+
+        // too big to be cached
+        store.put(tile(5, 0, 3, new byte[2000]));
+        assertTrue(store.get(query(5, 0, 3)));
+        assertEquals(3, store.getCache().getCount());
+    }
+
+    public void testOffHeap() throws Exception {
+        DirectBufferPool pool = new DirectBufferPool(1024 * 1024);
+        TileCache cache = new TileCache(1024, 1, pool);
+        TileKey key = new TileKey(LAYER, GRIDSET, "image/png", null, 1, 2, 3);
+        assertTrue(cache.put(key, "tile".getBytes(), 10, cache.stamp(key)));
+        assertEquals(DirectBufferPool.MIN_BUFFER_SIZE, pool.getUsed());
+        TileCache.CachedTile hit = cache.get(key);
+        assertNull(hit.getContents());
+        assertEquals(4, hit.getSize());
+        assertEquals(10, hit.getCreated());
+        assertEquals("tile", IOUtils.toString(hit.getResource().getInputStream()));
+        hit.release();
+        hit.release();
+        assertEquals(0, cache.getHeldCount());
+        cache.invalidate(key);
+        assertEquals(0, pool.getUsed());
+    }
+
+    public void testOffHeapHitOutlivesEviction() throws Exception {
+        DirectBufferPool pool = new DirectBufferPool(1024 * 1024);
+        TileCache cache = new TileCache(1024, 1, pool);
+        TileKey key = new TileKey(LAYER, GRIDSET, "image/png", null, 1, 2, 3);
+        assertTrue(cache.put(key, "tile".getBytes(), 10, cache.stamp(key)));
+        TileCache.CachedTile hit = cache.get(key);
+        cache.invalidate(key);
+        // the buffer is not reused while read
+        assertEquals(DirectBufferPool.MIN_BUFFER_SIZE, pool.getUsed());
+        assertTrue(cache.put(key, "next".getBytes(), 10, cache.stamp(key)));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ((StreamableResource) hit.getResource()).transferTo(out);
+        assertEquals("tile", out.toString());
+        hit.release();
+        assertEquals(DirectBufferPool.MIN_BUFFER_SIZE, pool.getUsed());
+    }
+
+    public void testOffHeapHitReleasedWhenCollected() throws Exception {
+        DirectBufferPool pool = new DirectBufferPool(1024 * 1024);
+        TileCache cache = new TileCache(1024, 1, pool);
+        TileKey key = new TileKey(LAYER, GRIDSET, "image/png", null, 1, 2, 3);
+        assertTrue(cache.put(key, "tile".getBytes(), 10, cache.stamp(key)));
+        assertNotNull(cache.get(key));
+        cache.invalidate(key);
+        for (int i = 0; i < 50 && cache.getHeldCount() > 0; i++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        assertEquals(0, cache.getHeldCount());
+        assertEquals(0, pool.getUsed());
+    }
+
+    public void testStaleReadNotCached() throws Exception {
+        TileCache cache = new TileCache(1024, 1);
+        TileKey key = new TileKey(LAYER, GRIDSET, "image/png", null, 1, 2, 3);
+        long stamp = cache.stamp(key);
+        cache.invalidate(key);
+        assertFalse(cache.put(key, "stale".getBytes(), 0, stamp));
+        assertTrue(cache.put(key, "fresh".getBytes(), 0, cache.stamp(key)));
+        assertEquals("fresh", new String(cache.get(key).getContents()));
+    }
+
+    private void assertContents(String expected, long x, long y, long z) throws Exception {
+        TileObject query = query(x, y, z);
+        assertTrue(store.get(query));
+        Resource blob = query.getBlob();
+        assertTrue(Arrays.equals(expected.getBytes(), ((ByteArrayResource) blob).getContents()));
+        assertEquals(expected.length(), query.getBlobSize());
+    }
+
+    private TileObject tile(long x, long y, long z, byte[] contents) {
+        return TileObject.createCompleteTileObject(LAYER, new long[] { x, y, z }, GRIDSET,
+                "image/png", null, new ByteArrayResource(contents));
+    }
+
+    private TileObject query(long x, long y, long z) {
+        return TileObject.createQueryTileObject(LAYER, new long[] { x, y, z }, GRIDSET,
+                "image/png", null);
+    }
+}
@@ -0,0 +1,71 @@
+package org.geowebcache.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+public class FileResourceTest extends TestCase {
+
+    File file;
+
+    @Override
+    protected void setUp() throws Exception {
+        file = File.createTempFile("gwc", ".tile", new File("target"));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        file.delete();
+        Resources.setDirectTransfer(false);
+    }
+
+    public void testTransferToStream() throws Exception {
+        // smaller than the transfer buffer, an exact multiple, and larger than it
+        for (int size : new int[] { 1, 1500, 64 * 1024, 200 * 1024 + 17 }) {
+            byte[] contents = randomBytes(size);
+            FileUtils.writeByteArrayToFile(file, contents);
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            assertEquals(size, new FileResource(file).transferTo(out));
+            assertTrue("size " + size, Arrays.equals(contents, out.toByteArray()));
+        }
+    }
+
+    public void testTransferToChannel() throws Exception {
+        byte[] contents = randomBytes(100 * 1024);
+        FileUtils.writeByteArrayToFile(file, contents);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(contents.length, new FileResource(file).transferTo(Channels.newChannel(out)));
+        assertTrue(Arrays.equals(contents, out.toByteArray()));
+    }
+
+    public void testDirectTransfer() throws Exception {
+        byte[] contents = randomBytes(3000);
+        FileUtils.writeByteArrayToFile(file, contents);
+        ByteArrayResource bytes = new ByteArrayResource(contents, 1000, 1000);
+
+        for (boolean direct : new boolean[] { false, true }) {
+            Resources.setDirectTransfer(direct);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            assertEquals(contents.length, Resources.transferTo(new FileResource(file), out));
+            assertTrue(Arrays.equals(contents, out.toByteArray()));
+
+            out = new ByteArrayOutputStream();
+            assertEquals(1000, Resources.transferTo(bytes, out));
+            assertTrue(Arrays.equals(bytes.getContents(), out.toByteArray()));
+        }
+    }
+
+    private byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,94 @@
+package org.geowebcache.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.IOUtils;
+
+public class PooledResourceTest extends TestCase {
+
+    DirectBufferPool pool;
+
+    @Override
+    protected void setUp() throws Exception {
+        pool = new DirectBufferPool(4 * 1024 * 1024);
+    }
+
+    public void testSizeClasses() throws Exception {
+        ByteBuffer small = pool.acquire(100);
+        assertTrue(small.isDirect());
+        assertEquals(DirectBufferPool.MIN_BUFFER_SIZE, small.capacity());
+        ByteBuffer bigger = pool.acquire(DirectBufferPool.MIN_BUFFER_SIZE + 1);
+        assertEquals(2 * DirectBufferPool.MIN_BUFFER_SIZE, bigger.capacity());
+        // one slab per size class
+        assertEquals(2 * 1024 * 1024, pool.getCapacity());
+        assertEquals(3 * DirectBufferPool.MIN_BUFFER_SIZE, pool.getUsed());
+
+        pool.release(small);
+        pool.release(bigger);
+        assertEquals(0, pool.getUsed());
+        assertEquals(2 * 1024 * 1024, pool.getCapacity());
+        // reused
+        pool.acquire(10);
+        pool.acquire(DirectBufferPool.MIN_BUFFER_SIZE * 2);
+        assertEquals(2 * 1024 * 1024, pool.getCapacity());
+    }
+
+    public void testHeapFallback() throws Exception {
+        pool.acquire(2 * 1024 * 1024);
+        pool.acquire(2 * 1024 * 1024);
+        ByteBuffer heap = pool.acquire(2 * 1024 * 1024);
+        assertFalse(heap.isDirect());
+        assertEquals(1, pool.getHeapFallbackCount());
+        assertEquals(4 * 1024 * 1024, pool.getCapacity());
+        // ignored
+        pool.release(heap);
+        assertEquals(4 * 1024 * 1024, pool.getUsed());
+    }
+
+    public void testWriteAndRead() throws Exception {
+        byte[] contents = new byte[100000];
+        new Random(1).nextBytes(contents);
+
+        PooledResource resource = new PooledResource(pool);
+        OutputStream out = resource.getOutputStream();
+        // grows while being written
+        out.write(contents, 0, 10);
+        out.write(contents[10]);
+        out.write(contents, 11, contents.length - 11);
+        assertEquals(contents.length, resource.getSize());
+        assertContents(contents, resource);
+
+        resource.release();
+        assertEquals(0, resource.getSize());
+        assertEquals(0, pool.getUsed());
+
+        // still usable once released
+        resource.transferFrom(Channels.newChannel(new ByteArrayInputStream(contents)));
+        assertEquals(contents.length, resource.getSize());
+        assertContents(contents, resource);
+        resource.release();
+        assertEquals(0, pool.getUsed());
+    }
+
+    private void assertContents(byte[] expected, PooledResource resource) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        resource.transferTo(out);
+        assertTrue(Arrays.equals(expected, out.toByteArray()));
+
+        out = new ByteArrayOutputStream();
+        resource.transferTo(Channels.newChannel(out));
+        assertTrue(Arrays.equals(expected, out.toByteArray()));
+
+        InputStream in = resource.getInputStream();
+        assertTrue(Arrays.equals(expected, IOUtils.toByteArray(in)));
+    }
+}
@@ -0,0 +1,121 @@
+package org.geowebcache.layer;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.IOUtils;
+import org.geowebcache.grid.BoundingBox;
+import org.geowebcache.grid.GridSetBroker;
+import org.geowebcache.grid.GridSubset;
+import org.geowebcache.grid.GridSubsetFactory;
+import org.geowebcache.io.ByteArrayResource;
+import org.geowebcache.io.Resource;
+import org.geowebcache.mime.ImageMime;
+
+public class MetaTileCoalescerTest extends TestCase {
+
+    private static final String KEY = "meta_test_EPSG:4326_0_0_2.png";
+
+    private GridSubset grid;
+
+    private MetaTileCoalescer coalescer;
+
+    private ExecutorService executor;
+
+    @Override
+    protected void setUp() throws Exception {
+        GridSetBroker gridSetBroker = new GridSetBroker(false, false);
+        grid = GridSubsetFactory.createGridSubSet(gridSetBroker.WORLD_EPSG4326, new BoundingBox(
+                0, 0, 180, 90), 0, 10);
+        coalescer = new MetaTileCoalescer();
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        executor.shutdownNow();
+    }
+
+    public void testFollowerGetsPublishedTile() throws Exception {
+        MetaTile leader = metaTile();
+        assertTrue(coalescer.start(KEY, leader));
+        assertFalse(coalescer.start(KEY, metaTile()));
+
+        final long[] gridLoc = leader.getTilesGridPositions()[1];
+        Future<Resource> follower = join(gridLoc);
+        awaitJoined(1);
+        leader.publishTile(1, new ByteArrayResource("tile 1".getBytes()));
+
+        Resource tile = follower.get(10, TimeUnit.SECONDS);
+        assertNotNull(tile);
+        assertEquals("tile 1", new String(IOUtils.toByteArray(tile.getInputStream())));
+        assertEquals(1, coalescer.getJoined());
+        assertEquals(1, coalescer.getServed());
+
+        leader.dispose();
+        assertEquals(0, coalescer.getRunning());
+    }
+
+    public void testDisposeReleasesFollowers() throws Exception {
+        MetaTile leader = metaTile();
+        assertTrue(coalescer.start(KEY, leader));
+
+        Future<Resource> follower = join(leader.getTilesGridPositions()[2]);
+        // make sure the follower is waiting
+        Thread.sleep(100);
+        leader.dispose();
+        assertNull(follower.get(10, TimeUnit.SECONDS));
+        assertEquals(0, coalescer.getServed());
+
+        // a new flight can be started right away
+        assertTrue(coalescer.start(KEY, metaTile()));
+    }
+
+    public void testTileNotCopiedWithoutFollowers() throws Exception {
+        MetaTile leader = metaTile();
+        assertTrue(coalescer.start(KEY, leader));
+
+        // nobody is waiting, the tile is not kept around for later followers
+        leader.publishTile(1, new ByteArrayResource("tile 1".getBytes()));
+        Future<Resource> follower = join(leader.getTilesGridPositions()[1]);
+        assertNull(follower.get(5, TimeUnit.SECONDS));
+        assertEquals(1, coalescer.getJoined());
+        assertEquals(0, coalescer.getServed());
+        leader.dispose();
+    }
+
+    public void testNoFlight() throws Exception {
+        MetaTile metaTile = metaTile();
+        assertNull(coalescer.join(KEY, metaTile, metaTile.getTilesGridPositions()[0], 1000));
+        assertEquals(0, coalescer.getJoined());
+    }
+
+    private Future<Resource> join(final long[] gridLoc) {
+        return executor.submit(new Callable<Resource>() {
+            public Resource call() throws Exception {
+                return coalescer.join(KEY, metaTile(), gridLoc, 10000);
+            }
+        });
+    }
+
+    /**
+     * Waits for the followers to join and give them some time to start waiting
+     */
+    private void awaitJoined(long followers) throws InterruptedException {
+        long start = System.currentTimeMillis();
+        while (coalescer.getJoined() < followers) {
+            assertTrue(System.currentTimeMillis() - start < 10000);
+            Thread.sleep(10);
+        }
+        Thread.sleep(100);
+    }
+
+    private MetaTile metaTile() {
+        return new MetaTile(grid, ImageMime.png, null, new long[] { 0, 0, 2 }, 3, 3, 0);
+    }
+}
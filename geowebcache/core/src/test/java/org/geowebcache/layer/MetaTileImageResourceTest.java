@@ -0,0 +1,148 @@
+package org.geowebcache.layer;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import junit.framework.TestCase;
+
+import org.geowebcache.GeoWebCacheException;
+import org.geowebcache.grid.BoundingBox;
+import org.geowebcache.grid.GridSetBroker;
+import org.geowebcache.grid.GridSubset;
+import org.geowebcache.grid.GridSubsetFactory;
+import org.geowebcache.io.PooledResource;
+import org.geowebcache.mime.ImageMime;
+
+public class MetaTileImageResourceTest extends TestCase {
+
+    private GridSubset grid;
+
+    private MetaTile metaTile;
+
+    private PooledResource buffer;
+
+    private byte[] png;
+
+    @Override
+    protected void setUp() throws Exception {
+        GridSetBroker gridSetBroker = new GridSetBroker(false, false);
+        grid = GridSubsetFactory.createGridSubSet(gridSetBroker.WORLD_EPSG4326,
+                new BoundingBox(0, 0, 180, 90), 0, 10);
+        metaTile = new MetaTile(grid, ImageMime.png, null, new long[] { 0, 0, 2 }, 3, 3, 0);
+        buffer = new PooledResource();
+
+        BufferedImage image = new BufferedImage(768, 768, BufferedImage.TYPE_INT_ARGB);
+        image.setRGB(10, 20, 0xff00ff00);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", out);
+        png = out.toByteArray();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        metaTile.dispose();
+        buffer.release();
+    }
+
+    public void testStreamingDecode() throws Exception {
+        MetaTileImageResource target = new MetaTileImageResource(metaTile, buffer, true);
+        // trailing garbage must be counted too
+        byte[] response = new byte[png.length + 10];
+        System.arraycopy(png, 0, response, 0, png.length);
+        target.transferFrom(Channels.newChannel(new ByteArrayInputStream(response)));
+
+        assertTrue(target.isStreamed());
+        assertEquals(response.length, target.getSize());
+        assertEquals(0, buffer.getSize());
+        assertTrue(metaTile.getDecodeTime() >= 0);
+        target.decode();
+        assertDecoded();
+    }
+
+    public void testBufferedDecode() throws Exception {
+        MetaTileImageResource target = new MetaTileImageResource(metaTile, buffer, false);
+        target.transferFrom(Channels.newChannel(new ByteArrayInputStream(png)));
+        assertFalse(target.isStreamed());
+        assertEquals(png.length, target.getSize());
+        target.decode();
+        assertDecoded();
+    }
+
+    public void testOutputStream() throws Exception {
+        MetaTileImageResource target = new MetaTileImageResource(metaTile, buffer, true);
+        OutputStream out = target.getOutputStream();
+        out.write(png);
+        out.close();
+        assertEquals(png.length, target.getSize());
+        target.decode();
+        assertDecoded();
+    }
+
+    public void testNotAnImage() throws Exception {
+        MetaTileImageResource target = new MetaTileImageResource(metaTile, buffer, true);
+        byte[] response = "<ServiceExceptionReport/>".getBytes();
+        target.transferFrom(Channels.newChannel(new ByteArrayInputStream(response)));
+        assertEquals(response.length, target.getSize());
+        try {
+            target.decode();
+            fail("Expected a decoding failure");
+        } catch (GeoWebCacheException e) {
+            // expected
+        }
+    }
+
+    public void testPngCacheBounded() throws Exception {
+        // noise does not compress, so the encoded image is much larger than the window
+        BufferedImage noise = new BufferedImage(768, 768, BufferedImage.TYPE_INT_ARGB);
+        Random random = new Random(1);
+        for (int y = 0; y < noise.getHeight(); y++) {
+            for (int x = 0; x < noise.getWidth(); x++) {
+                noise.setRGB(x, y, random.nextInt());
+            }
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(noise, "png", out);
+        byte[] encoded = out.toByteArray();
+        assertTrue(encoded.length > 10 * MetaTileImageResource.PNG_WINDOW);
+
+        FlushingImageInputStream in = new FlushingImageInputStream(new ByteArrayInputStream(
+                encoded), MetaTileImageResource.PNG_WINDOW);
+        BufferedImage decoded = ImageIO.read(in);
+        assertTrue(in.getMaxCached() < 2 * MetaTileImageResource.PNG_WINDOW);
+        for (int y = 0; y < noise.getHeight(); y += 37) {
+            for (int x = 0; x < noise.getWidth(); x += 41) {
+                assertEquals(noise.getRGB(x, y), decoded.getRGB(x, y));
+            }
+        }
+    }
+
+    public void testUncompressedRequestFormat() throws Exception {
+        BufferedImage image = new BufferedImage(768, 768, BufferedImage.TYPE_INT_ARGB);
+        image.setRGB(10, 20, 0xff00ff00);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (!ImageIO.write(image, "tiff", out)) {
+            // no TIFF codec in this JRE
+            return;
+        }
+        metaTile.dispose();
+        metaTile = new MetaTile(grid, ImageMime.tiff, null, new long[] { 0, 0, 2 }, 3, 3, 0);
+        MetaTileImageResource target = new MetaTileImageResource(metaTile, buffer, true);
+        target.transferFrom(Channels.newChannel(new ByteArrayInputStream(out.toByteArray())));
+        assertTrue(target.isStreamed());
+        target.decode();
+        assertDecoded();
+    }
+
+    private void assertDecoded() {
+        BufferedImage image = (BufferedImage) metaTile.metaTileImage;
+        assertNotNull(image);
+        assertEquals(768, image.getWidth());
+        assertEquals(0xff00ff00, image.getRGB(10, 20));
+    }
+}
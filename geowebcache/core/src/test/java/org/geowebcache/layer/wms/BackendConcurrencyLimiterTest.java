@@ -0,0 +1,136 @@
+package org.geowebcache.layer.wms;
+
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import junit.framework.TestCase;
+
+import org.geowebcache.GeoWebCacheException;
+
+public class BackendConcurrencyLimiterTest extends TestCase {
+
+    public void testDecreaseOnErrors() throws Exception {
+        BackendConcurrencyLimiter limiter = new BackendConcurrencyLimiter("test", 16);
+        assertEquals(16, limiter.getLimit());
+        limiter.release(limiter.acquire(1000), true);
+        assertEquals(8, limiter.getLimit());
+        for (int i = 0; i < 10; i++) {
+            limiter.release(limiter.acquire(1000), true);
+        }
+        assertEquals(1, limiter.getLimit());
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    public void testDecreaseOnRisingLatency() throws Exception {
+        BackendConcurrencyLimiter limiter = new BackendConcurrencyLimiter("test", 10);
+        for (int i = 0; i < 100; i++) {
+            release(limiter, 10);
+        }
+        // a single slow response is not enough
+        release(limiter, 200);
+        assertEquals(10, limiter.getLimit());
+        // but staying slow is
+        for (int i = 0; i < 100; i++) {
+            release(limiter, 100);
+        }
+        assertTrue(limiter.getLimit() < 10);
+    }
+
+    public void testStableWithBimodalLatency() throws Exception {
+        BackendConcurrencyLimiter limiter = new BackendConcurrencyLimiter("test", 10);
+        // cheap and expensive meta tiles mixed up, the backend is not getting slower
+        Random random = new Random(1);
+        for (int i = 0; i < 10000; i++) {
+            release(limiter, random.nextBoolean() ? 10 : 100);
+        }
+        assertEquals(10, limiter.getLimit());
+    }
+
+    public void testIncreaseWhenSaturated() throws Exception {
+        BackendConcurrencyLimiter limiter = new BackendConcurrencyLimiter("test", 4);
+        limiter.release(limiter.acquire(1000), true);
+        assertEquals(2, limiter.getLimit());
+        // not using the whole limit, no increase
+        for (int i = 0; i < 10; i++) {
+            limiter.release(limiter.acquire(1000), false);
+        }
+        assertEquals(2, limiter.getLimit());
+        // saturated, grows by one every "limit" requests
+        for (int i = 0; i < 4; i++) {
+            long first = limiter.acquire(1000);
+            long second = limiter.acquire(1000);
+            limiter.release(second, false);
+            limiter.release(first, false);
+        }
+        assertTrue(limiter.getLimit() > 2);
+        assertTrue(limiter.getLimit() <= 4);
+    }
+
+    /**
+     * Makes a request taking the given number of milliseconds
+     */
+    private void release(BackendConcurrencyLimiter limiter, long latency) throws Exception {
+        limiter.acquire(1000);
+        limiter.release(System.nanoTime() - latency * 1000000, false);
+    }
+
+    public void testTimeout() throws Exception {
+        BackendConcurrencyLimiter limiter = new BackendConcurrencyLimiter("test", 1);
+        long start = limiter.acquire(1000);
+        try {
+            limiter.acquire(50);
+            fail("Should have timed out");
+        } catch (GeoWebCacheException e) {
+            // expected
+        }
+        limiter.release(start, false);
+        assertEquals(0, limiter.getQueueDepth());
+    }
+
+    public void testSeedingYields() throws Exception {
+        final BackendConcurrencyLimiter limiter = new BackendConcurrencyLimiter("test", 4);
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            // seeding cannot use the last slot
+            Future<Long> seeding = executor.submit(new Callable<Long>() {
+                public Long call() throws Exception {
+                    BackendConcurrencyLimiter.setSeeding(true);
+                    try {
+                        long[] starts = new long[4];
+                        for (int i = 0; i < starts.length; i++) {
+                            starts[i] = limiter.acquire(5000);
+                        }
+                        return Long.valueOf(starts[3]);
+                    } finally {
+                        BackendConcurrencyLimiter.setSeeding(false);
+                    }
+                }
+            });
+            try {
+                seeding.get(200, TimeUnit.MILLISECONDS);
+                fail("Seeding should be waiting");
+            } catch (TimeoutException e) {
+                // expected
+            }
+            assertEquals(3, limiter.getInFlight());
+            assertEquals(1, limiter.getSeedQueueDepth());
+
+            // but interactive requests can
+            long interactive = limiter.acquire(1000);
+            assertEquals(4, limiter.getInFlight());
+            limiter.release(interactive, false);
+
+            // once it's done and some capacity is back seeding goes on
+            limiter.setMaxLimit(5);
+            limiter.release(limiter.acquire(1000), false);
+            limiter.release(limiter.acquire(1000), false);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -1,11 +1,14 @@
 package org.geowebcache.layer.wms;
 
+import java.awt.image.BufferedImage;
+import java.awt.image.RenderedImage;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Hashtable;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import junit.framework.TestCase;
 
@@ -13,6 +16,7 @@ import org.geowebcache.grid.BoundingBox;
 import org.geowebcache.grid.GridSetBroker;
 import org.geowebcache.grid.GridSubset;
 import org.geowebcache.grid.GridSubsetFactory;
+import org.geowebcache.layer.MetaTile;
 import org.geowebcache.mime.ImageMime;
 
 public class MetaTileTest extends TestCase {
@@ -194,6 +198,57 @@ public class MetaTileTest extends TestCase {
         assertTrue(Math.abs( Double.parseDouble(coordStrs[3]) - 45.54931640625) < 0.001);
     }
     
+    public void testCreateTileSharesRaster() throws Exception {
+        GridSubset grid = GridSubsetFactory.createGridSubSet(gridSetBroker.WORLD_EPSG4326,
+                new BoundingBox(0, 0, 180, 90), 0, 30);
+        long[] gridPos = { 0, 0, 2 };
+        WMSMetaTile mt = new WMSMetaTile(null, grid, ImageMime.png, null, gridPos, 3, 3,
+                Collections.singletonMap("test", "test1"));
+
+        BufferedImage metaTileImage = new BufferedImage(768, 768, BufferedImage.TYPE_4BYTE_ABGR);
+        metaTileImage.setRGB(300, 10, 0xff123456);
+        mt.setImage(metaTileImage);
+
+        RenderedImage tile = mt.createTile(256, 0, 256, 256);
+        assertTrue(tile instanceof BufferedImage);
+        assertEquals(256, tile.getWidth());
+        assertEquals(256, tile.getHeight());
+        assertEquals(0xff123456, ((BufferedImage) tile).getRGB(44, 10));
+        // no pixels have been copied
+        assertSame(metaTileImage.getRaster().getDataBuffer(), ((BufferedImage) tile).getRaster()
+                .getDataBuffer());
+        mt.dispose();
+    }
+
+    public void testDisposeOncePerHolder() throws Exception {
+        GridSubset grid = GridSubsetFactory.createGridSubSet(gridSetBroker.WORLD_EPSG4326,
+                new BoundingBox(0, 0, 180, 90), 0, 30);
+        long[] gridPos = { 0, 0, 2 };
+        WMSMetaTile mt = new WMSMetaTile(null, grid, ImageMime.png, null, gridPos, 3, 3,
+                Collections.singletonMap("test", "test1"));
+
+        final AtomicInteger flushes = new AtomicInteger();
+        mt.setImage(new BufferedImage(768, 768, BufferedImage.TYPE_4BYTE_ABGR) {
+            @Override
+            public void flush() {
+                flushes.incrementAndGet();
+                super.flush();
+            }
+        });
+
+        MetaTile.Hold first = mt.retain();
+        MetaTile.Hold second = mt.retain();
+        // repeated calls by the same holder do not release the others
+        mt.dispose();
+        mt.dispose();
+        first.release();
+        first.release();
+        assertEquals(0, flushes.get());
+
+        second.release();
+        assertEquals(1, flushes.get());
+    }
+
     private WMSLayer createWMSLayer(BoundingBox layerBounds) {
         String[] urls = {"http://localhost:38080/wms"};
         List<String> formatList = new LinkedList<String>();
@@ -0,0 +1,114 @@
+package org.geowebcache.layer.wms;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.util.Collections;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.easymock.classextension.EasyMock;
+import org.geowebcache.GeoWebCacheException;
+import org.geowebcache.io.ByteArrayResource;
+import org.geowebcache.layer.TileResponseReceiver;
+
+public class WMSHttpHelperTest extends TestCase {
+
+    private static int backends;
+
+    public void testSuccessKeepsLimit() throws Exception {
+        assertEquals(32, request(200, "image/png"));
+    }
+
+    public void testServerErrorHalvesLimit() throws Exception {
+        assertEquals(16, request(503, "text/html"));
+    }
+
+    public void testClientErrorKeepsLimit() throws Exception {
+        assertEquals(32, request(404, "text/html"));
+    }
+
+    public void testServiceExceptionKeepsLimit() throws Exception {
+        assertEquals(32, request(200, "application/vnd.ogc.se_xml"));
+    }
+
+    /**
+     * Makes a request answered with the given status and content type
+     *
+     * @return the concurrency limit of the backend afterwards
+     */
+    private int request(final int status, final String contentType) throws Exception {
+        final String url = "http://localhost/wms" + (backends++);
+        WMSLayer layer = EasyMock.createNiceMock(WMSLayer.class);
+        EasyMock.expect(layer.getWMSurl()).andReturn(new String[] { url }).anyTimes();
+        EasyMock.expect(layer.nextWmsURL()).andReturn(url).anyTimes();
+        EasyMock.expect(layer.getBackendTimeout()).andReturn(10).anyTimes();
+        EasyMock.replay(layer);
+
+        WMSHttpHelper helper = new WMSHttpHelper() {
+            @Override
+            public GetMethod executeRequest(URL url, Map<String, String> queryParams,
+                    Integer backendTimeout) throws IOException {
+                GetMethod method = EasyMock.createNiceMock(GetMethod.class);
+                EasyMock.expect(method.getStatusCode()).andReturn(status).anyTimes();
+                EasyMock.expect(method.getResponseContentLength()).andReturn(-1L).anyTimes();
+                EasyMock.expect(method.getResponseHeader("Content-Type"))
+                        .andReturn(new Header("Content-Type", contentType)).anyTimes();
+                EasyMock.expect(method.getResponseBodyAsStream())
+                        .andReturn(new ByteArrayInputStream(new byte[] { 1, 2, 3 })).anyTimes();
+                EasyMock.replay(method);
+                return method;
+            }
+        };
+        try {
+            helper.makeRequest(new Receiver(), layer, Collections.<String, String> emptyMap(),
+                    "image/png", new ByteArrayResource());
+        } catch (GeoWebCacheException e) {
+            // the failed requests
+        }
+        return WMSSourceHelper.getConcurrencyLimiters().get(url).getLimit();
+    }
+
+    private static class Receiver implements TileResponseReceiver {
+
+        private int status;
+
+        private boolean error;
+
+        private String errorMessage;
+
+        public void setStatus(int status) {
+            this.status = status;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        public void setExpiresHeader(long seconds) {
+        }
+
+        public long getExpiresHeader() {
+            return -1;
+        }
+
+        public void setError() {
+            error = true;
+        }
+
+        public boolean getError() {
+            return error;
+        }
+
+        public void setErrorMessage(String message) {
+            this.errorMessage = message;
+        }
+
+        public String getErrorMessage() {
+            return errorMessage;
+        }
+    }
+}
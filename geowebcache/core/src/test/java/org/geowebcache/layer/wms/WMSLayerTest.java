@@ -22,9 +22,11 @@ import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.nio.channels.Channels;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
@@ -47,11 +49,13 @@ import org.geowebcache.grid.GridSetBroker;
 import org.geowebcache.grid.OutsideCoverageException;
 import org.geowebcache.io.ByteArrayResource;
 import org.geowebcache.io.Resource;
+import org.geowebcache.layer.MetaTileEncoderExecutor;
 import org.geowebcache.mime.MimeType;
 import org.geowebcache.seed.GWCTask;
 import org.geowebcache.seed.SeedRequest;
 import org.geowebcache.seed.TileBreeder;
 import org.geowebcache.storage.StorageBroker;
+import org.geowebcache.storage.TileKey;
 import org.geowebcache.storage.TileObject;
 import org.geowebcache.storage.TileRange;
 import org.geowebcache.storage.TileRangeIterator;
@@ -137,6 +141,26 @@ public class WMSLayerTest extends TestCase {
         assertEquals(218, mock.storagePutCounter.get());
     }
 
+    public void testMinMaxCacheSeedTileConcurrentEncoding() throws Exception {
+        WMSLayer tl = createWMSLayer("image/png", 5, 6);
+        MetaTileEncoderExecutor encoder = new MetaTileEncoderExecutor(4);
+        tl.setEncoderExecutor(encoder);
+
+        MockTileSupport mock = new MockTileSupport(tl);
+
+        SeedRequest req = createRequest(tl, GWCTask.TYPE.SEED, 4, 7);
+        TileRange tr = TileBreeder.createTileRange(req, tl);
+
+        try {
+            seedTiles(mock.storageBroker, tr, tl);
+            // all the tiles are stored before the meta tile locks are released
+            assertEquals(42, mock.wmsMetaRequestCounter.get());
+            assertEquals(218, mock.storagePutCounter.get());
+        } finally {
+            encoder.destroy();
+        }
+    }
+
     //ignore to fix the build until the failing assertion is worked out
     public void _testMinMaxCacheGetTile() throws Exception {
         WMSLayer tl = createWMSLayer("image/png", 5, 6);
@@ -298,7 +322,7 @@ public class WMSLayerTest extends TestCase {
 
                 public Boolean answer() throws Throwable {
                     TileObject tile = (TileObject) EasyMock.getCurrentArguments()[0];
-                    String key = TransientCache.computeTransientKey(tile);
+                    TileKey key = TransientCache.computeTransientKey(tile);
                     Resource resource;
                     synchronized (transientCache) {
                         resource = transientCache.get(key);
@@ -317,7 +341,7 @@ public class WMSLayerTest extends TestCase {
 
                 @Override
                 public void setValue(TileObject tile) {
-                    String key = TransientCache.computeTransientKey(tile);
+                    TileKey key = TransientCache.computeTransientKey(tile);
                     synchronized (transientCache) {
                         transientCache.put(key, tile.getBlob());
                     }
@@ -325,7 +349,7 @@ public class WMSLayerTest extends TestCase {
             }));
             expectLastCall().anyTimes();
 
-            final HashSet<String> puts = new HashSet<String>();
+            final Set<TileKey> puts = Collections.synchronizedSet(new HashSet<TileKey>());
             expect(storageBroker.put(capture(new Capture<TileObject>() {
                 @Override
                 public void setValue(TileObject value) {
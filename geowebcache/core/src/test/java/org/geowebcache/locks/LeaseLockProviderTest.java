@@ -0,0 +1,174 @@
+package org.geowebcache.locks;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+import org.geowebcache.GeoWebCacheException;
+import org.geowebcache.locks.LockProvider.Lock;
+
+public class LeaseLockProviderTest extends TestCase {
+
+    private static final String KEY = "meta_topp:states_EPSG:4326_0_1_2_abcdef.png";
+
+    File root;
+
+    LeaseLockProvider node1;
+
+    LeaseLockProvider node2;
+
+    @Override
+    protected void setUp() throws Exception {
+        root = new File("./target/leaseLockTests");
+        if (root.exists()) {
+            FileUtils.deleteDirectory(root);
+        }
+        root.mkdirs();
+        // two providers on the same directory behave like two nodes of a cluster
+        node1 = new LeaseLockProvider(root.getPath(), 64);
+        node2 = new LeaseLockProvider(root.getPath(), 64);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        node1.destroy();
+        node2.destroy();
+    }
+
+    public void testExclusiveAcrossNodes() throws Exception {
+        node2.setTimeout(200);
+        Lock lock = node1.getLock(KEY);
+        try {
+            node2.getLock(KEY);
+            fail("Lock should be held by the other node");
+        } catch (GeoWebCacheException e) {
+            // expected
+        }
+        assertEquals(1, node2.getStatistics().getTotal().getTimeouts());
+        lock.release();
+
+        Lock other = node2.getLock(KEY);
+        other.release();
+        assertEquals(1, node2.getStatistics().getTotal().getAcquired());
+    }
+
+    public void testWaitAndReleaseFromOtherThread() throws Exception {
+        final Lock lock = node1.getLock(KEY);
+        final CountDownLatch acquired = new CountDownLatch(1);
+        final AtomicBoolean failed = new AtomicBoolean();
+        Thread waiter = new Thread() {
+            public void run() {
+                try {
+                    node1.getLock(KEY).release();
+                    acquired.countDown();
+                } catch (GeoWebCacheException e) {
+                    failed.set(true);
+                }
+            }
+        };
+        waiter.start();
+        assertFalse(acquired.await(100, TimeUnit.MILLISECONDS));
+
+        Thread releaser = new Thread() {
+            public void run() {
+                try {
+                    lock.release();
+                } catch (GeoWebCacheException e) {
+                    failed.set(true);
+                }
+            }
+        };
+        releaser.start();
+        assertTrue(acquired.await(5, TimeUnit.SECONDS));
+        assertFalse(failed.get());
+
+        LockStatistics.Counters counters = node1.getStatistics().getGroups()
+                .get("topp:states_EPSG:4326");
+        assertEquals(2, counters.getAcquired());
+        assertEquals(1, counters.getContended());
+    }
+
+    public void testRenewal() throws Exception {
+        node1.setLeaseTime(1000);
+        node2.setTimeout(2000);
+        Lock lock = node1.getLock(KEY);
+        try {
+            // the lease gets renewed while held, past its original expiry
+            node2.getLock(KEY);
+            fail("Lease should have been renewed");
+        } catch (GeoWebCacheException e) {
+            // expected
+        }
+        lock.release();
+        assertEquals(0, node2.getStaleLeases());
+    }
+
+    public void testStaleLeaseRecovery() throws Exception {
+        node1.setLeaseTime(1000);
+        node1.getLock(KEY);
+        // simulate a crash, the lease does not get renewed nor released
+        node1.destroy();
+
+        long start = System.currentTimeMillis();
+        Lock lock = node2.getLock(KEY);
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        assertEquals(1, node2.getStaleLeases());
+        lock.release();
+    }
+
+    public void testKeysSharingHomeSlot() throws Exception {
+        // with a single home slot all the keys share it
+        LeaseLockProvider single1 = new LeaseLockProvider(root.getPath(), 1);
+        LeaseLockProvider single2 = new LeaseLockProvider(root.getPath(), 1);
+        try {
+            single1.setTimeout(200);
+            single2.setTimeout(200);
+            Lock first = single1.getLock(KEY);
+            // the same thread can hold another key, and so can another node
+            Lock second = single1.getLock(KEY + "_2");
+            Lock third = single2.getLock(KEY + "_3");
+            try {
+                single2.getLock(KEY);
+                fail("Lock should be held by the other node");
+            } catch (GeoWebCacheException e) {
+                // expected
+            }
+            first.release();
+            second.release();
+            third.release();
+            single2.getLock(KEY).release();
+
+            // all the records of the home slot taken, other keys have to wait
+            List<Lock> locks = new ArrayList<Lock>();
+            for (int i = 0; i < LeaseLockProvider.PROBES; i++) {
+                locks.add(single1.getLock(KEY + "_" + i));
+            }
+            try {
+                single2.getLock(KEY);
+                fail("No record should be left for the key");
+            } catch (GeoWebCacheException e) {
+                // expected
+            }
+            for (Lock lock : locks) {
+                lock.release();
+            }
+            single2.getLock(KEY).release();
+        } finally {
+            single1.destroy();
+            single2.destroy();
+        }
+    }
+
+    public void testGroupOf() {
+        assertEquals("topp:states_EPSG:4326", LockStatistics.groupOf(KEY));
+        assertEquals("layer_EPSG:900913",
+                LockStatistics.groupOf("tile_layer_EPSG:900913_-1_2_3.jpeg"));
+        assertEquals(LockStatistics.OTHER, LockStatistics.groupOf("some-other-lock"));
+    }
+}
@@ -0,0 +1,98 @@
+package org.geowebcache.locks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.geowebcache.locks.LockProvider.Lock;
+
+public class MemoryLockProviderTest extends TestCase {
+
+    MemoryLockProvider provider;
+
+    @Override
+    protected void setUp() throws Exception {
+        provider = new MemoryLockProvider();
+    }
+
+    public void testEntriesRemovedOnRelease() throws Exception {
+        Lock a = provider.getLock("a");
+        Lock b = provider.getLock("b");
+        assertEquals(2, provider.getActiveLocks());
+        a.release();
+        // releasing twice is harmless
+        a.release();
+        assertEquals(1, provider.getActiveLocks());
+        b.release();
+        assertEquals(0, provider.getActiveLocks());
+        assertEquals(2, provider.getStatistics().getTotal().getAcquired());
+        assertEquals(0, provider.getStatistics().getTotal().getContended());
+    }
+
+    public void testTryLockTimeout() throws Exception {
+        final Lock lock = provider.getLock("a");
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Boolean> other = executor.submit(new Callable<Boolean>() {
+                public Boolean call() throws Exception {
+                    return provider.tryLock("a", 50, TimeUnit.MILLISECONDS) != null;
+                }
+            });
+            assertFalse(other.get());
+            assertEquals(1, provider.getStatistics().getTotal().getTimeouts());
+            // unrelated keys do not wait
+            Future<Boolean> unrelated = executor.submit(new Callable<Boolean>() {
+                public Boolean call() throws Exception {
+                    Lock b = provider.tryLock("b", 0, TimeUnit.MILLISECONDS);
+                    b.release();
+                    return true;
+                }
+            });
+            assertTrue(unrelated.get());
+            lock.release();
+            assertEquals(0, provider.getActiveLocks());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    public void testConcurrentAccess() throws Exception {
+        final int[] counters = new int[4];
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (int t = 0; t < 8; t++) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    public Void call() throws Exception {
+                        for (int i = 0; i < 1000; i++) {
+                            int key = i % counters.length;
+                            Lock lock = provider.getLock("key" + key);
+                            try {
+                                counters[key]++;
+                            } finally {
+                                lock.release();
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        for (int counter : counters) {
+            assertEquals(2000, counter);
+        }
+        assertEquals(0, provider.getActiveLocks());
+        assertEquals(8000, provider.getStatistics().getTotal().getAcquired());
+    }
+}
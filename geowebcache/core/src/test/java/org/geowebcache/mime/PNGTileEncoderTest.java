@@ -0,0 +1,114 @@
+package org.geowebcache.mime;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import javax.imageio.ImageIO;
+
+import junit.framework.TestCase;
+
+public class PNGTileEncoderTest extends TestCase {
+
+    private PNGTileEncoder encoder;
+
+    @Override
+    protected void setUp() throws Exception {
+        encoder = new PNGTileEncoder();
+    }
+
+    public void testImageTypes() throws Exception {
+        int[] types = { BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_INT_RGB,
+                BufferedImage.TYPE_4BYTE_ABGR, BufferedImage.TYPE_3BYTE_BGR,
+                BufferedImage.TYPE_BYTE_GRAY, BufferedImage.TYPE_BYTE_INDEXED };
+        for (int type : types) {
+            BufferedImage image = createImage(type, 64, 48);
+            assertRoundTrip("type " + type, image);
+        }
+    }
+
+    public void testFilters() throws Exception {
+        BufferedImage image = createImage(BufferedImage.TYPE_4BYTE_ABGR, 40, 30);
+        for (PNGTileEncoder.Filter filter : PNGTileEncoder.Filter.values()) {
+            encoder.setFilter(filter);
+            for (int level = 0; level <= 9; level += 3) {
+                encoder.setCompressionLevel(level);
+                assertRoundTrip(filter + " level " + level, image);
+            }
+        }
+    }
+
+    public void testSubImage() throws Exception {
+        BufferedImage metaTile = createImage(BufferedImage.TYPE_INT_ARGB, 96, 96);
+        assertRoundTrip("int sub image", metaTile.getSubimage(32, 64, 32, 32));
+
+        metaTile = createImage(BufferedImage.TYPE_3BYTE_BGR, 96, 96);
+        assertRoundTrip("byte sub image", metaTile.getSubimage(64, 0, 32, 32));
+    }
+
+    public void testLargeImage() throws Exception {
+        // spans several IDAT chunks even when compressed
+        encoder.setCompressionLevel(0);
+        assertRoundTrip("large", createImage(BufferedImage.TYPE_INT_ARGB, 256, 256));
+    }
+
+    public void testDeclines() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BufferedImage image = createImage(BufferedImage.TYPE_INT_ARGB, 16, 16);
+        assertFalse(encoder.encode(image, ImageMime.jpeg, null, out));
+
+        image = createImage(BufferedImage.TYPE_INT_ARGB_PRE, 16, 16);
+        assertFalse(encoder.encode(image, ImageMime.png, null, out));
+
+        image = createImage(BufferedImage.TYPE_BYTE_BINARY, 16, 16);
+        assertFalse(encoder.encode(image, ImageMime.png, null, out));
+        assertEquals(0, out.size());
+
+        // the chain falls back on ImageIO
+        new TileEncoders().encode(image, ImageMime.png, null, out);
+        assertNotNull(ImageIO.read(new ByteArrayInputStream(out.toByteArray())));
+    }
+
+    public void testImageIOWriterReuse() throws Exception {
+        ImageIOTileEncoder imageIO = new ImageIOTileEncoder();
+        BufferedImage image = createImage(BufferedImage.TYPE_3BYTE_BGR, 32, 32);
+        for (int i = 0; i < 3; i++) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            assertTrue(imageIO.encode(image, ImageMime.jpeg, null, out));
+            BufferedImage read = ImageIO.read(new ByteArrayInputStream(out.toByteArray()));
+            assertEquals(32, read.getWidth());
+        }
+    }
+
+    private void assertRoundTrip(String message, BufferedImage image) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertTrue(message, encoder.encode(image, ImageMime.png, null, out));
+        BufferedImage read = ImageIO.read(new ByteArrayInputStream(out.toByteArray()));
+        assertNotNull(message, read);
+        assertEquals(message, image.getWidth(), read.getWidth());
+        assertEquals(message, image.getHeight(), read.getHeight());
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                assertEquals(message + " at " + x + "," + y, image.getRGB(x, y), read.getRGB(x, y));
+            }
+        }
+    }
+
+    private BufferedImage createImage(int type, int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, type);
+        Graphics2D g = image.createGraphics();
+        try {
+            for (int i = 0; i < 8; i++) {
+                g.setColor(new Color((i * 37) % 256, (i * 91) % 256, (i * 53) % 256, 64 + i * 24));
+                g.fillOval(i * width / 10, i * height / 12, width / 2, height / 3);
+            }
+            g.setColor(Color.BLACK);
+            g.drawLine(0, height - 1, width - 1, 0);
+        } finally {
+            g.dispose();
+        }
+        return image;
+    }
+}
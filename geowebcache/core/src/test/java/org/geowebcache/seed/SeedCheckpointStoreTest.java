@@ -0,0 +1,184 @@
+package org.geowebcache.seed;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+import org.easymock.classextension.EasyMock;
+import org.geowebcache.GeoWebCacheException;
+import org.geowebcache.mime.ImageMime;
+import org.geowebcache.seed.GWCTask.PRIORITY;
+import org.geowebcache.seed.GWCTask.STATE;
+import org.geowebcache.seed.GWCTask.TYPE;
+import org.geowebcache.storage.TileRange;
+import org.geowebcache.storage.TileRangeIterator;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.event.ContextRefreshedEvent;
+
+public class SeedCheckpointStoreTest extends TestCase {
+
+    private File directory;
+
+    private SeedCheckpointStore store;
+
+    private TileRange tileRange;
+
+    @Override
+    protected void setUp() throws Exception {
+        directory = new File("./target/seedCheckpointStoreTests");
+        if (directory.exists()) {
+            FileUtils.deleteDirectory(directory);
+        }
+        store = new SeedCheckpointStore(directory);
+
+        long[][] bounds = new long[4][];
+        for (int z = 0; z < 4; z++) {
+            bounds[z] = new long[] { 0, 0, (1 << z) - 1, (1 << z) - 1, z };
+        }
+        tileRange = new TileRange("test:layer", "EPSG:4326", 1, 3, bounds, ImageMime.png,
+                Collections.singletonMap("STYLES", "population"));
+    }
+
+    public void testSaveAndLoad() throws Exception {
+        SeedCheckpoint checkpoint = new SeedCheckpoint("job1", tileRange, TYPE.RESEED, 3, true,
+                PRIORITY.LOW, 25.5, TileRangeIterator.Order.HILBERT, new int[] { 4, 2 });
+        checkpoint.setPendingRanges(new long[] { 2, 5, 9, 12 }, 20);
+        store.save(checkpoint);
+
+        SeedCheckpoint loaded = store.get("job1");
+        assertEquals("test:layer", loaded.getLayerName());
+        TileRange loadedRange = loaded.getTileRange();
+        assertEquals("EPSG:4326", loadedRange.getGridSetId());
+        assertEquals(ImageMime.png, loadedRange.getMimeType());
+        assertEquals(1, loadedRange.getZoomStart());
+        assertEquals(3, loadedRange.getZoomStop());
+        for (int z = 1; z <= 3; z++) {
+            assertTrue(java.util.Arrays.equals(tileRange.rangeBounds(z),
+                    loadedRange.rangeBounds(z)));
+        }
+        assertEquals(tileRange.getParameters(), loadedRange.getParameters());
+        assertEquals(tileRange.getParametersId(), loadedRange.getParametersId());
+        assertEquals(TYPE.RESEED, loaded.getType());
+        assertEquals(3, loaded.getThreadCount());
+        assertTrue(loaded.isFilterUpdate());
+        assertEquals(PRIORITY.LOW, loaded.getPriority());
+        assertEquals(25.5, loaded.getMaxTileRate());
+        assertEquals(TileRangeIterator.Order.HILBERT, loaded.getOrder());
+        assertEquals(4, loaded.getMetaTilingFactors()[0]);
+        assertEquals(2, loaded.getMetaTilingFactors()[1]);
+        assertEquals(6, loaded.getPendingMetaTiles());
+        assertEquals(20, loaded.getMetaTileCount());
+        assertTrue(loaded.getSaved() > 0);
+
+        assertEquals(1, store.list().size());
+        assertTrue(store.remove("job1"));
+        assertNull(store.get("job1"));
+        assertFalse(store.remove("job1"));
+    }
+
+    public void testInvalidCheckpointsSkipped() throws Exception {
+        directory.mkdirs();
+        FileUtils.writeStringToFile(new File(directory, "broken.properties"), "id=broken\n");
+        assertTrue(store.list().isEmpty());
+    }
+
+    public void testCheckpointKeptUntilComplete() throws Exception {
+        Set<String> activeJobs = Collections.synchronizedSet(new HashSet<String>());
+        TileRangeIterator[] iterators = TileRangeIterator.partition(tileRange, new int[] { 1,
+                1 }, 2);
+        SeedCheckpoint checkpoint = new SeedCheckpoint("job2", tileRange, TYPE.SEED, 2, false,
+                PRIORITY.NORMAL, 0, TileRangeIterator.Order.ROW_MAJOR, new int[] { 1, 1 });
+        SeedJobCheckpointer checkpointer = new SeedJobCheckpointer(store, checkpoint,
+                iterators[0], 60000, 2, activeJobs);
+
+        checkpointer.dispatched();
+        assertTrue(activeJobs.contains("job2"));
+        assertEquals(iterators[0].getMetaTileCount(), store.get("job2").getPendingMetaTiles());
+
+        // the first task gets interrupted after three meta tiles
+        long[] gridLoc = new long[3];
+        for (int i = 0; i < 3; i++) {
+            gridLoc = iterators[0].nextMetaGridLocation(gridLoc);
+        }
+        checkpointer.finished(new StubTask(STATE.DEAD));
+        assertEquals(iterators[0].getMetaTileCount() - 2, store.get("job2").getPendingMetaTiles());
+
+        // the second one completes its part, the job is left unfinished
+        while (null != (gridLoc = iterators[1].nextMetaGridLocation(gridLoc))) {
+        }
+        checkpointer.finished(new StubTask(STATE.DONE));
+        assertFalse(activeJobs.contains("job2"));
+        assertNotNull(store.get("job2"));
+    }
+
+    public void testCheckpointRemovedOnceComplete() throws Exception {
+        Set<String> activeJobs = Collections.synchronizedSet(new HashSet<String>());
+        TileRangeIterator[] iterators = TileRangeIterator.partition(tileRange, new int[] { 1,
+                1 }, 1);
+        SeedCheckpoint checkpoint = new SeedCheckpoint("job3", tileRange, TYPE.SEED, 1, false,
+                PRIORITY.NORMAL, 0, TileRangeIterator.Order.ROW_MAJOR, new int[] { 1, 1 });
+        SeedJobCheckpointer checkpointer = new SeedJobCheckpointer(store, checkpoint,
+                iterators[0], 0, 1, activeJobs);
+        checkpointer.dispatched();
+        long[] gridLoc = new long[3];
+        while (null != (gridLoc = iterators[0].nextMetaGridLocation(gridLoc))) {
+            checkpointer.progress();
+        }
+        checkpointer.progress();
+        assertEquals(0, store.get("job3").getPendingMetaTiles());
+        checkpointer.finished(new StubTask(STATE.DONE));
+        assertNull(store.get("job3"));
+        assertTrue(activeJobs.isEmpty());
+    }
+
+    private static class StubTask extends GWCTask {
+        StubTask(STATE state) {
+            this.state = state;
+        }
+
+        @Override
+        protected void dispose() {
+        }
+
+        @Override
+        protected void doActionInternal() throws GeoWebCacheException, InterruptedException {
+        }
+    }
+
+    public void testListOldestFirst() throws Exception {
+        for (String id : new String[] { "a", "b" }) {
+            store.save(new SeedCheckpoint(id, tileRange, TYPE.TRUNCATE, 1, false,
+                    PRIORITY.NORMAL, 0, TileRangeIterator.Order.ROW_MAJOR, new int[] { 1, 1 }));
+            Thread.sleep(20);
+        }
+        List<SeedCheckpoint> checkpoints = store.list();
+        assertEquals("a", checkpoints.get(0).getId());
+        assertEquals("b", checkpoints.get(1).getId());
+        assertNull(checkpoints.get(0).getPendingRanges());
+    }
+
+    public void testResumeOnContextRefresh() throws Exception {
+        SeedCheckpointStore mockStore = EasyMock.createMock(SeedCheckpointStore.class);
+        // listed once, by the first refresh of the breeder's own context
+        EasyMock.expect(mockStore.list()).andReturn(Collections.<SeedCheckpoint> emptyList());
+        EasyMock.replay(mockStore);
+
+        ApplicationContext context = EasyMock.createNiceMock(ApplicationContext.class);
+        ApplicationContext otherContext = EasyMock.createNiceMock(ApplicationContext.class);
+        EasyMock.replay(context, otherContext);
+
+        TileBreeder breeder = new TileBreeder();
+        breeder.setCheckpointStore(mockStore);
+        breeder.setApplicationContext(context);
+        breeder.onApplicationEvent(new ContextRefreshedEvent(otherContext));
+        breeder.onApplicationEvent(new ContextRefreshedEvent(context));
+        breeder.onApplicationEvent(new ContextRefreshedEvent(context));
+
+        EasyMock.verify(mockStore);
+    }
+}
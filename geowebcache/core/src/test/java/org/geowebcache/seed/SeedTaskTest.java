@@ -29,6 +29,7 @@ import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.nio.channels.Channels;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -39,6 +40,7 @@ import java.util.concurrent.atomic.AtomicLong;
 import junit.framework.TestCase;
 
 import org.easymock.Capture;
+import org.easymock.IAnswer;
 import org.easymock.classextension.EasyMock;
 import org.geowebcache.GeoWebCacheException;
 import org.geowebcache.TestHelpers;
@@ -329,6 +331,90 @@ public class SeedTaskTest extends TestCase {
         assertEquals(expectedTiles, tileKeys);
     }
 
+    /**
+     * Meta tiles whose tiles are all cached are skipped without asking the layer for them, the
+     * ones missing any tile are seeded as usual. Only the latter count against the rate limit.
+     */
+    public void testSeedSkipsCachedMetaTiles() throws Exception {
+        WMSLayer tl = createWMSLayer("image/png");
+        tl.setSourceHelper(new MockWMSSourceHelper());
+
+        final int zoomLevel = 2;
+        SeedRequest req = createRequest(tl, TYPE.SEED, zoomLevel, zoomLevel);
+        TileRange tr = TileBreeder.createTileRange(req, tl);
+        Thread.currentThread().setName("pool-fake-thread-1");
+
+        // everything cached
+        StorageBroker storageBroker = createExistsStorageBroker(false);
+        SeedTask task = new SeedTask(storageBroker, new TileRangeIterator(tr,
+                tl.getMetaTilingFactors()), tl, false, false);
+        task.setThreadInfo(new AtomicInteger(), 0);
+        task.setSkipExisting(true);
+        final AtomicLong charged = new AtomicLong();
+        task.setThrottle(new ChargeRecorder(charged));
+        task.doAction();
+        assertTrue(task.getTilesDone() > 0);
+        assertEquals(task.getTilesDone(), task.getTilesSkipped());
+        assertEquals(0, charged.get());
+        EasyMock.verify(storageBroker);
+
+        // one tile missing from each meta tile
+        storageBroker = createExistsStorageBroker(true);
+        task = new SeedTask(storageBroker, new TileRangeIterator(tr, tl.getMetaTilingFactors()),
+                tl, false, false);
+        task.setThreadInfo(new AtomicInteger(), 0);
+        task.setSkipExisting(true);
+        task.setThrottle(new ChargeRecorder(charged));
+        task.doAction();
+        assertEquals(0, task.getTilesSkipped());
+        assertEquals(task.getTilesDone(), charged.get());
+    }
+
+    /**
+     * Records the tiles charged to the rate limit, without waiting
+     */
+    private static class ChargeRecorder extends SeedThrottle {
+
+        private final AtomicLong charged;
+
+        ChargeRecorder(AtomicLong charged) {
+            super(GWCTask.PRIORITY.NORMAL, 0, null);
+            this.charged = charged;
+        }
+
+        @Override
+        public long seeded(long tiles) {
+            charged.addAndGet(tiles);
+            return 0;
+        }
+    }
+
+    /**
+     * @return a storage broker reporting all the tiles as cached, except for the first one of
+     *         each area when {@code missing} is set, and not expecting any tile to be stored
+     *         unless {@code missing} is set
+     */
+    private StorageBroker createExistsStorageBroker(final boolean missing) throws Exception {
+        StorageBroker storageBroker = EasyMock.createMock(StorageBroker.class);
+        expect(storageBroker.exists((TileRange) anyObject(), (long[]) anyObject())).andAnswer(
+                new IAnswer<BitSet>() {
+                    public BitSet answer() throws Throwable {
+                        long[] bounds = (long[]) EasyMock.getCurrentArguments()[1];
+                        int tiles = (int) ((1 + bounds[2] - bounds[0])
+                                * (1 + bounds[3] - bounds[1]));
+                        BitSet stored = new BitSet();
+                        stored.set(missing ? 1 : 0, tiles);
+                        return stored;
+                    }
+                }).anyTimes();
+        if (missing) {
+            expect(storageBroker.put((TileObject) anyObject())).andReturn(true).anyTimes();
+            expect(storageBroker.get((TileObject) anyObject())).andReturn(false).anyTimes();
+        }
+        replay(storageBroker);
+        return storageBroker;
+    }
+
     private static class Tuple<T extends Comparable<T>> implements Comparable<Tuple<T>> {
 
         private T[] members;
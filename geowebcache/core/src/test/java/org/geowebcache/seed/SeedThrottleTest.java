@@ -0,0 +1,73 @@
+package org.geowebcache.seed;
+
+import junit.framework.TestCase;
+
+import org.geowebcache.seed.GWCTask.PRIORITY;
+import org.geowebcache.stats.MissLatencyMonitor;
+
+public class SeedThrottleTest extends TestCase {
+
+    private MissLatencyMonitor monitor;
+
+    @Override
+    protected void setUp() throws Exception {
+        monitor = new MissLatencyMonitor();
+        monitor.setThrottleLatency(100);
+        monitor.setPauseLatency(1100);
+    }
+
+    public void testUnlimited() {
+        SeedThrottle throttle = new SeedThrottle(PRIORITY.NORMAL, 0, monitor);
+        assertEquals(0, throttle.seeded(1000));
+        assertFalse(throttle.isPaused());
+    }
+
+    public void testMaxTileRate() {
+        SeedThrottle throttle = new SeedThrottle(PRIORITY.HIGH, 100, null);
+        long first = throttle.seeded(50);
+        assertTrue("" + first, first > 400 && first <= 500);
+        // shared by the threads of the job, the second one has to wait for both
+        long second = throttle.seeded(50);
+        assertTrue("" + second, second > 900 && second <= 1000);
+
+        throttle.setMaxTileRate(0);
+        assertEquals(0, throttle.seeded(50));
+    }
+
+    public void testInteractiveLoad() {
+        SeedThrottle low = new SeedThrottle(PRIORITY.LOW, 0, monitor);
+        SeedThrottle normal = new SeedThrottle(PRIORITY.NORMAL, 0, monitor);
+        SeedThrottle high = new SeedThrottle(PRIORITY.HIGH, 0, monitor);
+
+        monitor.missed(50);
+        assertEquals(0d, monitor.getLoad());
+        assertFalse(low.isPaused());
+
+        // half way between the throttle and pause latencies
+        monitor.setWindow(-1);
+        monitor.missed(600);
+        monitor.setWindow(10000);
+        assertEquals(0.5, monitor.getLoad(), 1e-9);
+        assertTrue(low.isPaused());
+        assertFalse(normal.isPaused());
+        assertEquals(SeedThrottle.MAX_LOAD_DELAY / 2, normal.seeded(1));
+        assertFalse(high.isPaused());
+        assertEquals(0, high.seeded(1));
+
+        for (int i = 0; i < 50; i++) {
+            monitor.missed(5000);
+        }
+        assertEquals(1d, monitor.getLoad());
+        assertTrue(normal.isPaused());
+        assertFalse(high.isPaused());
+
+        // reprioritized while running
+        normal.setPriority(PRIORITY.HIGH);
+        assertFalse(normal.isPaused());
+
+        // old misses are forgotten
+        monitor.setWindow(-1);
+        assertEquals(0d, monitor.getLoad());
+        assertFalse(low.isPaused());
+    }
+}
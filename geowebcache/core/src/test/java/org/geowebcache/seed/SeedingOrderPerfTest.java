@@ -0,0 +1,185 @@
+package org.geowebcache.seed;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+import org.geowebcache.GeoWebCacheException;
+import org.geowebcache.TestHelpers;
+import org.geowebcache.io.Resource;
+import org.geowebcache.layer.TileResponseReceiver;
+import org.geowebcache.layer.wms.WMSLayer;
+import org.geowebcache.layer.wms.WMSMetaTile;
+import org.geowebcache.seed.GWCTask.TYPE;
+import org.geowebcache.storage.DefaultStorageBroker;
+import org.geowebcache.storage.TileRange;
+import org.geowebcache.storage.TileRangeIterator;
+import org.geowebcache.storage.blobstore.file.FileBlobStore;
+import org.geowebcache.util.MockWMSSourceHelper;
+
+/**
+ * Compares the seeding throughput of the {@link TileRangeIterator.Order row major and Hilbert}
+ * orders against a mock WMS that keeps the data of the most recently rendered areas in a small
+ * cache, and pays a penalty for reading the data of the others, like a backend reading features
+ * or raster blocks from disk would.
+ * <p>
+ * Not run by the build, run it manually to compare the orders.
+ * </p>
+ */
+public class SeedingOrderPerfTest extends TestCase {
+
+    private static final int ZOOM_START = 0;
+
+    private static final int ZOOM_STOP = 8;
+
+    private static final int THREADS = 4;
+
+    /**
+     * Side of the backend data blocks, in tiles
+     */
+    private static final int DATA_BLOCK = 4;
+
+    /**
+     * Number of data blocks the backend keeps in memory
+     */
+    private static final int DATA_CACHE_SIZE = 32;
+
+    /**
+     * Milliseconds to read a data block not in memory
+     */
+    private static final long READ_PENALTY = 10;
+
+    File cacheDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        cacheDir = new File("./target/seedingOrderPerfTest");
+        if (cacheDir.exists()) {
+            FileUtils.deleteDirectory(cacheDir);
+        }
+        cacheDir.mkdirs();
+    }
+
+    public void testCompareOrders() throws Exception {
+        // warm up
+        seed(TileRangeIterator.Order.ROW_MAJOR, ZOOM_STOP - 2);
+
+        for (TileRangeIterator.Order order : TileRangeIterator.Order.values()) {
+            seed(order, ZOOM_STOP);
+        }
+    }
+
+    private void seed(TileRangeIterator.Order order, int zoomStop) throws Exception {
+        FileUtils.cleanDirectory(cacheDir);
+        FileBlobStore blobStore = new FileBlobStore(cacheDir.getAbsolutePath());
+        DefaultStorageBroker storageBroker = new DefaultStorageBroker(blobStore);
+
+        WMSLayer layer = TestHelpers.createWMSLayer("image/png");
+        CachingBackend backend = new CachingBackend();
+        layer.setSourceHelper(backend);
+
+        TileBreeder breeder = new TileBreeder();
+        breeder.setStorageBroker(storageBroker);
+        breeder.setSeedOrder(order);
+        SeedRequest request = TestHelpers.createRequest(layer, TYPE.SEED, ZOOM_START, zoomStop);
+        TileRange range = TileBreeder.createTileRange(request, layer);
+        GWCTask[] tasks = breeder.createTasks(range, layer, TYPE.SEED, THREADS, false);
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        final long start = System.currentTimeMillis();
+        try {
+            for (final GWCTask task : tasks) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    public Void call() throws Exception {
+                        task.doAction();
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+            storageBroker.destroy();
+        }
+        final long elapsed = Math.max(1, System.currentTimeMillis() - start);
+
+        long tiles = 0;
+        for (GWCTask task : tasks) {
+            tiles += task.getTilesDone();
+        }
+        System.out.println(order + " up to level " + zoomStop + ": " + backend.requests.get()
+                + " meta tiles, " + tiles + " tiles in " + elapsed + "ms, "
+                + (1000 * tiles / elapsed) + " tiles/s, " + backend.misses.get() + " of "
+                + backend.reads.get() + " backend data blocks read from disk");
+    }
+
+    /**
+     * Pays {@link #READ_PENALTY} for each data block of a meta tile that is not among the
+     * {@link #DATA_CACHE_SIZE} most recently used ones
+     */
+    private static class CachingBackend extends MockWMSSourceHelper {
+
+        final AtomicLong requests = new AtomicLong();
+
+        final AtomicLong reads = new AtomicLong();
+
+        final AtomicLong misses = new AtomicLong();
+
+        private final Map<String, Boolean> dataCache = new LinkedHashMap<String, Boolean>(16,
+                0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > DATA_CACHE_SIZE;
+            }
+        };
+
+        @Override
+        protected void makeRequest(TileResponseReceiver tileRespRecv, WMSLayer layer,
+                Map<String, String> wmsParams, String expectedMimeType, Resource target)
+                throws GeoWebCacheException {
+            if (tileRespRecv instanceof WMSMetaTile) {
+                requests.incrementAndGet();
+                long[][] tiles = ((WMSMetaTile) tileRespRecv).getTilesGridPositions();
+                List<String> blocks = new ArrayList<String>();
+                for (long[] tile : tiles) {
+                    String block = tile[2] + "_" + (tile[0] / DATA_BLOCK) + "_"
+                            + (tile[1] / DATA_BLOCK);
+                    if (!blocks.contains(block)) {
+                        blocks.add(block);
+                    }
+                }
+                int missing = 0;
+                synchronized (dataCache) {
+                    for (String block : blocks) {
+                        if (dataCache.put(block, Boolean.TRUE) == null) {
+                            missing++;
+                        }
+                    }
+                }
+                reads.addAndGet(blocks.size());
+                misses.addAndGet(missing);
+                try {
+                    Thread.sleep(missing * READ_PENALTY);
+                } catch (InterruptedException e) {
+                    throw new GeoWebCacheException(e);
+                }
+            }
+            super.makeRequest(tileRespRecv, layer, wmsParams, expectedMimeType, target);
+        }
+    }
+}
@@ -19,19 +19,26 @@ package org.geowebcache.storage;
 
 import java.io.File;
 import java.io.InputStream;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 import junit.framework.TestCase;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
+import org.easymock.IAnswer;
 import org.easymock.classextension.EasyMock;
 import org.geowebcache.grid.SRS;
 import org.geowebcache.io.ByteArrayResource;
 import org.geowebcache.io.Resource;
 import org.geowebcache.mime.ImageMime;
 import org.geowebcache.mime.MimeType;
+import org.geowebcache.storage.blobstore.bundle.BundleBlobStore;
 import org.geowebcache.storage.blobstore.file.FileBlobStore;
 
 public class BlobStoreTest extends TestCase {
@@ -176,6 +183,210 @@ public class BlobStoreTest extends TestCase {
         assertNull(res);
     }
 
+    public void testTileRangeDeleteDirectories() throws Exception {
+        FileBlobStore fbs = setup();
+        fbs.setTruncateThreads(2);
+        final AtomicLong deletedEvents = new AtomicLong();
+        final AtomicLong deletedTiles = new AtomicLong();
+        final AtomicLong deletedBytes = new AtomicLong();
+        BatchBlobStoreListener listener = EasyMock.createNiceMock(BatchBlobStoreListener.class);
+        listener.tilesDeleted((String) EasyMock.anyObject(), (String) EasyMock.anyObject(),
+                (String) EasyMock.anyObject(), (String) EasyMock.anyObject(), EasyMock.anyInt(),
+                (long[]) EasyMock.anyObject(), (long[]) EasyMock.anyObject(),
+                (long[]) EasyMock.anyObject(), EasyMock.anyInt());
+        EasyMock.expectLastCall().andAnswer(new IAnswer<Object>() {
+            public Object answer() throws Throwable {
+                long[] sizes = (long[]) EasyMock.getCurrentArguments()[7];
+                int count = (Integer) EasyMock.getCurrentArguments()[8];
+                deletedEvents.incrementAndGet();
+                deletedTiles.addAndGet(count);
+                for (int i = 0; i < count; i++) {
+                    deletedBytes.addAndGet(sizes[i]);
+                }
+                return null;
+            }
+        }).anyTimes();
+        EasyMock.replay(listener);
+        fbs.addListener(listener);
+
+        // zoom level 2 tiles are spread in 4x4 directories, fill four of them with 64 tiles
+        final int zoomLevel = 2;
+        Resource bytes = new ByteArrayResource("1 2 3 4 5 6 test".getBytes());
+        for (long x = 0; x < 8; x++) {
+            for (long y = 0; y < 8; y++) {
+                fbs.put(TileObject.createCompleteTileObject("test:truncate", new long[] { x, y,
+                        zoomLevel }, "EPSG:4326", "image/png", null, bytes));
+            }
+        }
+        // a tile of another format sharing a directory fully inside the range
+        fbs.put(TileObject.createCompleteTileObject("test:truncate", new long[] { 2, 2,
+                zoomLevel }, "EPSG:4326", "image/jpeg", null, bytes));
+
+        // the two bottom directories are fully covered, the top ones only partially
+        long[][] rangeBounds = { { 0, 0, 7, 5, zoomLevel } };
+        TileRange range = new TileRange("test:truncate", "EPSG:4326", zoomLevel, zoomLevel,
+                rangeBounds, ImageMime.png, (Map<String, String>) null);
+        assertTrue(fbs.delete(range));
+
+        // one event per directory
+        assertEquals(4, deletedEvents.get());
+        assertEquals(48, deletedTiles.get());
+        assertEquals(48 * bytes.getSize(), deletedBytes.get());
+        BitSet left = fbs.exists(range, new long[] { 0, 0, 7, 7, zoomLevel });
+        assertEquals(16, left.cardinality());
+        assertEquals(48, left.nextSetBit(0));
+        TileRange jpeg = new TileRange("test:truncate", "EPSG:4326", zoomLevel, zoomLevel,
+                rangeBounds, ImageMime.jpeg, (Map<String, String>) null);
+        assertEquals(1, fbs.exists(jpeg, new long[] { 2, 2, 2, 2, zoomLevel }).cardinality());
+    }
+
+    public void testTileRangeDeleteSharesThreads() throws Exception {
+        FileBlobStore fbs = setup();
+        fbs.setTruncateThreads(1);
+        final Set<Thread> threads = Collections.synchronizedSet(new HashSet<Thread>());
+        BatchBlobStoreListener listener = EasyMock.createNiceMock(BatchBlobStoreListener.class);
+        listener.tilesDeleted((String) EasyMock.anyObject(), (String) EasyMock.anyObject(),
+                (String) EasyMock.anyObject(), (String) EasyMock.anyObject(), EasyMock.anyInt(),
+                (long[]) EasyMock.anyObject(), (long[]) EasyMock.anyObject(),
+                (long[]) EasyMock.anyObject(), EasyMock.anyInt());
+        EasyMock.expectLastCall().andAnswer(new IAnswer<Object>() {
+            public Object answer() throws Throwable {
+                threads.add(Thread.currentThread());
+                return null;
+            }
+        }).anyTimes();
+        EasyMock.replay(listener);
+        fbs.addListener(listener);
+
+        // four tile directories at zoom level 2, truncated one at a time
+        final int zoomLevel = 2;
+        Resource bytes = new ByteArrayResource("1 2 3 4 5 6 test".getBytes());
+        for (long x = 0; x < 8; x++) {
+            for (long y = 0; y < 8; y++) {
+                fbs.put(TileObject.createCompleteTileObject("test:truncate", new long[] { x, y,
+                        zoomLevel }, "EPSG:4326", "image/png", null, bytes));
+            }
+        }
+        for (long x = 0; x < 8; x += 4) {
+            for (long y = 0; y < 8; y += 4) {
+                long[][] rangeBounds = { { x, y, x + 3, y + 3, zoomLevel } };
+                assertTrue(fbs.delete(new TileRange("test:truncate", "EPSG:4326", zoomLevel,
+                        zoomLevel, rangeBounds, ImageMime.png, (Map<String, String>) null)));
+            }
+        }
+        // the same thread deleted all the directories
+        assertEquals(1, threads.size());
+        fbs.destroy();
+    }
+
+    public void testTileStoredBatch() throws Exception {
+        FileBlobStore fbs = setup();
+        final AtomicLong storedEvents = new AtomicLong();
+        final AtomicLong storedTiles = new AtomicLong();
+        BatchBlobStoreListener listener = EasyMock.createMock(BatchBlobStoreListener.class);
+        listener.tilesStored(EasyMock.eq("test:batch"), EasyMock.eq("EPSG:4326"),
+                EasyMock.eq("image/png"), (String) EasyMock.isNull(), EasyMock.anyInt(),
+                (long[]) EasyMock.anyObject(), (long[]) EasyMock.anyObject(),
+                (long[]) EasyMock.anyObject(), EasyMock.anyInt());
+        EasyMock.expectLastCall().andAnswer(new IAnswer<Object>() {
+            public Object answer() throws Throwable {
+                int z = (Integer) EasyMock.getCurrentArguments()[4];
+                long[] x = (long[]) EasyMock.getCurrentArguments()[5];
+                int count = (Integer) EasyMock.getCurrentArguments()[8];
+                assertEquals(storedEvents.get() == 0 ? 3 : 4, z);
+                assertEquals(1, x[count - 1]);
+                storedEvents.incrementAndGet();
+                storedTiles.addAndGet(count);
+                return null;
+            }
+        }).times(2);
+        EasyMock.replay(listener);
+        fbs.addListener(listener);
+        // listeners not taking batches get one event per tile
+        BlobStoreListener plain = EasyMock.createMock(BlobStoreListener.class);
+        plain.tileStored(EasyMock.eq("test:batch"), EasyMock.eq("EPSG:4326"),
+                EasyMock.eq("image/png"), (String) EasyMock.isNull(), EasyMock.anyLong(),
+                EasyMock.eq(0L), EasyMock.anyInt(), EasyMock.eq(16L));
+        EasyMock.expectLastCall().times(4);
+        EasyMock.replay(plain);
+        fbs.addListener(plain);
+
+        Resource bytes = new ByteArrayResource("1 2 3 4 5 6 test".getBytes());
+        BlobStoreListenerList.beginBatch();
+        try {
+            for (int z = 3; z <= 4; z++) {
+                for (long x = 0; x < 2; x++) {
+                    fbs.put(TileObject.createCompleteTileObject("test:batch", new long[] { x, 0,
+                            z }, "EPSG:4326", "image/png", null, bytes));
+                }
+            }
+            // held back until the end of the batch
+            assertEquals(1, storedEvents.get());
+        } finally {
+            BlobStoreListenerList.endBatch();
+        }
+        assertEquals(2, storedEvents.get());
+        assertEquals(4, storedTiles.get());
+        EasyMock.verify(listener);
+        EasyMock.verify(plain);
+    }
+
+    public void testTileExists() throws Exception {
+        checkTileExists(setup());
+
+        // wipe the cache directory again
+        setup();
+        File root = new File(StorageBrokerTest.findTempDir(), TEST_BLOB_DIR_NAME);
+        checkTileExists(new BundleBlobStore(root.getAbsolutePath(), 4));
+    }
+
+    private void checkTileExists(FileBlobStore store) throws Exception {
+        Map<String, String> parameters = new HashMap<String, String>();
+        parameters.put("a", "x");
+        TileRange range = new TileRange("test:exists", "EPSG:4326", 0, 10, null,
+                ImageMime.png, parameters);
+        // tiles on both sides of the directory (and bundle) boundaries
+        long[][] stored = { { 6, 6, 4 }, { 7, 7, 4 }, { 8, 7, 4 }, { 9, 9, 4 }, { 500, 1, 10 } };
+        for (long[] xyz : stored) {
+            store.put(TileObject.createCompleteTileObject("test:exists", xyz, "EPSG:4326",
+                    "image/png", parameters, new ByteArrayResource(new byte[] { 1, 2, 3 })));
+        }
+
+        // large enough for the directories to be listed at zoom level 4
+        BitSet found = store.exists(range, new long[] { 6, 6, 9, 9, 4 });
+        assertEquals(4, found.cardinality());
+        assertTrue(found.get(0));
+        assertTrue(found.get(5));
+        assertTrue(found.get(6));
+        assertTrue(found.get(15));
+
+        // a single tile, looked up directly at zoom level 10
+        assertEquals(1, store.exists(range, new long[] { 500, 1, 500, 1, 10 }).cardinality());
+        assertEquals(0, store.exists(range, new long[] { 501, 1, 501, 1, 10 }).cardinality());
+
+        // no such directory
+        assertEquals(0, store.exists(range, new long[] { 0, 0, 3, 3, 3 }).cardinality());
+
+        // other parameters
+        TileRange other = new TileRange("test:exists", "EPSG:4326", 0, 10, null, ImageMime.png,
+                (Map<String, String>) null);
+        assertEquals(0, store.exists(other, new long[] { 6, 6, 9, 9, 4 }).cardinality());
+
+        // stores not checking existence themselves get their tiles read one by one
+        final BlobStore plain = EasyMock.createMock(BlobStore.class);
+        final FileBlobStore target = store;
+        EasyMock.expect(plain.get((TileObject) EasyMock.anyObject())).andAnswer(
+                new IAnswer<Boolean>() {
+                    public Boolean answer() throws Throwable {
+                        return target.get((TileObject) EasyMock.getCurrentArguments()[0]);
+                    }
+                }).anyTimes();
+        EasyMock.replay(plain);
+        assertEquals(found, BlobStores.exists(plain, range, new long[] { 6, 6, 9, 9, 4 }));
+        assertEquals(0, BlobStores.exists(plain, other, new long[] { 6, 6, 9, 9, 4 })
+                .cardinality());
+    }
+
     public void testRenameLayer() throws Exception {
         FileBlobStore fbs = setup();
         Resource bytes = new ByteArrayResource("1 2 3 4 5 6 test".getBytes());
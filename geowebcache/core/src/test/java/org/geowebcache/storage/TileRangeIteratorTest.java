@@ -7,8 +7,11 @@ import static org.easymock.classextension.EasyMock.replay;
 import static org.easymock.classextension.EasyMock.verify;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
@@ -179,6 +182,162 @@ public class TileRangeIteratorTest extends TestCase {
         verify(rasterMask);
     }
 
+    public void testPartitionedMultiThreaded() throws Exception {
+        int zoomStart = gridSubSet.getZoomStart();
+        int zoomStop = gridSubSet.getZoomStop();
+        int[] metaTilingFactors = { 3, 3 };
+        TileRange tileRange = new TileRange("layer", "gridset", zoomStart, zoomStop,
+                gridCoverages, mimeType, parameters);
+
+        final int nThreads = 8;
+        TileRangeIterator[] iterators = TileRangeIterator.partition(tileRange,
+                metaTilingFactors, nThreads);
+        Collection<Callable<Long>> tasks = new ArrayList<Callable<Long>>(nThreads);
+        for (TileRangeIterator iterator : iterators) {
+            tasks.add(new TileRangeIteratorConsumer(iterator));
+        }
+        ExecutorService executorService = Executors.newFixedThreadPool(nThreads);
+        try {
+            long tilesProcessed = sumValues(executorService.invokeAll(tasks));
+            long expected = countMetaTiles(gridCoverages, zoomStart, zoomStop, metaTilingFactors);
+            assertEquals(expected, tilesProcessed);
+        } finally {
+            executorService.shutdown();
+        }
+
+        long tilesRendered = 0;
+        for (TileRangeIterator iterator : iterators) {
+            tilesRendered += iterator.getTilesRendered();
+        }
+        long expectedTiles = countMetaTiles(gridCoverages, zoomStart, zoomStop, new int[] { 1, 1 });
+        assertEquals(expectedTiles, tilesRendered);
+    }
+
+    public void testPartitionWorkStealing() throws Exception {
+        int zoomStart = gridSubSet.getZoomStart();
+        int zoomStop = 6;
+        int[] metaTilingFactors = { 1, 1 };
+        TileRange tileRange = new TileRange("layer", "gridset", zoomStart, zoomStop,
+                gridCoverages, mimeType, parameters);
+
+        TileRangeIterator[] iterators = TileRangeIterator.partition(tileRange,
+                metaTilingFactors, 4);
+        // a single iterator ends up returning every location once, the idle ones get nothing
+        Set<String> locations = new HashSet<String>();
+        long[] gridLoc = new long[3];
+        while (null != (gridLoc = iterators[1].nextMetaGridLocation(gridLoc))) {
+            assertTrue(locations.add(Arrays.toString(gridLoc)));
+        }
+        assertEquals(countMetaTiles(gridCoverages, zoomStart, zoomStop, metaTilingFactors),
+                locations.size());
+        assertNull(iterators[0].nextMetaGridLocation(new long[3]));
+        assertNull(iterators[3].nextMetaGridLocation(new long[3]));
+    }
+
+    public void testHilbertOrderVisitsEachMetaTileOnce() throws Exception {
+        int zoomStart = gridSubSet.getZoomStart();
+        int zoomStop = 8;
+        int[] metaTilingFactors = { 3, 2 };
+        // a range wider than tall, to get several blocks per level
+        long[][] coverages = new long[zoomStop + 1][];
+        for (int z = zoomStart; z <= zoomStop; z++) {
+            long[] bounds = gridCoverages[z];
+            coverages[z] = new long[] { bounds[0], bounds[1], bounds[2], bounds[3] / 3, z };
+        }
+        TileRange tileRange = new TileRange("layer", "gridset", zoomStart, zoomStop, coverages,
+                mimeType, parameters);
+
+        TileRangeIterator[] iterators = TileRangeIterator.partition(tileRange,
+                metaTilingFactors, 3, TileRangeIterator.Order.HILBERT);
+        Set<String> locations = new HashSet<String>();
+        long tilesRendered = 0;
+        for (TileRangeIterator iterator : iterators) {
+            long[] gridLoc = new long[3];
+            while (null != (gridLoc = iterator.nextMetaGridLocation(gridLoc))) {
+                long[] bounds = coverages[(int) gridLoc[2]];
+                assertTrue(gridLoc[0] >= bounds[0] && gridLoc[0] <= bounds[2]);
+                assertTrue(gridLoc[1] >= bounds[1] && gridLoc[1] <= bounds[3]);
+                assertEquals(0, (gridLoc[0] - bounds[0]) % 3);
+                assertEquals(0, (gridLoc[1] - bounds[1]) % 2);
+                assertTrue(locations.add(Arrays.toString(gridLoc)));
+            }
+            tilesRendered += iterator.getTilesRendered();
+        }
+        assertEquals(countMetaTiles(coverages, zoomStart, zoomStop, metaTilingFactors),
+                locations.size());
+        assertEquals(countMetaTiles(coverages, zoomStart, zoomStop, new int[] { 1, 1 }),
+                tilesRendered);
+    }
+
+    public void testResumeFromPendingRanges() throws Exception {
+        int zoomStart = gridSubSet.getZoomStart();
+        int zoomStop = 6;
+        int[] metaTilingFactors = { 2, 2 };
+        TileRange tileRange = new TileRange("layer", "gridset", zoomStart, zoomStop,
+                gridCoverages, mimeType, parameters);
+
+        TileRangeIterator[] iterators = TileRangeIterator.partition(tileRange,
+                metaTilingFactors, 3, TileRangeIterator.Order.HILBERT);
+        // each iterator walks a few meta tiles, the last one of each is still being processed
+        Set<String> done = new HashSet<String>();
+        Set<String> inProgress = new HashSet<String>();
+        for (int i = 0; i < iterators.length; i++) {
+            long[] gridLoc = new long[3];
+            for (int j = 0; j < 5 * (i + 1); j++) {
+                gridLoc = iterators[i].nextMetaGridLocation(gridLoc);
+                assertTrue(done.add(Arrays.toString(gridLoc)));
+            }
+            String last = Arrays.toString(gridLoc);
+            done.remove(last);
+            inProgress.add(last);
+        }
+        long[] pending = iterators[0].getPendingRanges();
+        for (int i = 2; i < pending.length; i += 2) {
+            assertTrue(pending[i] > pending[i - 1]);
+        }
+
+        TileRangeIterator[] resumed = TileRangeIterator.partition(tileRange, metaTilingFactors,
+                2, TileRangeIterator.Order.HILBERT, pending);
+        Set<String> remaining = new HashSet<String>();
+        for (TileRangeIterator iterator : resumed) {
+            long[] gridLoc = new long[3];
+            while (null != (gridLoc = iterator.nextMetaGridLocation(gridLoc))) {
+                String location = Arrays.toString(gridLoc);
+                assertFalse(location, done.contains(location));
+                assertTrue(remaining.add(location));
+            }
+        }
+        assertTrue(remaining.containsAll(inProgress));
+        assertEquals(countMetaTiles(gridCoverages, zoomStart, zoomStop, metaTilingFactors),
+                done.size() + remaining.size());
+        // nothing left once all walked
+        assertEquals(0, resumed[1].getPendingRanges().length);
+    }
+
+    public void testHilbertLocation() {
+        final int side = 8;
+        long[] previous = new long[2];
+        long[] position = new long[2];
+        Set<String> positions = new HashSet<String>();
+        for (int d = 0; d < side * side; d++) {
+            TileRangeIterator.hilbertLocation(side, d, position);
+            assertTrue(position[0] >= 0 && position[0] < side);
+            assertTrue(position[1] >= 0 && position[1] < side);
+            assertTrue(positions.add(Arrays.toString(position)));
+            if (d > 0) {
+                // each step moves to a neighbour
+                long distance = Math.abs(position[0] - previous[0])
+                        + Math.abs(position[1] - previous[1]);
+                assertEquals(1, distance);
+            }
+            previous[0] = position[0];
+            previous[1] = position[1];
+        }
+        // ends in the bottom right corner, next to the start of the following block
+        assertEquals(side - 1, position[0]);
+        assertEquals(0, position[1]);
+    }
+
     /**
      * @return
      */
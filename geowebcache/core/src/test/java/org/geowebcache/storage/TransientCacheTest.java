@@ -0,0 +1,47 @@
+package org.geowebcache.storage;
+
+import junit.framework.TestCase;
+
+import org.geowebcache.io.ByteArrayResource;
+import org.geowebcache.io.Resource;
+
+public class TransientCacheTest extends TestCase {
+
+    public void testGetRemoves() throws Exception {
+        TransientCache cache = new TransientCache(100, 1000);
+        ByteArrayResource buffer = new ByteArrayResource("tile".getBytes());
+        cache.put(key(1, 2, 3), buffer);
+        // the buffer gets reused for the next tile
+        buffer.truncate();
+
+        assertEquals(1, cache.size());
+        assertEquals(4, cache.storageSize());
+        Resource cached = cache.get(key(1, 2, 3));
+        assertNotNull(cached);
+        assertEquals("tile", new String(((ByteArrayResource) cached).getContents()));
+        assertNull(cache.get(key(1, 2, 3)));
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.storageSize());
+    }
+
+    public void testLimits() throws Exception {
+        TransientCache cache = new TransientCache(16, 1);
+        for (int x = 0; x < 100; x++) {
+            cache.put(key(x, 0, 5), new ByteArrayResource(new byte[100]));
+        }
+        assertTrue(cache.size() <= 10);
+        assertTrue(cache.storageSize() <= 1024);
+
+        cache = new TransientCache(64, 1000);
+        for (int x = 0; x < 100; x++) {
+            cache.put(key(x, 0, 5), new ByteArrayResource(new byte[100]));
+        }
+        assertTrue(cache.size() <= 64);
+        assertTrue(cache.size() > 0);
+        assertEquals(100 * cache.size(), cache.storageSize());
+    }
+
+    private TileKey key(long x, long y, int z) {
+        return new TileKey("layer", "EPSG:4326", "image/png", null, x, y, z);
+    }
+}
@@ -22,10 +22,13 @@ import java.io.File;
 import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
@@ -819,12 +822,7 @@ public class BDBQuotaStore implements QuotaStore {
      */
     public TilePage getLeastFrequentlyUsedPage(final Set<String> layerNames)
             throws InterruptedException {
-
-        SecondaryIndex<Float, Long, PageStats> expirationPolicyIndex = pageStatsByLFU;
-        TilePage nextToExpire = issueSync(new FindPageToExpireByLayer(expirationPolicyIndex,
-                layerNames));
-
-        return nextToExpire;
+        return first(getLeastFrequentlyUsedPages(layerNames, 1));
     }
 
     /**
@@ -832,30 +830,99 @@ public class BDBQuotaStore implements QuotaStore {
      */
     public TilePage getLeastRecentlyUsedPage(final Set<String> layerNames)
             throws InterruptedException {
+        return first(getLeastRecentlyUsedPages(layerNames, 1));
+    }
+
+    /**
+     * @see org.geowebcache.diskquota.QuotaStore#getLeastFrequentlyUsedPages(java.util.Set, int)
+     */
+    public List<TilePage> getLeastFrequentlyUsedPages(final Set<String> layerNames,
+            final int maxPages) throws InterruptedException {
+
+        SecondaryIndex<Float, Long, PageStats> expirationPolicyIndex = pageStatsByLFU;
+        return issueSync(new FindPagesToExpireByLayer(expirationPolicyIndex, LFU_ORDER,
+                layerNames, maxPages));
+    }
+
+    /**
+     * @see org.geowebcache.diskquota.QuotaStore#getLeastRecentlyUsedPages(java.util.Set, int)
+     */
+    public List<TilePage> getLeastRecentlyUsedPages(final Set<String> layerNames,
+            final int maxPages) throws InterruptedException {
+
         SecondaryIndex<Float, Long, PageStats> expirationPolicyIndex = pageStatsByLRU;
-        TilePage nextToExpire = issueSync(new FindPageToExpireByLayer(expirationPolicyIndex,
-                layerNames));
+        return issueSync(new FindPagesToExpireByLayer(expirationPolicyIndex, LRU_ORDER,
+                layerNames, maxPages));
+    }
 
-        return nextToExpire;
+    private static TilePage first(List<TilePage> pages) {
+        return pages.isEmpty() ? null : pages.get(0);
     }
 
     /**
-     * @param expirationPolicyIndex
-     * @param layerNames
-     * @return
+     * The order of the {@link #pageStatsByLFU} index
      */
-    private class FindPageToExpireByLayer implements Callable<TilePage> {
+    private static final Comparator<PageStats> LFU_ORDER = new Comparator<PageStats>() {
+        public int compare(PageStats s1, PageStats s2) {
+            int c = Float.compare(s1.getFrequencyOfUsePerMinute(),
+                    s2.getFrequencyOfUsePerMinute());
+            return c != 0 ? c : comparePageIds(s1, s2);
+        }
+    };
+
+    /**
+     * The order of the {@link #pageStatsByLRU} index
+     */
+    private static final Comparator<PageStats> LRU_ORDER = new Comparator<PageStats>() {
+        public int compare(PageStats s1, PageStats s2) {
+            int t1 = s1.getLastAccessTimeMinutes();
+            int t2 = s2.getLastAccessTimeMinutes();
+            return t1 != t2 ? (t1 < t2 ? -1 : 1) : comparePageIds(s1, s2);
+        }
+    };
+
+    private static int comparePageIds(PageStats s1, PageStats s2) {
+        long id1 = s1.getPageId();
+        long id2 = s2.getPageId();
+        return id1 < id2 ? -1 : (id1 == id2 ? 0 : 1);
+    }
+
+    /**
+     * Collects up to {@code maxPages} non empty pages of the requested layers, best candidates
+     * first.
+     * <p>
+     * The expiration policy index is shared by all the layers, so finding the pages of a layer
+     * holding a small share of the store means walking past the pages of all the others. When
+     * walking the index is expected to visit more entries than the layers have pages, the pages
+     * of the layers are scanned instead, keeping the best candidates in a bounded priority
+     * queue.
+     * </p>
+     */
+    private class FindPagesToExpireByLayer implements Callable<List<TilePage>> {
         private final SecondaryIndex<Float, Long, PageStats> expirationPolicyIndex;
 
+        private final Comparator<PageStats> order;
+
         private final Set<String> layerNames;
 
-        public FindPageToExpireByLayer(
-                SecondaryIndex<Float, Long, PageStats> expirationPolicyIndex, Set<String> layerNames) {
+        private final int maxPages;
+
+        /**
+         * @param expirationPolicyIndex
+         *            the index of the expiration policy
+         * @param order
+         *            the order of the index
+         */
+        public FindPagesToExpireByLayer(
+                SecondaryIndex<Float, Long, PageStats> expirationPolicyIndex,
+                Comparator<PageStats> order, Set<String> layerNames, int maxPages) {
             this.expirationPolicyIndex = expirationPolicyIndex;
+            this.order = order;
             this.layerNames = layerNames;
+            this.maxPages = maxPages;
         }
 
-        public TilePage call() throws Exception {
+        public List<TilePage> call() throws Exception {
 
             // find out the tilesets for the requested layers
             final Set<String> tileSetIds = new HashSet<String>();
@@ -872,22 +939,47 @@ public class BDBQuotaStore implements QuotaStore {
                 }
             }
 
-            TilePage nextToExpire = null;
-            // find out the LRU page that matches a requested tileset
+            if (tileSetIds.isEmpty() || maxPages <= 0) {
+                return new ArrayList<TilePage>();
+            }
+
+            // counted on the keys only
+            long layerPages = 0;
+            for (String tileSetId : tileSetIds) {
+                layerPages += pagesByTileSetId.subIndex(tileSetId).count();
+            }
+            if (layerPages == 0) {
+                return new ArrayList<TilePage>();
+            }
+            // if the layers pages are spread evenly in the index, walking it visits about
+            // maxPages * allPages / layerPages entries before collecting maxPages of them
+            final long allPages = pageStatsById.count();
+            if ((double) layerPages * layerPages < (double) maxPages * allPages) {
+                return scanLayers(tileSetIds);
+            }
+            return walkIndex(tileSetIds);
+        }
+
+        /**
+         * Walks the expiration policy index, stopping once {@code maxPages} pages are found
+         */
+        private List<TilePage> walkIndex(Set<String> tileSetIds) {
+            List<TilePage> nextToExpire = new ArrayList<TilePage>();
+            // find out the LRU/LFU pages that match a requested tileset
             final EntityCursor<PageStats> pageStatsCursor = expirationPolicyIndex.entities();
 
             try {
                 String tileSetId;
                 long pageId;
                 PageStats pageStats;
-                while ((pageStats = pageStatsCursor.next()) != null) {
+                while (nextToExpire.size() < maxPages
+                        && (pageStats = pageStatsCursor.next()) != null) {
                     if (pageStats.getFillFactor() > 0) {
                         pageId = pageStats.getPageId();
                         TilePage tilePage = pageById.get(pageId);
                         tileSetId = tilePage.getTileSetId();
                         if (tileSetIds.contains(tileSetId)) {
-                            nextToExpire = tilePage;
-                            break;
+                            nextToExpire.add(tilePage);
                         }
                     }
                 }
@@ -897,6 +989,40 @@ public class BDBQuotaStore implements QuotaStore {
 
             return nextToExpire;
         }
+
+        /**
+         * Visits every page of the tilesets, keeping the {@code maxPages} best candidates
+         */
+        private List<TilePage> scanLayers(Set<String> tileSetIds) {
+            // the worst of the candidates at the head, to be dropped first
+            final PriorityQueue<PageStats> candidates = new PriorityQueue<PageStats>(
+                    maxPages + 1, Collections.reverseOrder(order));
+            for (String tileSetId : tileSetIds) {
+                EntityCursor<Long> pageIds = pagesByTileSetId.subIndex(tileSetId).keys();
+                try {
+                    Long pageId;
+                    while ((pageId = pageIds.next()) != null) {
+                        PageStats pageStats = pageStatsByPageId.get(pageId);
+                        if (pageStats != null && pageStats.getFillFactor() > 0) {
+                            candidates.add(pageStats);
+                            if (candidates.size() > maxPages) {
+                                candidates.poll();
+                            }
+                        }
+                    }
+                } finally {
+                    pageIds.close();
+                }
+            }
+
+            List<PageStats> best = new ArrayList<PageStats>(candidates);
+            Collections.sort(best, order);
+            List<TilePage> nextToExpire = new ArrayList<TilePage>(best.size());
+            for (PageStats pageStats : best) {
+                nextToExpire.add(pageById.get(pageStats.getPageId()));
+            }
+            return nextToExpire;
+        }
     }
 
     /**
@@ -8,6 +8,7 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -322,6 +323,95 @@ public class BDBQuotaStoreTest extends TestCase {
         assertEquals(page1, leastFrequentlyUsedPage);
     }
 
+    public void testGetLeastFrequentlyUsedPages() throws Exception {
+        final String layerName = testTileSet.getLayerName();
+        Set<String> layerNames = Collections.singleton(layerName);
+
+        assertTrue(store.getLeastFrequentlyUsedPages(layerNames, 10).isEmpty());
+
+        TilePage page1 = new TilePage(testTileSet.getId(), 0, 1, 2);
+        TilePage page2 = new TilePage(testTileSet.getId(), 1, 1, 2);
+        TilePage page3 = new TilePage(testTileSet.getId(), 2, 1, 2);
+
+        PageStatsPayload payload1 = new PageStatsPayload(page1);
+        PageStatsPayload payload2 = new PageStatsPayload(page2);
+        PageStatsPayload payload3 = new PageStatsPayload(page3);
+
+        payload1.setNumHits(100);
+        payload2.setNumHits(10);
+        payload3.setNumHits(50);
+        Collection<PageStatsPayload> statsUpdates = Arrays.asList(payload1, payload2, payload3);
+        store.addHitsAndSetAccesTime(statsUpdates).get();
+
+        assertEquals(Arrays.asList(page2, page3), store.getLeastFrequentlyUsedPages(layerNames, 2));
+        assertEquals(Arrays.asList(page2, page3, page1),
+                store.getLeastFrequentlyUsedPages(layerNames, 10));
+
+        // truncated pages are not candidates anymore
+        store.setTruncated(page2);
+        assertEquals(Arrays.asList(page3, page1),
+                store.getLeastFrequentlyUsedPages(layerNames, 10));
+        assertTrue(store.getLeastFrequentlyUsedPages(Collections.singleton("nonExistent"), 10)
+                .isEmpty());
+    }
+
+    /**
+     * The pages of a layer holding a small share of the store are looked up scanning the layer
+     * rather than walking the whole expiration index, with the same results
+     */
+    public void testGetLeastUsedPagesOfSmallLayer() throws Exception {
+        MockSystemUtils mockSystemUtils = new MockSystemUtils();
+        mockSystemUtils.setCurrentTimeMinutes(1000);
+        mockSystemUtils.setCurrentTimeMillis(mockSystemUtils.currentTimeMinutes() * 60 * 1000);
+        SystemUtils.set(mockSystemUtils);
+        final long now = mockSystemUtils.currentTimeMillis();
+
+        TileSet bigTileSet = tilePageCalculator.getTileSetsFor("topp:states").iterator().next();
+        List<PageStatsPayload> statsUpdates = new ArrayList<PageStatsPayload>();
+        for (int i = 0; i < 100; i++) {
+            PageStatsPayload payload = new PageStatsPayload(new TilePage(bigTileSet.getId(), i,
+                    0, 2));
+            payload.setNumHits(1 + i % 7);
+            payload.setLastAccessTime(now + (i % 5) * 60 * 1000);
+            statsUpdates.add(payload);
+        }
+
+        TilePage page1 = new TilePage(testTileSet.getId(), 0, 1, 2);
+        TilePage page2 = new TilePage(testTileSet.getId(), 1, 1, 2);
+        TilePage page3 = new TilePage(testTileSet.getId(), 2, 1, 2);
+        PageStatsPayload payload1 = new PageStatsPayload(page1);
+        PageStatsPayload payload2 = new PageStatsPayload(page2);
+        PageStatsPayload payload3 = new PageStatsPayload(page3);
+        payload1.setNumHits(100);
+        payload2.setNumHits(10);
+        payload3.setNumHits(50);
+        payload1.setLastAccessTime(now + 1 * 60 * 1000);
+        payload2.setLastAccessTime(now + 3 * 60 * 1000);
+        payload3.setLastAccessTime(now + 2 * 60 * 1000);
+        statsUpdates.addAll(Arrays.asList(payload1, payload2, payload3));
+        store.addHitsAndSetAccesTime(statsUpdates).get();
+
+        Set<String> layerNames = Collections.singleton(testTileSet.getLayerName());
+        assertEquals(Arrays.asList(page2, page3), store.getLeastFrequentlyUsedPages(layerNames, 2));
+        assertEquals(Arrays.asList(page2, page3, page1),
+                store.getLeastFrequentlyUsedPages(layerNames, 10));
+        assertEquals(Arrays.asList(page1, page3, page2),
+                store.getLeastRecentlyUsedPages(layerNames, 10));
+
+        store.setTruncated(page2);
+        assertEquals(Arrays.asList(page3), store.getLeastFrequentlyUsedPages(layerNames, 1));
+
+        // the big layer walks the index, and the whole store gets the pages of both layers
+        Set<String> bothLayers = new HashSet<String>(Arrays.asList(testTileSet.getLayerName(),
+                bigTileSet.getLayerName()));
+        List<TilePage> bigPages = store.getLeastFrequentlyUsedPages(
+                Collections.singleton(bigTileSet.getLayerName()), 10);
+        assertEquals(10, bigPages.size());
+        List<TilePage> allPages = store.getLeastFrequentlyUsedPages(bothLayers, 200);
+        assertEquals(102, allPages.size());
+        assertEquals(bigPages, allPages.subList(0, 10));
+    }
+
     public void testGetLeastRecentlyUsedPage() throws Exception {
         MockSystemUtils mockSystemUtils = new MockSystemUtils();
         mockSystemUtils.setCurrentTimeMinutes(1000);
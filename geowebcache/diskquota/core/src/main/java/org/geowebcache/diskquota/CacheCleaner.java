@@ -18,6 +18,8 @@
 package org.geowebcache.diskquota;
 
 import java.math.BigInteger;
+import java.util.LinkedList;
+import java.util.Queue;
 import java.util.Set;
 
 import org.apache.commons.logging.Log;
@@ -35,6 +37,12 @@ import org.geowebcache.storage.TileRange;
 import org.springframework.beans.factory.DisposableBean;
 
 /**
+ * Expires pages of tiles until the disk quota is reached back.
+ * <p>
+ * The pages to expire are looked up in the {@link QuotaStore} in batches of
+ * {@link #setExpirationBatchSize(int) expirationBatchSize} pages, so that a large overage does
+ * not cost a lookup of the store per page.
+ * </p>
  * 
  * @author groldan
  * @see DiskQuotaMonitor
@@ -43,10 +51,17 @@ public class CacheCleaner implements DisposableBean {
 
     private static final Log log = LogFactory.getLog(CacheCleaner.class);
 
+    /**
+     * Default number of pages looked up at once when expiring pages
+     */
+    public static final int DEFAULT_EXPIRATION_BATCH_SIZE = 100;
+
     private final TileBreeder tileBreeder;
 
     private boolean shutDown;
 
+    private int expirationBatchSize = DEFAULT_EXPIRATION_BATCH_SIZE;
+
     public static interface QuotaResolver {
         ExpirationPolicy getExpirationPolicy();
 
@@ -120,6 +135,22 @@ public class CacheCleaner implements DisposableBean {
         this.tileBreeder = tileBreeder;
     }
 
+    /**
+     * Sets how many of the next pages to expire are looked up at once in the quota store. The
+     * pages are then expired one after the other until the quota is reached back, the store being
+     * looked up again only once they are all gone.
+     */
+    public void setExpirationBatchSize(int expirationBatchSize) {
+        if (expirationBatchSize < 1) {
+            throw new IllegalArgumentException("expirationBatchSize shall be positive");
+        }
+        this.expirationBatchSize = expirationBatchSize;
+    }
+
+    public int getExpirationBatchSize() {
+        return expirationBatchSize;
+    }
+
     /**
      * @see org.springframework.beans.factory.DisposableBean#destroy()
      */
@@ -146,6 +177,10 @@ public class CacheCleaner implements DisposableBean {
         Quota used;
         Quota excess;
 
+        // the next pages to expire, and the policy they were picked by
+        final Queue<TilePage> candidates = new LinkedList<TilePage>();
+        ExpirationPolicy candidatesPolicy = null;
+
         while (true) {
             if (shutDown || Thread.currentThread().isInterrupted()) {
                 throw new InterruptedException();
@@ -167,16 +202,27 @@ public class CacheCleaner implements DisposableBean {
                 return;
             }
 
-            TilePage tilePage = null;
-            if (ExpirationPolicy.LFU.equals(expirationPolicy)) {
-                tilePage = pageStore.getLeastFrequentlyUsedPage(layerNames);
-            } else if (ExpirationPolicy.LRU.equals(expirationPolicy)) {
-                tilePage = pageStore.getLeastRecentlyUsedPage(layerNames);
-            } else {
-                throw new IllegalStateException("Unrecognized expiration policy: "
-                        + expirationPolicy);
+            if (!expirationPolicy.equals(candidatesPolicy)) {
+                candidates.clear();
+                candidatesPolicy = expirationPolicy;
+            }
+            if (candidates.isEmpty()) {
+                final int maxPages = expirationBatchSize;
+                if (ExpirationPolicy.LFU.equals(expirationPolicy)) {
+                    candidates.addAll(pageStore.getLeastFrequentlyUsedPages(layerNames, maxPages));
+                } else if (ExpirationPolicy.LRU.equals(expirationPolicy)) {
+                    candidates.addAll(pageStore.getLeastRecentlyUsedPages(layerNames, maxPages));
+                } else {
+                    throw new IllegalStateException("Unrecognized expiration policy: "
+                            + expirationPolicy);
+                }
+                if (log.isDebugEnabled()) {
+                    log.debug("Found " + candidates.size() + " pages to expire for layers "
+                            + layerNames);
+                }
             }
 
+            TilePage tilePage = candidates.poll();
             if (tilePage == null) {
                 limit = quotaResolver.getLimit();
                 Quota usedQuota = quotaResolver.getUsed();
@@ -0,0 +1,177 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.diskquota;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Records the directory buckets of a layer whose tiles have already been reported to the quota
+ * store by the {@link LayerCacheInfoBuilder}, so that an interrupted scan of the layer cache can
+ * be resumed instead of started over.
+ * <p>
+ * The checkpoint is a text file in the {@link #DIRECTORY} directory of the cache, named after the
+ * layer directory, with a {@code <tiles>\t<bytes>\t<bucket>} line per bucket. Lines are appended
+ * as the buckets are completed; a last line without its line feed was not completely written and
+ * is ignored. The file is deleted once the whole layer has been scanned.
+ * </p>
+ *
+ * @see LayerCacheInfoBuilder
+ */
+final class CacheScanCheckpoint {
+
+    private static final Log log = LogFactory.getLog(CacheScanCheckpoint.class);
+
+    static final String DIRECTORY = "diskquota_scan_checkpoints";
+
+    private static final String SUFFIX = ".scan";
+
+    private final File file;
+
+    private final Set<String> completed = new HashSet<String>();
+
+    private long completedTiles;
+
+    private long completedBytes;
+
+    private Writer out;
+
+    private boolean closed;
+
+    CacheScanCheckpoint(final File rootCacheDir, final String layerDirName) {
+        this.file = new File(new File(rootCacheDir, DIRECTORY), layerDirName + SUFFIX);
+    }
+
+    /**
+     * @return whether there is a checkpoint of an unfinished scan of the layer
+     */
+    static boolean exists(final File rootCacheDir, final String layerDirName) {
+        return new CacheScanCheckpoint(rootCacheDir, layerDirName).file.exists();
+    }
+
+    /**
+     * Reads the buckets completed by a previous scan, if any
+     */
+    void load() throws IOException {
+        if (!file.exists()) {
+            return;
+        }
+        StringBuilder contents = new StringBuilder();
+        Reader reader = new InputStreamReader(new FileInputStream(file), "UTF-8");
+        try {
+            char[] buff = new char[4096];
+            int read;
+            while ((read = reader.read(buff)) != -1) {
+                contents.append(buff, 0, read);
+            }
+        } finally {
+            reader.close();
+        }
+        int start = 0;
+        int end;
+        while ((end = contents.indexOf("\n", start)) != -1) {
+            String[] fields = contents.substring(start, end).split("\t", 3);
+            start = end + 1;
+            if (fields.length != 3) {
+                log.warn("Ignoring invalid line in " + file.getAbsolutePath());
+                continue;
+            }
+            try {
+                long tiles = Long.parseLong(fields[0]);
+                long bytes = Long.parseLong(fields[1]);
+                if (completed.add(fields[2])) {
+                    completedTiles += tiles;
+                    completedBytes += bytes;
+                }
+            } catch (NumberFormatException e) {
+                log.warn("Ignoring invalid line in " + file.getAbsolutePath());
+            }
+        }
+    }
+
+    /**
+     * @return whether the bucket was completed by a previous scan; the set of completed buckets
+     *         is not modified after {@link #load()}, so this method can be called concurrently
+     */
+    boolean isCompleted(final String bucket) {
+        return completed.contains(bucket);
+    }
+
+    /**
+     * @return the number of tiles counted by the previous scans
+     */
+    long getCompletedTiles() {
+        return completedTiles;
+    }
+
+    /**
+     * @return the number of bytes counted by the previous scans
+     */
+    long getCompletedBytes() {
+        return completedBytes;
+    }
+
+    /**
+     * Records a completed bucket, unless the checkpoint has been closed
+     */
+    synchronized void bucketDone(final String bucket, final long tiles, final long bytes)
+            throws IOException {
+        if (closed) {
+            return;
+        }
+        if (out == null) {
+            file.getParentFile().mkdirs();
+            out = new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8");
+        }
+        out.write(tiles + "\t" + bytes + "\t" + bucket + "\n");
+        out.flush();
+    }
+
+    /**
+     * Stops recording buckets, keeping the file for the scan to be resumed
+     */
+    synchronized void close() {
+        closed = true;
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                log.warn("Error closing " + file.getAbsolutePath(), e);
+            }
+            out = null;
+        }
+    }
+
+    /**
+     * Stops recording buckets and deletes the file
+     */
+    synchronized void delete() {
+        close();
+        if (file.exists() && !file.delete()) {
+            log.warn("Unable to delete the cache scan checkpoint " + file.getAbsolutePath());
+        }
+    }
+}
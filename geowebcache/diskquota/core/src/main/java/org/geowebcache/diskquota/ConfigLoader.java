@@ -200,6 +200,12 @@ public class ConfigLoader {
                     "maxConcurrentCleanUps shall be specified as a positive integer");
         }
 
+        int maxConcurrentCacheScans = quotaConfig.getMaxConcurrentCacheScans();
+        if (maxConcurrentCacheScans <= 0) {
+            throw new ConfigurationException(
+                    "maxConcurrentCacheScans shall be specified as a positive integer");
+        }
+
         if (null != quotaConfig.getLayerQuotas()) {
             for (LayerQuota lq : new ArrayList<LayerQuota>(quotaConfig.getLayerQuotas())) {
                 if (null == lq.getQuota()) {
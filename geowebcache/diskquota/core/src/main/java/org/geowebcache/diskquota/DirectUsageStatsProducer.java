@@ -0,0 +1,51 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.diskquota;
+
+import org.geowebcache.conveyor.ConveyorTile;
+import org.geowebcache.layer.TileLayer;
+import org.geowebcache.layer.TileLayerListener;
+import org.springframework.util.Assert;
+
+/**
+ * Hands the tile hits straight to a {@link UsageStatsRecorder} on the thread that requested the
+ * tile, instead of queueing them like {@link QueuedUsageStatsProducer} does.
+ */
+public class DirectUsageStatsProducer implements TileLayerListener {
+
+    private final UsageStatsRecorder recorder;
+
+    private volatile boolean cancelled;
+
+    public DirectUsageStatsProducer(UsageStatsRecorder recorder) {
+        Assert.notNull(recorder, "recorder can't be null");
+        this.recorder = recorder;
+    }
+
+    /**
+     * @see org.geowebcache.layer.TileLayerListener#tileRequested
+     */
+    public void tileRequested(TileLayer layer, ConveyorTile tile) {
+        if (cancelled) {
+            return;
+        }
+        recorder.addHit(layer.getName(), tile.getGridSetId(), tile.getMimeType().getFormat(),
+                tile.getParametersId(), tile.getTileIndex());
+    }
+
+    public void setCancelled(boolean cancelled) {
+        this.cancelled = cancelled;
+    }
+}
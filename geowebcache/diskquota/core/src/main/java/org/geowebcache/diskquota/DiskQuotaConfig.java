@@ -50,6 +50,8 @@ public class DiskQuotaConfig implements Cloneable, Serializable {
 
     static final int DEFAULT_MAX_CONCURRENT_CLEANUPS = 2;
 
+    static final int DEFAULT_MAX_CONCURRENT_CACHE_SCANS = 2;
+
     static ExpirationPolicy DEFAULT_GLOBAL_POLICY_NAME = ExpirationPolicy.LFU;
     
     private Boolean enabled;
@@ -62,6 +64,8 @@ public class DiskQuotaConfig implements Cloneable, Serializable {
 
     private Integer maxConcurrentCleanUps;
 
+    private Integer maxConcurrentCacheScans;
+
     private ExpirationPolicy globalExpirationPolicyName;
 
     private Quota globalQuota;
@@ -86,6 +90,9 @@ public class DiskQuotaConfig implements Cloneable, Serializable {
         if (maxConcurrentCleanUps == null) {
             maxConcurrentCleanUps = DEFAULT_MAX_CONCURRENT_CLEANUPS;
         }
+        if (maxConcurrentCacheScans == null) {
+            maxConcurrentCacheScans = DEFAULT_MAX_CONCURRENT_CACHE_SCANS;
+        }
         if (cacheCleanUpUnits == null) {
             cacheCleanUpUnits = DEFAULT_CLEANUP_UNITS;
         }
@@ -107,6 +114,7 @@ public class DiskQuotaConfig implements Cloneable, Serializable {
         this.layerQuotas = other.layerQuotas == null ? null : new ArrayList<LayerQuota>(
                 other.layerQuotas);
         this.maxConcurrentCleanUps = other.maxConcurrentCleanUps;
+        this.maxConcurrentCacheScans = other.maxConcurrentCacheScans;
         this.quotaStore = other.quotaStore;
     }
 
@@ -222,6 +230,21 @@ public class DiskQuotaConfig implements Cloneable, Serializable {
         this.maxConcurrentCleanUps = nThreads;
     }
 
+    /**
+     * @return the number of threads used to scan the cache of the layers with no saved quota usage
+     */
+    public Integer getMaxConcurrentCacheScans() {
+        return maxConcurrentCacheScans;
+    }
+
+    public void setMaxConcurrentCacheScans(int nThreads) {
+        if (nThreads <= 0) {
+            throw new IllegalArgumentException(
+                    "maxConcurrentCacheScans shall be a positive integer: " + nThreads);
+        }
+        this.maxConcurrentCacheScans = nThreads;
+    }
+
     /**
      * @return the global quota, or {@code null} if not set
      */
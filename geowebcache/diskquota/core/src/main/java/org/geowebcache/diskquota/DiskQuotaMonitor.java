@@ -22,6 +22,7 @@ import java.io.IOException;
 import java.math.BigInteger;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -377,7 +378,8 @@ public class DiskQuotaMonitor implements InitializingBean, DisposableBean {
 
     /**
      * Launches a background task to traverse the cache and compute the disk usage of each layer
-     * that has no {@link LayerQuota#getUsedQuota() used quota} already loaded.
+     * that has no {@link LayerQuota#getUsedQuota() used quota} already loaded, or whose previous
+     * traversal was interrupted.
      * 
      * @return
      * @throws InterruptedException
@@ -391,18 +393,24 @@ public class DiskQuotaMonitor implements InitializingBean, DisposableBean {
         } catch (ConfigurationException e) {
             throw new RuntimeException(e);
         }
-        cacheInfoBuilder = new LayerCacheInfoBuilder(cacheRoot, cleanUpExecutorService,
+        cacheInfoBuilder = new LayerCacheInfoBuilder(cacheRoot, createCacheScanExecutor(),
                 quotaUsageMonitor);
 
         for (String layerName : tileLayerDispatcher.getLayerNames()) {
 
             Quota usedQuota = quotaStore.getUsedQuotaByLayerName(layerName);
-            if (usedQuota.getBytes().compareTo(BigInteger.ZERO) > 0) {
+            final boolean hasUsedQuota = usedQuota.getBytes().compareTo(BigInteger.ZERO) > 0;
+            if (hasUsedQuota && !cacheInfoBuilder.isInterrupted(layerName)) {
                 log.debug("Using saved quota information for layer " + layerName + ": "
                         + usedQuota.toNiceString());
             } else {
-                log.debug(layerName + " has no saved used quota information,"
-                        + "traversing layer cache to compute its disk usage.");
+                if (hasUsedQuota) {
+                    log.info("Resuming the interrupted traversal of the cache of layer "
+                            + layerName + " to compute its disk usage.");
+                } else {
+                    log.debug(layerName + " has no saved used quota information,"
+                            + "traversing layer cache to compute its disk usage.");
+                }
                 TileLayer tileLayer;
                 try {
                     tileLayer = tileLayerDispatcher.getTileLayer(layerName);
@@ -410,7 +418,7 @@ public class DiskQuotaMonitor implements InitializingBean, DisposableBean {
                     e.printStackTrace();
                     continue;
                 }
-                cacheInfoBuilder.buildCacheInfo(tileLayer);
+                cacheInfoBuilder.buildCacheInfo(tileLayer, hasUsedQuota);
             }
         }
         return cacheInfoBuilder;
@@ -430,6 +438,17 @@ public class DiskQuotaMonitor implements InitializingBean, DisposableBean {
         return executorService;
     }
 
+    private ExecutorService createCacheScanExecutor() {
+
+        final int numScanningThreads = quotaConfig.getMaxConcurrentCacheScans();
+        CustomizableThreadFactory tf = new CustomizableThreadFactory(
+                "GWC DiskQuota cache scan thread-");
+        tf.setThreadPriority(1 + (Thread.MAX_PRIORITY - Thread.MIN_PRIORITY) / 5);
+        tf.setDaemon(true);
+
+        return Executors.newFixedThreadPool(numScanningThreads, tf);
+    }
+
     private void setUpScheduledCleanUp() {
 
         Runnable scheduledCleaningTask = new CacheCleanerTask(this, cleanUpExecutorService);
@@ -19,21 +19,21 @@ package org.geowebcache.diskquota;
 
 import java.io.File;
 import java.io.FileFilter;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
-import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.geowebcache.diskquota.storage.LayerQuota;
 import org.geowebcache.diskquota.storage.Quota;
 import org.geowebcache.diskquota.storage.TilePage;
 import org.geowebcache.diskquota.storage.TileSet;
@@ -41,11 +41,25 @@ import org.geowebcache.grid.GridSubset;
 import org.geowebcache.layer.TileLayer;
 import org.geowebcache.mime.MimeException;
 import org.geowebcache.mime.MimeType;
+import org.geowebcache.storage.blobstore.bundle.Bundle;
+import org.geowebcache.storage.blobstore.bundle.BundleBlobStore;
+import org.geowebcache.storage.blobstore.bundle.BundlePathGenerator;
 import org.geowebcache.storage.blobstore.file.FilePathUtils;
-import org.geowebcache.util.FileUtils;
 
 /**
  * Gathers information about the cache of a layer, such as its size and available {@link TilePage}s.
+ * <p>
+ * The cache of each zoom level is made of bucket directories holding the tile files, and each
+ * bucket is scanned as a separate task of the thread pool, so the number of threads of the pool
+ * sets how many directories are read at the same time. The buckets whose tiles have been
+ * committed to the quota store are recorded in a {@link CacheScanCheckpoint} so that a scan
+ * interrupted by a shut down can be resumed. A bucket whose tiles were still queued in the
+ * {@link QuotaUpdatesMonitor} at shut down is not recorded, and is scanned again on resume.
+ * </p>
+ * <p>
+ * Both the tile files of {@link org.geowebcache.storage.blobstore.file.FileBlobStore} and the
+ * bundles of {@link BundleBlobStore} are counted, the tiles of a bundle being read from its index.
+ * </p>
  * 
  * @author groldan
  */
@@ -53,39 +67,43 @@ final class LayerCacheInfoBuilder {
 
     private static final Log log = LogFactory.getLog(LayerCacheInfoBuilder.class);
 
+    /**
+     * Max number of tiles reported to the quota monitor in a single update
+     */
+    private static final int BATCH_SIZE = 1000;
+
+    private static final String BUNDLE_SUFFIX = "." + BundlePathGenerator.BUNDLE_EXTENSION;
+
     private final File rootCacheDir;
 
     private final ExecutorService threadPool;
 
-    private final Map<String, List<Future<ZoomLevelVisitor.Stats>>> perLayerRunningTasks;
+    private final Map<String, LayerScan> perLayerScans;
 
     private final QuotaUpdatesMonitor quotaUsageMonitor;
 
-    private boolean closed = false;
+    private volatile boolean closed = false;
 
     public LayerCacheInfoBuilder(final File rootCacheDir, final ExecutorService threadPool,
             QuotaUpdatesMonitor quotaUsageMonitor) {
         this.rootCacheDir = rootCacheDir;
         this.threadPool = threadPool;
         this.quotaUsageMonitor = quotaUsageMonitor;
-        this.perLayerRunningTasks = new HashMap<String, List<Future<ZoomLevelVisitor.Stats>>>();
+        this.perLayerScans = new ConcurrentHashMap<String, LayerScan>();
     }
 
     /**
-     * Asynchronously collects cache usage information for the given {@code tileLayer} into the
-     * given {@code layerQuota} by using the provided {@link ExecutorService} at construction time.
-     * <p>
-     * This method discards any {@link LayerQuota#getUsedQuota() used quota} information available
-     * for {@code layerQuota} and updates it by collecting the usage information for the layer.
-     * </p>
-     * <p>
-     * In addition to collecting the cache usage information for the layer, the {@code layerQuota}'s
-     * {@link ExpirationPolicy expiration policy} will be given the opportunity to gather any
-     * additional information by calling the
-     * {@link ExpirationPolicy#createInfoFor(LayerQuota, String, long[], File)
-     * createInforFor(layerQuota, gridSetId, tileXYZ, file)} method for each available tile on the
-     * layer's cache.
-     * </p>
+     * @return whether a previous scan of the layer cache was interrupted before finishing
+     */
+    public boolean isInterrupted(final String layerName) {
+        return CacheScanCheckpoint.exists(rootCacheDir,
+                FilePathUtils.filteredLayerName(layerName));
+    }
+
+    /**
+     * Asynchronously collects cache usage information for the given {@code tileLayer} by using
+     * the provided {@link ExecutorService} at construction time, and reports it to the
+     * {@link QuotaUpdatesMonitor} as stored tiles.
      * <p>
      * Note the cache information gathering is performed asynchronously and hence this method
      * returns immediately. To check whether the information collect for a given layer has finished
@@ -93,19 +111,38 @@ final class LayerCacheInfoBuilder {
      * </p>
      * 
      * @param tileLayer
+     * @param resume
+     *            whether to skip the buckets recorded by an interrupted scan of the layer, whose
+     *            tiles are already accounted for in the quota store, or to start over
      */
-    public void buildCacheInfo(final TileLayer tileLayer) {
+    public void buildCacheInfo(final TileLayer tileLayer, final boolean resume) {
 
         final String layerName = tileLayer.getName();
         final String layerDirName = FilePathUtils.filteredLayerName(layerName);
 
         final File layerDir = new File(rootCacheDir, layerDirName);
 
+        final CacheScanCheckpoint checkpoint = new CacheScanCheckpoint(rootCacheDir, layerDirName);
+        if (!resume || !layerDir.exists()) {
+            checkpoint.delete();
+        }
         if (!layerDir.exists()) {
             return;
         }
+        if (resume) {
+            try {
+                checkpoint.load();
+            } catch (IOException e) {
+                log.warn("Unable to read the cache scan checkpoint of layer " + layerName
+                        + ", scanning it again", e);
+                checkpoint.delete();
+                buildCacheInfo(tileLayer, false);
+                return;
+            }
+        }
 
-        perLayerRunningTasks.put(layerName, new ArrayList<Future<ZoomLevelVisitor.Stats>>());
+        final LayerScan scan = new LayerScan(layerName, checkpoint);
+        perLayerScans.put(layerName, scan);
 
         final Set<TileSet> onDiskTileSets = findOnDiskTileSets(tileLayer, layerDir);
 
@@ -128,18 +165,16 @@ final class LayerCacheInfoBuilder {
 
                 if (gridsetZLevelDir.exists()) {
                     ZoomLevelVisitor cacheInfoBuilder;
-                    cacheInfoBuilder = new ZoomLevelVisitor(layerName, gridsetZLevelDir, gridSetId,
-                            zoomLevel, parametersId, quotaUsageMonitor);
-
-                    Future<ZoomLevelVisitor.Stats> cacheTask;
-                    cacheTask = threadPool.submit(cacheInfoBuilder);
-
-                    perLayerRunningTasks.get(layerName).add(cacheTask);
+                    cacheInfoBuilder = new ZoomLevelVisitor(scan, gridsetZLevelDir, gridSetId,
+                            zoomLevel, parametersId);
+                    scan.submit(cacheInfoBuilder);
                     log.debug("Submitted background task to gather cache info for '" + layerName
                             + "'/" + gridSetId + "/" + zoomLevel);
                 }
             }
         }
+        // all the zoom levels are submitted
+        scan.taskDone();
     }
 
     private Set<TileSet> findOnDiskTileSets(final TileLayer tileLayer, final File layerDir) {
@@ -179,122 +214,363 @@ final class LayerCacheInfoBuilder {
     }
 
     /**
-     * Builds the cache information for a single layer/gridsetId/parametersId/zoomLevel combo
-     * 
-     * @author groldan
-     * 
+     * Tracks the tasks scanning the cache of a layer
      */
-    private final class ZoomLevelVisitor implements FileFilter,
-            Callable<ZoomLevelVisitor.Stats> {
+    private final class LayerScan {
 
-        private final String gridSetId;
+        private final String layerName;
 
-        private int tileZ;
+        private final CacheScanCheckpoint checkpoint;
 
-        private final File zoomLevelPath;
+        /**
+         * Number of tasks submitted and not finished, including the buckets whose tiles are not
+         * committed to the quota store yet, plus one until all the zoom levels are submitted
+         */
+        private final AtomicInteger pendingTasks = new AtomicInteger(1);
 
-        private Stats stats;
+        private final AtomicLong numTiles = new AtomicLong();
 
-        private final QuotaUpdatesMonitor quotaUsageMonitor;
+        private final AtomicLong numBytes = new AtomicLong();
 
-        private final String layerName;
+        private final long startTime = System.currentTimeMillis();
 
-        private final String parametersId;
+        /**
+         * Whether any bucket was left out because of a shut down or an error
+         */
+        private volatile boolean incomplete;
+
+        LayerScan(final String layerName, final CacheScanCheckpoint checkpoint) {
+            this.layerName = layerName;
+            this.checkpoint = checkpoint;
+        }
 
-        private class Stats {
-            long runTimeMillis;
+        void submit(final Runnable task) {
+            pendingTasks.incrementAndGet();
+            try {
+                threadPool.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            task.run();
+                        } catch (RuntimeException e) {
+                            incomplete = true;
+                            log.error("Error gathering cache information for layer " + layerName,
+                                    e);
+                        } finally {
+                            taskDone();
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                incomplete = true;
+                taskDone();
+            }
+        }
 
-            long numTiles;
+        void taskDone() {
+            if (pendingTasks.decrementAndGet() > 0) {
+                return;
+            }
+            if (incomplete || closed) {
+                checkpoint.close();
+                log.info("Gathering cache information for layer " + layerName
+                        + " was interrupted, it will be resumed at the next start up");
+                return;
+            }
+            checkpoint.delete();
+            Quota quota = new Quota();
+            quota.addBytes(numBytes.get() + checkpoint.getCompletedBytes());
+            log.info("Cache information for layer " + layerName + " collected in "
+                    + (System.currentTimeMillis() - startTime) / 1000D + "s. Counted "
+                    + (numTiles.get() + checkpoint.getCompletedTiles())
+                    + " tiles for a storage space of " + quota.toNiceString());
+        }
 
-            Quota collectedQuota = new Quota();
+        boolean isRunning() {
+            return pendingTasks.get() > 0;
         }
+    }
 
-        public ZoomLevelVisitor(final String layerName, final File zoomLevelPath,
-                final String gridsetId, final int zoomLevel, String parametersId,
-                final QuotaUpdatesMonitor quotaUsageMonitor) {
-            this.layerName = layerName;
+    /**
+     * Lists the bucket directories of a single layer/gridsetId/parametersId/zoomLevel combo and
+     * submits a {@link BucketVisitor} for each one not scanned yet
+     * 
+     * @author groldan
+     * 
+     */
+    private final class ZoomLevelVisitor implements Runnable {
+
+        private final LayerScan scan;
+
+        private final String gridSetId;
+
+        private final int tileZ;
+
+        private final File zoomLevelPath;
+
+        private final String parametersId;
+
+        public ZoomLevelVisitor(final LayerScan scan, final File zoomLevelPath,
+                final String gridsetId, final int zoomLevel, String parametersId) {
+            this.scan = scan;
             this.zoomLevelPath = zoomLevelPath;
             this.gridSetId = gridsetId;
             this.parametersId = parametersId;
-            this.quotaUsageMonitor = quotaUsageMonitor;
             this.tileZ = zoomLevel;
-            this.stats = new Stats();
         }
 
+        public void run() {
+            if (closed) {
+                scan.incomplete = true;
+                return;
+            }
+            final String zoomDirName = zoomLevelPath.getName();
+            final String[] names = zoomLevelPath.list();
+            if (names == null) {
+                return;
+            }
+            log.debug("Gathering cache information for '" + scan.layerName + "'/" + gridSetId
+                    + "/paramId:" + (parametersId == null ? "default" : parametersId)
+                    + "/zlevel:" + tileZ + " in " + names.length + " directories");
+            boolean hasTiles = false;
+            for (String name : names) {
+                // tile file names have an extension, bucket directory names don't
+                if (name.indexOf('.') != -1) {
+                    hasTiles = true;
+                    continue;
+                }
+                String bucket = zoomDirName + '/' + name;
+                if (!scan.checkpoint.isCompleted(bucket)) {
+                    scan.submit(new BucketVisitor(scan, new File(zoomLevelPath, name), bucket,
+                            gridSetId, tileZ, parametersId, true));
+                }
+            }
+            if (hasTiles && !scan.checkpoint.isCompleted(zoomDirName)) {
+                new BucketVisitor(scan, zoomLevelPath, zoomDirName, gridSetId, tileZ,
+                        parametersId, false).run();
+            }
+        }
+    }
+
+    /**
+     * The tiles of one format found in a bucket, not yet reported to the quota monitor
+     */
+    private static final class TileBatch {
+
+        final String blobFormat;
+
+        final long[] x = new long[BATCH_SIZE];
+
+        final long[] y = new long[BATCH_SIZE];
+
+        final long[] sizes = new long[BATCH_SIZE];
+
+        int count;
+
+        TileBatch(final String blobFormat) {
+            this.blobFormat = blobFormat;
+        }
+    }
+
+    /**
+     * Reports the tiles of a bucket directory to the quota monitor, and records the bucket in the
+     * checkpoint once the quota store has committed them.
+     * <p>
+     * The tiles are only reported once the whole bucket has been read, so a bucket whose scan is
+     * canceled leaves no partial count in the quota store.
+     * </p>
+     * <p>
+     * The tile coordinates and format are taken from the file names, as given by
+     * {@link File#list()}, so the only file system call per tile is the one to get its length.
+     * Bundles are read once each, their index giving the position and size of their tiles.
+     * </p>
+     */
+    private final class BucketVisitor implements Runnable {
+
+        private final LayerScan scan;
+
+        private final File bucketDir;
+
+        private final String bucket;
+
+        private final String gridSetId;
+
+        private final int tileZ;
+
+        private final String parametersId;
+
+        private final boolean recurse;
+
+        private final Map<String, TileBatch> batches = new HashMap<String, TileBatch>();
+
+        private final List<TileBatch> fullBatches = new ArrayList<TileBatch>();
+
+        private long numTiles;
+
+        private long numBytes;
+
         /**
-         * @see java.util.concurrent.Callable#call()
+         * @param recurse
+         *            whether to scan the subdirectories as well
          */
-        public Stats call() throws Exception {
-            final String zLevelKey = layerName + "'/" + gridSetId + "/paramId:"
-                    + (parametersId == null ? "default" : parametersId) + "/zlevel:" + tileZ;
+        BucketVisitor(final LayerScan scan, final File bucketDir, final String bucket,
+                final String gridSetId, final int tileZ, final String parametersId,
+                final boolean recurse) {
+            this.scan = scan;
+            this.bucketDir = bucketDir;
+            this.bucket = bucket;
+            this.gridSetId = gridSetId;
+            this.tileZ = tileZ;
+            this.parametersId = parametersId;
+            this.recurse = recurse;
+        }
+
+        public void run() {
+            if (!visit(bucketDir)) {
+                scan.incomplete = true;
+                return;
+            }
+            fullBatches.addAll(batches.values());
+            for (TileBatch batch : fullBatches) {
+                report(batch);
+            }
+            if (log.isTraceEnabled()) {
+                log.trace("Counted " + numTiles + " tiles in " + bucketDir.getAbsolutePath());
+            }
+            // the scan is not over until the quota store has the tiles
+            scan.pendingTasks.incrementAndGet();
+            quotaUsageMonitor.afterCommit(scan.layerName, new Runnable() {
+                public void run() {
+                    try {
+                        bucketCommitted();
+                    } finally {
+                        scan.taskDone();
+                    }
+                }
+            });
+        }
+
+        private void bucketCommitted() {
+            scan.numTiles.addAndGet(numTiles);
+            scan.numBytes.addAndGet(numBytes);
             try {
-                log.debug("Gathering cache information for '" + zLevelKey);
-                stats.numTiles = 0L;
-                stats.runTimeMillis = 0L;
-                long runTime = System.currentTimeMillis();
-                FileUtils.traverseDepth(zoomLevelPath, this);
-                runTime = System.currentTimeMillis() - runTime;
-                stats.runTimeMillis = runTime;
-            } catch (TraversalCanceledException cancel) {
-                log.debug("Gathering cache information for " + zLevelKey + " was canceled.");
-                return null;
-            } catch (Exception e) {
-                e.printStackTrace();
-                throw (e);
+                scan.checkpoint.bucketDone(bucket, numTiles, numBytes);
+            } catch (IOException e) {
+                log.warn("Unable to record " + bucket + " in the cache scan checkpoint of layer "
+                        + scan.layerName, e);
             }
-            log.debug("Cache information for " + zLevelKey + " collected in " + stats.runTimeMillis
-                    / 1000D + "s. Counted " + stats.numTiles + " tiles for a storage space of "
-                    + stats.collectedQuota.toNiceString());
-            return stats;
         }
 
         /**
-         * @see java.io.FileFilter#accept(java.io.File)
+         * @return {@code false} if the scan was canceled
          */
-        public boolean accept(final File file) {
-            if(closed) {
-                throw new TraversalCanceledException();
-            }
-            if (file.isDirectory()) {
-                log.trace("Processing files in " + file.getAbsolutePath());
+        private boolean visit(final File dir) {
+            final String[] names = dir.list();
+            if (names == null) {
                 return true;
             }
+            for (String name : names) {
+                if (closed) {
+                    return false;
+                }
+                final File file = new File(dir, name);
+                if (name.endsWith(BUNDLE_SUFFIX)) {
+                    visitBundle(file, name);
+                    continue;
+                }
+                final int dotIdx = name.lastIndexOf('.');
+                final int coordSepIdx = dotIdx == -1 ? -1 : name.lastIndexOf('_', dotIdx);
+                if (coordSepIdx <= 0) {
+                    if (recurse && file.isDirectory() && !visit(file)) {
+                        return false;
+                    }
+                    continue;
+                }
+                final long x;
+                final long y;
+                try {
+                    x = Long.parseLong(name.substring(0, coordSepIdx));
+                    y = Long.parseLong(name.substring(1 + coordSepIdx, dotIdx));
+                } catch (NumberFormatException e) {
+                    log.debug("Ignoring " + file.getAbsolutePath() + ", not a tile");
+                    continue;
+                }
+                final String extension = name.substring(dotIdx + 1);
+                if (!hasBatch(extension)) {
+                    log.debug("Ignoring " + file.getAbsolutePath() + ", unknown format");
+                    continue;
+                }
+                add(extension, x, y, file.length());
+            }
+            return true;
+        }
 
-            final long length = file.length();
-
-            // we know path is a direct child of processingDir and represents a tile file...
-            final String path = file.getPath();
-
-            final int fileNameIdx = 1 + path.lastIndexOf(File.separatorChar);
-            final int coordSepIdx = path.lastIndexOf('_');
-            final int dotIdx = path.lastIndexOf('.');
-            final String extension = FilenameUtils.getExtension(file.getName());
-            String blobFormat;
+        /**
+         * Adds the tiles listed in the index of a bundle
+         */
+        private void visitBundle(final File file, final String name) {
+            final String tileName = name.substring(0, name.length() - BUNDLE_SUFFIX.length());
+            final String extension = tileName.substring(tileName.lastIndexOf('.') + 1);
+            final long[] bundleXY = BundlePathGenerator.parseBundleName(name, extension);
+            if (bundleXY == null || !hasBatch(extension)) {
+                log.debug("Ignoring " + file.getAbsolutePath() + ", not a tile bundle");
+                return;
+            }
             try {
-                blobFormat = MimeType.createFromExtension(extension).getFormat();
-            } catch (MimeException e) {
-                throw new RuntimeException(e);
+                final Bundle bundle = Bundle.open(file);
+                if (bundle == null) {
+                    // deleted in the meantime
+                    return;
+                }
+                final long minX = bundleXY[0] * bundle.getSize();
+                final long minY = bundleXY[1] * bundle.getSize();
+                bundle.visit(new Bundle.TileVisitor() {
+                    public void visit(int index, int length) {
+                        add(extension, minX + bundle.column(index), minY + bundle.row(index),
+                                length);
+                    }
+                });
+            } catch (IOException e) {
+                log.warn("Unable to read the tiles of bundle " + file.getAbsolutePath(), e);
             }
-            final long x = Long.valueOf(path.substring(fileNameIdx, coordSepIdx));
-            final long y = Long.valueOf(path.substring(1 + coordSepIdx, dotIdx));
-
-            this.quotaUsageMonitor.tileStored(layerName, gridSetId, blobFormat, parametersId, x, y,
-                    (int) tileZ, length);
-            stats.numTiles++;
-            stats.collectedQuota.addBytes(length);
-            return true;
         }
 
         /**
-         * Used to brute-force cancel a cache inspection (as InterruptedException is checked and
-         * hence can't use it in accept(File) above
-         * 
-         * @author groldan
+         * Creates the batch for the given file extension if needed
          * 
+         * @return {@code false} if the extension is not the one of a known format
          */
-        private class TraversalCanceledException extends RuntimeException {
-            private static final long serialVersionUID = 1L;
-            // doesn't need a body
+        private boolean hasBatch(final String extension) {
+            if (batches.containsKey(extension)) {
+                return true;
+            }
+            try {
+                String format = MimeType.createFromExtension(extension).getFormat();
+                batches.put(extension, new TileBatch(format));
+                return true;
+            } catch (MimeException e) {
+                return false;
+            }
+        }
+
+        private void add(final String extension, final long x, final long y, final long length) {
+            final TileBatch batch = batches.get(extension);
+            batch.x[batch.count] = x;
+            batch.y[batch.count] = y;
+            batch.sizes[batch.count] = length;
+            batch.count++;
+            if (batch.count == BATCH_SIZE) {
+                fullBatches.add(batch);
+                batches.put(extension, new TileBatch(batch.blobFormat));
+            }
+            numTiles++;
+            numBytes += length;
+        }
+
+        private void report(final TileBatch batch) {
+            if (batch.count > 0) {
+                quotaUsageMonitor.tilesStored(scan.layerName, gridSetId, batch.blobFormat,
+                        parametersId, tileZ, batch.x, batch.y, batch.sizes, batch.count);
+            }
         }
     }
 
@@ -306,31 +582,15 @@ final class LayerCacheInfoBuilder {
      * @return {@code true} if the cache information gathering for {@code layerName} is not finished
      */
     public boolean isRunning(String layerName) {
-        try {
-            List<Future<ZoomLevelVisitor.Stats>> layerTasks = perLayerRunningTasks.get(layerName);
-            if (layerTasks == null) {
-                return false;
-            }
-
-            int numRunning = 0;
-            Future<ZoomLevelVisitor.Stats> future;
-            for (Iterator<Future<ZoomLevelVisitor.Stats>> it = layerTasks.iterator(); it.hasNext();) {
-                future = it.next();
-                if (future.isDone()) {
-                    it.remove();
-                } else {
-                    numRunning++;
-                }
-            }
-            return numRunning > 0;
-        } catch (Exception e) {
-            e.printStackTrace();
-            return false;
-        }
+        LayerScan scan = perLayerScans.get(layerName);
+        return scan != null && scan.isRunning();
     }
 
     public void shutDown() {
-        this.closed  = true;
+        this.closed = true;
         this.threadPool.shutdownNow();
+        for (LayerScan scan : perLayerScans.values()) {
+            scan.checkpoint.close();
+        }
     }
 }
@@ -3,21 +3,27 @@ package org.geowebcache.diskquota;
 import java.io.Serializable;
 import java.math.BigInteger;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.geowebcache.diskquota.storage.LongHashMap;
 import org.geowebcache.diskquota.storage.PageStatsPayload;
 import org.geowebcache.diskquota.storage.Quota;
 import org.geowebcache.diskquota.storage.TilePage;
 import org.geowebcache.diskquota.storage.TilePageCalculator;
+import org.geowebcache.diskquota.storage.TilePageKey;
 import org.geowebcache.diskquota.storage.TileSet;
 import org.springframework.util.Assert;
 
@@ -51,6 +57,24 @@ public class QueuedQuotaUpdatesConsumer implements Callable<Long>, Serializable
      */
     private Map<TileSet, TimedQuotaUpdate> aggregatedDelayedUpdates;
 
+    /**
+     * The callbacks of the commit markers taken from the queue, in queue order, waiting for the
+     * aggregated updates that were pending at the time to be committed
+     */
+    private List<PendingCallback> pendingCallbacks;
+
+    private static class PendingCallback {
+
+        private final Runnable callback;
+
+        private final Set<TimedQuotaUpdate> uncommitted;
+
+        public PendingCallback(Runnable callback, Set<TimedQuotaUpdate> uncommitted) {
+            this.callback = callback;
+            this.uncommitted = uncommitted;
+        }
+    }
+
     /**
      * Tracks accumulated quota difference for a single TileSet and accumulated number of tiles
      * difference for pages in the same TileSet
@@ -80,51 +104,79 @@ public class QueuedQuotaUpdatesConsumer implements Callable<Long>, Serializable
         private Quota accumQuotaDiff;
 
         /**
-         * Tracks accumulated number of tiles per TilePage id
+         * Tracks accumulated number of tiles per {@link TilePageKey page key}, all of them with a
+         * zero tile set index as they belong to {@link #tileSet}
          */
-        private Map<String, PageStatsPayload> tilePages;
-
-        private StringBuilder pageIdTarget;
+        private LongHashMap<PageStatsPayload> tilePages;
 
         private int[] pageIndexTarget;
 
+        /**
+         * The page of the last tile added, and where it was
+         */
+        private PageStatsPayload lastPayload;
+
+        private int lastPageX, lastPageY;
+
+        private byte lastPageZ;
+
         public TimedQuotaUpdate(TileSet tileSet, TilePageCalculator tpc) {
             this.tileSet = tileSet;
             this.tpc = tpc;
             this.creationTime = System.currentTimeMillis();
-            tilePages = new HashMap<String, PageStatsPayload>();
+            tilePages = new LongHashMap<PageStatsPayload>();
             pageIndexTarget = new int[3];
-            pageIdTarget = new StringBuilder(128);
             accumQuotaDiff = new Quota();
         }
 
         public void add(QuotaUpdate quotaUpdate) {
-            final String tileSetId = tileSet.getId();
-
-            long size = quotaUpdate.getSize();
             this.accumQuotaDiff.addBytes(quotaUpdate.getSize());
 
-            long[] tileIndex = quotaUpdate.getTileIndex();
+            final int tileCountDiff = quotaUpdate.getTileCountDiff();
+            if (!quotaUpdate.isBatch()) {
+                addTile(quotaUpdate.getTileIndex(), tileCountDiff);
+            } else {
+                final long[] tilesX = quotaUpdate.getTilesX();
+                final long[] tilesY = quotaUpdate.getTilesY();
+                final long[] tileIndex = new long[] { 0, 0, quotaUpdate.getZoomLevel() };
+                for (int i = 0; i < tilesX.length; i++) {
+                    tileIndex[0] = tilesX[i];
+                    tileIndex[1] = tilesY[i];
+                    addTile(tileIndex, tileCountDiff);
+                }
+            }
+            numAggregations += quotaUpdate.getTileCount();
+        }
+
+        private void addTile(long[] tileIndex, int tileCountDiff) {
             tpc.pageIndexForTile(tileSet, tileIndex, pageIndexTarget);
             int pageX = pageIndexTarget[0];
             int pageY = pageIndexTarget[1];
             byte pageZ = (byte) pageIndexTarget[2];
-            pageIdTarget.setLength(0);
-            TilePage.computeId(tileSetId, pageX, pageY, pageZ, pageIdTarget);
-            String pageIdForTile = pageIdTarget.toString();
-
-            final int tileCountDiff = size > 0 ? 1 : -1;
-            PageStatsPayload payload = tilePages.get(pageIdForTile);
-            if (payload == null) {
-                TilePage page;
-                page = new TilePage(tileSetId, pageX, pageY, pageZ);
-                payload = new PageStatsPayload(page);
-                tilePages.put(pageIdForTile, payload);
+
+            // the tiles of a batch mostly fall in the same page
+            PageStatsPayload payload = lastPayload;
+            if (payload == null || pageX != lastPageX || pageY != lastPageY || pageZ != lastPageZ) {
+                if (!TilePageKey.fits(pageX, pageY, pageZ)) {
+                    log.debug("Tile " + Arrays.toString(tileIndex) + " is outside the pages of "
+                            + tileSet + ", not updating its page");
+                    return;
+                }
+                final long pageKey = TilePageKey.pack(0, pageX, pageY, pageZ);
+                payload = tilePages.get(pageKey);
+                if (payload == null) {
+                    TilePage page;
+                    page = new TilePage(tileSet.getId(), pageX, pageY, pageZ);
+                    payload = new PageStatsPayload(page);
+                    tilePages.put(pageKey, payload);
+                }
+                lastPayload = payload;
+                lastPageX = pageX;
+                lastPageY = pageY;
+                lastPageZ = pageZ;
             }
             int previousCount = payload.getNumTiles();
             payload.setNumTiles(previousCount + tileCountDiff);
-
-            ++numAggregations;
         }
 
         public TileSet getTileSet() {
@@ -160,6 +212,7 @@ public class QueuedQuotaUpdatesConsumer implements Callable<Long>, Serializable
         this.tilePageCalculator = quotaStore.getTilePageCalculator();
         this.queue = queue;
         aggregatedDelayedUpdates = new HashMap<TileSet, TimedQuotaUpdate>();
+        pendingCallbacks = new ArrayList<PendingCallback>();
     }
 
     /**
@@ -180,7 +233,9 @@ public class QueuedQuotaUpdatesConsumer implements Callable<Long>, Serializable
                  */
                 QuotaUpdate updateData;
                 updateData = queue.poll(DEFAULT_SYNC_TIMEOUT, TimeUnit.MILLISECONDS);
-                if (updateData != null) {
+                if (updateData != null && updateData.getCommitCallback() != null) {
+                    awaitCommit(updateData.getCommitCallback());
+                } else if (updateData != null) {
                     /*
                      * or perform an aggregated update in case we're really busy
                      */
@@ -227,6 +282,45 @@ public class QueuedQuotaUpdatesConsumer implements Callable<Long>, Serializable
         accumulatedUpdate.add(updateData);
     }
 
+    /**
+     * Runs the callback of a commit marker once the updates aggregated so far, which include all
+     * the updates queued before the marker, are committed
+     */
+    private void awaitCommit(final Runnable callback) {
+        if (aggregatedDelayedUpdates.isEmpty() && pendingCallbacks.isEmpty()) {
+            runCallback(callback);
+        } else {
+            Set<TimedQuotaUpdate> uncommitted = new HashSet<TimedQuotaUpdate>(
+                    aggregatedDelayedUpdates.values());
+            pendingCallbacks.add(new PendingCallback(callback, uncommitted));
+        }
+    }
+
+    /**
+     * Runs, in queue order, the callbacks no longer waiting for any uncommitted update
+     */
+    private void committed(final TimedQuotaUpdate update) {
+        for (PendingCallback pending : pendingCallbacks) {
+            pending.uncommitted.remove(update);
+        }
+        for (Iterator<PendingCallback> it = pendingCallbacks.iterator(); it.hasNext();) {
+            PendingCallback pending = it.next();
+            if (!pending.uncommitted.isEmpty()) {
+                break;
+            }
+            it.remove();
+            runCallback(pending.callback);
+        }
+    }
+
+    private void runCallback(final Runnable callback) {
+        try {
+            callback.run();
+        } catch (RuntimeException e) {
+            log.error("Error running quota update commit callback", e);
+        }
+    }
+
     /**
      * Makes sure no cached updates are held for too long before synchronizing with the store
      * 
@@ -252,7 +346,7 @@ public class QueuedQuotaUpdatesConsumer implements Callable<Long>, Serializable
     private void prune(List<TileSet> pruneList) {
         if (pruneList != null && pruneList.size() > 0) {
             for (TileSet ts : pruneList) {
-                aggregatedDelayedUpdates.remove(ts);
+                committed(aggregatedDelayedUpdates.remove(ts));
             }
         }
     }
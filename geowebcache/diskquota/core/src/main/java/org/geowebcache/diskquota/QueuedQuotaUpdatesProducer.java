@@ -21,6 +21,8 @@ import java.util.concurrent.BlockingQueue;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.geowebcache.diskquota.storage.TileSet;
+import org.geowebcache.storage.BatchBlobStoreListener;
 import org.geowebcache.storage.BlobStoreListener;
 import org.geowebcache.storage.DefaultStorageBroker;
 import org.springframework.util.Assert;
@@ -31,13 +33,14 @@ import org.springframework.util.Assert;
  * This class only cares about receiving {@link BlobStoreListener} events and submitting
  * {@link QuotaUpdate}s to the provided {@link BlockingQueue}. Another thread is responsible of
  * taking the {@link QuotaUpdate} off the queue and updating the quota store as appropriate.
+ * Batches of tiles stored or deleted are queued as a single {@link QuotaUpdate}.
  * </p>
  * 
  * @author groldan
  * @see DiskQuotaMonitor
  * @see QueuedQuotaUpdatesConsumer
  */
-class QueuedQuotaUpdatesProducer implements BlobStoreListener {
+class QueuedQuotaUpdatesProducer implements BatchBlobStoreListener {
 
     private static final Log log = LogFactory.getLog(QueuedQuotaUpdatesProducer.class);
 
@@ -121,6 +124,86 @@ class QueuedQuotaUpdatesProducer implements BlobStoreListener {
         quotaUpdate(layerName, gridSetId, blobFormat, parametersId, actualDifference, tileIndex);
     }
 
+    /**
+     * Queues a single {@link QuotaUpdate} for the whole batch of tiles stored.
+     * 
+     * @see org.geowebcache.storage.BatchBlobStoreListener#tilesStored
+     */
+    public void tilesStored(String layerName, String gridSetId, String blobFormat,
+            String parametersId, int z, long[] x, long[] y, long[] blobSizes, int count) {
+
+        tilesUpdate(layerName, gridSetId, blobFormat, parametersId, z, x, y, blobSizes, count, 1);
+    }
+
+    /**
+     * Queues a single {@link QuotaUpdate} for the whole batch of tiles deleted.
+     * 
+     * @see org.geowebcache.storage.BatchBlobStoreListener#tilesDeleted
+     */
+    public void tilesDeleted(String layerName, String gridSetId, String blobFormat,
+            String parametersId, int z, long[] x, long[] y, long[] blobSizes, int count) {
+
+        tilesUpdate(layerName, gridSetId, blobFormat, parametersId, z, x, y, blobSizes, count, -1);
+    }
+
+    /**
+     * @param tileCountDiff
+     *            {@code 1} for stored tiles, {@code -1} for deleted ones
+     */
+    private void tilesUpdate(String layerName, String gridSetId, String blobFormat,
+            String parametersId, int z, long[] x, long[] y, long[] blobSizes, int count,
+            int tileCountDiff) {
+
+        if (count == 0 || cancelled(layerName)) {
+            return;
+        }
+        final int blockSize = quotaConfig.getDiskBlockSize();
+        final boolean stored = tileCountDiff > 0;
+
+        // the arrays belong to the caller, copy the tiles that count
+        long[] tilesX = new long[count];
+        long[] tilesY = new long[count];
+        long size = 0;
+        int n = 0;
+        for (int i = 0; i < count; i++) {
+            final long blobSize = blobSizes[i];
+            if (stored && blobSize == 0) {
+                // as in tileStored
+                continue;
+            }
+            size += blockSize * (long) Math.ceil((double) blobSize / blockSize);
+            tilesX[n] = x[i];
+            tilesY[n] = y[i];
+            n++;
+        }
+        if (n == 0) {
+            return;
+        }
+        if (n < count) {
+            long[] copy = new long[n];
+            System.arraycopy(tilesX, 0, copy, 0, n);
+            tilesX = copy;
+            copy = new long[n];
+            System.arraycopy(tilesY, 0, copy, 0, n);
+            tilesY = copy;
+        }
+
+        TileSet tileSet = new TileSet(layerName, gridSetId, blobFormat, parametersId);
+        queue(layerName, new QuotaUpdate(tileSet, tileCountDiff * size, z, tilesX, tilesY,
+                tileCountDiff));
+    }
+
+    /**
+     * Queues a marker for the consumer to run {@code callback} once the updates queued so far
+     * have been committed to the quota store
+     */
+    public void afterCommit(String layerName, Runnable callback) {
+        if (cancelled(layerName)) {
+            return;
+        }
+        queue(layerName, new QuotaUpdate(callback));
+    }
+
     /**
      * @see org.geowebcache.storage.BlobStoreListener#layerDeleted(java.lang.String)
      * @see QuotaStore#deleteLayer(String)
@@ -163,6 +246,10 @@ class QueuedQuotaUpdatesProducer implements BlobStoreListener {
         }
         QuotaUpdate payload = new QuotaUpdate(layerName, gridSetId, blobFormat, parametersId,
                 amount, tileIndex);
+        queue(layerName, payload);
+    }
+
+    private void queue(String layerName, QuotaUpdate payload) {
         try {
             this.queuedUpdates.put(payload);
         } catch (InterruptedException e) {
@@ -1,7 +1,7 @@
 package org.geowebcache.diskquota;
 
 import java.io.Serializable;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
@@ -11,9 +11,11 @@ import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.geowebcache.diskquota.storage.LongHashMap;
 import org.geowebcache.diskquota.storage.PageStatsPayload;
 import org.geowebcache.diskquota.storage.TilePage;
 import org.geowebcache.diskquota.storage.TilePageCalculator;
+import org.geowebcache.diskquota.storage.TilePageKey;
 import org.geowebcache.diskquota.storage.TileSet;
 import org.springframework.util.Assert;
 
@@ -54,9 +56,15 @@ public class QueuedUsageStatsConsumer implements Callable<Long>, Serializable {
      */
     private static class TimedUsageUpdate {
         /**
-         * Tracks aggregated usage stats per {@link TilePage#getId() pageId} until committed
+         * Tracks aggregated usage stats per {@link TilePageKey page key} until committed
          */
-        private final Map<String, PageStatsPayload> pages;
+        private final LongHashMap<PageStatsPayload> pages;
+
+        /**
+         * The tile set indexes of the {@link TilePageKey page keys}, handed out in order and
+         * forgotten at each commit
+         */
+        private final Map<String, Integer> tileSetIndexes;
 
         /**
          * tracks the last time the aggregated updates for a given tile set were committed
@@ -69,7 +77,8 @@ public class QueuedUsageStatsConsumer implements Callable<Long>, Serializable {
         private int numAggregations;
 
         public TimedUsageUpdate() {
-            this.pages = new HashMap<String, PageStatsPayload>();
+            this.pages = new LongHashMap<PageStatsPayload>();
+            this.tileSetIndexes = new HashMap<String, Integer>();
             this.lastCommitTime = System.currentTimeMillis();
             numAggregations = 0;
         }
@@ -143,8 +152,6 @@ public class QueuedUsageStatsConsumer implements Callable<Long>, Serializable {
 
     private final int[] pageIndexTarget = new int[3];
 
-    private final StringBuilder pageIdTarget = new StringBuilder(128);
-
     /**
      * 
      * @param requestedTile
@@ -164,9 +171,17 @@ public class QueuedUsageStatsConsumer implements Callable<Long>, Serializable {
         final int pageY = pageIndexTarget[1];
         final byte pageZ = (byte) pageIndexTarget[2];
 
-        pageIdTarget.setLength(0);
-        TilePage.computeId(tileSetId, pageX, pageY, pageZ, pageIdTarget);
-        final String pageKeyForTile = pageIdTarget.toString();
+        if (!TilePageKey.fits(pageX, pageY, pageZ)) {
+            log.debug("Tile " + Arrays.toString(tileIndex) + " is outside the pages of " + tileSet
+                    + ", ignoring its usage");
+            return;
+        }
+        Integer tileSetIndex = aggregatedPendingUpdates.tileSetIndexes.get(tileSetId);
+        if (tileSetIndex == null) {
+            tileSetIndex = Integer.valueOf(aggregatedPendingUpdates.tileSetIndexes.size());
+            aggregatedPendingUpdates.tileSetIndexes.put(tileSetId, tileSetIndex);
+        }
+        final long pageKeyForTile = TilePageKey.pack(tileSetIndex.intValue(), pageX, pageY, pageZ);
 
         PageStatsPayload timedUpdate = aggregatedPendingUpdates.pages.get(pageKeyForTile);
         if (timedUpdate == null) {
@@ -219,10 +234,11 @@ public class QueuedUsageStatsConsumer implements Callable<Long>, Serializable {
 
     private void commit() {
         Collection<PageStatsPayload> pendingCommits;
-        pendingCommits = new ArrayList<PageStatsPayload>(aggregatedPendingUpdates.pages.values());
+        pendingCommits = aggregatedPendingUpdates.pages.values();
         quotaStore.addHitsAndSetAccesTime(pendingCommits);
         aggregatedPendingUpdates.lastCommitTime = System.currentTimeMillis();
         aggregatedPendingUpdates.numAggregations = 0;
         aggregatedPendingUpdates.pages.clear();
+        aggregatedPendingUpdates.tileSetIndexes.clear();
     }
 }
@@ -88,6 +88,36 @@ public interface QuotaStore {
     public abstract TilePage getLeastRecentlyUsedPage(final Set<String> layerNames)
             throws InterruptedException;
 
+    /**
+     * Returns the next pages to expire by the LFU policy in a single lookup, so that a large
+     * overage can be cleared without looking up the store for each page.
+     * 
+     * @param layerNames
+     *            the layers to pick pages from
+     * @param maxPages
+     *            the maximum number of pages to return
+     * @return the non empty pages of the given layers, least frequently used first, empty if
+     *         there is none
+     * @throws InterruptedException
+     */
+    public abstract List<TilePage> getLeastFrequentlyUsedPages(final Set<String> layerNames,
+            int maxPages) throws InterruptedException;
+
+    /**
+     * Returns the next pages to expire by the LRU policy in a single lookup.
+     * 
+     * @param layerNames
+     *            the layers to pick pages from
+     * @param maxPages
+     *            the maximum number of pages to return
+     * @return the non empty pages of the given layers, least recently used first, empty if there
+     *         is none
+     * @throws InterruptedException
+     * @see #getLeastFrequentlyUsedPages(Set, int)
+     */
+    public abstract List<TilePage> getLeastRecentlyUsedPages(final Set<String> layerNames,
+            int maxPages) throws InterruptedException;
+
     public abstract PageStats setTruncated(final TilePage tilePage) throws InterruptedException;
 
     public abstract void deleteGridSubset(String layerName, String gridSetId);
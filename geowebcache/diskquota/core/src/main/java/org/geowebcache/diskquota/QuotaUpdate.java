@@ -10,6 +10,16 @@ public class QuotaUpdate {
 
     private long[] tileIndex;
 
+    private long[] tilesX;
+
+    private long[] tilesY;
+
+    private int zoomLevel;
+
+    private int tileCountDiff;
+
+    private Runnable commitCallback;
+
     /**
      * 
      * @param layerName
@@ -32,6 +42,39 @@ public class QuotaUpdate {
         this.tileIndex = tileIndex;
     }
 
+    /**
+     * Creates the update of a batch of tiles of the same zoom level, all stored or all deleted
+     * 
+     * @param size
+     *            the total bytes to add or subtract from the quota
+     * @param tilesX
+     *            the columns of the tiles, one per tile
+     * @param tilesY
+     *            the rows of the tiles, one per tile
+     * @param tileCountDiff
+     *            {@code 1} if the tiles were stored, {@code -1} if they were deleted
+     */
+    public QuotaUpdate(TileSet tileset, long size, int zoomLevel, long[] tilesX, long[] tilesY,
+            int tileCountDiff) {
+        this.tileSet = tileset;
+        this.size = size;
+        this.zoomLevel = zoomLevel;
+        this.tilesX = tilesX;
+        this.tilesY = tilesY;
+        this.tileCountDiff = tileCountDiff;
+    }
+
+    /**
+     * Creates a marker that updates no tiles, whose callback is run once the updates queued
+     * before it are committed to the quota store
+     * 
+     * @see QuotaUpdatesMonitor#afterCommit(String, Runnable)
+     */
+    public QuotaUpdate(Runnable commitCallback) {
+        this.tileSet = null;
+        this.commitCallback = commitCallback;
+    }
+
     public TileSet getTileSet() {
         return tileSet;
     }
@@ -44,13 +87,63 @@ public class QuotaUpdate {
         this.size = size;
     }
 
+    /**
+     * @return the index of the tile, or {@code null} for a {@link #isBatch() batch}
+     */
     public long[] getTileIndex() {
         return tileIndex;
     }
 
+    /**
+     * @return whether this update is about several tiles, see {@link #getTilesX()} and
+     *         {@link #getTilesY()}
+     */
+    public boolean isBatch() {
+        return tilesX != null;
+    }
+
+    public int getTileCount() {
+        return tilesX == null ? 1 : tilesX.length;
+    }
+
+    public long[] getTilesX() {
+        return tilesX;
+    }
+
+    public long[] getTilesY() {
+        return tilesY;
+    }
+
+    public int getZoomLevel() {
+        return zoomLevel;
+    }
+
+    /**
+     * @return the difference in the number of tiles for each tile of the update
+     */
+    public int getTileCountDiff() {
+        if (tilesX == null) {
+            return size > 0 ? 1 : -1;
+        }
+        return tileCountDiff;
+    }
+
+    /**
+     * @return the callback of a commit marker, or {@code null} for an actual update
+     */
+    public Runnable getCommitCallback() {
+        return commitCallback;
+    }
+
     @Override
     public String toString() {
-        return new StringBuilder("[").append(tileSet.toString()).append(", ").append(size)
-                .append(" bytes]").toString();
+        if (commitCallback != null) {
+            return "[commit marker]";
+        }
+        StringBuilder sb = new StringBuilder("[").append(tileSet.toString()).append(", ");
+        if (isBatch()) {
+            sb.append(tilesX.length).append(" tiles, ");
+        }
+        return sb.append(size).append(" bytes]").toString();
     }
 }
\ No newline at end of file
@@ -122,6 +122,28 @@ public class QuotaUpdatesMonitor {
                 blobSize);
     }
 
+    /**
+     * Reports the first {@code count} tiles of the arrays as stored, as a single update
+     */
+    public void tilesStored(final String layerName, final String gridSetId,
+            final String blobFormat, final String parametersId, final int z, final long[] x,
+            final long[] y, final long[] blobSizes, final int count) {
+        this.quotaDiffsProducer.tilesStored(layerName, gridSetId, blobFormat, parametersId, z, x,
+                y, blobSizes, count);
+    }
+
+    /**
+     * Runs {@code callback}, on the thread saving the quota updates, once the updates reported so
+     * far have been committed to the quota store. The callback is not run at all if the monitor
+     * is shut down before, as the updates still queued are then dropped.
+     * 
+     * @param layerName
+     *            the layer the updates belong to, for logging purposes
+     */
+    public void afterCommit(final String layerName, final Runnable callback) {
+        this.quotaDiffsProducer.afterCommit(layerName, callback);
+    }
+
     public void awaitTermination(int timeout, TimeUnit units) throws InterruptedException {
         if (!executorService.isShutdown()) {
             throw new IllegalStateException("Called awaitTermination but the "
@@ -46,6 +46,12 @@ public class UsageStatsMonitor {
      */
     private QueuedUsageStatsProducer usageStatsProducer;
 
+    /**
+     * Used instead of {@link #usageStatsProducer} when the {@link #quotaStore} is a
+     * {@link UsageStatsRecorder}, in which case there is no queue nor consumer thread
+     */
+    private DirectUsageStatsProducer directUsageStatsProducer;
+
     /**
      * Task that constantly polls the {@link #sharedQueue} for usage statistics payload objects and
      * aggregates them to be saved to the {@link #quotaStore} for the LRU and LFU
@@ -65,6 +71,15 @@ public class UsageStatsMonitor {
     }
 
     public void startUp() {
+        if (quotaStore instanceof UsageStatsRecorder) {
+            directUsageStatsProducer = new DirectUsageStatsProducer(
+                    (UsageStatsRecorder) quotaStore);
+            for (TileLayer layer : tileLayerDispatcher.getLayerList()) {
+                layer.addLayerListener(directUsageStatsProducer);
+            }
+            return;
+        }
+
         executorService = Executors.newSingleThreadExecutor(tf);
 
         sharedQueue = new LinkedBlockingQueue<UsageStats>(1000);
@@ -86,6 +101,9 @@ public class UsageStatsMonitor {
     public void shutDown() {
         final boolean cancel = false;
         shutDown(cancel);
+        if (executorService == null) {
+            return;
+        }
 
         final int maxAttempts = 6;
         final int seconds = 5;
@@ -110,6 +128,9 @@ public class UsageStatsMonitor {
     }
 
     public void awaitTermination(int timeout, TimeUnit units) throws InterruptedException {
+        if (executorService == null) {
+            return;
+        }
         if (!executorService.isShutdown()) {
             throw new IllegalStateException("Called awaitTermination but the "
                     + "UsageStatsMonitor is not shutting down");
@@ -126,9 +147,11 @@ public class UsageStatsMonitor {
 
     private void shutDown(final boolean cancel) {
         Iterable<TileLayer> allLayers = tileLayerDispatcher.getLayerList();
+        final TileLayerListener producer = directUsageStatsProducer == null ? usageStatsProducer
+                : directUsageStatsProducer;
         for (TileLayer layer : allLayers) {
             try {
-                layer.removeLayerListener(usageStatsProducer);
+                layer.removeLayerListener(producer);
             } catch (RuntimeException e) {
                 log.error("Unexpected exception while removing the usage stats "
                         + "listener from layer '" + layer
@@ -137,6 +160,10 @@ public class UsageStatsMonitor {
             }
         }
 
+        if (directUsageStatsProducer != null) {
+            directUsageStatsProducer.setCancelled(true);
+            return;
+        }
         if (cancel) {
             usageStatsProducer.setCancelled(true);
             executorService.shutdownNow();
@@ -0,0 +1,33 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.diskquota;
+
+/**
+ * Implemented by the {@link QuotaStore quota stores} that can record tile hits straight from the
+ * threads serving the tiles, in which case the {@link UsageStatsMonitor} skips its queue and
+ * consumer thread.
+ */
+public interface UsageStatsRecorder {
+
+    /**
+     * Records a hit on a tile, called concurrently by the request threads. Hits on unknown tile
+     * sets are ignored.
+     *
+     * @param tileIndex
+     *            the {@code x, y, z} index of the tile
+     */
+    public void addHit(String layerName, String gridSetId, String blobFormat,
+            String parametersId, long[] tileIndex);
+}
@@ -0,0 +1,1228 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.diskquota.memory;
+
+import static org.geowebcache.diskquota.DiskQuotaMonitor.GWC_DISKQUOTA_DISABLED;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geowebcache.config.ConfigurationException;
+import org.geowebcache.diskquota.QuotaStore;
+import org.geowebcache.diskquota.UsageStatsRecorder;
+import org.geowebcache.diskquota.storage.PageStats;
+import org.geowebcache.diskquota.storage.PageStatsPayload;
+import org.geowebcache.diskquota.storage.Quota;
+import org.geowebcache.diskquota.storage.SystemUtils;
+import org.geowebcache.diskquota.storage.TilePage;
+import org.geowebcache.diskquota.storage.TilePageCalculator;
+import org.geowebcache.diskquota.storage.TilePageKey;
+import org.geowebcache.diskquota.storage.TileSet;
+import org.geowebcache.diskquota.storage.TileSetVisitor;
+import org.geowebcache.storage.DefaultStorageFinder;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.util.Assert;
+
+/**
+ * {@link QuotaStore} that keeps the used quota of the tile sets and the statistics of the tile
+ * pages in memory.
+ * <p>
+ * Tile sets are given a small index when first seen, and pages are identified by a {@code long}
+ * packing that index with the page coordinates, see {@link PageStatsTable}. Tile hits are
+ * recorded by the threads serving the tiles through {@link UsageStatsRecorder}, without going
+ * through a queue and a consumer thread.
+ * </p>
+ * <p>
+ * The state is saved to the {@code diskquota_memory_store} directory of the cache as a snapshot
+ * written at regular intervals, plus a {@link WriteAheadLog log} of the changes to the tile sets,
+ * used quotas and page fill factors made since the last snapshot. Hits are only saved by the
+ * snapshots, so at most an interval worth of hits is lost if the process dies. On start up the
+ * snapshot is loaded and the log replayed. If the snapshot is damaged the store starts empty, so
+ * that the disk usage of the layers gets computed again.
+ * </p>
+ */
+public class MemoryQuotaStore implements QuotaStore, UsageStatsRecorder {
+
+    private static final Log log = LogFactory.getLog(MemoryQuotaStore.class);
+
+    public static final String STORE_DIRECTORY = "diskquota_memory_store";
+
+    /**
+     * Default time between two snapshots, in seconds
+     */
+    public static final int DEFAULT_SNAPSHOT_INTERVAL = 60;
+
+    private static final String SNAPSHOT_FILE = "snapshot.dat";
+
+    private static final String SNAPSHOT_TMP_FILE = "snapshot.tmp";
+
+    private static final int SNAPSHOT_MAGIC = 0x4757514D;
+
+    private static final int SNAPSHOT_VERSION = 1;
+
+    private static final byte TILE_SET_CREATED = 1;
+
+    private static final byte QUOTA_AND_TILES_ADDED = 2;
+
+    private static final byte PAGE_TRUNCATED = 3;
+
+    private static final byte TILE_SETS_DELETED = 4;
+
+    private static final byte TILE_SETS_MOVED = 5;
+
+    private final String cacheRootDir;
+
+    private final TilePageCalculator tilePageCalculator;
+
+    private final boolean diskQuotaEnabled;
+
+    private int snapshotInterval = DEFAULT_SNAPSHOT_INTERVAL;
+
+    private final ConcurrentHashMap<String, TileSetQuota> tileSets =
+            new ConcurrentHashMap<String, TileSetQuota>();
+
+    /**
+     * The tile sets by index, replaced as a whole on every change
+     */
+    private volatile TileSetQuota[] tileSetsByIndex = new TileSetQuota[16];
+
+    private int nextTileSetIndex = 1;
+
+    private final AtomicLong globalBytes = new AtomicLong();
+
+    private PageStatsTable pages = new PageStatsTable();
+
+    /**
+     * Serializes the changes that go to the {@link #changeLog} and the snapshots
+     */
+    private final Object mutationLock = new Object();
+
+    private final RecordBuffer record = new RecordBuffer();
+
+    private final DataOutputStream recordOut = new DataOutputStream(record);
+
+    private File storeDirectory;
+
+    private WriteAheadLog changeLog;
+
+    private ScheduledExecutorService snapshotWriter;
+
+    private volatile boolean open;
+
+    /**
+     * Whether there are changes, hits included, not saved by a snapshot
+     */
+    private volatile boolean dirty;
+
+    private final ThreadLocal<StringBuilder> tileSetIdBuilder = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(128);
+        }
+    };
+
+    private final ThreadLocal<int[]> pageIndex = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[3];
+        }
+    };
+
+    public MemoryQuotaStore(final DefaultStorageFinder cacheDirFinder,
+            TilePageCalculator tilePageCalculator) throws ConfigurationException {
+        Assert.notNull(cacheDirFinder, "cacheDirFinder can't be null");
+        Assert.notNull(tilePageCalculator, "tilePageCalculator can't be null");
+
+        this.tilePageCalculator = tilePageCalculator;
+        this.cacheRootDir = cacheDirFinder.getDefaultPath();
+
+        boolean disabled = Boolean.valueOf(cacheDirFinder.findEnvVar(GWC_DISKQUOTA_DISABLED))
+                .booleanValue();
+        if (disabled) {
+            log.warn(" -- Found environment variable " + GWC_DISKQUOTA_DISABLED
+                    + " set to true. DiskQuotaMonitor is disabled.");
+        }
+        this.diskQuotaEnabled = !disabled;
+    }
+
+    /**
+     * @param seconds
+     *            the time between two snapshots, to be set before {@link #startUp()}
+     */
+    public void setSnapshotInterval(int seconds) {
+        Assert.isTrue(seconds > 0, "snapshot interval shall be positive");
+        this.snapshotInterval = seconds;
+    }
+
+    public int getSnapshotInterval() {
+        return snapshotInterval;
+    }
+
+    /**
+     * Loads the saved state and starts taking snapshots
+     *
+     * @see {@link #close()}
+     */
+    public void startUp() throws IOException, InterruptedException {
+        if (!diskQuotaEnabled) {
+            log.info(getClass().getName() + " won't start, got env variable "
+                    + GWC_DISKQUOTA_DISABLED + "=true");
+            return;
+        }
+        storeDirectory = new File(cacheRootDir, STORE_DIRECTORY);
+        storeDirectory.mkdirs();
+        changeLog = new WriteAheadLog(storeDirectory);
+
+        long sequence = loadSnapshot();
+        if (sequence < 0) {
+            sequence = 0;
+            for (File file : changeLog.files()) {
+                sequence = Math.max(sequence, WriteAheadLog.sequence(file) + 1);
+            }
+        } else {
+            final ChangeReplayer replayer = new ChangeReplayer();
+            for (File file : changeLog.files()) {
+                long fileSequence = WriteAheadLog.sequence(file);
+                if (fileSequence < sequence) {
+                    continue;
+                }
+                try {
+                    int count = WriteAheadLog.replay(file, replayer);
+                    log.debug("Replayed " + count + " disk quota changes from " + file.getName());
+                } catch (IOException e) {
+                    log.warn("Error replaying disk quota changes from " + file.getName(), e);
+                }
+                sequence = fileSequence + 1;
+            }
+        }
+        changeLog.open(sequence);
+        open = true;
+
+        deleteStaleLayersAndCreateMissingTileSets();
+        // start from a fresh snapshot, which also gets rid of the replayed logs
+        snapshot(true);
+
+        CustomizableThreadFactory tf = new CustomizableThreadFactory(
+                "GWC DiskQuota Memory Store Snapshot Writer-");
+        tf.setDaemon(true);
+        snapshotWriter = Executors.newSingleThreadScheduledExecutor(tf);
+        snapshotWriter.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    snapshot(false);
+                } catch (Exception e) {
+                    log.warn("Error saving the disk quota snapshot", e);
+                }
+            }
+        }, snapshotInterval, snapshotInterval, TimeUnit.SECONDS);
+
+        log.info("In memory disk quota store configured at " + storeDirectory.getAbsolutePath()
+                + " with " + tileSets.size() + " tile sets and " + pages.size() + " pages");
+    }
+
+    /**
+     * Stops taking snapshots and saves a last one
+     */
+    public void close() throws Exception {
+        if (!open) {
+            return;
+        }
+        log.info("Requested to close quota store...");
+        snapshotWriter.shutdown();
+        snapshotWriter.awaitTermination(30, TimeUnit.SECONDS);
+        synchronized (mutationLock) {
+            open = false;
+        }
+        try {
+            snapshot(true);
+        } finally {
+            changeLog.close();
+        }
+        log.info("Quota store closed.");
+    }
+
+    private void checkOpen() {
+        if (!open) {
+            throw new IllegalStateException("QuotaStore is closed.");
+        }
+    }
+
+    private void deleteStaleLayersAndCreateMissingTileSets() throws InterruptedException {
+        final Set<String> layerNames = tilePageCalculator.getLayerNames();
+        final Set<String> existingLayers = new HashSet<String>();
+        for (TileSetQuota tileSet : tileSets.values()) {
+            existingLayers.add(tileSet.tileSet.getLayerName());
+        }
+        existingLayers.removeAll(layerNames);
+        for (String layerName : existingLayers) {
+            log.info("Deleting disk quota information for layer '" + layerName
+                    + "' as it does not exist anymore...");
+            deleteLayer(layerName);
+        }
+        for (String layerName : layerNames) {
+            createLayer(layerName);
+        }
+    }
+
+    /**
+     * @see org.geowebcache.diskquota.QuotaStore#createLayer(java.lang.String)
+     */
+    public void createLayer(final String layerName) throws InterruptedException {
+        Set<TileSet> layerTileSets = tilePageCalculator.getTileSetsFor(layerName);
+        synchronized (mutationLock) {
+            checkOpen();
+            for (TileSet tileSet : layerTileSets) {
+                getOrCreateTileSet(tileSet);
+            }
+        }
+    }
+
+    private TileSetQuota getOrCreateTileSet(final TileSet tileSet) {
+        TileSetQuota stored = tileSets.get(tileSet.getId());
+        if (stored != null) {
+            return stored;
+        }
+        log.debug("Creating TileSet for quota tracking: " + tileSet);
+        final int index = nextTileSetIndex;
+        try {
+            DataOutputStream out = beginRecord(TILE_SET_CREATED);
+            out.writeInt(index);
+            writeTileSet(out, tileSet);
+            endRecord();
+        } catch (IOException e) {
+            logFailed(e);
+        }
+        return tileSetCreated(index, tileSet);
+    }
+
+    private TileSetQuota tileSetCreated(final int index, final TileSet tileSet) {
+        TileSetQuota created = new TileSetQuota(index, tileSet);
+        TileSetQuota[] byIndex = tileSetsByIndex;
+        if (index >= byIndex.length) {
+            TileSetQuota[] grown = new TileSetQuota[Math.max(2 * byIndex.length, index + 1)];
+            System.arraycopy(byIndex, 0, grown, 0, byIndex.length);
+            byIndex = grown;
+        } else {
+            byIndex = byIndex.clone();
+        }
+        byIndex[index] = created;
+        tileSets.put(tileSet.getId(), created);
+        tileSetsByIndex = byIndex;
+        nextTileSetIndex = Math.max(nextTileSetIndex, index + 1);
+        dirty = true;
+        return created;
+    }
+
+    private static void writeTileSet(DataOutputStream out, TileSet tileSet) throws IOException {
+        out.writeUTF(tileSet.getLayerName());
+        out.writeUTF(tileSet.getGridsetId());
+        out.writeUTF(tileSet.getBlobFormat());
+        out.writeBoolean(tileSet.getParametersId() != null);
+        if (tileSet.getParametersId() != null) {
+            out.writeUTF(tileSet.getParametersId());
+        }
+    }
+
+    private static TileSet readTileSet(DataInputStream in) throws IOException {
+        String layerName = in.readUTF();
+        String gridsetId = in.readUTF();
+        String blobFormat = in.readUTF();
+        String parametersId = in.readBoolean() ? in.readUTF() : null;
+        return new TileSet(layerName, gridsetId, blobFormat, parametersId);
+    }
+
+    /**
+     * @see org.geowebcache.diskquota.QuotaStore#getGloballyUsedQuota()
+     */
+    public Quota getGloballyUsedQuota() throws InterruptedException {
+        Quota quota = new Quota();
+        quota.setBytes(globalBytes.get());
+        return quota;
+    }
+
+    /**
+     * @see org.geowebcache.diskquota.QuotaStore#getUsedQuotaByTileSetId(java.lang.String)
+     */
+    public Quota getUsedQuotaByTileSetId(final String tileSetId) throws InterruptedException {
+        Quota quota = new Quota();
+        TileSetQuota tileSet = tileSets.get(tileSetId);
+        if (tileSet != null) {
+            quota.setTileSetId(tileSetId);
+            quota.setBytes(tileSet.bytes.get());
+        }
+        return quota;
+    }
+
+    /**
+     * @see org.geowebcache.diskquota.QuotaStore#getUsedQuotaByLayerName(java.lang.String)
+     */
+    public Quota getUsedQuotaByLayerName(final String layerName) throws InterruptedException {
+        long bytes = 0;
+        for (TileSetQuota tileSet : tileSets.values()) {
+            if (layerName.equals(tileSet.tileSet.getLayerName())) {
+                bytes += tileSet.bytes.get();
+            }
+        }
+        Quota quota = new Quota();
+        quota.setBytes(bytes);
+        return quota;
+    }
+
+    /**
+     * @see org.geowebcache.diskquota.QuotaStore#deleteLayer(java.lang.String)
+     */
+    public void deleteLayer(final String layerName) {
+        deleteTileSets(layerName, null);
+    }
+
+    /**
+     * @see org.geowebcache.diskquota.QuotaStore#deleteGridSubset(java.lang.String,
+     *      java.lang.String)
+     */
+    public void deleteGridSubset(String layerName, String gridSetId) {
+        deleteTileSets(layerName, gridSetId);
+    }
+
+    private void deleteTileSets(final String layerName, final String gridSetId) {
+        synchronized (mutationLock) {
+            checkOpen();
+            List<TileSetQuota> matching = tileSetsOf(layerName, gridSetId);
+            if (matching.isEmpty()) {
+                return;
+            }
+            int[] indexes = new int[matching.size()];
+            for (int i = 0; i < indexes.length; i++) {
+                indexes[i] = matching.get(i).index;
+            }
+            try {
+                DataOutputStream out = beginRecord(TILE_SETS_DELETED);
+                writeInts(out, indexes);
+                endRecord();
+            } catch (IOException e) {
+                logFailed(e);
+            }
+            tileSetsDeleted(indexes);
+        }
+    }
+
+    private List<TileSetQuota> tileSetsOf(final String layerName, final String gridSetId) {
+        List<TileSetQuota> matching = new ArrayList<TileSetQuota>();
+        for (TileSetQuota tileSet : tileSets.values()) {
+            if (layerName.equals(tileSet.tileSet.getLayerName())
+                    && (gridSetId == null || gridSetId.equals(tileSet.tileSet.getGridsetId()))) {
+                matching.add(tileSet);
+            }
+        }
+        return matching;
+    }
+
+    private void tileSetsDeleted(final int[] indexes) {
+        TileSetQuota[] byIndex = tileSetsByIndex.clone();
+        boolean[] deleted = new boolean[byIndex.length];
+        for (int index : indexes) {
+            TileSetQuota tileSet = index < byIndex.length ? byIndex[index] : null;
+            if (tileSet == null) {
+                continue;
+            }
+            deleted[index] = true;
+            byIndex[index] = null;
+            tileSets.remove(tileSet.tileSet.getId());
+            globalBytes.addAndGet(-tileSet.bytes.get());
+        }
+        tileSetsByIndex = byIndex;
+        pages.removeTileSets(deleted, null);
+        dirty = true;
+    }
+
+    /**
+     * @see org.geowebcache.diskquota.QuotaStore#renameLayer(java.lang.String, java.lang.String)
+     */
+    public void renameLayer(String oldLayerName, String newLayerName) throws InterruptedException {
+        synchronized (mutationLock) {
+            checkOpen();
+            List<TileSetQuota> matching = tileSetsOf(oldLayerName, null);
+            if (matching.isEmpty()) {
+                return;
+            }
+            int[] from = new int[matching.size()];
+            int[] to = new int[matching.size()];
+            for (int i = 0; i < from.length; i++) {
+                TileSet old = matching.get(i).tileSet;
+                TileSet renamed = new TileSet(newLayerName, old.getGridsetId(),
+                        old.getBlobFormat(), old.getParametersId());
+                from[i] = matching.get(i).index;
+                to[i] = getOrCreateTileSet(renamed).index;
+            }
+            try {
+                DataOutputStream out = beginRecord(TILE_SETS_MOVED);
+                writeInts(out, from);
+                writeInts(out, to);
+                endRecord();
+            } catch (IOException e) {
+                logFailed(e);
+            }
+            tileSetsMoved(from, to);
+        }
+    }
+
+    private void tileSetsMoved(final int[] from, final int[] to) {
+        TileSetQuota[] byIndex = tileSetsByIndex.clone();
+        boolean[] moved = new boolean[byIndex.length];
+        int[] targets = new int[byIndex.length];
+        for (int i = 0; i < from.length; i++) {
+            TileSetQuota source = from[i] < byIndex.length ? byIndex[from[i]] : null;
+            TileSetQuota target = to[i] < byIndex.length ? byIndex[to[i]] : null;
+            if (source == null || target == null) {
+                continue;
+            }
+            moved[source.index] = true;
+            targets[source.index] = target.index;
+            target.bytes.addAndGet(source.bytes.get());
+            byIndex[source.index] = null;
+            tileSets.remove(source.tileSet.getId());
+        }
+        tileSetsByIndex = byIndex;
+        pages.removeTileSets(moved, targets);
+        dirty = true;
+    }
+
+    /**
+     * @see org.geowebcache.diskquota.QuotaStore#getTilesForPage(org.geowebcache.diskquota.storage.TilePage)
+     */
+    public long[][] getTilesForPage(TilePage page) throws InterruptedException {
+        TileSet tileSet = getTileSetById(page.getTileSetId());
+        long[][] gridCoverage = tilePageCalculator.toGridCoverage(tileSet, page);
+        return gridCoverage;
+    }
+
+    /**
+     * @see org.geowebcache.diskquota.QuotaStore#getTileSets()
+     */
+    public Set<TileSet> getTileSets() {
+        Set<TileSet> result = new HashSet<TileSet>();
+        for (TileSetQuota tileSet : tileSets.values()) {
+            result.add(tileSet.tileSet);
+        }
+        return result;
+    }
+
+    /**
+     * @see org.geowebcache.diskquota.QuotaStore#getTileSetById(java.lang.String)
+     */
+    public TileSet getTileSetById(final String tileSetId) throws InterruptedException {
+        TileSetQuota tileSet = tileSets.get(tileSetId);
+        if (tileSet == null) {
+            throw new IllegalArgumentException("TileSet does not exist: " + tileSetId);
+        }
+        return tileSet.tileSet;
+    }
+
+    /**
+     * @see org.geowebcache.diskquota.QuotaStore#accept(org.geowebcache.diskquota.storage.TileSetVisitor)
+     */
+    public void accept(TileSetVisitor visitor) {
+        for (TileSetQuota tileSet : tileSets.values()) {
+            visitor.visit(tileSet.tileSet, this);
+        }
+    }
+
+    /**
+     * @see org.geowebcache.diskquota.QuotaStore#getTilePageCalculator()
+     */
+    public TilePageCalculator getTilePageCalculator() {
+        return tilePageCalculator;
+    }
+
+    /**
+     * @see org.geowebcache.diskquota.QuotaStore#addToQuotaAndTileCounts(org.geowebcache.diskquota.storage.TileSet,
+     *      org.geowebcache.diskquota.storage.Quota, java.util.Collection)
+     */
+    public void addToQuotaAndTileCounts(final TileSet tileSet, final Quota quotaDiff,
+            final Collection<PageStatsPayload> tileCountDiffs) throws InterruptedException {
+        final int now = SystemUtils.get().currentTimeMinutes();
+        final long[] tilesPerPageByLevel = new long[TilePageKey.MAX_ZOOM_LEVEL + 1];
+        synchronized (mutationLock) {
+            checkOpen();
+            final TileSetQuota stored = getOrCreateTileSet(tileSet);
+            final long bytes = quotaDiff.getBytes().longValue();
+
+            final int size = tileCountDiffs.size();
+            final long[] pageIds = new long[size];
+            final int[] tiles = new int[size];
+            final long[] tilesPerPage = new long[size];
+            int count = 0;
+            for (PageStatsPayload payload : tileCountDiffs) {
+                TilePage page = payload.getPage();
+                final int level = page.getZoomLevel();
+                try {
+                    pageIds[count] = TilePageKey.pack(stored.index, page.getPageX(),
+                            page.getPageY(), level);
+                } catch (IllegalArgumentException e) {
+                    log.debug(e.getMessage());
+                    continue;
+                }
+                if (tilesPerPageByLevel[level] == 0) {
+                    tilesPerPageByLevel[level] = tilePageCalculator.getTilesPerPage(tileSet,
+                            level).longValue();
+                }
+                tiles[count] = payload.getNumTiles();
+                tilesPerPage[count] = tilesPerPageByLevel[level];
+                count++;
+            }
+
+            try {
+                DataOutputStream out = beginRecord(QUOTA_AND_TILES_ADDED);
+                out.writeInt(stored.index);
+                out.writeLong(bytes);
+                out.writeInt(now);
+                out.writeInt(count);
+                for (int i = 0; i < count; i++) {
+                    out.writeLong(pageIds[i]);
+                    out.writeInt(tiles[i]);
+                    out.writeLong(tilesPerPage[i]);
+                }
+                endRecord();
+            } catch (IOException e) {
+                logFailed(e);
+            }
+            quotaAndTilesAdded(stored, bytes, now, pageIds, tiles, tilesPerPage, count);
+        }
+    }
+
+    private void quotaAndTilesAdded(TileSetQuota tileSet, long bytes, int now, long[] pageIds,
+            int[] tiles, long[] tilesPerPage, int count) {
+        tileSet.bytes.addAndGet(bytes);
+        globalBytes.addAndGet(bytes);
+        for (int i = 0; i < count; i++) {
+            pages.addTiles(pageIds[i], tiles[i], tilesPerPage[i], now);
+        }
+        dirty = true;
+    }
+
+    /**
+     * Adds the hits right away, the returned future is already done
+     *
+     * @see org.geowebcache.diskquota.QuotaStore#addHitsAndSetAccesTime(java.util.Collection)
+     */
+    public Future<List<PageStats>> addHitsAndSetAccesTime(
+            final Collection<PageStatsPayload> statsUpdates) {
+        Assert.notNull(statsUpdates);
+        checkOpen();
+
+        final int now = SystemUtils.get().currentTimeMinutes();
+        final List<PageStats> allStats = new ArrayList<PageStats>(statsUpdates.size());
+        for (PageStatsPayload payload : statsUpdates) {
+            TilePage page = payload.getPage();
+            TileSetQuota tileSet = tileSets.get(page.getTileSetId());
+            if (tileSet == null) {
+                log.info("Can't add usage stats. TileSet does not exist. Was it deleted? "
+                        + page.getTileSetId());
+                continue;
+            }
+            final long pageId;
+            try {
+                pageId = TilePageKey.pack(tileSet.index, page.getPageX(), page.getPageY(),
+                        page.getZoomLevel());
+            } catch (IllegalArgumentException e) {
+                log.debug(e.getMessage());
+                continue;
+            }
+            final int lastAccessTimeMinutes = (int) (payload.getLastAccessTime() / 1000 / 60);
+            pages.addHits(pageId, payload.getNumHits(), lastAccessTimeMinutes, now);
+            allStats.add(pages.get(pageId));
+        }
+        dirty = true;
+
+        FutureTask<List<PageStats>> result = new FutureTask<List<PageStats>>(
+                new Callable<List<PageStats>>() {
+                    public List<PageStats> call() throws Exception {
+                        return allStats;
+                    }
+                });
+        result.run();
+        return result;
+    }
+
+    /**
+     * @see org.geowebcache.diskquota.UsageStatsRecorder#addHit
+     */
+    public void addHit(String layerName, String gridSetId, String blobFormat,
+            String parametersId, long[] tileIndex) {
+        if (!open) {
+            return;
+        }
+        final StringBuilder id = tileSetIdBuilder.get();
+        id.setLength(0);
+        TileSet.computeId(layerName, gridSetId, blobFormat, parametersId, id);
+        final TileSetQuota tileSet = tileSets.get(id.toString());
+        if (tileSet == null) {
+            return;
+        }
+        final int[] index = pageIndex.get();
+        final long pageId;
+        try {
+            tilePageCalculator.pageIndexForTile(tileSet.tileSet, tileIndex, index);
+            pageId = TilePageKey.pack(tileSet.index, index[0], index[1], index[2]);
+        } catch (IllegalArgumentException e) {
+            log.debug("Ignoring hit on " + tileSet.tileSet + ": " + e.getMessage());
+            return;
+        }
+        final int now = SystemUtils.get().currentTimeMinutes();
+        pages.addHits(pageId, 1, now, now);
+        if (!dirty) {
+            dirty = true;
+        }
+    }
+
+    /**
+     * @see org.geowebcache.diskquota.QuotaStore#getLeastFrequentlyUsedPage(java.util.Set)
+     */
+    public TilePage getLeastFrequentlyUsedPage(final Set<String> layerNames)
+            throws InterruptedException {
+        return first(getLeastFrequentlyUsedPages(layerNames, 1));
+    }
+
+    /**
+     * @see org.geowebcache.diskquota.QuotaStore#getLeastRecentlyUsedPage(java.util.Set)
+     */
+    public TilePage getLeastRecentlyUsedPage(final Set<String> layerNames)
+            throws InterruptedException {
+        return first(getLeastRecentlyUsedPages(layerNames, 1));
+    }
+
+    /**
+     * @see org.geowebcache.diskquota.QuotaStore#getLeastFrequentlyUsedPages(java.util.Set, int)
+     */
+    public List<TilePage> getLeastFrequentlyUsedPages(final Set<String> layerNames,
+            final int maxPages) throws InterruptedException {
+        return findPagesToExpire(layerNames, maxPages, true);
+    }
+
+    /**
+     * @see org.geowebcache.diskquota.QuotaStore#getLeastRecentlyUsedPages(java.util.Set, int)
+     */
+    public List<TilePage> getLeastRecentlyUsedPages(final Set<String> layerNames,
+            final int maxPages) throws InterruptedException {
+        return findPagesToExpire(layerNames, maxPages, false);
+    }
+
+    private static TilePage first(List<TilePage> pages) {
+        return pages.isEmpty() ? null : pages.get(0);
+    }
+
+    /**
+     * Scans all the pages once, keeping the {@code maxPages} non empty pages of the requested
+     * layers with the lowest frequency of use or last access time
+     */
+    private List<TilePage> findPagesToExpire(final Set<String> layerNames, final int maxPages,
+            final boolean leastFrequentlyUsed) {
+        final TileSetQuota[] byIndex = tileSetsByIndex;
+        final boolean[] requested = new boolean[byIndex.length];
+        boolean any = false;
+        for (TileSetQuota tileSet : byIndex) {
+            if (tileSet != null && layerNames.contains(tileSet.tileSet.getLayerName())) {
+                requested[tileSet.index] = true;
+                any = true;
+            }
+        }
+        List<TilePage> nextToExpire = new ArrayList<TilePage>();
+        final int capacity = Math.min(maxPages, pages.size());
+        if (!any || capacity <= 0) {
+            return nextToExpire;
+        }
+
+        PageSelector selector = new PageSelector(requested, capacity, leastFrequentlyUsed);
+        pages.accept(selector);
+        selector.sort();
+        for (int i = 0; i < selector.size; i++) {
+            final long pageId = selector.pageIds[i];
+            TileSetQuota tileSet = byIndex[TilePageKey.tileSetIndex(pageId)];
+            nextToExpire.add(new TilePage(tileSet.tileSet.getId(), TilePageKey.pageX(pageId),
+                    TilePageKey.pageY(pageId), TilePageKey.zoomLevel(pageId),
+                    selector.creationMinutes[i]));
+        }
+        return nextToExpire;
+    }
+
+    /**
+     * @see org.geowebcache.diskquota.QuotaStore#setTruncated(org.geowebcache.diskquota.storage.TilePage)
+     */
+    public PageStats setTruncated(final TilePage tilePage) throws InterruptedException {
+        TileSetQuota tileSet = tileSets.get(tilePage.getTileSetId());
+        if (tileSet == null) {
+            return null;
+        }
+        final long pageId;
+        try {
+            pageId = TilePageKey.pack(tileSet.index, tilePage.getPageX(),
+                    tilePage.getPageY(), tilePage.getZoomLevel());
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        synchronized (mutationLock) {
+            checkOpen();
+            try {
+                DataOutputStream out = beginRecord(PAGE_TRUNCATED);
+                out.writeLong(pageId);
+                endRecord();
+            } catch (IOException e) {
+                logFailed(e);
+            }
+            dirty = true;
+            return pages.setTruncated(pageId);
+        }
+    }
+
+    private DataOutputStream beginRecord(byte type) throws IOException {
+        record.reset();
+        recordOut.writeByte(type);
+        return recordOut;
+    }
+
+    private void endRecord() throws IOException {
+        recordOut.flush();
+        changeLog.append(record.bytes(), record.size());
+    }
+
+    private void logFailed(IOException e) {
+        log.error("Unable to log a disk quota change, it will be lost if GeoWebCache stops "
+                + "before the next snapshot: " + e.getMessage());
+    }
+
+    private static void writeInts(DataOutputStream out, int[] values) throws IOException {
+        out.writeInt(values.length);
+        for (int value : values) {
+            out.writeInt(value);
+        }
+    }
+
+    private static int[] readInts(DataInputStream in) throws IOException {
+        int[] values = new int[in.readInt()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = in.readInt();
+        }
+        return values;
+    }
+
+    /**
+     * Applies the changes read from the log, in the same way they were applied when logged
+     */
+    private class ChangeReplayer implements WriteAheadLog.RecordHandler {
+
+        public void apply(DataInputStream in) throws IOException {
+            final byte type = in.readByte();
+            switch (type) {
+            case TILE_SET_CREATED: {
+                int index = in.readInt();
+                TileSet tileSet = readTileSet(in);
+                if (!tileSets.containsKey(tileSet.getId())) {
+                    tileSetCreated(index, tileSet);
+                }
+                break;
+            }
+            case QUOTA_AND_TILES_ADDED: {
+                int index = in.readInt();
+                long bytes = in.readLong();
+                int now = in.readInt();
+                int count = in.readInt();
+                long[] pageIds = new long[count];
+                int[] tiles = new int[count];
+                long[] tilesPerPage = new long[count];
+                for (int i = 0; i < count; i++) {
+                    pageIds[i] = in.readLong();
+                    tiles[i] = in.readInt();
+                    tilesPerPage[i] = in.readLong();
+                }
+                TileSetQuota[] byIndex = tileSetsByIndex;
+                if (index < byIndex.length && byIndex[index] != null) {
+                    quotaAndTilesAdded(byIndex[index], bytes, now, pageIds, tiles, tilesPerPage,
+                            count);
+                }
+                break;
+            }
+            case PAGE_TRUNCATED:
+                pages.setTruncated(in.readLong());
+                break;
+            case TILE_SETS_DELETED:
+                tileSetsDeleted(readInts(in));
+                break;
+            case TILE_SETS_MOVED:
+                int[] from = readInts(in);
+                int[] to = readInts(in);
+                tileSetsMoved(from, to);
+                break;
+            default:
+                throw new IOException("Unknown disk quota change type " + type);
+            }
+        }
+    }
+
+    /**
+     * Saves the state to a temporary file then renames it over the previous snapshot, and
+     * deletes the logs the new snapshot makes useless.
+     *
+     * @param force
+     *            whether to save even if nothing changed since the last snapshot
+     */
+    synchronized void snapshot(boolean force) throws IOException {
+        if (!force && !dirty) {
+            return;
+        }
+        final long sequence;
+        final int nextIndex;
+        final List<TileSetQuota> tileSetList;
+        final long[] tileSetBytes;
+        final PageCopy pageCopy;
+        synchronized (mutationLock) {
+            dirty = false;
+            sequence = changeLog.roll();
+            nextIndex = nextTileSetIndex;
+            tileSetList = new ArrayList<TileSetQuota>(tileSets.values());
+            tileSetBytes = new long[tileSetList.size()];
+            for (int i = 0; i < tileSetBytes.length; i++) {
+                tileSetBytes[i] = tileSetList.get(i).bytes.get();
+            }
+            pageCopy = new PageCopy(pages.size());
+            pages.accept(pageCopy);
+        }
+
+        final File tmp = new File(storeDirectory, SNAPSHOT_TMP_FILE);
+        final CRC32 checksum = new CRC32();
+        final FileOutputStream fileOut = new FileOutputStream(tmp);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new CheckedOutputStream(fileOut, checksum), 64 * 1024));
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeLong(sequence);
+            out.writeInt(nextIndex);
+            out.writeInt(tileSetList.size());
+            for (int i = 0; i < tileSetBytes.length; i++) {
+                TileSetQuota tileSet = tileSetList.get(i);
+                out.writeInt(tileSet.index);
+                writeTileSet(out, tileSet.tileSet);
+                out.writeLong(tileSetBytes[i]);
+            }
+            out.writeInt(pageCopy.size);
+            for (int i = 0; i < pageCopy.size; i++) {
+                out.writeLong(pageCopy.pageIds[i]);
+                out.writeFloat(pageCopy.fillFactors[i]);
+                out.writeLong(pageCopy.hits[i]);
+                out.writeInt(pageCopy.lastAccess[i]);
+                out.writeInt(pageCopy.created[i]);
+            }
+            out.flush();
+            new DataOutputStream(fileOut).writeLong(checksum.getValue());
+            fileOut.getFD().sync();
+        } finally {
+            fileOut.close();
+        }
+
+        final File snapshot = new File(storeDirectory, SNAPSHOT_FILE);
+        if (!tmp.renameTo(snapshot)) {
+            // can't rename over an existing file on some platforms
+            snapshot.delete();
+            if (!tmp.renameTo(snapshot)) {
+                throw new IOException("Unable to rename " + tmp.getAbsolutePath() + " to "
+                        + snapshot.getName());
+            }
+        }
+        changeLog.deleteBefore(sequence);
+        log.debug("Saved disk quota snapshot with " + tileSetList.size() + " tile sets and "
+                + pageCopy.size + " pages");
+    }
+
+    /**
+     * Loads the last snapshot, if any
+     *
+     * @return the sequence number of the first log to replay, {@code 0} if there is no snapshot,
+     *         or {@code -1} if it is damaged or missing, in which case the store is left empty
+     */
+    private long loadSnapshot() {
+        File snapshot = new File(storeDirectory, SNAPSHOT_FILE);
+        if (!snapshot.exists()) {
+            File tmp = new File(storeDirectory, SNAPSHOT_TMP_FILE);
+            if (tmp.exists()) {
+                // stopped while replacing the snapshot, the new one was complete
+                snapshot = tmp;
+            } else {
+                for (File file : changeLog.files()) {
+                    if (WriteAheadLog.sequence(file) > 0) {
+                        log.warn("The disk quota snapshot is missing, the disk usage of the "
+                                + "layers will be computed again");
+                        return -1;
+                    }
+                }
+                return 0;
+            }
+        }
+        try {
+            final CRC32 checksum = new CRC32();
+            final BufferedInputStream buffered = new BufferedInputStream(new FileInputStream(
+                    snapshot), 64 * 1024);
+            try {
+                DataInputStream in = new DataInputStream(new CheckedInputStream(buffered,
+                        checksum));
+                if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION) {
+                    throw new IOException("Unknown snapshot format");
+                }
+                final long sequence = in.readLong();
+                final int nextIndex = in.readInt();
+                final int tileSetCount = in.readInt();
+                for (int i = 0; i < tileSetCount; i++) {
+                    int index = in.readInt();
+                    TileSetQuota tileSet = tileSetCreated(index, readTileSet(in));
+                    long bytes = in.readLong();
+                    tileSet.bytes.set(bytes);
+                    globalBytes.addAndGet(bytes);
+                }
+                nextTileSetIndex = Math.max(nextTileSetIndex, nextIndex);
+                final int pageCount = in.readInt();
+                for (int i = 0; i < pageCount; i++) {
+                    long pageId = in.readLong();
+                    float fillFactor = in.readFloat();
+                    long hits = in.readLong();
+                    int lastAccess = in.readInt();
+                    int created = in.readInt();
+                    pages.put(pageId, fillFactor, hits, lastAccess, created);
+                }
+                if (new DataInputStream(buffered).readLong() != checksum.getValue()) {
+                    throw new IOException("Checksum mismatch");
+                }
+                return sequence;
+            } finally {
+                buffered.close();
+            }
+        } catch (Exception e) {
+            log.warn("The disk quota snapshot " + snapshot.getAbsolutePath()
+                    + " is damaged, the disk usage of the layers will be computed again: "
+                    + e.getMessage());
+            tileSets.clear();
+            tileSetsByIndex = new TileSetQuota[16];
+            nextTileSetIndex = 1;
+            globalBytes.set(0);
+            pages = new PageStatsTable();
+            return -1;
+        }
+    }
+
+    private static final class TileSetQuota {
+
+        final int index;
+
+        final TileSet tileSet;
+
+        final AtomicLong bytes = new AtomicLong();
+
+        TileSetQuota(int index, TileSet tileSet) {
+            this.index = index;
+            this.tileSet = tileSet;
+        }
+    }
+
+    /**
+     * Exposes the buffer of a {@link ByteArrayOutputStream} to avoid copying each record
+     */
+    private static final class RecordBuffer extends ByteArrayOutputStream {
+        byte[] bytes() {
+            return buf;
+        }
+    }
+
+    /**
+     * Copies the pages to plain arrays for the snapshot
+     */
+    private static final class PageCopy implements PageStatsTable.PageVisitor {
+
+        long[] pageIds;
+
+        float[] fillFactors;
+
+        long[] hits;
+
+        int[] lastAccess;
+
+        int[] created;
+
+        int size;
+
+        PageCopy(int capacity) {
+            allocate(Math.max(16, capacity));
+        }
+
+        private void allocate(int capacity) {
+            long[] oldIds = pageIds;
+            float[] oldFillFactors = fillFactors;
+            long[] oldHits = hits;
+            int[] oldLastAccess = lastAccess;
+            int[] oldCreated = created;
+            pageIds = new long[capacity];
+            fillFactors = new float[capacity];
+            hits = new long[capacity];
+            lastAccess = new int[capacity];
+            created = new int[capacity];
+            if (oldIds != null) {
+                System.arraycopy(oldIds, 0, pageIds, 0, size);
+                System.arraycopy(oldFillFactors, 0, fillFactors, 0, size);
+                System.arraycopy(oldHits, 0, hits, 0, size);
+                System.arraycopy(oldLastAccess, 0, lastAccess, 0, size);
+                System.arraycopy(oldCreated, 0, created, 0, size);
+            }
+        }
+
+        public void visit(long pageId, float fillFactor, long numHits, int lastAccessMinutes,
+                int creationMinutes) {
+            if (size == pageIds.length) {
+                // hits may have created pages since the table was sized
+                allocate(2 * size);
+            }
+            pageIds[size] = pageId;
+            fillFactors[size] = fillFactor;
+            hits[size] = numHits;
+            lastAccess[size] = lastAccessMinutes;
+            created[size] = creationMinutes;
+            size++;
+        }
+    }
+
+    /**
+     * Keeps the pages with the lowest scores in a bounded max heap
+     */
+    private static final class PageSelector implements PageStatsTable.PageVisitor {
+
+        private final boolean[] requested;
+
+        private final boolean leastFrequentlyUsed;
+
+        final long[] pageIds;
+
+        final int[] creationMinutes;
+
+        private final float[] scores;
+
+        int size;
+
+        PageSelector(boolean[] requested, int maxPages, boolean leastFrequentlyUsed) {
+            this.requested = requested;
+            this.leastFrequentlyUsed = leastFrequentlyUsed;
+            this.pageIds = new long[maxPages];
+            this.creationMinutes = new int[maxPages];
+            this.scores = new float[maxPages];
+        }
+
+        public void visit(long pageId, float fillFactor, long numHits, int lastAccessMinutes,
+                int creationMinutes) {
+            if (fillFactor <= 0f) {
+                return;
+            }
+            final int index = TilePageKey.tileSetIndex(pageId);
+            if (index >= requested.length || !requested[index]) {
+                return;
+            }
+            final float score = leastFrequentlyUsed ? PageStatsTable.frequencyOfUse(numHits,
+                    lastAccessMinutes, creationMinutes, fillFactor) : lastAccessMinutes;
+            if (size < pageIds.length) {
+                set(size, pageId, creationMinutes, score);
+                siftUp(size++);
+            } else if (score < scores[0]) {
+                set(0, pageId, creationMinutes, score);
+                siftDown(0, size);
+            }
+        }
+
+        /**
+         * Sorts the kept pages by increasing score, destroying the heap
+         */
+        void sort() {
+            for (int end = size - 1; end > 0; end--) {
+                swap(0, end);
+                siftDown(0, end);
+            }
+        }
+
+        private void set(int i, long pageId, int created, float score) {
+            pageIds[i] = pageId;
+            creationMinutes[i] = created;
+            scores[i] = score;
+        }
+
+        private void siftUp(int i) {
+            while (i > 0) {
+                int parent = (i - 1) / 2;
+                if (scores[parent] >= scores[i]) {
+                    return;
+                }
+                swap(i, parent);
+                i = parent;
+            }
+        }
+
+        private void siftDown(int i, int end) {
+            while (true) {
+                int largest = i;
+                int left = 2 * i + 1;
+                int right = left + 1;
+                if (left < end && scores[left] > scores[largest]) {
+                    largest = left;
+                }
+                if (right < end && scores[right] > scores[largest]) {
+                    largest = right;
+                }
+                if (largest == i) {
+                    return;
+                }
+                swap(i, largest);
+                i = largest;
+            }
+        }
+
+        private void swap(int i, int j) {
+            long pageId = pageIds[i];
+            pageIds[i] = pageIds[j];
+            pageIds[j] = pageId;
+            int created = creationMinutes[i];
+            creationMinutes[i] = creationMinutes[j];
+            creationMinutes[j] = created;
+            float score = scores[i];
+            scores[i] = scores[j];
+            scores[j] = score;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.diskquota.memory;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geowebcache.config.ConfigurationException;
+import org.geowebcache.diskquota.QuotaStore;
+import org.geowebcache.diskquota.QuotaStoreFactory;
+import org.geowebcache.diskquota.storage.TilePageCalculator;
+import org.geowebcache.storage.DefaultStorageFinder;
+import org.springframework.context.ApplicationContext;
+
+/**
+ * Builds the {@link MemoryQuotaStore}. The time between two snapshots can be set, in seconds,
+ * with the {@link #GWC_DISKQUOTA_SNAPSHOT_INTERVAL} environment variable.
+ */
+public class MemoryQuotaStoreFactory implements QuotaStoreFactory {
+
+    private static final Log log = LogFactory.getLog(MemoryQuotaStoreFactory.class);
+
+    public static final String STORE_NAME = "MEMORY";
+
+    public static final String GWC_DISKQUOTA_SNAPSHOT_INTERVAL = "GWC_DISKQUOTA_SNAPSHOT_INTERVAL";
+
+    public List<String> getSupportedStoreNames() {
+        return Arrays.asList(STORE_NAME);
+    }
+
+    public QuotaStore getQuotaStore(ApplicationContext ctx, String quotaStoreName)
+            throws IOException, ConfigurationException {
+        if (!STORE_NAME.equals(quotaStoreName)) {
+            return null;
+        }
+
+        DefaultStorageFinder cacheDirFinder = (DefaultStorageFinder) ctx
+                .getBean("gwcDefaultStorageFinder");
+        TilePageCalculator tilePageCalculator = (TilePageCalculator) ctx
+                .getBean("gwcTilePageCalculator");
+        MemoryQuotaStore store = new MemoryQuotaStore(cacheDirFinder, tilePageCalculator);
+
+        String interval = cacheDirFinder.findEnvVar(GWC_DISKQUOTA_SNAPSHOT_INTERVAL);
+        if (interval != null) {
+            try {
+                store.setSnapshotInterval(Integer.parseInt(interval.trim()));
+            } catch (IllegalArgumentException e) {
+                log.warn("Ignoring invalid " + GWC_DISKQUOTA_SNAPSHOT_INTERVAL + " value '"
+                        + interval + "', using " + store.getSnapshotInterval() + " seconds");
+            }
+        }
+
+        try {
+            store.startUp();
+            return store;
+        } catch (InterruptedException e) {
+            throw new IOException("Failed to startup the in memory quota store", e);
+        }
+    }
+}
@@ -0,0 +1,332 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.diskquota.memory;
+
+import java.math.BigInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.geowebcache.diskquota.storage.PageStats;
+import org.geowebcache.diskquota.storage.TilePageKey;
+
+/**
+ * The statistics of the tile pages of a {@link MemoryQuotaStore}, keyed by packed page id.
+ * <p>
+ * Pages are spread over a fixed number of stripes, each one an open addressing hash table made
+ * of parallel primitive arrays and guarded by its own lock, so that threads recording hits on
+ * different pages seldom wait for each other. The page id is a {@link TilePageKey} whose tile set
+ * index is never zero, so zero marks the empty slots.
+ * </p>
+ */
+class PageStatsTable {
+
+    private static final int STRIPES = 64;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final Stripe[] stripes;
+
+    PageStatsTable() {
+        stripes = new Stripe[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe(INITIAL_CAPACITY);
+        }
+    }
+
+    /**
+     * Same formula as {@link PageStats#addHitsAndAccessTime}
+     */
+    static float frequencyOfUse(long numHits, int lastAccessMinutes, int creationMinutes,
+            float fillFactor) {
+        int age = 1 + Math.max(lastAccessMinutes, creationMinutes) - creationMinutes;
+        return (float) ((double) numHits / age * fillFactor);
+    }
+
+    private Stripe stripe(long pageId) {
+        long h = pageId * 0x9E3779B97F4A7C15L;
+        return stripes[(int) (h >>> 58)];
+    }
+
+    /**
+     * Adds hits to a page, creating it if need be, the same way than
+     * {@link PageStats#addHitsAndAccessTime}
+     *
+     * @param nowMinutes
+     *            the creation time of the page, if it does not exist
+     */
+    void addHits(long pageId, long hits, int lastAccessMinutes, int nowMinutes) {
+        final Stripe s = stripe(pageId);
+        s.lock();
+        try {
+            int slot = s.slotFor(pageId, nowMinutes);
+            if (s.fillFactors[slot] <= 0f) {
+                s.fillFactors[slot] = Float.MIN_VALUE;
+            }
+            s.hits[slot] += hits;
+            s.lastAccess[slot] = Math.max(lastAccessMinutes, s.created[slot]);
+        } finally {
+            s.unlock();
+        }
+    }
+
+    /**
+     * Adds tiles to the fill factor of a page, creating it if need be, the same way than
+     * {@link PageStats#addTiles}
+     */
+    void addTiles(long pageId, long tiles, long tilesPerPage, int nowMinutes) {
+        final Stripe s = stripe(pageId);
+        s.lock();
+        try {
+            int slot = s.slotFor(pageId, nowMinutes);
+            float fillFactor = (float) (s.fillFactors[slot] + (double) tiles / tilesPerPage);
+            s.fillFactors[slot] = Math.max(0f, Math.min(1f, fillFactor));
+        } finally {
+            s.unlock();
+        }
+    }
+
+    /**
+     * @return the page stats after setting its fill factor to zero, or {@code null} if the page
+     *         does not exist
+     */
+    PageStats setTruncated(long pageId) {
+        final Stripe s = stripe(pageId);
+        s.lock();
+        try {
+            int slot = s.find(pageId);
+            if (slot < 0) {
+                return null;
+            }
+            s.fillFactors[slot] = 0f;
+            return s.toPageStats(slot);
+        } finally {
+            s.unlock();
+        }
+    }
+
+    /**
+     * @return a copy of the page stats, or {@code null} if the page does not exist
+     */
+    PageStats get(long pageId) {
+        final Stripe s = stripe(pageId);
+        s.lock();
+        try {
+            int slot = s.find(pageId);
+            return slot < 0 ? null : s.toPageStats(slot);
+        } finally {
+            s.unlock();
+        }
+    }
+
+    /**
+     * Sets all the values of a page, used when loading a snapshot
+     */
+    void put(long pageId, float fillFactor, long hits, int lastAccessMinutes,
+            int creationMinutes) {
+        final Stripe s = stripe(pageId);
+        s.lock();
+        try {
+            int slot = s.slotFor(pageId, creationMinutes);
+            s.fillFactors[slot] = fillFactor;
+            s.hits[slot] = hits;
+            s.lastAccess[slot] = lastAccessMinutes;
+        } finally {
+            s.unlock();
+        }
+    }
+
+    /**
+     * Removes the pages of the tile sets whose index is flagged in {@code tileSetIndexes}, and
+     * moves them to {@code targetIndexes[index]} instead if that is greater than zero
+     */
+    void removeTileSets(boolean[] tileSetIndexes, final int[] targetIndexes) {
+        final PageStatsTable moved = targetIndexes == null ? null : new PageStatsTable();
+        for (Stripe s : stripes) {
+            s.lock();
+            try {
+                s.rebuild(tileSetIndexes, s.keys.length, moved);
+            } finally {
+                s.unlock();
+            }
+        }
+        if (moved == null) {
+            return;
+        }
+        // the new ids hash to other stripes, put them back holding one lock at a time
+        moved.accept(new PageVisitor() {
+            public void visit(long pageId, float fillFactor, long numHits,
+                    int lastAccessMinutes, int creationMinutes) {
+                int index = targetIndexes[TilePageKey.tileSetIndex(pageId)];
+                if (index > 0) {
+                    long newId = TilePageKey.withTileSetIndex(pageId, index);
+                    put(newId, fillFactor, numHits, lastAccessMinutes, creationMinutes);
+                }
+            }
+        });
+    }
+
+    int size() {
+        int size = 0;
+        for (Stripe s : stripes) {
+            s.lock();
+            try {
+                size += s.size;
+            } finally {
+                s.unlock();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Hands every page to the visitor, holding the lock of one stripe at a time
+     */
+    void accept(PageVisitor visitor) {
+        for (Stripe s : stripes) {
+            s.lock();
+            try {
+                final long[] keys = s.keys;
+                for (int i = 0; i < keys.length; i++) {
+                    if (keys[i] != 0) {
+                        visitor.visit(keys[i], s.fillFactors[i], s.hits[i], s.lastAccess[i],
+                                s.created[i]);
+                    }
+                }
+            } finally {
+                s.unlock();
+            }
+        }
+    }
+
+    interface PageVisitor {
+        void visit(long pageId, float fillFactor, long numHits, int lastAccessMinutes,
+                int creationMinutes);
+    }
+
+    private static final class Stripe extends ReentrantLock {
+
+        private static final long serialVersionUID = 1L;
+
+        long[] keys;
+
+        float[] fillFactors;
+
+        long[] hits;
+
+        int[] lastAccess;
+
+        int[] created;
+
+        int size;
+
+        Stripe(int capacity) {
+            allocate(capacity);
+        }
+
+        private void allocate(int capacity) {
+            keys = new long[capacity];
+            fillFactors = new float[capacity];
+            hits = new long[capacity];
+            lastAccess = new int[capacity];
+            created = new int[capacity];
+            size = 0;
+        }
+
+        private int home(long key) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 29)) & (keys.length - 1);
+        }
+
+        int find(long key) {
+            final int mask = keys.length - 1;
+            for (int i = home(key);; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    return i;
+                }
+                if (keys[i] == 0) {
+                    return -1;
+                }
+            }
+        }
+
+        int slotFor(long key, int nowMinutes) {
+            int slot = find(key);
+            if (slot >= 0) {
+                return slot;
+            }
+            if (4 * (size + 1) > 3 * keys.length) {
+                rebuild(null, 2 * keys.length, null);
+            }
+            slot = insert(key);
+            lastAccess[slot] = nowMinutes;
+            created[slot] = nowMinutes;
+            return slot;
+        }
+
+        private int insert(long key) {
+            final int mask = keys.length - 1;
+            int i = home(key);
+            while (keys[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = key;
+            size++;
+            return i;
+        }
+
+        /**
+         * Copies the pages to new arrays of the given capacity, leaving out the ones of the
+         * flagged tile sets, which are handed to {@code removed} if given
+         */
+        void rebuild(boolean[] tileSetIndexes, int capacity, PageStatsTable removed) {
+            final long[] oldKeys = keys;
+            final float[] oldFillFactors = fillFactors;
+            final long[] oldHits = hits;
+            final int[] oldLastAccess = lastAccess;
+            final int[] oldCreated = created;
+            allocate(capacity);
+            for (int i = 0; i < oldKeys.length; i++) {
+                final long key = oldKeys[i];
+                if (key == 0) {
+                    continue;
+                }
+                if (tileSetIndexes != null) {
+                    int index = TilePageKey.tileSetIndex(key);
+                    if (index < tileSetIndexes.length && tileSetIndexes[index]) {
+                        if (removed != null) {
+                            removed.put(key, oldFillFactors[i], oldHits[i], oldLastAccess[i],
+                                    oldCreated[i]);
+                        }
+                        continue;
+                    }
+                }
+                int slot = insert(key);
+                fillFactors[slot] = oldFillFactors[i];
+                hits[slot] = oldHits[i];
+                lastAccess[slot] = oldLastAccess[i];
+                created[slot] = oldCreated[i];
+            }
+        }
+
+        PageStats toPageStats(int slot) {
+            PageStats stats = new PageStats(keys[slot]);
+            stats.setFillFactor(fillFactors[slot]);
+            stats.setNumHits(BigInteger.valueOf(hits[slot]));
+            stats.setLastAccessMinutes(lastAccess[slot]);
+            stats.setFrequencyOfUsePerMinute(frequencyOfUse(hits[slot], lastAccess[slot],
+                    created[slot], fillFactors[slot]));
+            return stats;
+        }
+    }
+}
@@ -0,0 +1,224 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.diskquota.memory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Append only log of the changes of a {@link MemoryQuotaStore} since its last snapshot.
+ * <p>
+ * The log is split in files named after an increasing sequence number; a snapshot records the
+ * sequence of the first file written after it, so older files can be deleted once it is saved.
+ * Each record is written as its length, its bytes and their CRC32, and is flushed to the file
+ * right away. Reading stops at the first incomplete or damaged record, which can only be the
+ * last one of a file if the process died while writing it.
+ * </p>
+ */
+class WriteAheadLog {
+
+    private static final Log log = LogFactory.getLog(WriteAheadLog.class);
+
+    private static final String PREFIX = "changes-";
+
+    private static final String SUFFIX = ".log";
+
+    /**
+     * Upper bound of a record, anything bigger is taken as a damaged length
+     */
+    private static final int MAX_RECORD_LENGTH = 64 * 1024 * 1024;
+
+    private final File directory;
+
+    private final CRC32 crc = new CRC32();
+
+    private DataOutputStream out;
+
+    private FileOutputStream fileOut;
+
+    private long sequence;
+
+    WriteAheadLog(File directory) {
+        this.directory = directory;
+    }
+
+    interface RecordHandler {
+        void apply(DataInputStream record) throws IOException;
+    }
+
+    /**
+     * @return the log files of the directory, sorted by sequence number
+     */
+    List<File> files() {
+        List<File> files = new ArrayList<File>();
+        File[] list = directory.listFiles();
+        if (list != null) {
+            for (File file : list) {
+                if (sequence(file) >= 0) {
+                    files.add(file);
+                }
+            }
+        }
+        Collections.sort(files, new Comparator<File>() {
+            public int compare(File f1, File f2) {
+                long s1 = sequence(f1);
+                long s2 = sequence(f2);
+                return s1 < s2 ? -1 : (s1 == s2 ? 0 : 1);
+            }
+        });
+        return files;
+    }
+
+    /**
+     * @return the sequence number of a log file, or {@code -1} if it is not one
+     */
+    static long sequence(File file) {
+        String name = file.getName();
+        if (!name.startsWith(PREFIX) || !name.endsWith(SUFFIX)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(name.substring(PREFIX.length(), name.length()
+                    - SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Starts writing to a new file
+     */
+    synchronized void open(long sequence) throws IOException {
+        close();
+        this.sequence = sequence;
+        File file = new File(directory, PREFIX + sequence + SUFFIX);
+        fileOut = new FileOutputStream(file, true);
+        out = new DataOutputStream(new BufferedOutputStream(fileOut, 32 * 1024));
+    }
+
+    /**
+     * Closes the current file and starts the next one
+     *
+     * @return the sequence number of the new file
+     */
+    synchronized long roll() throws IOException {
+        open(sequence + 1);
+        return sequence;
+    }
+
+    synchronized void append(byte[] record, int length) throws IOException {
+        if (out == null) {
+            throw new IOException("The quota store log is closed");
+        }
+        crc.reset();
+        crc.update(record, 0, length);
+        out.writeInt(length);
+        out.write(record, 0, length);
+        out.writeInt((int) crc.getValue());
+        out.flush();
+    }
+
+    /**
+     * Forces the written records to the disk
+     */
+    synchronized void sync() throws IOException {
+        if (fileOut != null) {
+            out.flush();
+            fileOut.getFD().sync();
+        }
+    }
+
+    /**
+     * Deletes the files older than the given sequence number
+     */
+    void deleteBefore(long sequence) {
+        for (File file : files()) {
+            if (sequence(file) < sequence && !file.delete()) {
+                log.warn("Unable to delete disk quota log file " + file.getAbsolutePath());
+            }
+        }
+    }
+
+    synchronized void close() throws IOException {
+        if (out != null) {
+            try {
+                sync();
+                out.close();
+            } finally {
+                out = null;
+                fileOut = null;
+            }
+        }
+    }
+
+    /**
+     * Hands each complete record of the file to the handler
+     *
+     * @return the number of records read
+     */
+    static int replay(File file, RecordHandler handler) throws IOException {
+        final CRC32 checksum = new CRC32();
+        int count = 0;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(
+                file), 32 * 1024));
+        try {
+            byte[] buffer = new byte[1024];
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                    if (length < 0 || length > MAX_RECORD_LENGTH) {
+                        log.warn("Damaged record in " + file.getName() + ", ignoring the rest");
+                        break;
+                    }
+                    if (buffer.length < length) {
+                        buffer = new byte[length];
+                    }
+                    in.readFully(buffer, 0, length);
+                    checksum.reset();
+                    checksum.update(buffer, 0, length);
+                    if (in.readInt() != (int) checksum.getValue()) {
+                        log.warn("Damaged record in " + file.getName() + ", ignoring the rest");
+                        break;
+                    }
+                } catch (EOFException e) {
+                    // end of the file, or a record that could not be written completely
+                    break;
+                }
+                handler.apply(new DataInputStream(new ByteArrayInputStream(buffer, 0, length)));
+                count++;
+            }
+        } finally {
+            in.close();
+        }
+        return count;
+    }
+}
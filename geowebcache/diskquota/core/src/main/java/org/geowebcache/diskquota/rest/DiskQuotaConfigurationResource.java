@@ -123,6 +123,7 @@ public class DiskQuotaConfigurationResource extends Resource {
      *             as per {@link DiskQuotaConfig#setCacheCleanUpFrequency},
      *             {@link DiskQuotaConfig#setDiskBlockSize},
      *             {@link DiskQuotaConfig#setMaxConcurrentCleanUps} ,
+     *             {@link DiskQuotaConfig#setMaxConcurrentCacheScans} ,
      *             {@link DiskQuotaConfig#setCacheCleanUpUnits}
      */
     private void applyDiff(DiskQuotaConfig config, DiskQuotaConfig newConfig)
@@ -141,6 +142,9 @@ public class DiskQuotaConfigurationResource extends Resource {
             if (null != newConfig.getMaxConcurrentCleanUps()) {
                 config.setMaxConcurrentCleanUps(newConfig.getMaxConcurrentCleanUps());
             }
+            if (null != newConfig.getMaxConcurrentCacheScans()) {
+                config.setMaxConcurrentCacheScans(newConfig.getMaxConcurrentCacheScans());
+            }
             if (null != newConfig.getCacheCleanUpUnits()) {
                 config.setCacheCleanUpUnits(newConfig.getCacheCleanUpUnits());
             }
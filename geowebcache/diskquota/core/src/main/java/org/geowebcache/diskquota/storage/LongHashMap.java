@@ -0,0 +1,154 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.diskquota.storage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.springframework.util.Assert;
+
+/**
+ * A hash map keyed by primitive {@code long}s, such as {@link TilePageKey page keys}, that does
+ * not box its keys nor allocate an entry per mapping.
+ * <p>
+ * It's an open addressing table with linear probing; {@code null} values are not allowed, and a
+ * {@code null} value marks an empty slot, so any {@code long} can be used as a key. Not thread
+ * safe.
+ * </p>
+ */
+public class LongHashMap<V> {
+
+    private long[] keys;
+
+    private Object[] values;
+
+    private int size;
+
+    public LongHashMap() {
+        this(16);
+    }
+
+    /**
+     * @param expectedSize
+     *            the number of mappings the map can hold without growing
+     */
+    public LongHashMap(final int expectedSize) {
+        int capacity = 16;
+        while (3 * capacity < 4 * expectedSize) {
+            capacity *= 2;
+        }
+        keys = new long[capacity];
+        values = new Object[capacity];
+    }
+
+    private int home(long key, int mask) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 29)) & mask;
+    }
+
+    /**
+     * @return the value mapped to {@code key}, or {@code null} if there is none
+     */
+    @SuppressWarnings("unchecked")
+    public V get(final long key) {
+        final int mask = keys.length - 1;
+        for (int i = home(key, mask); values[i] != null; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                return (V) values[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the value previously mapped to {@code key}, or {@code null} if there was none
+     */
+    @SuppressWarnings("unchecked")
+    public V put(final long key, final V value) {
+        Assert.notNull(value, "value can't be null");
+        int mask = keys.length - 1;
+        int i = home(key, mask);
+        for (; values[i] != null; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                V previous = (V) values[i];
+                values[i] = value;
+                return previous;
+            }
+        }
+        if (4 * (size + 1) > 3 * keys.length) {
+            grow();
+            mask = keys.length - 1;
+            i = home(key, mask);
+            while (values[i] != null) {
+                i = (i + 1) & mask;
+            }
+        }
+        keys[i] = key;
+        values[i] = value;
+        size++;
+        return null;
+    }
+
+    private void grow() {
+        final long[] oldKeys = keys;
+        final Object[] oldValues = values;
+        keys = new long[2 * oldKeys.length];
+        values = new Object[2 * oldValues.length];
+        final int mask = keys.length - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldValues[j] != null) {
+                int i = home(oldKeys[j], mask);
+                while (values[i] != null) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = oldKeys[j];
+                values[i] = oldValues[j];
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Removes all the mappings, keeping the current capacity
+     */
+    public void clear() {
+        if (size > 0) {
+            Arrays.fill(values, null);
+            size = 0;
+        }
+    }
+
+    /**
+     * @return a copy of the values of the map, in no particular order
+     */
+    @SuppressWarnings("unchecked")
+    public List<V> values() {
+        List<V> list = new ArrayList<V>(size);
+        for (Object value : values) {
+            if (value != null) {
+                list.add((V) value);
+            }
+        }
+        return list;
+    }
+}
@@ -0,0 +1,90 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.diskquota.storage;
+
+/**
+ * Packs the identity of a {@link TilePage} in a single {@code long}, as an alternative to the
+ * string {@link TilePage#getKey() key} where pages are looked up very often.
+ * <p>
+ * The key is made of 24 bits of tile set index, 8 bits of zoom level and 16 bits for each page
+ * coordinate. Tile set indexes are small integers handed out by whoever builds the keys, and zero
+ * can be used when all the keys belong to the same tile set.
+ * </p>
+ * <p>
+ * The number of pages per axis grows with the logarithm of the number of tiles (see
+ * {@link TilePageCalculator}), so the coordinates of the pages inside the grid subset coverage
+ * always fit; tiles outside of the coverage may not, check with {@link #fits(int, int, int)}.
+ * </p>
+ */
+public final class TilePageKey {
+
+    public static final int MAX_TILE_SET_INDEX = (1 << 24) - 1;
+
+    public static final int MAX_PAGE_COORDINATE = 0xFFFF;
+
+    public static final int MAX_ZOOM_LEVEL = 0xFF;
+
+    private TilePageKey() {
+        // static methods only
+    }
+
+    /**
+     * @return whether the page coordinates can be packed in a key
+     */
+    public static boolean fits(int pageX, int pageY, int zoomLevel) {
+        return pageX >= 0 && pageX <= MAX_PAGE_COORDINATE && pageY >= 0
+                && pageY <= MAX_PAGE_COORDINATE && zoomLevel >= 0 && zoomLevel <= MAX_ZOOM_LEVEL;
+    }
+
+    /**
+     * @throws IllegalArgumentException
+     *             if any of the values does not fit in the key
+     */
+    public static long pack(int tileSetIndex, int pageX, int pageY, int zoomLevel) {
+        if (tileSetIndex < 0 || tileSetIndex > MAX_TILE_SET_INDEX
+                || !fits(pageX, pageY, zoomLevel)) {
+            throw new IllegalArgumentException("Page out of bounds: tile set " + tileSetIndex
+                    + ", x " + pageX + ", y " + pageY + ", z " + zoomLevel);
+        }
+        return ((long) tileSetIndex << 40) | ((long) zoomLevel << 32) | ((long) pageX << 16)
+                | pageY;
+    }
+
+    /**
+     * @return the key of the same page in another tile set
+     */
+    public static long withTileSetIndex(long key, int tileSetIndex) {
+        if (tileSetIndex < 0 || tileSetIndex > MAX_TILE_SET_INDEX) {
+            throw new IllegalArgumentException("Tile set index out of bounds: " + tileSetIndex);
+        }
+        return (key & ((1L << 40) - 1)) | ((long) tileSetIndex << 40);
+    }
+
+    public static int tileSetIndex(long key) {
+        return (int) (key >>> 40);
+    }
+
+    public static int zoomLevel(long key) {
+        return (int) (key >>> 32) & MAX_ZOOM_LEVEL;
+    }
+
+    public static int pageX(long key) {
+        return (int) (key >>> 16) & MAX_PAGE_COORDINATE;
+    }
+
+    public static int pageY(long key) {
+        return (int) key & MAX_PAGE_COORDINATE;
+    }
+}
@@ -40,6 +40,8 @@ public class DiskQuotaConfigTest extends TestCase {
         assertEquals(DiskQuotaConfig.DEFAULT_DISK_BLOCK_SIZE, config.getDiskBlockSize().intValue());
         assertEquals(DiskQuotaConfig.DEFAULT_MAX_CONCURRENT_CLEANUPS, config
                 .getMaxConcurrentCleanUps().intValue());
+        assertEquals(DiskQuotaConfig.DEFAULT_MAX_CONCURRENT_CACHE_SCANS, config
+                .getMaxConcurrentCacheScans().intValue());
         assertEquals(DiskQuotaConfig.DEFAULT_CLEANUP_UNITS, config.getCacheCleanUpUnits());
     }
 
@@ -118,4 +120,15 @@ public class DiskQuotaConfigTest extends TestCase {
         assertEquals(10, config.getMaxConcurrentCleanUps().intValue());
     }
 
+    public void testSetMaxConcurrentCacheScans() {
+        try {
+            config.setMaxConcurrentCacheScans(0);
+            fail("Expected IAE");
+        } catch (IllegalArgumentException e) {
+            assertTrue(true);
+        }
+        config.setMaxConcurrentCacheScans(4);
+        assertEquals(4, config.getMaxConcurrentCacheScans().intValue());
+    }
+
 }
@@ -20,146 +20,292 @@ package org.geowebcache.diskquota;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import junit.framework.TestCase;
 
+import org.easymock.classextension.EasyMock;
+import org.geowebcache.grid.GridSetBroker;
 import org.geowebcache.grid.GridSubset;
+import org.geowebcache.grid.GridSubsetFactory;
 import org.geowebcache.layer.TileLayer;
 import org.geowebcache.mime.MimeException;
 import org.geowebcache.mime.MimeType;
+import org.geowebcache.storage.StorageBroker;
 import org.geowebcache.storage.TileObject;
+import org.geowebcache.storage.blobstore.bundle.FileBlobStoreConverter;
 import org.geowebcache.storage.blobstore.file.FilePathGenerator;
+import org.geowebcache.util.FileUtils;
 
 public class LayerCacheInfoBuilderTest extends TestCase {
 
+    private static final String LAYER_NAME = "MockLayer";
+
     private LayerCacheInfoBuilder infoBuilder;
 
-    private final int blockSize = 2048;
+    private final int fileSize = 100;
 
     private File rootCacheDir;
 
     private ExecutorService threadPool;
-    
-    FilePathGenerator pathGenerator = new FilePathGenerator("") {
-        protected String getParametersId(String base, java.util.Map<String,String> parameters) throws IOException {
-            // we assume no collisions for these tests
-            String parametersKvp = getParametersKvp(parameters);
-            return buildKey(parametersKvp);
+
+    private FilePathGenerator pathGenerator;
+
+    private TileLayer mockLayer;
+
+    private String gridSetId;
+
+    /**
+     * The tiles reported as stored, as {@code x,y,z} strings
+     */
+    private Set<String> storedTiles;
+
+    /**
+     * The commit callbacks not run yet, if commits are held back
+     */
+    private List<Runnable> heldCommits;
+
+    @Override
+    protected void setUp() throws Exception {
+        File target = new File("target");
+        rootCacheDir = new File(target, getClass().getSimpleName());
+        FileUtils.rmFileCacheDir(rootCacheDir, null);
+        rootCacheDir.mkdirs();
+
+        pathGenerator = new FilePathGenerator(rootCacheDir.getAbsolutePath());
+        storedTiles = Collections.synchronizedSet(new HashSet<String>());
+
+        GridSubset gridSubset = GridSubsetFactory.createGridSubSet(new GridSetBroker(false,
+                false).WORLD_EPSG4326);
+        mockLayer = EasyMock.createMock(TileLayer.class);
+        EasyMock.expect(mockLayer.getName()).andReturn(LAYER_NAME).anyTimes();
+        EasyMock.expect(mockLayer.getGridSubsets()).andReturn(
+                Collections.singleton(gridSubset.getName())).anyTimes();
+        EasyMock.expect(mockLayer.getGridSubset(gridSubset.getName())).andReturn(gridSubset)
+                .anyTimes();
+        EasyMock.replay(mockLayer);
+        gridSetId = gridSubset.getName();
+
+        StorageBroker storageBroker = EasyMock.createMock(StorageBroker.class);
+        QuotaStore quotaStore = EasyMock.createMock(QuotaStore.class);
+        QuotaUpdatesMonitor monitor = new QuotaUpdatesMonitor(new DiskQuotaConfig(),
+                storageBroker, quotaStore) {
+            @Override
+            public void tilesStored(String layerName, String gridSetId, String blobFormat,
+                    String parametersId, int z, long[] x, long[] y, long[] blobSizes, int count) {
+                assertEquals(LAYER_NAME, layerName);
+                assertEquals("image/png", blobFormat);
+                for (int i = 0; i < count; i++) {
+                    assertEquals(fileSize, blobSizes[i]);
+                    storedTiles.add(x[i] + "," + y[i] + "," + z);
+                }
+            }
+
+            @Override
+            public void afterCommit(String layerName, Runnable callback) {
+                synchronized (LayerCacheInfoBuilderTest.this) {
+                    if (heldCommits != null) {
+                        heldCommits.add(callback);
+                        return;
+                    }
+                }
+                callback.run();
+            }
         };
-    };
 
-    public void testFake() {
+        threadPool = Executors.newFixedThreadPool(2);
+        infoBuilder = new LayerCacheInfoBuilder(rootCacheDir, threadPool, monitor);
+    }
 
+    @Override
+    protected void tearDown() throws Exception {
+        if (threadPool != null) {
+            threadPool.shutdownNow();
+        }
+        if (rootCacheDir != null) {
+            FileUtils.rmFileCacheDir(rootCacheDir, null);
+        }
+    }
+
+    public void testBuildCacheInfo() throws Exception {
+        Set<String> seeded = mockSeed(mockLayer, 50, fileSize);
+
+        infoBuilder.buildCacheInfo(mockLayer, false);
+        waitForScan();
+
+        assertEquals(seeded, storedTiles);
+        assertFalse(infoBuilder.isInterrupted(LAYER_NAME));
+    }
+
+    public void testBuildCacheInfoFromBundles() throws Exception {
+        Set<String> seeded = mockSeed(mockLayer, 50, fileSize);
+        String root = rootCacheDir.getAbsolutePath();
+        assertEquals(50, new FileBlobStoreConverter(root, root, 4).convert());
+
+        infoBuilder.buildCacheInfo(mockLayer, false);
+        waitForScan();
+
+        assertEquals(seeded, storedTiles);
+    }
+
+    public void testResume() throws Exception {
+        Set<String> seeded = mockSeed(mockLayer, 50, fileSize);
+
+        // pretend the bucket of one of the tiles was scanned before an interruption
+        File tileFile = pathGenerator.tilePath(TileObject.createCompleteTileObject(LAYER_NAME,
+                parse(seeded.iterator().next()), gridSetId, "image/png", null, null), MimeType
+                .createFromFormat("image/png"));
+        File bucketDir = tileFile.getParentFile();
+        String bucket = bucketDir.getParentFile().getName() + "/" + bucketDir.getName();
+        CacheScanCheckpoint checkpoint = new CacheScanCheckpoint(rootCacheDir, LAYER_NAME);
+        checkpoint.bucketDone(bucket, 1, fileSize);
+        checkpoint.close();
+        assertTrue(infoBuilder.isInterrupted(LAYER_NAME));
+
+        infoBuilder.buildCacheInfo(mockLayer, true);
+        waitForScan();
+
+        Set<String> expected = new HashSet<String>();
+        for (String tile : seeded) {
+            File file = pathGenerator.tilePath(TileObject.createCompleteTileObject(LAYER_NAME,
+                    parse(tile), gridSetId, "image/png", null, null), MimeType
+                    .createFromFormat("image/png"));
+            if (!file.getParentFile().equals(bucketDir)) {
+                expected.add(tile);
+            }
+        }
+        assertTrue(expected.size() < seeded.size());
+        assertEquals(expected, storedTiles);
+        assertFalse(infoBuilder.isInterrupted(LAYER_NAME));
+    }
+
+    public void testCheckpointWaitsForCommit() throws Exception {
+        Set<String> seeded = mockSeed(mockLayer, 50, fileSize);
+        synchronized (this) {
+            heldCommits = new ArrayList<Runnable>();
+        }
+
+        infoBuilder.buildCacheInfo(mockLayer, false);
+        long startTime = System.currentTimeMillis();
+        while (storedTiles.size() < seeded.size()) {
+            Thread.sleep(50);
+            assertTrue(System.currentTimeMillis() - startTime < 30000);
+        }
+        // the tiles are reported but not committed, nothing is recorded
+        assertTrue(infoBuilder.isRunning(LAYER_NAME));
+        CacheScanCheckpoint checkpoint = new CacheScanCheckpoint(rootCacheDir, LAYER_NAME);
+        checkpoint.load();
+        assertEquals(0, checkpoint.getCompletedTiles());
+
+        List<Runnable> callbacks;
+        synchronized (this) {
+            callbacks = heldCommits;
+            heldCommits = null;
+        }
+        for (Runnable callback : callbacks) {
+            callback.run();
+        }
+        waitForScan();
+        assertFalse(infoBuilder.isInterrupted(LAYER_NAME));
+    }
+
+    public void testStartOverDiscardsCheckpoint() throws Exception {
+        Set<String> seeded = mockSeed(mockLayer, 20, fileSize);
+        CacheScanCheckpoint checkpoint = new CacheScanCheckpoint(rootCacheDir, LAYER_NAME);
+        for (File zoomDir : new File(rootCacheDir, LAYER_NAME).listFiles()) {
+            for (File bucketDir : zoomDir.listFiles()) {
+                checkpoint.bucketDone(zoomDir.getName() + "/" + bucketDir.getName(), 1, 1);
+            }
+        }
+        checkpoint.close();
+
+        infoBuilder.buildCacheInfo(mockLayer, false);
+        waitForScan();
+
+        assertEquals(seeded, storedTiles);
+        assertFalse(infoBuilder.isInterrupted(LAYER_NAME));
+    }
+
+    public void testCheckpointIgnoresIncompleteLine() throws Exception {
+        CacheScanCheckpoint checkpoint = new CacheScanCheckpoint(rootCacheDir, LAYER_NAME);
+        checkpoint.bucketDone("EPSG_4326_05/0_1", 10, 1000);
+        checkpoint.close();
+        File file = new File(new File(rootCacheDir, CacheScanCheckpoint.DIRECTORY), LAYER_NAME
+                + ".scan");
+        FileOutputStream out = new FileOutputStream(file, true);
+        try {
+            out.write("5\t500\tEPSG_4326_05/1_1".getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+
+        checkpoint = new CacheScanCheckpoint(rootCacheDir, LAYER_NAME);
+        checkpoint.load();
+        assertTrue(checkpoint.isCompleted("EPSG_4326_05/0_1"));
+        assertFalse(checkpoint.isCompleted("EPSG_4326_05/1_1"));
+        assertEquals(10, checkpoint.getCompletedTiles());
+        assertEquals(1000, checkpoint.getCompletedBytes());
+    }
+
+    private void waitForScan() throws InterruptedException {
+        // be careful and don't wait more than 30s
+        long startTime = System.currentTimeMillis();
+        while (infoBuilder.isRunning(LAYER_NAME)) {
+            Thread.sleep(50);
+            if (System.currentTimeMillis() - startTime > 30000) {
+                fail(LayerCacheInfoBuilder.class.getSimpleName()
+                        + ".buildCacheInfo was running for too long, aborting test!");
+            }
+        }
+    }
+
+    private static long[] parse(String tile) {
+        String[] xyz = tile.split(",");
+        return new long[] { Long.parseLong(xyz[0]), Long.parseLong(xyz[1]),
+                Long.parseLong(xyz[2]) };
     }
 
-    /*
-     * TODO fix tests /*
-     * 
-     * @Override protected void setUp() throws Exception { File target = new File("target"); if
-     * (!target.exists() || !target.isDirectory() || !target.canWrite()) { throw new
-     * IllegalStateException("Can't set up tests, " + target.getAbsolutePath() +
-     * " is not a writable directory"); }
-     * 
-     * rootCacheDir = new File(target, getClass().getSimpleName());
-     * FileUtils.rmFileCacheDir(rootCacheDir, null); rootCacheDir.mkdirs();
-     * 
-     * threadPool = Executors.newSingleThreadExecutor();
-     * 
-     * infoBuilder = new LayerCacheInfoBuilder(rootCacheDir, threadPool); }
-     * 
-     * @Override protected void tearDown() throws Exception { if (threadPool != null) {
-     * threadPool.shutdownNow(); } if (rootCacheDir != null) {
-     * FileUtils.rmFileCacheDir(rootCacheDir, null); } }
-     * 
-     * public void testBuildCacheInfo() throws MimeException, IOException, InterruptedException {
-     * 
-     * final String layerName = "MockLayer"; TileLayer mockLayer =
-     * EasyMock.createMock(TileLayer.class);
-     * EasyMock.expect(mockLayer.getName()).andReturn(layerName).anyTimes(); GridSet gridSet = new
-     * GridSetBroker(false, false).WORLD_EPSG4326; GridSubset gridSubset =
-     * GridSubsetFactory.createGridSubSet(gridSet); EasyMock.expect(mockLayer.getGridSubsets())
-     * .andReturn( new Hashtable<String, GridSubset>(Collections.singletonMap( gridSubset.getName(),
-     * gridSubset))).anyTimes(); EasyMock.replay(mockLayer);
-     * 
-     * final String gridSetId = gridSubset.getName(); final LayerQuota layerQuota = new
-     * LayerQuota(layerName, "MockPolicy"); final int numFiles = 10; final int fileSize =
-     * this.blockSize + 1;
-     * 
-     * ExpirationPolicy mockPolicy = EasyMock.createMock(ExpirationPolicy.class);
-     * 
-     * mockPolicy.createTileInfo(EasyMock.eq(layerQuota), EasyMock.eq(gridSetId),
-     * EasyMock.anyLong(), EasyMock.anyLong(), EasyMock.anyInt());
-     * EasyMock.expectLastCall().times(numFiles); EasyMock.replay(mockPolicy);
-     * 
-     * mockSeed(mockLayer, numFiles, fileSize);
-     * 
-     * layerQuota.setExpirationPolicy(mockPolicy);
-     * 
-     * infoBuilder.buildCacheInfo(mockLayer, layerQuota);
-     * 
-     * // be careful and don't wait more than 30s long startTime = System.currentTimeMillis(); long
-     * ellapsedTime = 0; while (infoBuilder.isRunning(layerName)) { Thread.sleep(500); ellapsedTime
-     * = System.currentTimeMillis() - startTime; if (ellapsedTime > 30000) {
-     * fail(LayerCacheInfoBuilder.class.getSimpleName() +
-     * ".buildCacheInfo was running for too long, aborting test!"); } } EasyMock.verify(mockLayer);
-     * EasyMock.verify(mockPolicy);
-     * 
-     * // was layer used quota updated? final int blockFileSize = (int) Math.ceil((double) fileSize
-     * / this.blockSize) this.blockSize; final long expectedCacheSize = numFiles * blockFileSize;
-     * 
-     * Quota expectedUsedQuota = new Quota(expectedCacheSize, StorageUnit.B);
-     * 
-     * Quota usedQuota = layerQuota.getUsedQuota();
-     * 
-     * assertTrue(usedQuota.getBytes().longValue() > 0);
-     * 
-     * assertEquals(0L, usedQuota.difference(expectedUsedQuota).getBytes().longValue()); }
-     */
     /**
-     * Seeds {@code numFiles} fake tiles of {@code fileSize} each at random tile indices
+     * Seeds {@code numFiles} fake tiles of {@code fileSize} each over a few zoom levels
      * 
      * @param layer
      * @param numFiles
+     * @return the seeded tiles, as {@code x,y,z} strings
      * @throws MimeException
      * @throws IOException
      */
-    private void mockSeed(TileLayer layer, int numFiles, int fileSize) throws MimeException,
-            IOException {
+    private Set<String> mockSeed(TileLayer layer, int numFiles, int fileSize)
+            throws MimeException, IOException {
         final String layerName = layer.getName();
 
         final GridSubset gridSubset = layer.getGridSubset(layer.getGridSubsets().iterator().next());
         final String gridSetId = gridSubset.getName();
-        final String prefix = this.rootCacheDir.getAbsolutePath();
         String format = "image/png";
         final MimeType mimeType = MimeType.createFromFormat(format);
 
         final byte[] mockTileContents = new byte[fileSize];
         Arrays.fill(mockTileContents, (byte) 0xFF);
 
-        // just to control the same tile is not created more than once
         Set<String> addedTiles = new HashSet<String>();
-
-        long[] tileIndex;
-        while (addedTiles.size() < numFiles) {
-            int level = (int) (gridSubset.getZoomStart() + ((gridSubset.getZoomStop() - gridSubset
-                    .getZoomStart()) * Math.random()));
-
-            String tileKey = null;
-            File tilePath;
-            do {
-                long[] coverage = gridSubset.getCoverage(level);// {minx,miny,maxx,maxy,z}
-                long x = (long) (coverage[0] + ((coverage[2] - coverage[0]) * Math.random()));
-                long y = (long) (coverage[1] + ((coverage[3] - coverage[1]) * Math.random()));
-                tileIndex = new long[] { x, y, level };
-                TileObject tile = TileObject.createCompleteTileObject(layerName, tileIndex, gridSetId, format, null, null);
-                tilePath = pathGenerator.tilePath(tile, mimeType);
-                tileKey = tilePath.getAbsolutePath();
-            } while (addedTiles.contains(tileKey));
-            addedTiles.add(tileKey);
+        for (int i = 0; addedTiles.size() < numFiles; i++) {
+            final int level = 3 + i % 4;
+            final long[] coverage = gridSubset.getCoverage(level);// {minx,miny,maxx,maxy,z}
+            final long x = coverage[0] + (7L * i) % (1 + coverage[2] - coverage[0]);
+            final long y = coverage[1] + (3L * i) % (1 + coverage[3] - coverage[1]);
+            if (!addedTiles.add(x + "," + y + "," + level)) {
+                continue;
+            }
+            long[] tileIndex = new long[] { x, y, level };
+            TileObject tile = TileObject.createCompleteTileObject(layerName, tileIndex, gridSetId,
+                    format, null, null);
+            File tilePath = pathGenerator.tilePath(tile, mimeType);
 
             File tileDir = tilePath.getParentFile();
             tileDir.mkdirs();
@@ -170,6 +316,6 @@ public class LayerCacheInfoBuilderTest extends TestCase {
                 fout.close();
             }
         }
-
+        return addedTiles;
     }
 }
@@ -0,0 +1,117 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.diskquota;
+
+import java.util.Collection;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.easymock.IAnswer;
+import org.easymock.classextension.EasyMock;
+import org.geowebcache.diskquota.storage.PageStatsPayload;
+import org.geowebcache.diskquota.storage.Quota;
+import org.geowebcache.diskquota.storage.TilePageCalculator;
+import org.geowebcache.diskquota.storage.TileSet;
+
+public class QueuedQuotaUpdatesConsumerTest extends TestCase {
+
+    private BlockingQueue<QuotaUpdate> queue;
+
+    private ExecutorService executor;
+
+    /**
+     * Number of tiles committed to the store
+     */
+    private AtomicInteger committedTiles;
+
+    private QueuedQuotaUpdatesConsumer consumer;
+
+    @SuppressWarnings("unchecked")
+    @Override
+    protected void setUp() throws Exception {
+        queue = new LinkedBlockingQueue<QuotaUpdate>();
+        executor = Executors.newSingleThreadExecutor();
+        committedTiles = new AtomicInteger();
+
+        TilePageCalculator calculator = EasyMock.createNiceMock(TilePageCalculator.class);
+        EasyMock.replay(calculator);
+        QuotaStore store = EasyMock.createNiceMock(QuotaStore.class);
+        EasyMock.expect(store.getTilePageCalculator()).andReturn(calculator).anyTimes();
+        store.addToQuotaAndTileCounts((TileSet) EasyMock.anyObject(),
+                (Quota) EasyMock.anyObject(), (Collection<PageStatsPayload>) EasyMock.anyObject());
+        EasyMock.expectLastCall().andAnswer(new IAnswer<Object>() {
+            @SuppressWarnings("unchecked")
+            public Object answer() throws Throwable {
+                Collection<PageStatsPayload> payloads;
+                payloads = (Collection<PageStatsPayload>) EasyMock.getCurrentArguments()[2];
+                for (PageStatsPayload payload : payloads) {
+                    committedTiles.addAndGet(payload.getNumTiles());
+                }
+                return null;
+            }
+        }).anyTimes();
+        EasyMock.replay(store);
+        consumer = new QueuedQuotaUpdatesConsumer(store, queue);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        executor.shutdownNow();
+    }
+
+    public void testCommitCallback() throws Exception {
+        TileSet tileSet = new TileSet("layer", "EPSG:4326", "image/png", null);
+        queue.put(new QuotaUpdate(tileSet, 4096, 3, new long[] { 1, 2 }, new long[] { 1, 2 }, 1));
+
+        final CountDownLatch committed = new CountDownLatch(1);
+        final AtomicInteger tilesAtCallback = new AtomicInteger(-1);
+        queue.put(new QuotaUpdate(new Runnable() {
+            public void run() {
+                tilesAtCallback.set(committedTiles.get());
+                committed.countDown();
+            }
+        }));
+        executor.submit(consumer);
+
+        assertTrue(committed.await(30, TimeUnit.SECONDS));
+        assertEquals(2, tilesAtCallback.get());
+    }
+
+    public void testCommitCallbackNotRunOnShutdown() throws Exception {
+        TileSet tileSet = new TileSet("layer", "EPSG:4326", "image/png", null);
+        queue.put(new QuotaUpdate(tileSet, 4096, 3, new long[] { 1 }, new long[] { 1 }, 1));
+
+        final CountDownLatch committed = new CountDownLatch(1);
+        queue.put(new QuotaUpdate(new Runnable() {
+            public void run() {
+                committed.countDown();
+            }
+        }));
+        executor.submit(consumer);
+        Thread.sleep(200);
+        executor.shutdownNow();
+        assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+
+        assertEquals(0, committedTiles.get());
+        assertEquals(1, committed.getCount());
+    }
+}
@@ -0,0 +1,72 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.diskquota;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import junit.framework.TestCase;
+
+public class QueuedQuotaUpdatesProducerTest extends TestCase {
+
+    private BlockingQueue<QuotaUpdate> queue;
+
+    private QueuedQuotaUpdatesProducer producer;
+
+    @Override
+    protected void setUp() throws Exception {
+        DiskQuotaConfig config = new DiskQuotaConfig();
+        config.setDiskBlockSize(4096);
+        queue = new LinkedBlockingQueue<QuotaUpdate>();
+        producer = new QueuedQuotaUpdatesProducer(config, queue, null);
+    }
+
+    public void testTilesStoredBatch() {
+        long[] x = { 1, 2, 3, 4, 99 };
+        long[] y = { 5, 6, 7, 8, 99 };
+        // the last elements are not part of the batch, the zero sized tile does not count
+        long[] sizes = { 100, 0, 4096, 4097, 99 };
+        producer.tilesStored("layer", "EPSG:4326", "image/png", null, 10, x, y, sizes, 4);
+
+        assertEquals(1, queue.size());
+        QuotaUpdate update = queue.poll();
+        assertTrue(update.isBatch());
+        assertEquals(3, update.getTileCount());
+        assertEquals(1, update.getTileCountDiff());
+        assertEquals(4 * 4096, update.getSize());
+        assertEquals(10, update.getZoomLevel());
+        assertEquals(3, update.getTilesX()[1]);
+        assertEquals(8, update.getTilesY()[2]);
+
+        // the arrays of the caller can be reused
+        x[0] = 42;
+        assertEquals(1, update.getTilesX()[0]);
+    }
+
+    public void testTilesDeletedBatch() {
+        long[] x = { 1, 2 };
+        long[] y = { 3, 4 };
+        long[] sizes = { 0, 5000 };
+        producer.tilesDeleted("layer", "EPSG:4326", "image/png", null, 2, x, y, sizes, 2);
+
+        QuotaUpdate update = queue.poll();
+        assertEquals(2, update.getTileCount());
+        assertEquals(-1, update.getTileCountDiff());
+        assertEquals(-2 * 4096, update.getSize());
+
+        producer.tilesDeleted("layer", "EPSG:4326", "image/png", null, 2, x, y, sizes, 0);
+        assertTrue(queue.isEmpty());
+    }
+}
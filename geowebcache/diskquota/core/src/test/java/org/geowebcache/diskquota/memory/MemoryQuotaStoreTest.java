@@ -0,0 +1,347 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.diskquota.memory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+import org.easymock.classextension.EasyMock;
+import org.geowebcache.config.Configuration;
+import org.geowebcache.config.XMLConfiguration;
+import org.geowebcache.config.XMLConfigurationBackwardsCompatibilityTest;
+import org.geowebcache.diskquota.DiskQuotaMonitor;
+import org.geowebcache.diskquota.storage.MockSystemUtils;
+import org.geowebcache.diskquota.storage.PageStats;
+import org.geowebcache.diskquota.storage.PageStatsPayload;
+import org.geowebcache.diskquota.storage.Quota;
+import org.geowebcache.diskquota.storage.StorageUnit;
+import org.geowebcache.diskquota.storage.SystemUtils;
+import org.geowebcache.diskquota.storage.TilePage;
+import org.geowebcache.diskquota.storage.TilePageCalculator;
+import org.geowebcache.diskquota.storage.TileSet;
+import org.geowebcache.grid.GridSetBroker;
+import org.geowebcache.layer.TileLayerDispatcher;
+import org.geowebcache.storage.DefaultStorageFinder;
+
+public class MemoryQuotaStoreTest extends TestCase {
+
+    private MemoryQuotaStore store;
+
+    private TilePageCalculator tilePageCalculator;
+
+    private TileSet testTileSet;
+
+    private TileLayerDispatcher layerDispatcher;
+
+    private File targetDir;
+
+    @Override
+    public void setUp() throws Exception {
+        targetDir = new File("target", "mockStore" + Math.random());
+        FileUtils.deleteDirectory(targetDir);
+        targetDir.mkdirs();
+
+        InputStream is = XMLConfiguration.class
+                .getResourceAsStream(XMLConfigurationBackwardsCompatibilityTest.LATEST_FILENAME);
+        LinkedList<Configuration> configList = new LinkedList<Configuration>();
+        configList.add(new XMLConfiguration(is));
+        layerDispatcher = new TileLayerDispatcher(new GridSetBroker(true, true), configList);
+        tilePageCalculator = new TilePageCalculator(layerDispatcher);
+
+        store = newStore(targetDir);
+        testTileSet = tilePageCalculator.getTileSetsFor("topp:states2").iterator().next();
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        SystemUtils.set(new SystemUtils());
+        try {
+            store.close();
+        } finally {
+            FileUtils.deleteDirectory(targetDir);
+        }
+    }
+
+    private MemoryQuotaStore newStore(File cacheRoot) throws Exception {
+        DefaultStorageFinder cacheDirFinder = EasyMock.createMock(DefaultStorageFinder.class);
+        EasyMock.expect(cacheDirFinder.getDefaultPath()).andReturn(cacheRoot.getAbsolutePath())
+                .anyTimes();
+        EasyMock.expect(
+                cacheDirFinder.findEnvVar(EasyMock.eq(DiskQuotaMonitor.GWC_DISKQUOTA_DISABLED)))
+                .andReturn(null).anyTimes();
+        EasyMock.replay(cacheDirFinder);
+
+        MemoryQuotaStore memoryStore = new MemoryQuotaStore(cacheDirFinder, tilePageCalculator);
+        memoryStore.startUp();
+        return memoryStore;
+    }
+
+    public void testInitialization() throws Exception {
+        Set<TileSet> tileSets = store.getTileSets();
+        assertEquals(10, tileSets.size());
+        assertTrue(tileSets.contains(new TileSet("topp:states", "EPSG:4326", "image/png", null)));
+        assertTrue(tileSets.contains(testTileSet));
+        assertEquals(testTileSet, store.getTileSetById(testTileSet.getId()));
+        try {
+            store.getTileSetById("NonExistentTileSetId");
+            fail("Expected IAE");
+        } catch (IllegalArgumentException e) {
+            assertTrue(true);
+        }
+    }
+
+    public void testPageStatsGathering() throws Exception {
+        final MockSystemUtils sysUtils = new MockSystemUtils();
+        sysUtils.setCurrentTimeMinutes(10);
+        sysUtils.setCurrentTimeMillis(10 * 60 * 1000);
+        SystemUtils.set(sysUtils);
+
+        TilePage page = new TilePage(testTileSet.getId(), 0, 0, (byte) 0);
+        PageStatsPayload payload = new PageStatsPayload(page);
+        payload.setLastAccessTime(sysUtils.currentTimeMillis() - 1 * 60 * 1000);
+        payload.setNumHits(100);
+        payload.setNumTiles(1);
+
+        store.addToQuotaAndTileCounts(testTileSet, new Quota(1, StorageUnit.MiB),
+                Collections.singleton(payload));
+        assertEquals(1024 * 1024, store.getUsedQuotaByTileSetId(testTileSet.getId()).getBytes()
+                .longValue());
+        assertEquals(1024 * 1024, store.getGloballyUsedQuota().getBytes().longValue());
+
+        PageStats stats = store.addHitsAndSetAccesTime(Collections.singleton(payload)).get()
+                .get(0);
+        assertEquals(1.0f, stats.getFillFactor(), 1e-6);
+        assertEquals(10, stats.getLastAccessTimeMinutes());
+        assertEquals(100f, stats.getFrequencyOfUsePerMinute());
+
+        sysUtils.setCurrentTimeMinutes(sysUtils.currentTimeMinutes() + 2);
+        sysUtils.setCurrentTimeMillis(sysUtils.currentTimeMillis() + 2 * 60 * 1000);
+        payload.setLastAccessTime(sysUtils.currentTimeMillis() - 1 * 60 * 1000);
+        payload.setNumHits(10);
+
+        stats = store.addHitsAndSetAccesTime(Collections.singleton(payload)).get().get(0);
+        assertEquals(11, stats.getLastAccessTimeMinutes());
+        // the 110 hits over the 2 minutes since the page was created
+        assertEquals(55.0f, stats.getFrequencyOfUsePerMinute(), 1e-6f);
+    }
+
+    public void testAddHit() throws Exception {
+        Set<String> layerNames = Collections.singleton(testTileSet.getLayerName());
+        long[] tileIndex = { 0, 0, 0 };
+        store.addHit(testTileSet.getLayerName(), testTileSet.getGridsetId(),
+                testTileSet.getBlobFormat(), null, tileIndex);
+        // hits on unknown tile sets are ignored
+        store.addHit("nonExistent", "EPSG:4326", "image/png", null, tileIndex);
+
+        int[] pageIndex = tilePageCalculator.pageIndexForTile(testTileSet, tileIndex, new int[3]);
+        TilePage page = new TilePage(testTileSet.getId(), pageIndex[0], pageIndex[1],
+                pageIndex[2]);
+        assertEquals(Collections.singletonList(page), store.getLeastRecentlyUsedPages(
+                layerNames, 10));
+        assertTrue(store.getLeastRecentlyUsedPages(Collections.singleton("nonExistent"), 10)
+                .isEmpty());
+    }
+
+    public void testGetLeastFrequentlyUsedPages() throws Exception {
+        Set<String> layerNames = Collections.singleton(testTileSet.getLayerName());
+        assertTrue(store.getLeastFrequentlyUsedPages(layerNames, 10).isEmpty());
+        assertNull(store.getLeastFrequentlyUsedPage(layerNames));
+
+        TilePage page1 = new TilePage(testTileSet.getId(), 0, 1, 2);
+        TilePage page2 = new TilePage(testTileSet.getId(), 1, 1, 2);
+        TilePage page3 = new TilePage(testTileSet.getId(), 2, 1, 2);
+        PageStatsPayload payload1 = new PageStatsPayload(page1);
+        PageStatsPayload payload2 = new PageStatsPayload(page2);
+        PageStatsPayload payload3 = new PageStatsPayload(page3);
+        payload1.setNumHits(100);
+        payload2.setNumHits(10);
+        payload3.setNumHits(50);
+        Collection<PageStatsPayload> statsUpdates = Arrays.asList(payload1, payload2, payload3);
+        store.addHitsAndSetAccesTime(statsUpdates).get();
+
+        assertEquals(page2, store.getLeastFrequentlyUsedPage(layerNames));
+        assertEquals(Arrays.asList(page2, page3), store.getLeastFrequentlyUsedPages(layerNames, 2));
+        assertEquals(Arrays.asList(page2, page3, page1),
+                store.getLeastFrequentlyUsedPages(layerNames, 10));
+
+        // truncated pages are not candidates anymore
+        store.setTruncated(page2);
+        assertEquals(Arrays.asList(page3, page1),
+                store.getLeastFrequentlyUsedPages(layerNames, 10));
+    }
+
+    public void testGetLeastRecentlyUsedPage() throws Exception {
+        MockSystemUtils sysUtils = new MockSystemUtils();
+        sysUtils.setCurrentTimeMinutes(1000);
+        sysUtils.setCurrentTimeMillis(sysUtils.currentTimeMinutes() * 60 * 1000);
+        SystemUtils.set(sysUtils);
+
+        Set<String> layerNames = Collections.singleton(testTileSet.getLayerName());
+        TilePage page1 = new TilePage(testTileSet.getId(), 0, 1, 2);
+        TilePage page2 = new TilePage(testTileSet.getId(), 1, 1, 2);
+        PageStatsPayload payload1 = new PageStatsPayload(page1);
+        PageStatsPayload payload2 = new PageStatsPayload(page2);
+        payload1.setLastAccessTime(sysUtils.currentTimeMillis() + 1 * 60 * 1000);
+        payload2.setLastAccessTime(sysUtils.currentTimeMillis() + 2 * 60 * 1000);
+        Collection<PageStatsPayload> statsUpdates = Arrays.asList(payload1, payload2);
+        store.addHitsAndSetAccesTime(statsUpdates).get();
+
+        assertEquals(page1, store.getLeastRecentlyUsedPage(layerNames));
+
+        payload1.setLastAccessTime(sysUtils.currentTimeMillis() + 10 * 60 * 1000);
+        store.addHitsAndSetAccesTime(statsUpdates).get();
+        assertEquals(page2, store.getLeastRecentlyUsedPage(layerNames));
+    }
+
+    public void testDeleteLayer() throws Exception {
+        String layerName = testTileSet.getLayerName();
+        PageStatsPayload payload = new PageStatsPayload(new TilePage(testTileSet.getId(), 0, 0, 0));
+        payload.setNumTiles(1);
+        store.addToQuotaAndTileCounts(testTileSet, new Quota(BigInteger.valueOf(1000)),
+                Collections.singleton(payload));
+        assertNotNull(store.getLeastRecentlyUsedPage(Collections.singleton(layerName)));
+
+        store.deleteLayer(layerName);
+
+        assertNull(store.getLeastRecentlyUsedPage(Collections.singleton(layerName)));
+        assertEquals(0L, store.getUsedQuotaByLayerName(layerName).getBytes().longValue());
+        assertEquals(0L, store.getGloballyUsedQuota().getBytes().longValue());
+        assertFalse(store.getTileSets().contains(testTileSet));
+    }
+
+    public void testRenameLayer() throws Exception {
+        final String oldLayerName = testTileSet.getLayerName();
+        final String newLayerName = "renamed_layer";
+        TilePage page = new TilePage(testTileSet.getId(), 0, 0, 0);
+        PageStatsPayload payload = new PageStatsPayload(page);
+        payload.setNumTiles(1);
+        store.addToQuotaAndTileCounts(testTileSet, new Quota(BigInteger.valueOf(1024)),
+                Collections.singleton(payload));
+
+        store.renameLayer(oldLayerName, newLayerName);
+
+        assertNull(store.getLeastRecentlyUsedPage(Collections.singleton(oldLayerName)));
+        assertEquals(0L, store.getUsedQuotaByLayerName(oldLayerName).getBytes().longValue());
+        assertEquals(1024L, store.getUsedQuotaByLayerName(newLayerName).getBytes().longValue());
+        assertEquals(1024L, store.getGloballyUsedQuota().getBytes().longValue());
+
+        TileSet renamed = new TileSet(newLayerName, testTileSet.getGridsetId(),
+                testTileSet.getBlobFormat(), testTileSet.getParametersId());
+        TilePage renamedPage = store.getLeastRecentlyUsedPage(Collections
+                .singleton(newLayerName));
+        assertEquals(new TilePage(renamed.getId(), 0, 0, 0), renamedPage);
+    }
+
+    public void testRestart() throws Exception {
+        Set<String> layerNames = Collections.singleton(testTileSet.getLayerName());
+        addPages();
+        List<TilePage> expected = store.getLeastFrequentlyUsedPages(layerNames, 10);
+        assertEquals(3, expected.size());
+
+        store.close();
+        store = newStore(targetDir);
+
+        assertEquals(3000L, store.getUsedQuotaByTileSetId(testTileSet.getId()).getBytes()
+                .longValue());
+        assertEquals(3000L, store.getGloballyUsedQuota().getBytes().longValue());
+        assertEquals(expected, store.getLeastFrequentlyUsedPages(layerNames, 10));
+        assertEquals(1, new File(targetDir, MemoryQuotaStore.STORE_DIRECTORY).list(
+                new FilenameFilter() {
+                    public boolean accept(File dir, String name) {
+                        return name.endsWith(".log");
+                    }
+                }).length);
+    }
+
+    /**
+     * Simulates a crash by copying the store directory while the store is running, then starts
+     * another store from the copy, which has to replay the log
+     */
+    public void testRecoveryFromLog() throws Exception {
+        Set<String> layerNames = Collections.singleton(testTileSet.getLayerName());
+        addPages();
+        TilePage truncated = store.getLeastFrequentlyUsedPage(layerNames);
+        store.setTruncated(truncated);
+        store.deleteGridSubset("topp:states", "EPSG:4326");
+
+        File copyRoot = new File(targetDir, "copy");
+        File copy = new File(copyRoot, MemoryQuotaStore.STORE_DIRECTORY);
+        FileUtils.copyDirectory(new File(targetDir, MemoryQuotaStore.STORE_DIRECTORY), copy);
+        // a record that could not be written completely
+        for (File file : new WriteAheadLog(copy).files()) {
+            FileOutputStream out = new FileOutputStream(file, true);
+            out.write(new byte[] { 0, 0, 1, 0, 42 });
+            out.close();
+        }
+
+        MemoryQuotaStore recovered = newStore(copyRoot);
+        try {
+            assertEquals(3000L, recovered.getUsedQuotaByTileSetId(testTileSet.getId())
+                    .getBytes().longValue());
+            // same pages, the hits are only saved by the snapshots though
+            assertEquals(new HashSet<TilePage>(store.getLeastFrequentlyUsedPages(layerNames, 10)),
+                    new HashSet<TilePage>(recovered.getLeastFrequentlyUsedPages(layerNames, 10)));
+            assertEquals(2, recovered.getLeastFrequentlyUsedPages(layerNames, 10).size());
+            // the tile sets deleted before the crash are created again, as they belong to
+            // configured layers, but without any usage
+            assertEquals(0L, recovered.getUsedQuotaByLayerName("topp:states").getBytes()
+                    .longValue());
+        } finally {
+            recovered.close();
+        }
+    }
+
+    public void testDamagedSnapshot() throws Exception {
+        addPages();
+        store.close();
+        File snapshot = new File(new File(targetDir, MemoryQuotaStore.STORE_DIRECTORY),
+                "snapshot.dat");
+        RandomAccessFile file = new RandomAccessFile(snapshot, "rw");
+        file.seek(file.length() / 2);
+        file.write(~file.read());
+        file.close();
+
+        store = newStore(targetDir);
+        // starts empty so that the layers get scanned again
+        assertEquals(0L, store.getGloballyUsedQuota().getBytes().longValue());
+        assertEquals(10, store.getTileSets().size());
+    }
+
+    private void addPages() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            TilePage page = new TilePage(testTileSet.getId(), i, 1, 2);
+            PageStatsPayload payload = new PageStatsPayload(page);
+            payload.setNumTiles(1);
+            payload.setNumHits(10 * (i + 1));
+            store.addToQuotaAndTileCounts(testTileSet, new Quota(BigInteger.valueOf(1000)),
+                    Collections.singleton(payload));
+            store.addHitsAndSetAccesTime(Collections.singleton(payload)).get();
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package org.geowebcache.diskquota.storage;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+public class LongHashMapTest extends TestCase {
+
+    public void testPutGet() {
+        LongHashMap<String> map = new LongHashMap<String>();
+        assertTrue(map.isEmpty());
+        assertNull(map.get(0));
+        assertNull(map.put(0, "zero"));
+        assertNull(map.put(-1, "minus one"));
+        assertNull(map.put(Long.MAX_VALUE, "max"));
+        assertEquals("zero", map.put(0, "cero"));
+        assertEquals(3, map.size());
+        assertEquals("cero", map.get(0));
+        assertEquals("minus one", map.get(-1));
+        assertEquals("max", map.get(Long.MAX_VALUE));
+        assertNull(map.get(1));
+    }
+
+    public void testGrow() {
+        LongHashMap<Long> map = new LongHashMap<Long>(2);
+        final int count = 10000;
+        for (int i = 0; i < count; i++) {
+            long key = TilePageKey.pack(i % 7, i, i % 13, i % 21);
+            map.put(key, Long.valueOf(key));
+        }
+        assertEquals(count, map.size());
+        for (int i = 0; i < count; i++) {
+            long key = TilePageKey.pack(i % 7, i, i % 13, i % 21);
+            assertEquals(Long.valueOf(key), map.get(key));
+        }
+        Set<Long> values = new HashSet<Long>(map.values());
+        assertEquals(count, values.size());
+    }
+
+    public void testClear() {
+        LongHashMap<String> map = new LongHashMap<String>();
+        map.put(1, "one");
+        map.put(2, "two");
+        map.clear();
+        assertTrue(map.isEmpty());
+        assertNull(map.get(1));
+        assertTrue(map.values().isEmpty());
+        map.put(2, "dos");
+        assertEquals("dos", map.get(2));
+        assertEquals(1, map.size());
+    }
+
+    public void testNullValue() {
+        LongHashMap<String> map = new LongHashMap<String>();
+        try {
+            map.put(1, null);
+            fail("Expected IAE");
+        } catch (IllegalArgumentException e) {
+            assertTrue(true);
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package org.geowebcache.diskquota.storage;
+
+import junit.framework.TestCase;
+
+public class TilePageKeyTest extends TestCase {
+
+    public void testPack() {
+        long key = TilePageKey.pack(3, 65535, 7, 21);
+        assertEquals(3, TilePageKey.tileSetIndex(key));
+        assertEquals(65535, TilePageKey.pageX(key));
+        assertEquals(7, TilePageKey.pageY(key));
+        assertEquals(21, TilePageKey.zoomLevel(key));
+
+        key = TilePageKey.pack(TilePageKey.MAX_TILE_SET_INDEX, 0, 65535, 255);
+        assertEquals(TilePageKey.MAX_TILE_SET_INDEX, TilePageKey.tileSetIndex(key));
+        assertEquals(0, TilePageKey.pageX(key));
+        assertEquals(65535, TilePageKey.pageY(key));
+        assertEquals(255, TilePageKey.zoomLevel(key));
+
+        assertEquals(0L, TilePageKey.pack(0, 0, 0, 0));
+        assertTrue(TilePageKey.pack(0, 1, 0, 0) != TilePageKey.pack(0, 0, 1, 0));
+        assertTrue(TilePageKey.pack(0, 0, 1, 0) != TilePageKey.pack(0, 0, 0, 1));
+    }
+
+    public void testOutOfBounds() {
+        assertFalse(TilePageKey.fits(65536, 0, 0));
+        assertFalse(TilePageKey.fits(0, -1, 0));
+        assertFalse(TilePageKey.fits(0, 0, 256));
+        try {
+            TilePageKey.pack(3, 65536, 0, 0);
+            fail("Expected IAE");
+        } catch (IllegalArgumentException e) {
+            assertTrue(true);
+        }
+        try {
+            TilePageKey.pack(-1, 0, 0, 0);
+            fail("Expected IAE");
+        } catch (IllegalArgumentException e) {
+            assertTrue(true);
+        }
+    }
+
+    public void testWithTileSetIndex() {
+        long key = TilePageKey.withTileSetIndex(TilePageKey.pack(3, 10, 20, 5), 7);
+        assertEquals(TilePageKey.pack(7, 10, 20, 5), key);
+    }
+}
@@ -24,4 +24,67 @@ package org.geowebcache.diskquota.jdbc;
  */
 public class H2Dialect extends SQLDialect {
 
+    @Override
+    public String upsertTilePageFillFactor(String schema, String keyParam,
+            String tileSetIdParam, String zParam, String xParam, String yParam,
+            String creationParam, String fillFactorDeltaParam) {
+        StringBuilder sb = new StringBuilder();
+        appendMergeSelect(sb, schema, keyParam, tileSetIdParam, zParam, xParam, yParam,
+                creationParam);
+        sb.append("COALESCE(P.FREQUENCY_OF_USE, 0), ");
+        sb.append("COALESCE(P.LAST_ACCESS_TIME_MINUTES, 0), ");
+        appendFillFactor(sb, "COALESCE(P.FILL_FACTOR, 0)", fillFactorDeltaParam);
+        sb.append(", COALESCE(P.NUM_HITS, 0) ");
+        appendMergeSource(sb, schema, keyParam);
+
+        return sb.toString();
+    }
+
+    @Override
+    public String upsertTilePageHitAccessTime(String schema, String keyParam,
+            String tileSetIdParam, String zParam, String xParam, String yParam,
+            String creationParam, String hitsParam, String lastAccessTimeParam, String ageParam,
+            String minFillFactorParam) {
+        StringBuilder sb = new StringBuilder();
+        appendMergeSelect(sb, schema, keyParam, tileSetIdParam, zParam, xParam, yParam,
+                creationParam);
+        appendFrequencyOfUse(sb, "COALESCE(P.NUM_HITS, 0)", "COALESCE(P.FILL_FACTOR, 0)",
+                hitsParam, ageParam, minFillFactorParam);
+        sb.append(", :").append(lastAccessTimeParam);
+        sb.append(", COALESCE(P.FILL_FACTOR, :").append(minFillFactorParam).append(")");
+        sb.append(", COALESCE(P.NUM_HITS, 0) + :").append(hitsParam).append(" ");
+        appendMergeSource(sb, schema, keyParam);
+
+        return sb.toString();
+    }
+
+    /**
+     * H2 merge replaces the whole row, so the new row is selected out of the current one, if any,
+     * up to the creation time
+     */
+    private void appendMergeSelect(StringBuilder sb, String schema, String keyParam,
+            String tileSetIdParam, String zParam, String xParam, String yParam,
+            String creationParam) {
+        sb.append("MERGE INTO ");
+        if (schema != null) {
+            sb.append(schema).append(".");
+        }
+        sb.append("TILEPAGE ");
+        appendTilePageColumns(sb);
+        sb.append(" KEY(KEY) ");
+        sb.append("SELECT :").append(keyParam).append(", ");
+        sb.append(":").append(tileSetIdParam).append(", ");
+        sb.append(":").append(zParam).append(", ");
+        sb.append(":").append(xParam).append(", ");
+        sb.append(":").append(yParam).append(", ");
+        sb.append("COALESCE(P.CREATION_TIME_MINUTES, :").append(creationParam).append("), ");
+    }
+
+    private void appendMergeSource(StringBuilder sb, String schema, String keyParam) {
+        sb.append("FROM DUAL LEFT JOIN ");
+        if (schema != null) {
+            sb.append(schema).append(".");
+        }
+        sb.append("TILEPAGE P ON P.KEY = :").append(keyParam);
+    }
 }
@@ -19,6 +19,7 @@ package org.geowebcache.diskquota.jdbc;
 import java.io.Closeable;
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.math.RoundingMode;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
@@ -108,6 +109,11 @@ public class JDBCQuotaStore implements QuotaStore {
      */
     int maxLoops = 100;
 
+    /**
+     * Max number of pages updated by a single JDBC batch, or looked up by a single query
+     */
+    int maxBatchSize = 100;
+
     /**
      * The executor used for asynch requests
      */
@@ -444,12 +450,36 @@ public class JDBCQuotaStore implements QuotaStore {
                     // sort the payloads by page id as a deadlock avoidance measure, out
                     // of order updates may result in deadlock with the addHitsAndSetAccessTime method
                     List<PageStatsPayload> sorted = sortPayloads(tileCountDiffs);
-                    for (PageStatsPayload payload : sorted) {
-                        upsertTilePageFillFactor(payload);
+                    String upsert = dialect.upsertTilePageFillFactor(schema, "key", "tileSetId",
+                            "pageZ", "pageX", "pageY", "creationTime", "fillFactorDelta");
+                    if (upsert != null) {
+                        batchUpsertTilePageFillFactor(upsert, sorted);
+                    } else {
+                        for (PageStatsPayload payload : sorted) {
+                            upsertTilePageFillFactor(payload);
+                        }
                     }
                 }
             }
 
+            private void batchUpsertTilePageFillFactor(String upsert,
+                    List<PageStatsPayload> payloads) {
+                List<Map<String, Object>> batch = new ArrayList<Map<String, Object>>();
+                for (PageStatsPayload payload : payloads) {
+                    TilePage page = payload.getPage();
+                    BigInteger tilesPerPage = calculator.getTilesPerPage(tileSet,
+                            page.getZoomLevel());
+                    // same rounding as PageStats.addTiles
+                    BigDecimal delta = new BigDecimal(payload.getNumTiles()).divide(
+                            new BigDecimal(tilesPerPage), 7, RoundingMode.CEILING);
+
+                    Map<String, Object> params = getPageParams(page);
+                    params.put("fillFactorDelta", delta.doubleValue());
+                    batch.add(params);
+                }
+                executeBatch(upsert, batch);
+            }
+
             private void updateQuotas(final TileSet tileSet, final Quota quotaDiff) {
                 if (log.isDebugEnabled()) {
                     log.info("Applying quota diff " + quotaDiff.getBytes() + " on tileset "
@@ -576,13 +606,7 @@ public class JDBCQuotaStore implements QuotaStore {
         String insert = dialect.contionalTilePageInsertStatement(schema, "key", "tileSetId",
                 "pageZ", "pageX", "pageY", "creationTime", "frequencyOfUse", "lastAccessTime",
                 "fillFactor", "numHits");
-        Map<String, Object> params = new HashMap<String, Object>();
-        params.put("key", page.getKey());
-        params.put("tileSetId", page.getTileSetId());
-        params.put("pageZ", page.getZoomLevel());
-        params.put("pageX", page.getPageX());
-        params.put("pageY", page.getPageY());
-        params.put("creationTime", page.getCreationTimeMinutes());
+        Map<String, Object> params = getPageParams(page);
         params.put("frequencyOfUse", stats.getFrequencyOfUsePerMinute());
         params.put("lastAccessTime", stats.getLastAccessTimeMinutes());
         params.put("fillFactor", stats.getFillFactor());
@@ -593,6 +617,69 @@ public class JDBCQuotaStore implements QuotaStore {
         return jt.update(insert, params);
     }
 
+    /**
+     * Returns the parameters identifying a page, as used by the page creation statements
+     */
+    private Map<String, Object> getPageParams(TilePage page) {
+        Map<String, Object> params = new HashMap<String, Object>();
+        params.put("key", page.getKey());
+        params.put("tileSetId", page.getTileSetId());
+        params.put("pageZ", page.getZoomLevel());
+        params.put("pageX", page.getPageX());
+        params.put("pageY", page.getPageY());
+        params.put("creationTime", page.getCreationTimeMinutes());
+        return params;
+    }
+
+    /**
+     * Runs the statement once per parameter map, in JDBC batches of up to {@link #maxBatchSize}
+     * statements
+     */
+    @SuppressWarnings("unchecked")
+    private void executeBatch(String sql, List<Map<String, Object>> batch) {
+        for (int i = 0; i < batch.size(); i += maxBatchSize) {
+            List<Map<String, Object>> chunk = batch.subList(i,
+                    Math.min(batch.size(), i + maxBatchSize));
+            if (log.isDebugEnabled()) {
+                log.debug("Executing a batch of " + chunk.size() + " statements: " + sql);
+            }
+            jt.batchUpdate(sql, chunk.toArray(new Map[chunk.size()]));
+        }
+    }
+
+    /**
+     * Looks up the stats of several pages, in queries of up to {@link #maxBatchSize} pages
+     * 
+     * @return the stats found, by page key
+     */
+    private Map<String, PageStats> getPagesStats(List<String> keys) {
+        final Map<String, PageStats> result = new HashMap<String, PageStats>();
+        for (int i = 0; i < keys.size(); i += maxBatchSize) {
+            List<String> chunk = keys.subList(i, Math.min(keys.size(), i + maxBatchSize));
+            Map<String, Object> params = new HashMap<String, Object>();
+            List<String> keyParams = new ArrayList<String>();
+            for (int j = 0; j < chunk.size(); j++) {
+                String param = "key" + j;
+                params.put(param, chunk.get(j));
+                keyParams.add(param);
+            }
+            String select = dialect.getPagesStats(schema, keyParams);
+            jt.getNamedParameterJdbcOperations().query(select, params, new RowCallbackHandler() {
+
+                public void processRow(ResultSet rs) throws SQLException {
+                    PageStats ps = new PageStats(0);
+                    // KEY, FREQUENCY_OF_USE, LAST_ACCESS_TIME, FILL_FACTOR, NUM_HITS
+                    ps.setFrequencyOfUsePerMinute(rs.getFloat(2));
+                    ps.setLastAccessMinutes(rs.getInt(3));
+                    ps.setFillFactor(rs.getFloat(4));
+                    ps.setNumHits(rs.getBigDecimal(5).toBigInteger());
+                    result.put(rs.getString(1), ps);
+                }
+            });
+        }
+        return result;
+    }
+
     private PageStats getPageStats(String pageStatsKey) {
         String getPageStats = dialect.getPageStats(schema, "key");
         return jt.queryForOptionalObject(getPageStats, new ParameterizedRowMapper<PageStats>() {
@@ -624,29 +711,80 @@ public class JDBCQuotaStore implements QuotaStore {
                             // sort the payloads by page id as a deadlock avoidance measure, out
                             // of order updates may result in deadlock with the addHitsAndSetAccessTime method
                             List<PageStatsPayload> sorted = sortPayloads(statsUpdates);
+                            List<PageStatsPayload> payloads = new ArrayList<PageStatsPayload>();
+                            Map<String, Boolean> tileSets = new HashMap<String, Boolean>();
                             for (PageStatsPayload payload : sorted) {
-                                // verify the stats are referring to an existing tile set id
-                                TileSet tset = payload.getTileSet();
-                                if (tset == null) {
-                                    String tileSetId = payload.getPage().getTileSetId();
-                                    tset = getTileSetByIdInternal(tileSetId);
+                                // verify the stats are referring to an existing tile set id, once
+                                // per tile set
+                                String tileSetId = payload.getPage().getTileSetId();
+                                Boolean exists = tileSets.get(tileSetId);
+                                if (exists == null) {
+                                    TileSet tset = payload.getTileSet();
                                     if (tset == null) {
-                                        log.warn("Could not locate tileset with id " + tileSetId
-                                                + ", skipping page stats update: " + payload);
+                                        tset = getTileSetByIdInternal(tileSetId);
+                                    } else {
+                                        getOrCreateTileSet(tset);
                                     }
+                                    exists = Boolean.valueOf(tset != null);
+                                    tileSets.put(tileSetId, exists);
+                                }
+                                if (exists.booleanValue()) {
+                                    payloads.add(payload);
                                 } else {
-                                    getOrCreateTileSet(tset);
+                                    log.warn("Could not locate tileset with id " + tileSetId
+                                            + ", skipping page stats update: " + payload);
                                 }
+                            }
 
-                                // update the stats
-                                PageStats stats = upsertTilePageHitAccessTime(payload);
-                                result.add(stats);
+                            // update the stats
+                            String upsert = dialect.upsertTilePageHitAccessTime(schema, "key",
+                                    "tileSetId", "pageZ", "pageX", "pageY", "creationTime",
+                                    "hits", "lastAccessTime", "age", "minFillFactor");
+                            if (upsert != null) {
+                                result = batchUpsertTilePageHitAccessTime(upsert, payloads);
+                            } else {
+                                for (PageStatsPayload payload : payloads) {
+                                    result.add(upsertTilePageHitAccessTime(payload));
+                                }
                             }
                         }
 
                         return result;
                     }
 
+                    private List<PageStats> batchUpsertTilePageHitAccessTime(String upsert,
+                            List<PageStatsPayload> payloads) {
+                        List<Map<String, Object>> batch = new ArrayList<Map<String, Object>>();
+                        List<String> keys = new ArrayList<String>();
+                        for (PageStatsPayload payload : payloads) {
+                            TilePage page = payload.getPage();
+                            // same computation as PageStats.addHitsAndAccessTime
+                            final int creationTimeMinutes = page.getCreationTimeMinutes();
+                            final int lastAccessTimeMinutes = Math.max(creationTimeMinutes,
+                                    (int) (payload.getLastAccessTime() / 1000 / 60));
+
+                            Map<String, Object> params = getPageParams(page);
+                            params.put("hits", new BigDecimal(payload.getNumHits()));
+                            params.put("lastAccessTime", lastAccessTimeMinutes);
+                            params.put("age", 1 + lastAccessTimeMinutes - creationTimeMinutes);
+                            params.put("minFillFactor", (double) Float.MIN_VALUE);
+                            batch.add(params);
+                            keys.add(page.getKey());
+                        }
+                        executeBatch(upsert, batch);
+
+                        // read back the stats computed by the database
+                        Map<String, PageStats> stats = getPagesStats(keys);
+                        List<PageStats> result = new ArrayList<PageStats>(keys.size());
+                        for (String key : keys) {
+                            PageStats ps = stats.get(key);
+                            if (ps != null) {
+                                result.add(ps);
+                            }
+                        }
+                        return result;
+                    }
+
                     private PageStats upsertTilePageHitAccessTime(PageStatsPayload payload) {
                         TilePage page = payload.getPage();
 
@@ -732,7 +870,23 @@ public class JDBCQuotaStore implements QuotaStore {
         return getSinglePage(layerNames, false);
     }
 
+    public List<TilePage> getLeastFrequentlyUsedPages(Set<String> layerNames, int maxPages)
+            throws InterruptedException {
+        return getPages(layerNames, true, maxPages);
+    }
+
+    public List<TilePage> getLeastRecentlyUsedPages(Set<String> layerNames, int maxPages)
+            throws InterruptedException {
+        return getPages(layerNames, false, maxPages);
+    }
+
     private TilePage getSinglePage(Set<String> layerNames, boolean leastFrequentlyUsed) {
+        List<TilePage> pages = getPages(layerNames, leastFrequentlyUsed, 1);
+        return pages.isEmpty() ? null : pages.get(0);
+    }
+
+    private List<TilePage> getPages(Set<String> layerNames, boolean leastFrequentlyUsed,
+            int maxPages) {
         Map<String, Object> params = new HashMap<String, Object>();
         List<String> layerParamNames = new ArrayList<String>();
         int i = 0;
@@ -744,12 +898,12 @@ public class JDBCQuotaStore implements QuotaStore {
         }
         String select;
         if (leastFrequentlyUsed) {
-            select = dialect.getLeastFrequentlyUsedPage(schema, layerParamNames);
+            select = dialect.getLeastFrequentlyUsedPages(schema, layerParamNames, maxPages);
         } else {
-            select = dialect.getLeastRecentlyUsedPage(schema, layerParamNames);
+            select = dialect.getLeastRecentlyUsedPages(schema, layerParamNames, maxPages);
         }
         TilePageRowMapper mapper = new TilePageRowMapper();
-        return jt.queryForOptionalObject(select, mapper, params);
+        return jt.query(select, mapper, params);
     }
 
     public PageStats setTruncated(final TilePage page) throws InterruptedException {
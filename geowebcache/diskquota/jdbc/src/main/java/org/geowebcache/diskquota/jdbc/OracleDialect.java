@@ -22,7 +22,12 @@ import java.util.List;
 /**
  * Oracle dialect for the quota store, compared to the basic one creates index organized tables
  * and uses the Oracle specific syntax to get the pages with the oldest access time and lowest
- * access frequency
+ * access frequency.
+ * <p>
+ * The page statistics are updated with batches of MERGE statements. These have not been tested
+ * against an actual Oracle database yet, the Oracle quota store tests will run them once an
+ * Oracle fixture is configured.
+ * </p>
  * 
  * @author Andrea Aime - GeoSolutions
  */
@@ -68,53 +73,75 @@ public class OracleDialect extends SQLDialect {
         sb.append("FROM DUAL");
     }
     
-    public String getLeastFrequentlyUsedPage(String schema, List<String> layerParamNames) {
+    @Override
+    protected String getPagesToExpire(String schema, List<String> layerParamNames,
+            String orderColumn, int maxPages) {
         StringBuilder sb = new StringBuilder("SELECT * FROM (");
-        sb.append("SELECT TILESET_ID, PAGE_X, PAGE_Y, PAGE_Z, CREATION_TIME_MINUTES FROM ");
-        if (schema != null) {
-            sb.append(schema).append(".");
-        }
-        sb.append("TILEPAGE WHERE FILL_FACTOR > 0 ");
-        sb.append("AND TILESET_ID IN (");
-        sb.append("SELECT KEY FROM ");
-        if (schema != null) {
-            sb.append(schema).append(".");
-        }
-        sb.append("TILESET WHERE LAYER_NAME IN (");
-        for (int i = 0; i < layerParamNames.size(); i++) {
-            sb.append(":" + layerParamNames.get(i));
-            if (i < layerParamNames.size() - 1) {
-                sb.append(", ");
-            }
-        }
-        sb.append(")) ORDER BY FREQUENCY_OF_USE ASC");
-        sb.append(") WHERE ROWNUM <= 1");
-        
+        appendPagesOfLayers(sb, schema, layerParamNames);
+        sb.append("ORDER BY ").append(orderColumn).append(" ASC");
+        sb.append(") WHERE ROWNUM <= ").append(maxPages);
+
         return sb.toString();
     }
 
-    public String getLeastRecentlyUsedPage(String schema, List<String> layerParamNames) {
-        StringBuilder sb = new StringBuilder("SELECT * FROM (");
-        sb.append("SELECT TILESET_ID, PAGE_X, PAGE_Y, PAGE_Z, CREATION_TIME_MINUTES FROM ");
-        if (schema != null) {
-            sb.append(schema).append(".");
-        }
-        sb.append("TILEPAGE WHERE FILL_FACTOR > 0 ");
-        sb.append("AND TILESET_ID IN (");
-        sb.append("SELECT KEY FROM ");
+    @Override
+    public String upsertTilePageFillFactor(String schema, String keyParam,
+            String tileSetIdParam, String zParam, String xParam, String yParam,
+            String creationParam, String fillFactorDeltaParam) {
+        StringBuilder sb = new StringBuilder();
+        appendMergeSource(sb, schema, keyParam);
+        sb.append("WHEN MATCHED THEN UPDATE SET P.FILL_FACTOR = ");
+        appendFillFactor(sb, "P.FILL_FACTOR", fillFactorDeltaParam);
+        appendInsertValues(sb, keyParam, tileSetIdParam, zParam, xParam, yParam, creationParam);
+        sb.append("0, 0, ");
+        appendFillFactor(sb, "0", fillFactorDeltaParam);
+        sb.append(", 0)");
+
+        return sb.toString();
+    }
+
+    @Override
+    public String upsertTilePageHitAccessTime(String schema, String keyParam,
+            String tileSetIdParam, String zParam, String xParam, String yParam,
+            String creationParam, String hitsParam, String lastAccessTimeParam, String ageParam,
+            String minFillFactorParam) {
+        StringBuilder sb = new StringBuilder();
+        appendMergeSource(sb, schema, keyParam);
+        sb.append("WHEN MATCHED THEN UPDATE SET P.NUM_HITS = P.NUM_HITS + :").append(hitsParam);
+        sb.append(", P.FREQUENCY_OF_USE = ");
+        appendFrequencyOfUse(sb, "P.NUM_HITS", "P.FILL_FACTOR", hitsParam, ageParam,
+                minFillFactorParam);
+        sb.append(", P.LAST_ACCESS_TIME_MINUTES = :").append(lastAccessTimeParam);
+        appendInsertValues(sb, keyParam, tileSetIdParam, zParam, xParam, yParam, creationParam);
+        appendFrequencyOfUse(sb, "0", "0", hitsParam, ageParam, minFillFactorParam);
+        sb.append(", :").append(lastAccessTimeParam);
+        sb.append(", :").append(minFillFactorParam);
+        sb.append(", :").append(hitsParam).append(")");
+
+        return sb.toString();
+    }
+
+    private void appendMergeSource(StringBuilder sb, String schema, String keyParam) {
+        sb.append("MERGE INTO ");
         if (schema != null) {
             sb.append(schema).append(".");
         }
-        sb.append("TILESET WHERE LAYER_NAME IN (");
-        for (int i = 0; i < layerParamNames.size(); i++) {
-            sb.append(":" + layerParamNames.get(i));
-            if (i < layerParamNames.size() - 1) {
-                sb.append(", ");
-            }
-        }
-        sb.append(")) ORDER BY LAST_ACCESS_TIME_MINUTES ASC");
-        sb.append(") WHERE ROWNUM <= 1");
+        sb.append("TILEPAGE P USING (SELECT :").append(keyParam);
+        sb.append(" AS PAGE_KEY FROM DUAL) S ON (P.KEY = S.PAGE_KEY) ");
+    }
 
-        return sb.toString();
+    /**
+     * Appends the insert of a new page, up to the creation time
+     */
+    private void appendInsertValues(StringBuilder sb, String keyParam, String tileSetIdParam,
+            String zParam, String xParam, String yParam, String creationParam) {
+        sb.append(" WHEN NOT MATCHED THEN INSERT ");
+        appendTilePageColumns(sb);
+        sb.append(" VALUES (:").append(keyParam).append(", ");
+        sb.append(":").append(tileSetIdParam).append(", ");
+        sb.append(":").append(zParam).append(", ");
+        sb.append(":").append(xParam).append(", ");
+        sb.append(":").append(yParam).append(", ");
+        sb.append(":").append(creationParam).append(", ");
     }
 }
@@ -16,11 +16,128 @@
  */
 package org.geowebcache.diskquota.jdbc;
 
+import java.sql.DatabaseMetaData;
+import java.sql.SQLException;
+
+import javax.sql.DataSource;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.jdbc.core.simple.SimpleJdbcTemplate;
+import org.springframework.jdbc.support.DatabaseMetaDataCallback;
+import org.springframework.jdbc.support.JdbcAccessor;
+import org.springframework.jdbc.support.JdbcUtils;
+import org.springframework.jdbc.support.MetaDataAccessException;
+
 /**
- * PostgreSQL specific dialect 
+ * PostgreSQL specific dialect. On PostgreSQL 9.5 or newer the page statistics are updated with
+ * batches of {@code INSERT ... ON CONFLICT} upserts, older versions fall back on the one page at
+ * a time updates of the base dialect
  * 
  * @author Andrea Aime - GeoSolutions
  */
 public class PostgreSQLDialect extends SQLDialect {
 
+    private static final Log log = LogFactory.getLog(PostgreSQLDialect.class);
+
+    /**
+     * Whether the database supports ON CONFLICT, unknown (hence false) until the tables are
+     * initialized
+     */
+    private volatile boolean upsertSupported;
+
+    @Override
+    public void initializeTables(String schema, SimpleJdbcTemplate template) {
+        super.initializeTables(schema, template);
+        upsertSupported = supportsUpsert(template);
+        if (!upsertSupported) {
+            log.info("PostgreSQL older than 9.5, the tile page statistics will be "
+                    + "updated one page at a time");
+        }
+    }
+
+    /**
+     * Checks if the database is PostgreSQL 9.5 or newer, the first version supporting the
+     * ON CONFLICT clause
+     */
+    private boolean supportsUpsert(SimpleJdbcTemplate template) {
+        try {
+            DataSource ds = ((JdbcAccessor) template.getJdbcOperations()).getDataSource();
+            return (Boolean) JdbcUtils.extractDatabaseMetaData(ds, new DatabaseMetaDataCallback() {
+
+                public Object processMetaData(DatabaseMetaData dbmd) throws SQLException,
+                        MetaDataAccessException {
+                    int major = dbmd.getDatabaseMajorVersion();
+                    int minor = dbmd.getDatabaseMinorVersion();
+                    return major > 9 || (major == 9 && minor >= 5);
+                }
+            });
+        } catch (MetaDataAccessException e) {
+            log.warn("Could not determine the PostgreSQL version", e);
+            return false;
+        }
+    }
+
+    @Override
+    public String upsertTilePageFillFactor(String schema, String keyParam,
+            String tileSetIdParam, String zParam, String xParam, String yParam,
+            String creationParam, String fillFactorDeltaParam) {
+        if (!upsertSupported) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder();
+        appendInsertValues(sb, schema, keyParam, tileSetIdParam, zParam, xParam, yParam,
+                creationParam);
+        sb.append("0, 0, ");
+        appendFillFactor(sb, "0", fillFactorDeltaParam);
+        sb.append(", 0) ON CONFLICT (KEY) DO UPDATE SET FILL_FACTOR = ");
+        appendFillFactor(sb, "P.FILL_FACTOR", fillFactorDeltaParam);
+
+        return sb.toString();
+    }
+
+    @Override
+    public String upsertTilePageHitAccessTime(String schema, String keyParam,
+            String tileSetIdParam, String zParam, String xParam, String yParam,
+            String creationParam, String hitsParam, String lastAccessTimeParam, String ageParam,
+            String minFillFactorParam) {
+        if (!upsertSupported) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder();
+        appendInsertValues(sb, schema, keyParam, tileSetIdParam, zParam, xParam, yParam,
+                creationParam);
+        appendFrequencyOfUse(sb, "0", "0", hitsParam, ageParam, minFillFactorParam);
+        sb.append(", :").append(lastAccessTimeParam);
+        sb.append(", :").append(minFillFactorParam);
+        sb.append(", :").append(hitsParam);
+        sb.append(") ON CONFLICT (KEY) DO UPDATE SET NUM_HITS = P.NUM_HITS + :").append(hitsParam);
+        sb.append(", FREQUENCY_OF_USE = ");
+        appendFrequencyOfUse(sb, "P.NUM_HITS", "P.FILL_FACTOR", hitsParam, ageParam,
+                minFillFactorParam);
+        sb.append(", LAST_ACCESS_TIME_MINUTES = :").append(lastAccessTimeParam);
+
+        return sb.toString();
+    }
+
+    /**
+     * Appends the insert of a new page, up to the creation time, for the upserts. These rely on
+     * the ON CONFLICT clause, which requires PostgreSQL 9.5 or newer
+     */
+    private void appendInsertValues(StringBuilder sb, String schema, String keyParam,
+            String tileSetIdParam, String zParam, String xParam, String yParam,
+            String creationParam) {
+        sb.append("INSERT INTO ");
+        if (schema != null) {
+            sb.append(schema).append(".");
+        }
+        sb.append("TILEPAGE AS P ");
+        appendTilePageColumns(sb);
+        sb.append(" VALUES (:").append(keyParam).append(", ");
+        sb.append(":").append(tileSetIdParam).append(", ");
+        sb.append(":").append(zParam).append(", ");
+        sb.append(":").append(xParam).append(", ");
+        sb.append(":").append(yParam).append(", ");
+        sb.append(":").append(creationParam).append(", ");
+    }
 }
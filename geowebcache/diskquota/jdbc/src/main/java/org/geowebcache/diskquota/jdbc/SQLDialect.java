@@ -399,34 +399,153 @@ public class SQLDialect {
 
     }
 
-    public String getLeastFrequentlyUsedPage(String schema, List<String> layerParamNames) {
-        StringBuilder sb = new StringBuilder(
-                "SELECT TILESET_ID, PAGE_X, PAGE_Y, PAGE_Z, CREATION_TIME_MINUTES FROM ");
-        if (schema != null) {
-            sb.append(schema).append(".");
-        }
-        sb.append("TILEPAGE WHERE FILL_FACTOR > 0 ");
-        sb.append("AND TILESET_ID IN (");
-        sb.append("SELECT KEY FROM ");
+    /**
+     * Returns the stats of several pages, preceded by their key
+     *
+     * @param schema
+     * @param keyParams
+     * @return
+     */
+    public String getPagesStats(String schema, List<String> keyParams) {
+        StringBuilder sb = new StringBuilder("SELECT KEY, FREQUENCY_OF_USE, ");
+        sb.append("LAST_ACCESS_TIME_MINUTES, FILL_FACTOR, NUM_HITS FROM ");
         if (schema != null) {
             sb.append(schema).append(".");
         }
-        sb.append("TILESET WHERE LAYER_NAME IN (");
-        for (int i = 0; i < layerParamNames.size(); i++) {
-            sb.append(":" + layerParamNames.get(i));
-            if (i < layerParamNames.size() - 1) {
+        sb.append("TILEPAGE WHERE KEY IN (");
+        for (int i = 0; i < keyParams.size(); i++) {
+            sb.append(":" + keyParams.get(i));
+            if (i < keyParams.size() - 1) {
                 sb.append(", ");
             }
         }
-        sb.append(")) ");
-        sb.append("ORDER BY FREQUENCY_OF_USE ASC LIMIT 1");
+        sb.append(")");
 
         return sb.toString();
     }
 
+    /**
+     * Adds a delta to the fill factor of a page, keeping it between 0 and 1, and creates the page
+     * if missing, in a single statement that can be batched. Returns {@code null} if the database
+     * cannot do that, in which case the page is updated with
+     * {@link #contionalTilePageInsertStatement} and {@link #conditionalUpdatePageStatsFillFactor}
+     * instead, one page at a time
+     *
+     * @param schema
+     * @param keyParam
+     * @param tileSetIdParam
+     * @param zParam
+     * @param xParam
+     * @param yParam
+     * @param creationParam
+     * @param fillFactorDeltaParam
+     * @return
+     */
+    public String upsertTilePageFillFactor(String schema, String keyParam,
+            String tileSetIdParam, String zParam, String xParam, String yParam,
+            String creationParam, String fillFactorDeltaParam) {
+        return null;
+    }
+
+    /**
+     * Adds hits to a page and sets its last access time, creating the page if missing, in a
+     * single statement that can be batched. The frequency of use is computed as in
+     * {@link org.geowebcache.diskquota.storage.PageStats#addHitsAndAccessTime}, using the
+     * {@code ageParam} minutes elapsed since the page creation, and {@code minFillFactorParam} in
+     * place of the fill factor of empty pages. Returns {@code null} if the database cannot do
+     * that, in which case the page is updated with {@link #contionalTilePageInsertStatement} and
+     * {@link #updatePageStats} instead, one page at a time
+     *
+     * @param schema
+     * @param keyParam
+     * @param tileSetIdParam
+     * @param zParam
+     * @param xParam
+     * @param yParam
+     * @param creationParam
+     * @param hitsParam
+     * @param lastAccessTimeParam
+     * @param ageParam
+     * @param minFillFactorParam
+     * @return
+     */
+    public String upsertTilePageHitAccessTime(String schema, String keyParam,
+            String tileSetIdParam, String zParam, String xParam, String yParam,
+            String creationParam, String hitsParam, String lastAccessTimeParam, String ageParam,
+            String minFillFactorParam) {
+        return null;
+    }
+
+    /**
+     * Appends the list of the tile page columns, in table order, for the upsert statements
+     */
+    protected void appendTilePageColumns(StringBuilder sb) {
+        sb.append("(KEY, TILESET_ID, PAGE_Z, PAGE_X, PAGE_Y, CREATION_TIME_MINUTES, ");
+        sb.append("FREQUENCY_OF_USE, LAST_ACCESS_TIME_MINUTES, FILL_FACTOR, NUM_HITS)");
+    }
+
+    /**
+     * Appends the fill factor resulting from adding a delta to {@code fillFactor}, for the
+     * upsert statements
+     */
+    protected void appendFillFactor(StringBuilder sb, String fillFactor,
+            String fillFactorDeltaParam) {
+        sb.append("LEAST(1, GREATEST(0, ").append(fillFactor).append(" + :");
+        sb.append(fillFactorDeltaParam).append("))");
+    }
+
+    /**
+     * Appends the frequency of use resulting from adding hits to {@code numHits}, for the upsert
+     * statements
+     */
+    protected void appendFrequencyOfUse(StringBuilder sb, String numHits, String fillFactor,
+            String hitsParam, String ageParam, String minFillFactorParam) {
+        sb.append("(").append(numHits).append(" + :").append(hitsParam).append(")");
+        sb.append(" * GREATEST(").append(fillFactor).append(", :").append(minFillFactorParam);
+        sb.append(") / :").append(ageParam);
+    }
+
+    public String getLeastFrequentlyUsedPage(String schema, List<String> layerParamNames) {
+        return getLeastFrequentlyUsedPages(schema, layerParamNames, 1);
+    }
+
     public String getLeastRecentlyUsedPage(String schema, List<String> layerParamNames) {
-        StringBuilder sb = new StringBuilder(
-                "SELECT TILESET_ID, PAGE_X, PAGE_Y, PAGE_Z, CREATION_TIME_MINUTES FROM ");
+        return getLeastRecentlyUsedPages(schema, layerParamNames, 1);
+    }
+
+    /**
+     * @return the query returning up to {@code maxPages} non empty pages of the given layers, least
+     *         frequently used first
+     */
+    public String getLeastFrequentlyUsedPages(String schema, List<String> layerParamNames,
+            int maxPages) {
+        return getPagesToExpire(schema, layerParamNames, "FREQUENCY_OF_USE", maxPages);
+    }
+
+    /**
+     * @return the query returning up to {@code maxPages} non empty pages of the given layers, least
+     *         recently used first
+     */
+    public String getLeastRecentlyUsedPages(String schema, List<String> layerParamNames,
+            int maxPages) {
+        return getPagesToExpire(schema, layerParamNames, "LAST_ACCESS_TIME_MINUTES", maxPages);
+    }
+
+    protected String getPagesToExpire(String schema, List<String> layerParamNames,
+            String orderColumn, int maxPages) {
+        StringBuilder sb = new StringBuilder();
+        appendPagesOfLayers(sb, schema, layerParamNames);
+        sb.append("ORDER BY ").append(orderColumn).append(" ASC LIMIT ").append(maxPages);
+
+        return sb.toString();
+    }
+
+    /**
+     * Appends the selection of the non empty pages of the given layers, without ordering
+     */
+    protected void appendPagesOfLayers(StringBuilder sb, String schema,
+            List<String> layerParamNames) {
+        sb.append("SELECT TILESET_ID, PAGE_X, PAGE_Y, PAGE_Z, CREATION_TIME_MINUTES FROM ");
         if (schema != null) {
             sb.append(schema).append(".");
         }
@@ -444,9 +563,6 @@ public class SQLDialect {
             }
         }
         sb.append(")) ");
-        sb.append("ORDER BY LAST_ACCESS_TIME_MINUTES ASC LIMIT 1");
-
-        return sb.toString();
     }
 
 }
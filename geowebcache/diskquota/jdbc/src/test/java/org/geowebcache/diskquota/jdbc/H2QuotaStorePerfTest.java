@@ -0,0 +1,175 @@
+package org.geowebcache.diskquota.jdbc;
+
+import java.io.File;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.dbcp.BasicDataSource;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.easymock.classextension.EasyMock;
+import org.geowebcache.config.Configuration;
+import org.geowebcache.config.XMLConfiguration;
+import org.geowebcache.config.XMLConfigurationBackwardsCompatibilityTest;
+import org.geowebcache.diskquota.DiskQuotaMonitor;
+import org.geowebcache.diskquota.storage.PageStatsPayload;
+import org.geowebcache.diskquota.storage.Quota;
+import org.geowebcache.diskquota.storage.TilePage;
+import org.geowebcache.diskquota.storage.TilePageCalculator;
+import org.geowebcache.diskquota.storage.TileSet;
+import org.geowebcache.grid.GridSetBroker;
+import org.geowebcache.layer.TileLayerDispatcher;
+import org.geowebcache.storage.DefaultStorageFinder;
+import org.h2.tools.Server;
+
+/**
+ * Measures the page updates per second of the {@link JDBCQuotaStore} against an embedded H2
+ * database, comparing the batched upserts of the {@link H2Dialect} with the one page at a time
+ * updates of the base {@link SQLDialect}, for different numbers of pages per quota update. Half
+ * of the pages of each update already exist, the other half are created.
+ * <p>
+ * Not run by the build, run it manually to compare the two.
+ * </p>
+ */
+public class H2QuotaStorePerfTest extends TestCase {
+
+    private static final int[] PAGES_PER_UPDATE = { 10, 100, 1000 };
+
+    /**
+     * Pages updated by each run, for both the tile counts and the hits
+     */
+    private static final int PAGES = 20000;
+
+    private static int databases;
+
+    DefaultStorageFinder cacheDirFinder;
+
+    TilePageCalculator tilePageCalculator;
+
+    TileSet tileSet;
+
+    @Override
+    protected void setUp() throws Exception {
+        File targetDir = new File("target", "mockStore");
+        FileUtils.deleteDirectory(targetDir);
+        targetDir.mkdirs();
+
+        cacheDirFinder = EasyMock.createMock(DefaultStorageFinder.class);
+        EasyMock.expect(cacheDirFinder.getDefaultPath()).andReturn(targetDir.getAbsolutePath())
+                .anyTimes();
+        EasyMock.expect(
+                cacheDirFinder.findEnvVar(EasyMock.eq(DiskQuotaMonitor.GWC_DISKQUOTA_DISABLED)))
+                .andReturn(null).anyTimes();
+        EasyMock.replay(cacheDirFinder);
+
+        InputStream is = XMLConfiguration.class
+                .getResourceAsStream(XMLConfigurationBackwardsCompatibilityTest.LATEST_FILENAME);
+        XMLConfiguration xmlConfig;
+        try {
+            xmlConfig = new XMLConfiguration(is);
+        } finally {
+            IOUtils.closeQuietly(is);
+        }
+        LinkedList<Configuration> configList = new LinkedList<Configuration>();
+        configList.add(xmlConfig);
+        TileLayerDispatcher layerDispatcher = new TileLayerDispatcher(new GridSetBroker(true,
+                true), configList);
+
+        tilePageCalculator = new TilePageCalculator(layerDispatcher);
+        tileSet = tilePageCalculator.getTileSetsFor("topp:states2").iterator().next();
+    }
+
+    public void testCompareDialects() throws Exception {
+        // warm up
+        run(new SQLDialect(), "mem:", 100, PAGES / 10);
+        run(new H2Dialect(), "mem:", 100, PAGES / 10);
+
+        System.out.println("In process database");
+        for (int pagesPerUpdate : PAGES_PER_UPDATE) {
+            run(new SQLDialect(), "mem:", pagesPerUpdate, PAGES);
+            run(new H2Dialect(), "mem:", pagesPerUpdate, PAGES);
+        }
+
+        // the same database accessed through a socket, where each statement pays a round trip
+        ServerSocket socket = new ServerSocket(0);
+        final int port = socket.getLocalPort();
+        socket.close();
+        Server server = Server.createTcpServer(new String[] { "-tcpPort", String.valueOf(port) })
+                .start();
+        try {
+            System.out.println("Database server on localhost");
+            String prefix = "tcp://localhost:" + port + "/mem:";
+            for (int pagesPerUpdate : PAGES_PER_UPDATE) {
+                run(new SQLDialect(), prefix, pagesPerUpdate, PAGES);
+                run(new H2Dialect(), prefix, pagesPerUpdate, PAGES);
+            }
+        } finally {
+            server.stop();
+        }
+    }
+
+    private void run(SQLDialect dialect, String urlPrefix, int pagesPerUpdate, int pages)
+            throws Exception {
+        BasicDataSource dataSource = new BasicDataSource();
+        dataSource.setDriverClassName("org.h2.Driver");
+        dataSource.setUrl("jdbc:h2:" + urlPrefix + "quota-perf-" + (databases++));
+        dataSource.setUsername("sa");
+        dataSource.setPassword("");
+        dataSource.setPoolPreparedStatements(true);
+        dataSource.setMinIdle(1);
+        dataSource.setMaxActive(4);
+
+        JDBCQuotaStore store = new JDBCQuotaStore(cacheDirFinder, tilePageCalculator);
+        store.setDataSource(dataSource);
+        store.setDialect(dialect);
+        store.initialize();
+
+        long tileCountsTime = 0;
+        long hitsTime = 0;
+        try {
+            final Quota quotaDiff = new Quota(BigInteger.valueOf(1024));
+            for (int first = 0; first < pages; first += pagesPerUpdate) {
+                // start half way through the pages of the previous update
+                List<PageStatsPayload> payloads = createPayloads(first / 2, pagesPerUpdate);
+
+                long start = System.nanoTime();
+                store.addToQuotaAndTileCounts(tileSet, quotaDiff, payloads);
+                tileCountsTime += System.nanoTime() - start;
+
+                start = System.nanoTime();
+                store.addHitsAndSetAccesTime(payloads).get();
+                hitsTime += System.nanoTime() - start;
+            }
+        } finally {
+            store.close();
+        }
+
+        System.out.println(dialect.getClass().getSimpleName() + ", " + pagesPerUpdate
+                + " pages per update: " + perSecond(pages, tileCountsTime)
+                + " tile count updates/s, " + perSecond(pages, hitsTime) + " hit updates/s");
+    }
+
+    private List<PageStatsPayload> createPayloads(int first, int count) {
+        final long now = System.currentTimeMillis();
+        List<PageStatsPayload> payloads = new ArrayList<PageStatsPayload>(count);
+        for (int i = first; i < first + count; i++) {
+            TilePage page = new TilePage(tileSet.getId(), i % 1000, i / 1000, 2);
+            PageStatsPayload payload = new PageStatsPayload(page, tileSet);
+            payload.setNumTiles(1);
+            payload.setNumHits(1);
+            payload.setLastAccessTime(now);
+            payloads.add(payload);
+        }
+        return payloads;
+    }
+
+    private static long perSecond(int pages, long nanos) {
+        return pages * 1000000000L / Math.max(1, nanos);
+    }
+}
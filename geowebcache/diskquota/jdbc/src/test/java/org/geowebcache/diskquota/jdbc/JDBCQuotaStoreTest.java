@@ -511,6 +511,52 @@ public abstract class JDBCQuotaStoreTest extends OnlineTestCase {
         assertEquals(expected, frequencyOfUsePerMinute, 1e-6f);
     }
 
+    public void testPageStatsBatches() throws Exception {
+        final MockSystemUtils sysUtils = new MockSystemUtils();
+        sysUtils.setCurrentTimeMinutes(10);
+        sysUtils.setCurrentTimeMillis(10 * 60 * 1000);
+        SystemUtils.set(sysUtils);
+
+        // small batches, so that the pages are split among several of them
+        store.maxBatchSize = 3;
+
+        List<PageStatsPayload> payloads = new ArrayList<PageStatsPayload>();
+        for (int i = 0; i < 10; i++) {
+            TilePage page = new TilePage(testTileSet.getId(), i, 1, 2);
+            PageStatsPayload payload = new PageStatsPayload(page, testTileSet);
+            payload.setNumTiles(i + 1);
+            payload.setNumHits(100 + i);
+            payload.setLastAccessTime(sysUtils.currentTimeMillis() + 2 * 60 * 1000);
+            payloads.add(payload);
+        }
+        // create half of the pages first, then update them all, twice
+        store.addToQuotaAndTileCounts(testTileSet, new Quota(1, StorageUnit.MiB),
+                payloads.subList(0, 5));
+        store.addToQuotaAndTileCounts(testTileSet, new Quota(1, StorageUnit.MiB), payloads);
+        store.addHitsAndSetAccesTime(payloads.subList(0, 5)).get();
+        List<PageStats> allStats = store.addHitsAndSetAccesTime(payloads).get();
+        assertEquals(10, allStats.size());
+
+        BigInteger tilesPerPage = tilePageCalculator.getTilesPerPage(testTileSet, 2);
+        for (PageStats stats : allStats) {
+            // the first five pages got their tiles and hits twice
+            int hits = stats.getNumHits().intValue();
+            int i = hits >= 200 ? hits / 2 - 100 : hits - 100;
+            PageStats expected = new PageStats(0);
+            expected.addTiles(i + 1, tilesPerPage);
+            expected.addHitsAndAccessTime(100 + i, 12, 10);
+            if (i < 5) {
+                expected.addTiles(i + 1, tilesPerPage);
+                expected.addHitsAndAccessTime(100 + i, 12, 10);
+            }
+            assertEquals(expected.getNumHits(), stats.getNumHits());
+            assertEquals(expected.getFillFactor(), stats.getFillFactor(), 1e-6f);
+            assertEquals(expected.getFrequencyOfUsePerMinute(),
+                    stats.getFrequencyOfUsePerMinute(), 1e-3f);
+            assertEquals(12, stats.getLastAccessTimeMinutes());
+        }
+    }
+
     public void testGetGloballyUsedQuota() throws InterruptedException {
         Quota usedQuota = store.getGloballyUsedQuota();
         assertNotNull(usedQuota);
@@ -610,6 +656,38 @@ public abstract class JDBCQuotaStoreTest extends OnlineTestCase {
         assertEquals(page1, leastFrequentlyUsedPage);
     }
 
+    public void testGetLeastFrequentlyUsedPages() throws Exception {
+        final String layerName = testTileSet.getLayerName();
+        Set<String> layerNames = Collections.singleton(layerName);
+
+        assertTrue(store.getLeastFrequentlyUsedPages(layerNames, 10).isEmpty());
+
+        TilePage page1 = new TilePage(testTileSet.getId(), 0, 1, 2);
+        TilePage page2 = new TilePage(testTileSet.getId(), 1, 1, 2);
+        TilePage page3 = new TilePage(testTileSet.getId(), 2, 1, 2);
+
+        PageStatsPayload payload1 = new PageStatsPayload(page1, testTileSet);
+        PageStatsPayload payload2 = new PageStatsPayload(page2, testTileSet);
+        PageStatsPayload payload3 = new PageStatsPayload(page3, testTileSet);
+
+        payload1.setNumHits(100);
+        payload2.setNumHits(10);
+        payload3.setNumHits(50);
+        Collection<PageStatsPayload> statsUpdates = Arrays.asList(payload1, payload2, payload3);
+        store.addHitsAndSetAccesTime(statsUpdates).get();
+
+        assertEquals(Arrays.asList(page2, page3), store.getLeastFrequentlyUsedPages(layerNames, 2));
+        assertEquals(Arrays.asList(page2, page3, page1),
+                store.getLeastFrequentlyUsedPages(layerNames, 10));
+
+        // truncated pages are not candidates anymore
+        store.setTruncated(page2);
+        assertEquals(Arrays.asList(page3, page1),
+                store.getLeastFrequentlyUsedPages(layerNames, 10));
+        assertTrue(store.getLeastFrequentlyUsedPages(Collections.singleton("nonExistent"), 10)
+                .isEmpty());
+    }
+
     public void testGetLeastRecentlyUsedPage() throws Exception {
         MockSystemUtils mockSystemUtils = new MockSystemUtils();
         mockSystemUtils.setCurrentTimeMinutes(1000);
@@ -0,0 +1,59 @@
+package org.geowebcache.diskquota.jdbc;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+
+import javax.sql.DataSource;
+
+import junit.framework.TestCase;
+
+import org.easymock.EasyMock;
+import org.springframework.jdbc.core.simple.SimpleJdbcTemplate;
+
+public class PostgreSQLDialectTest extends TestCase {
+
+    public void testUpsertRequires95() throws Exception {
+        assertUpsert(false, 8, 4);
+        assertUpsert(false, 9, 4);
+        assertUpsert(true, 9, 5);
+        assertUpsert(true, 10, 0);
+    }
+
+    public void testNoUpsertBeforeInitialization() {
+        PostgreSQLDialect dialect = new PostgreSQLDialect();
+        assertNull(upsertFillFactor(dialect));
+    }
+
+    private void assertUpsert(boolean expected, int major, int minor) throws Exception {
+        // all the tables exist already
+        ResultSet tables = EasyMock.createNiceMock(ResultSet.class);
+        EasyMock.expect(tables.next()).andReturn(true).anyTimes();
+        DatabaseMetaData metadata = EasyMock.createNiceMock(DatabaseMetaData.class);
+        EasyMock.expect(
+                metadata.getTables((String) EasyMock.anyObject(), (String) EasyMock.anyObject(),
+                        (String) EasyMock.anyObject(), (String[]) EasyMock.anyObject()))
+                .andReturn(tables).anyTimes();
+        EasyMock.expect(metadata.getDatabaseMajorVersion()).andReturn(major).anyTimes();
+        EasyMock.expect(metadata.getDatabaseMinorVersion()).andReturn(minor).anyTimes();
+        Connection connection = EasyMock.createNiceMock(Connection.class);
+        EasyMock.expect(connection.getMetaData()).andReturn(metadata).anyTimes();
+        DataSource dataSource = EasyMock.createNiceMock(DataSource.class);
+        EasyMock.expect(dataSource.getConnection()).andReturn(connection).anyTimes();
+        EasyMock.replay(tables, metadata, connection, dataSource);
+
+        PostgreSQLDialect dialect = new PostgreSQLDialect();
+        dialect.initializeTables(null, new SimpleJdbcTemplate(dataSource));
+
+        String upsert = upsertFillFactor(dialect);
+        assertEquals(expected, upsert != null);
+        if (expected) {
+            assertTrue(upsert, upsert.contains("ON CONFLICT"));
+        }
+    }
+
+    private String upsertFillFactor(PostgreSQLDialect dialect) {
+        return dialect.upsertTilePageFillFactor(null, "key", "tileSetId", "z", "x", "y",
+                "creation", "fillFactor");
+    }
+}
@@ -42,6 +42,7 @@ import org.geowebcache.mime.MimeType;
 import org.geowebcache.rest.GWCRestlet;
 import org.geowebcache.rest.RestletException;
 import org.geowebcache.seed.GWCTask;
+import org.geowebcache.seed.GWCTask.PRIORITY;
 import org.geowebcache.seed.GWCTask.STATE;
 import org.geowebcache.seed.GWCTask.TYPE;
 import org.geowebcache.seed.SeedRequest;
@@ -146,6 +147,8 @@ public class SeedFormRestlet extends GWCRestlet {
             handleKillThreadPost(form, tl, resp);
         } else if (form.getFirst("kill_all") != null) {
             handleKillAllThreadsPost(form, tl, resp);
+        } else if (form.getFirst("reprioritize_thread") != null) {
+            handleReprioritizeThreadPost(form, tl, resp);
         } else if (form.getFirst("minX") != null) {
             if (tl == null) {
                 throw new RestletException("No layer specified", Status.CLIENT_ERROR_BAD_REQUEST);
@@ -176,6 +179,10 @@ public class SeedFormRestlet extends GWCRestlet {
 
         makeTypePullDown(doc);
 
+        makePriorityPullDown(doc);
+
+        makeMaxTileRateField(doc);
+
         makeGridSetPulldown(doc, tl);
 
         makeFormatPullDown(doc, tl);
@@ -284,6 +291,35 @@ public class SeedFormRestlet extends GWCRestlet {
         doc.append("</td></tr>\n");
     }
 
+    private void makePriorityPullDown(StringBuilder doc) {
+        doc.append("<tr><td>Priority:</td><td>\n");
+        makePriorityPullDown(doc, PRIORITY.NORMAL);
+        doc.append("</td></tr>\n");
+    }
+
+    private void makePriorityPullDown(StringBuilder doc, PRIORITY selected) {
+        Map<String, String> keysValues = new TreeMap<String, String>();
+
+        keysValues.put("Low - pause while users wait for tiles", "low");
+        keysValues.put("Normal - slow down while users wait for tiles", "normal");
+        keysValues.put("High - keep going", "high");
+
+        String defaultKey = null;
+        for (Entry<String, String> entry : keysValues.entrySet()) {
+            if (entry.getValue().equalsIgnoreCase(selected.name())) {
+                defaultKey = entry.getKey();
+            }
+        }
+        makePullDown(doc, "priority", keysValues, defaultKey);
+    }
+
+    private void makeMaxTileRateField(StringBuilder doc) {
+        doc.append("<tr><td>Maximum tiles per second:</td><td>\n");
+        makeTextInput(doc, "maxTileRate", 6);
+        doc.append("Optional, leave empty for no limit.");
+        doc.append("</td></tr>\n");
+    }
+
     private void makeThreadCountPullDown(StringBuilder doc) {
         doc.append("<tr><td>Number of tasks to use:</td><td>\n");
         Map<String, String> keysValues = new TreeMap<String, String>();
@@ -479,7 +515,7 @@ public class SeedFormRestlet extends GWCRestlet {
         } else {
             doc.append("<table border=\"0\">");
             doc.append("<tr style=\"font-weight: bold;\"><td style=\"padding-right:20px;\">Id</td><td style=\"padding-right:20px;\">Layer</td><td style=\"padding-right:20px;\">Status</td><td style=\"padding-right:20px;\">Type</td><td>Estimated # of tiles</td>"
-                    + "<td style=\"padding-right:20px;\">Tiles completed</td><td style=\"padding-right:20px;\">Time elapsed</td><td>Time remaining</td><td>Tasks</td><td>&nbsp;</td>");
+                    + "<td style=\"padding-right:20px;\">Tiles completed</td><td style=\"padding-right:20px;\">Time elapsed</td><td>Time remaining</td><td>Tasks</td><td>Priority</td><td>&nbsp;</td>");
             doc.append("</tr>");
             tasks = true;
         }
@@ -505,7 +541,10 @@ public class SeedFormRestlet extends GWCRestlet {
             } else {
                 tilesTotalStr = nf.format(tilesTotal);
             }
-            final String tilesDoneStr = nf.format(task.getTilesDone());
+            String tilesDoneStr = nf.format(task.getTilesDone());
+            if (task.getTilesSkipped() > 0) {
+                tilesDoneStr += " (" + nf.format(task.getTilesSkipped()) + " already cached)";
+            }
             final STATE state = task.getState();
 
             final String status = STATE.UNSET.equals(state) || STATE.READY.equals(state) ? "PENDING"
@@ -534,6 +573,7 @@ public class SeedFormRestlet extends GWCRestlet {
             doc.append("<td>").append(timeRemaining).append("</td>");
             doc.append("<td>(Task ").append(task.getThreadOffset() + 1).append(" of ")
                     .append(task.getThreadCount()).append(") </td>");
+            doc.append("<td>").append(makeThreadPriorityForm(task, tl)).append("</td>");
             doc.append("<td>").append(makeThreadKillForm(task.getTaskId(), tl)).append("</td>");
             doc.append("<tr>");
         }
@@ -591,6 +631,28 @@ public class SeedFormRestlet extends GWCRestlet {
         return ret;
     }
 
+    private String makeThreadPriorityForm(GWCTask task, TileLayer tl) {
+        StringBuilder doc = new StringBuilder();
+        doc.append("<form id=\"reprioritize\" action=\"./").append(tl.getName())
+                .append("\" method=\"post\">");
+        doc.append("<input type=\"hidden\" name=\"reprioritize_thread\" value=\"1\" />");
+        doc.append("<input type=\"hidden\" name=\"thread_id\" value=\"")
+                .append(task.getTaskId()).append("\" />");
+        makePriorityPullDown(doc, task.getPriority());
+        doc.append("<input name=\"maxTileRate\" type=\"text\" size=\"4\" value=\"");
+        if (task.getMaxTileRate() > 0) {
+            doc.append(task.getMaxTileRate());
+        }
+        doc.append("\" /> tiles/s");
+        if (task.isPaused()) {
+            doc.append(" <i>(paused)</i>");
+        }
+        doc.append("<span><input style=\"padding: 0; margin-bottom: -12px; border: 1;\""
+                + "type=\"submit\" value=\"Change\"></span>");
+        doc.append("</form>");
+        return doc.toString();
+    }
+
     private String makeKillallThreadsForm(TileLayer tl, boolean listAll) {
         StringBuilder doc = new StringBuilder();
 
@@ -727,6 +789,59 @@ public class SeedFormRestlet extends GWCRestlet {
         resp.setEntity(doc.toString(), MediaType.TEXT_HTML);
     }
 
+    private void handleReprioritizeThreadPost(Form form, TileLayer tl, Response resp)
+            throws RestletException {
+        String id = form.getFirstValue("thread_id");
+        PRIORITY priority = parsePriority(form);
+        Double maxTileRate = parseMaxTileRate(form);
+
+        StringBuilder doc = new StringBuilder();
+
+        makeHeader(doc);
+
+        if (seeder.reprioritizeGWCTask(Long.parseLong(id), priority, maxTileRate)) {
+            doc.append("<ul><li>Changed the priority of task " + id + " and the other tasks of "
+                    + "its job.</li></ul>");
+        } else {
+            doc.append("<ul><li>Sorry, task " + id + " is not running nor pending.</li></ul>");
+        }
+
+        if (tl != null) {
+            doc.append("<p><a href=\"./" + tl.getName() + "\">Go back</a></p>\n");
+        }
+
+        resp.setEntity(doc.toString(), MediaType.TEXT_HTML);
+    }
+
+    private static PRIORITY parsePriority(Form form) throws RestletException {
+        String value = form.getFirstValue("priority");
+        if (value == null || value.length() == 0) {
+            return null;
+        }
+        try {
+            return PRIORITY.valueOf(value.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new RestletException("Unknown priority: '" + value
+                    + "'. One of low|normal|high is expected.", Status.CLIENT_ERROR_BAD_REQUEST);
+        }
+    }
+
+    /**
+     * @return the maximum tile rate, {@code 0} if the field was left empty
+     */
+    private static Double parseMaxTileRate(Form form) throws RestletException {
+        String value = form.getFirstValue("maxTileRate");
+        if (value == null || value.trim().length() == 0) {
+            return Double.valueOf(0);
+        }
+        try {
+            return Double.valueOf(value.trim());
+        } catch (NumberFormatException nfe) {
+            throw new RestletException("Value for maxTileRate is not a double",
+                    Status.CLIENT_ERROR_BAD_REQUEST);
+        }
+    }
+
     private void handleDoSeedPost(Form form, TileLayer tl, Response resp) throws RestletException,
             GeoWebCacheException {
         BoundingBox bounds = null;
@@ -767,8 +882,10 @@ public class SeedFormRestlet extends GWCRestlet {
 
         GWCTask[] tasks;
         try {
+            PRIORITY priority = parsePriority(form);
             tasks = seeder.createTasks(tr, tl, sr.getType(), sr.getThreadCount(),
-                    sr.getFilterUpdate());
+                    sr.getFilterUpdate(), priority == null ? PRIORITY.NORMAL : priority,
+                    parseMaxTileRate(form).doubleValue());
         } catch (GeoWebCacheException e) {
             throw new RestletException(e.getMessage(), Status.SERVER_ERROR_INTERNAL);
         }
@@ -22,6 +22,9 @@ import java.io.StringReader;
 import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -31,8 +34,13 @@ import org.geowebcache.config.XMLConfiguration;
 import org.geowebcache.layer.TileLayer;
 import org.geowebcache.rest.GWCRestlet;
 import org.geowebcache.rest.RestletException;
+import org.geowebcache.seed.GWCTask;
+import org.geowebcache.seed.ReprioritizeRequest;
+import org.geowebcache.seed.ResumeRequest;
+import org.geowebcache.seed.SeedCheckpoint;
 import org.geowebcache.seed.SeedRequest;
 import org.geowebcache.seed.TileBreeder;
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.restlet.data.MediaType;
@@ -82,7 +90,8 @@ public class SeedRestlet extends GWCRestlet {
     }
 
     /**
-     * Returns a StringRepresentation with the status of the running threads in the thread pool.
+     * Returns a StringRepresentation with the status of the running threads in the thread pool,
+     * or with the job checkpoints if the {@code checkpoints} query parameter is present.
      */
     public void doGet(Request req, Response resp) throws RestletException {
         Representation rep = null;
@@ -97,6 +106,10 @@ public class SeedRestlet extends GWCRestlet {
         } else {
             layerName = null;
         }
+        if (req.getResourceRef().getQueryAsForm().getFirst("checkpoints") != null) {
+            resp.setEntity(new JsonRepresentation(listCheckpoints(layerName)));
+            return;
+        }
         try {
             XStream xs = new XStream(new JsonHierarchicalStreamDriver());
             JSONObject obj = null;
@@ -125,18 +138,22 @@ public class SeedRestlet extends GWCRestlet {
      * Method responsible for handling incoming POSTs. It will parse the XML document and
      * deserialize it into a SeedRequest, then create a SeedTask and forward it to the thread pool
      * executor.
+     * <p>
+     * A ReprioritizeRequest document changes the priority and rate limit of the running and
+     * pending tasks instead.
+     * </p>
      */
     public void doPost(Request req, Response resp) throws RestletException, IOException {
         String formatExtension = (String) req.getAttributes().get("extension");
 
-        SeedRequest sr = null;
+        Object parsed = null;
 
         XStream xs = xmlConfig.getConfiguredXStreamWithContext(new XStream(new DomDriver()), Context.REST);
 
         if (formatExtension.equalsIgnoreCase("xml")) {
-            sr = (SeedRequest) xs.fromXML(req.getEntity().getStream());
+            parsed = xs.fromXML(req.getEntity().getStream());
         } else if (formatExtension.equalsIgnoreCase("json")) {
-            sr = (SeedRequest) xs.fromXML(convertJson(req.getEntity().getText()));
+            parsed = xs.fromXML(convertJson(req.getEntity().getText()));
         } else {
             throw new RestletException("Format extension unknown or not specified: "
                     + formatExtension, Status.CLIENT_ERROR_BAD_REQUEST);
@@ -148,6 +165,21 @@ public class SeedRestlet extends GWCRestlet {
         } catch (UnsupportedEncodingException uee) {
         }
 
+        if (parsed instanceof ReprioritizeRequest) {
+            reprioritize(layerName, (ReprioritizeRequest) parsed);
+            return;
+        }
+        if (parsed instanceof ResumeRequest) {
+            resume(layerName, (ResumeRequest) parsed);
+            return;
+        }
+        if (!(parsed instanceof SeedRequest)) {
+            throw new RestletException(
+                    "Expected a seedRequest, reprioritizeRequest or resumeRequest document",
+                    Status.CLIENT_ERROR_BAD_REQUEST);
+        }
+        SeedRequest sr = (SeedRequest) parsed;
+
         try {
             seeder.seed(layerName, sr);
         } catch (IllegalArgumentException e) {
@@ -158,6 +190,92 @@ public class SeedRestlet extends GWCRestlet {
 
     }
 
+    /**
+     * Changes the priority and rate limit of the requested task, or of all the running and
+     * pending tasks of the layer if none is specified
+     */
+    private void reprioritize(String layerName, ReprioritizeRequest rr) throws RestletException {
+        if (rr.getPriority() == null && rr.getMaxTileRate() == null) {
+            throw new RestletException("Neither priority nor maxTileRate specified",
+                    Status.CLIENT_ERROR_BAD_REQUEST);
+        }
+        if (rr.getTaskId() != null) {
+            if (!seeder.reprioritizeGWCTask(rr.getTaskId().longValue(), rr.getPriority(),
+                    rr.getMaxTileRate())) {
+                throw new RestletException("No running or pending task " + rr.getTaskId(),
+                        Status.CLIENT_ERROR_NOT_FOUND);
+            }
+            return;
+        }
+        Iterator<GWCTask> tasks = seeder.getRunningAndPendingTasks();
+        while (tasks.hasNext()) {
+            GWCTask task = tasks.next();
+            if (layerName == null || layerName.equals(task.getLayerName())) {
+                seeder.reprioritizeGWCTask(task.getTaskId(), rr.getPriority(),
+                        rr.getMaxTileRate());
+            }
+        }
+    }
+
+    /**
+     * Lists the checkpoints of the jobs being run or left unfinished, for the given layer or all
+     * of them
+     */
+    private JSONObject listCheckpoints(String layerName) {
+        JSONArray list = new JSONArray();
+        try {
+            for (SeedCheckpoint checkpoint : seeder.getCheckpoints()) {
+                if (layerName != null && !layerName.equals(checkpoint.getLayerName())) {
+                    continue;
+                }
+                JSONObject obj = new JSONObject();
+                obj.put("id", checkpoint.getId());
+                obj.put("layer", checkpoint.getLayerName());
+                obj.put("type", checkpoint.getType().toString());
+                obj.put("pendingMetaTiles", checkpoint.getPendingMetaTiles());
+                obj.put("metaTileCount", checkpoint.getMetaTileCount());
+                obj.put("saved", checkpoint.getSaved());
+                obj.put("active", seeder.isJobActive(checkpoint.getId()));
+                list.put(obj);
+            }
+            return new JSONObject().put("checkpoints", list);
+        } catch (JSONException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Resumes, or discards, the requested unfinished job, or all the ones of the layer if none is
+     * specified
+     */
+    private void resume(String layerName, ResumeRequest rr) throws RestletException {
+        List<String> jobIds = new ArrayList<String>();
+        if (rr.getJobId() != null) {
+            jobIds.add(rr.getJobId());
+        } else {
+            for (SeedCheckpoint checkpoint : seeder.getCheckpoints()) {
+                if ((layerName == null || layerName.equals(checkpoint.getLayerName()))
+                        && !seeder.isJobActive(checkpoint.getId())) {
+                    jobIds.add(checkpoint.getId());
+                }
+            }
+        }
+        for (String jobId : jobIds) {
+            if (rr.isDiscard()) {
+                if (!seeder.discardJob(jobId) && rr.getJobId() != null) {
+                    throw new RestletException("No unfinished job " + jobId,
+                            Status.CLIENT_ERROR_NOT_FOUND);
+                }
+            } else {
+                try {
+                    seeder.resumeJob(jobId);
+                } catch (GeoWebCacheException e) {
+                    throw new RestletException(e.getMessage(), Status.CLIENT_ERROR_BAD_REQUEST);
+                }
+            }
+        }
+    }
+
     /**
      * Deserializing a json string is more complicated.
      * 